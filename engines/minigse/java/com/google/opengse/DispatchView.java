@@ -0,0 +1,64 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.opengse;
+
+/**
+ * The servlet request and response that the requests of one connection
+ * are dispatched with. A handler keeps a view with each keep-alive
+ * connection and resets it for every request, rather than adapting every
+ * request with new objects. The layers above the adapters may keep their
+ * own recyclable objects in the view's attachment.
+ *
+ * <p>A view serves one request at a time.
+ */
+public final class DispatchView {
+
+  private final HttpServletRequestAdapter request;
+  private final HttpServletResponseAdapter response;
+  private Object attachment;
+
+  DispatchView(HttpRequest httpRequest, HttpResponse httpResponse) {
+    request = new HttpServletRequestAdapter(this, httpRequest);
+    response = new HttpServletResponseAdapter(httpResponse);
+  }
+
+  /**
+   * Adapts the next request and its response.
+   */
+  void reset(HttpRequest httpRequest, HttpResponse httpResponse) {
+    request.reset(httpRequest);
+    response.reset(httpResponse);
+  }
+
+  public HttpServletRequestAdapter getRequest() {
+    return request;
+  }
+
+  public HttpServletResponseAdapter getResponse() {
+    return response;
+  }
+
+  /**
+   * Returns what the layer above the adapters keeps with this view, or
+   * null.
+   */
+  public Object getAttachment() {
+    return attachment;
+  }
+
+  public void setAttachment(Object attachment) {
+    this.attachment = attachment;
+  }
+}
@@ -143,4 +143,22 @@ public interface HttpRequest {
    * null if this is not supported by the implementation.
    */
   ConnectionInformation getConnectionInformation();
+
+  /**
+   * Returns the object last {@link #setConnectionAttachment attached} to
+   * the connection this request arrived on, or null. Handlers use it to
+   * recycle their per-request objects across the requests of a keep-alive
+   * connection; an implementation which can't keep anything with its
+   * connections always returns null. An implementation may also hand the
+   * attachment of an idle connection to the next request of another
+   * connection, so it must not hold anything that belongs to one
+   * connection.
+   */
+  Object getConnectionAttachment();
+
+  /**
+   * Attaches an object to the connection this request arrived on, for the
+   * requests which follow on the same connection.
+   */
+  void setConnectionAttachment(Object attachment);
 }
@@ -28,6 +28,9 @@ import javax.servlet.ServletException;
  * (see the javadoc for that method) so any IOExceptions or ServletExceptions (which should NOT occur)
  * get translated into generic RuntimeException objects.
  *
+ * The adapters are kept in a {@link DispatchView} attached to the connection,
+ * so that the following requests on a keep-alive connection reuse them.
+ *
  * @author Mike Jennings
  */
 public class HttpRequestHandlerAdapter implements HttpRequestHandler {
@@ -38,8 +41,21 @@ public class HttpRequestHandlerAdapter implements HttpRequestHandler {
   }
 
   public void handleRequest(HttpRequest request, HttpResponse response) {
+    // the requests of a keep-alive connection reuse one view; it is taken
+    // off the connection while in use and only put back if the dispatch
+    // returned normally
+    Object attachment = request.getConnectionAttachment();
+    DispatchView view;
+    if (attachment instanceof DispatchView) {
+      view = (DispatchView) attachment;
+      request.setConnectionAttachment(null);
+      view.reset(request, response);
+    } else {
+      view = new DispatchView(request, response);
+    }
     try {
-      dispatcher.doFilter(new HttpServletRequestAdapter(request), new HttpServletResponseAdapter(response));
+      dispatcher.doFilter(view.getRequest(), view.getResponse());
+      request.setConnectionAttachment(view);
     } catch (IOException e) {
       throw new RuntimeException(e);
     } catch (ServletException e) {
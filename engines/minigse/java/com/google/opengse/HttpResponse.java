@@ -14,6 +14,8 @@
 
 package com.google.opengse;
 
+import com.google.opengse.httputil.HeaderBlock;
+
 import javax.servlet.ServletOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
@@ -66,6 +68,13 @@ public interface HttpResponse {
 
   void addIntHeader(String name, int value);
 
+  /**
+   * Sets each header of a block, as {@link #setHeader} would. The block is
+   * encoded already, so a response which leaves its headers alone writes
+   * them with a single copy.
+   */
+  void setStaticHeaders(HeaderBlock block);
+
   /**
    * Sets the status code for this response.  This method is used to
    * set the return status code when there is no error (for example,
@@ -35,14 +35,32 @@ public class HttpServletRequestAdapter
 
   private static ConnectionInformation nullConnectInfo
       = new NullConnectionInformation();
-  private final HttpRequest delegate;
-  private final ConnectionInformation connectInfo;
+  private HttpRequest delegate;
+  private ConnectionInformation connectInfo;
   private Map<String, Object> attributes_ = null;
   private ArrayList<Cookie> cookies_;
+  private final DispatchView view;
   
 
   public HttpServletRequestAdapter(final HttpRequest delegate) {
     super();
+    this.view = null;
+    reset(delegate);
+  }
+
+  /**
+   * Creates the request of a view.
+   */
+  HttpServletRequestAdapter(DispatchView view, HttpRequest delegate) {
+    super();
+    this.view = view;
+    reset(delegate);
+  }
+
+  /**
+   * Adapts another request, forgetting everything about the last one.
+   */
+  void reset(final HttpRequest delegate) {
     this.delegate = delegate;
     final ConnectionInformation ci = delegate.getConnectionInformation();
     if (ci == null) {
@@ -50,6 +68,18 @@ public class HttpServletRequestAdapter
     } else {
       connectInfo = ci;
     }
+    if (attributes_ != null) {
+      attributes_.clear();
+    }
+    cookies_ = null;
+  }
+
+  /**
+   * Returns the view this request belongs to, or null if it was made on
+   * its own.
+   */
+  public DispatchView getDispatchView() {
+    return view;
   }
 
   @Override
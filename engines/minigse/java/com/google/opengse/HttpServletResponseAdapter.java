@@ -15,6 +15,7 @@
 package com.google.opengse;
 
 import com.google.opengse.httputil.CookieUtil;
+import com.google.opengse.httputil.HeaderBlock;
 
 import javax.servlet.http.Cookie;
 import javax.servlet.ServletOutputStream;
@@ -29,7 +30,7 @@ import java.util.Locale;
 public class HttpServletResponseAdapter
     extends HttpServletResponseUnsupported {
 
-  private final HttpResponse delegate;
+  private HttpResponse delegate;
 //  private static final AtomicBoolean HAVE_SHOWN_COOKIE_VERSION_WARNING
 //      = new AtomicBoolean();
 
@@ -37,6 +38,13 @@ public class HttpServletResponseAdapter
     this.delegate = delegate;
   }
 
+  /**
+   * Adapts another response.
+   */
+  void reset(HttpResponse delegate) {
+    this.delegate = delegate;
+  }
+
   @Override
   public void addCookie(Cookie cookie) {
     String cookieAsString = CookieUtil.toString(cookie);
@@ -78,6 +86,13 @@ public class HttpServletResponseAdapter
     delegate.addHeader(name, value);
   }
 
+  /**
+   * Sets each header of a block. See {@link HttpResponse#setStaticHeaders}.
+   */
+  public void setStaticHeaders(HeaderBlock block) {
+    delegate.setStaticHeaders(block);
+  }
+
   @Override
   public void setIntHeader(String name, int value) {
     delegate.setIntHeader(name, value);
@@ -0,0 +1,282 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.opengse;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * An in-memory cache with the interface of {@link ThreadSafeCache} which
+ * does not serialize its callers. Lookups are lock-free. Keys are spread
+ * over a number of segments, each of which has its own lock and its own
+ * share of {@code maxSize}; inserting into a full segment evicts an entry
+ * of that segment only.
+ * <p>
+ * Eviction approximates least-recently-used with the "second chance"
+ * algorithm: a lookup marks its entry as referenced, and eviction walks a
+ * segment's entries in insertion order, sparing (and moving to the back)
+ * each referenced entry it passes. A lookup therefore costs no more than
+ * a read of the index and one volatile write.
+ * <p>
+ * Listeners are signalled with the lock of the entry's segment held, as
+ * {@link ThreadSafeCache} signals them with its single lock held.
+ *
+ * @see ThreadSafeCache
+ */
+public class SegmentedCache<K, V> {
+
+  private static final int DEFAULT_SEGMENTS = 16;
+
+  private final ConcurrentHashMap<K, Entry<V>> index_;
+  private final Segment<K, V>[] segments_;
+  private final int segmentShift_;
+  // package scope for unit testing
+  final List<CacheListener<K, V>> cacheListeners_ =
+      new CopyOnWriteArrayList<CacheListener<K, V>>();
+
+  /**
+   * A cached value and whether it has been used since the eviction hand
+   * last passed it. New entries start out referenced, so that one is not
+   * evicted before it has had a chance to be looked up.
+   */
+  private static final class Entry<V> {
+    final V value_;
+    volatile boolean referenced_ = true;
+
+    Entry(V value) {
+      value_ = value;
+    }
+  }
+
+  /**
+   * The entries of one segment in insertion order, guarded by the segment
+   * itself.
+   */
+  private static final class Segment<K, V> {
+    final LinkedHashMap<K, Entry<V>> entries_ =
+        new LinkedHashMap<K, Entry<V>>();
+    final int maxSize_;
+
+    Segment(int maxSize) {
+      maxSize_ = maxSize;
+    }
+  }
+
+  /**
+   * Create a cache with a specified maximum size and the default number of
+   * segments.
+   * @param maxSize maximum number of entries in the cache
+   */
+  public SegmentedCache(int maxSize) {
+    this(maxSize, DEFAULT_SEGMENTS);
+  }
+
+  /**
+   * Create a cache with a default max size, set to {@code Integer.MAX_VALUE}.
+   */
+  public SegmentedCache() {
+    this(Integer.MAX_VALUE);
+  }
+
+  /**
+   * Create a cache with a specified maximum size.
+   * @param maxSize maximum number of entries in the cache
+   * @param concurrency the number of segments, rounded down to a power of
+   *        two no greater than {@code maxSize}
+   */
+  @SuppressWarnings("unchecked")
+  public SegmentedCache(int maxSize, int concurrency) {
+    if (maxSize <= 0 || concurrency <= 0) {
+      throw new IllegalArgumentException(
+          "maxSize and concurrency must be positive");
+    }
+    int nsegments = Integer.highestOneBit(Math.min(maxSize, concurrency));
+    segmentShift_ = 32 - Integer.numberOfTrailingZeros(nsegments);
+    segments_ = new Segment[nsegments];
+    // spread maxSize exactly, so the cache as a whole never exceeds it
+    for (int i = 0; i < nsegments; ++i) {
+      segments_[i] = new Segment<K, V>(
+          maxSize / nsegments + ((i < maxSize % nsegments) ? 1 : 0));
+    }
+    index_ = new ConcurrentHashMap<K, Entry<V>>(
+        Math.min(maxSize, 1024), 0.75f, nsegments);
+  }
+
+  private Segment<K, V> segmentFor(Object key) {
+    if (segments_.length == 1) {
+      return segments_[0];
+    }
+    // spread the hash so the top bits depend on all of it
+    int h = key.hashCode() * 0x9E3779B9;
+    return segments_[h >>> segmentShift_];
+  }
+
+  /**
+   * Inserts an object in the cache.
+   */
+  public void put(final K key, final V data) {
+    Segment<K, V> segment = segmentFor(key);
+    synchronized (segment) {
+      Entry<V> entry = new Entry<V>(data);
+      segment.entries_.put(key, entry);
+      index_.put(key, entry);
+      if (segment.entries_.size() > segment.maxSize_) {
+        evict(segment);
+      }
+    }
+  }
+
+  /**
+   * Evicts one entry of a full segment. Must be called with the segment's
+   * lock held.
+   */
+  private void evict(Segment<K, V> segment) {
+    // after sparing every entry once, the walk is back to one it cleared
+    int spared = 0;
+    int size = segment.entries_.size();
+    Iterator<Map.Entry<K, Entry<V>>> it =
+        segment.entries_.entrySet().iterator();
+    while (true) {
+      Map.Entry<K, Entry<V>> eldest = it.next();
+      K key = eldest.getKey();
+      Entry<V> entry = eldest.getValue();
+      if (entry.referenced_ && spared < size) {
+        entry.referenced_ = false;
+        it.remove();
+        segment.entries_.put(key, entry);
+        ++spared;
+        it = segment.entries_.entrySet().iterator();
+        continue;
+      }
+      it.remove();
+      index_.remove(key);
+      signalEvict(key, entry.value_);
+      return;
+    }
+  }
+
+  /**
+   * Fetches an object from the cache.
+   * @return the object if it was found, {@code null} if it was not
+   */
+  public V get(final K key) {
+    Entry<V> entry = index_.get(key);
+    if (entry == null) {
+      return null;
+    }
+    if (!entry.referenced_) {
+      entry.referenced_ = true;
+    }
+    return entry.value_;
+  }
+
+  /**
+   * Notifies the cache that an object has changed (which will remove
+   * the object from the cache).
+   */
+  public void invalidate(final K key) {
+    Segment<K, V> segment = segmentFor(key);
+    synchronized (segment) {
+      if (segment.entries_.containsKey(key)) {
+        signalInvalidate(key);
+        segment.entries_.remove(key);
+        index_.remove(key);
+      }
+    }
+  }
+
+  /**
+   * Clears the contents of the cache.
+   */
+  public void clear() {
+    for (Segment<K, V> segment : segments_) {
+      synchronized (segment) {
+        for (K key : segment.entries_.keySet()) {
+          index_.remove(key);
+        }
+        segment.entries_.clear();
+      }
+    }
+  }
+
+  /**
+   * Returns an iterator to the keys in the cache. The iterator reflects
+   * some but not necessarily all of the changes made while it is in use.
+   */
+  public Iterator<K> keys() {
+    return index_.keySet().iterator();
+  }
+
+  /**
+   * Returns the size of the cache.
+   */
+  public int size() {
+    return index_.size();
+  }
+
+  /**
+   * Returns the number of segments the cache is divided into.
+   */
+  int getSegmentCount() {
+    return segments_.length;
+  }
+
+  /**
+   * Registers a cache listener. The listener's
+   * {@link CacheListener#entryInvalidated(Object)} and
+   * {@link CacheListener#entryEvicted(Object, Object)} methods are called for
+   * each {@link #invalidate(Object)} and eviction event in the cache.
+   *
+   * @param listener
+   */
+  public void registerListener(CacheListener<K, V> listener) {
+    cacheListeners_.add(listener);
+  }
+
+  /**
+   * Signals an invalidated entry in the cache. The call to this function
+   * is done before the invalidation so the value can be queried by the
+   * listener.
+   * <p>
+   * This method is not called unless the invalidated key is present in
+   * the cache, nor by {@link #clear()}.
+   *
+   * @param key is the cache key being invalidated
+   */
+  protected void signalInvalidate(K key) {
+    for (CacheListener<K, V> cacheListener : cacheListeners_) {
+      cacheListener.entryInvalidated(key);
+    }
+  }
+
+  /**
+   * Signals an entry evicted from the cache to make room for another. This
+   * method is not called on {@link #invalidate(Object)}; instead,
+   * {@link #signalInvalidate(Object)} is used.
+   *
+   * @param key is the cache key being evicted
+   * @param data is the corresponding data
+   */
+  protected void signalEvict(K key, V data) {
+    for (CacheListener<K, V> cacheListener : cacheListeners_) {
+      cacheListener.entryEvicted(key, data);
+    }
+  }
+}
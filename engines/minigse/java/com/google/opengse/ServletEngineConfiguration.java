@@ -21,6 +21,67 @@ package com.google.opengse;
 public interface ServletEngineConfiguration {
   int getPort();
   int getMaxThreads();
+
+  /**
+   * The most requests that may wait for a worker thread. Requests beyond
+   * this are answered at once with 503 (Service Unavailable). A value of
+   * zero or less means there is no limit.
+   */
+  int getMaxQueueBacklog();
+
+  /**
+   * If true, each worker thread has its own stripe of the request queue
+   * and steals from the others when its own is empty. If false, all of the
+   * workers share one lock-free queue.
+   */
+  boolean isWorkStealing();
+
+  /**
+   * If true, the number of requests queued for or running on a worker
+   * thread is limited, and the limit adapts to how long requests wait for
+   * a worker. Requests over the limit are answered at once with 503
+   * (Service Unavailable).
+   */
+  boolean admissionControl();
+
+  /**
+   * The lowest the admission limit goes, however long requests wait.
+   */
+  int getAdmissionMinLimit();
+
+  /**
+   * The highest the admission limit goes; it starts there.
+   */
+  int getAdmissionMaxLimit();
+
+  /**
+   * How long, in milliseconds, a request may wait for a worker thread
+   * before the admission limit is cut, unless the servlets lately took
+   * longer than that to run.
+   */
+  int getAdmissionTargetWait();
+
+  /**
+   * The number of selector threads that perform network I/O. One thread
+   * accepts connections and hands each of them to one of this many
+   * reactor threads. A value of one or less means a single thread does
+   * all of the accepting, reading and writing.
+   */
+  int getSelectorThreads();
+
+  /**
+   * How accepted connections are spread over the selector threads, either
+   * "round-robin" or "least-connections".
+   */
+  String getSelectorBalancing();
+
+  /**
+   * How many selector threads accept connections. Above one, the acceptor
+   * and that many reactors less one each listen on the port with a socket
+   * bound with SO_REUSEPORT, and the kernel spreads new connections across
+   * them. Where SO_REUSEPORT isn't supported, one thread accepts.
+   */
+  int getAcceptorThreads();
   String getServerType();
 
   boolean isSecure();
@@ -42,6 +103,68 @@ public interface ServletEngineConfiguration {
    */
   boolean allowGzippedRequestBodies();
 
+  /**
+   * The largest request body, in bytes, that is accepted when the body is
+   * read in full before the servlet is dispatched.
+   */
+  int getMaxPostSize();
+
+  /**
+   * If true, a request body is handed to the servlet as it arrives: the
+   * servlet is dispatched once the headers are parsed and reads the body
+   * from {@link javax.servlet.ServletRequest#getInputStream()} while the
+   * rest is still being received. Form posts and gzipped bodies are
+   * always read in full first.
+   */
+  boolean streamRequestBodies();
+
+  /**
+   * Request bodies which are read in full before the servlet is dispatched
+   * and are larger than this many bytes are written to a temporary file
+   * instead of being kept in memory. A value of zero or less keeps all of
+   * them in memory.
+   */
+  int getRequestBodySpillThreshold();
+
+  /**
+   * How long, in milliseconds, an idle keep-alive connection is held open
+   * waiting for its next request. A value of zero or less closes every
+   * connection after one request.
+   */
+  int getKeepAliveTimeout();
+
+  /**
+   * How many requests pipelined on one connection may be processed at
+   * once. Requests beyond the first are only dispatched early if they and
+   * every request before them are GET or HEAD requests; their responses
+   * are held until the earlier ones have been sent. A value of one or
+   * less processes a connection's requests one at a time.
+   */
+  int getPipelineDepth();
+
+  /**
+   * If true, responses are compressed with gzip or deflate for clients
+   * which accept it, subject to the settings below.
+   */
+  boolean compressResponses();
+
+  /**
+   * The deflate level for compressed responses, from 0 (store only) to 9
+   * (smallest), or -1 for the zlib default.
+   */
+  int getCompressionLevel();
+
+  /**
+   * Response bodies smaller than this many bytes are not compressed.
+   */
+  int getCompressionMinSize();
+
+  /**
+   * A comma-separated allowlist of the content types to compress, each of
+   * which may use one '*' wildcard, as in "text/*" or "application/*+xml".
+   */
+  String getCompressibleTypes();
+
   boolean dontPrintPostBody();
 
   String defaultResponseCharacterEncoding();
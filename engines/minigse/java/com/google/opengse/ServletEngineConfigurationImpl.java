@@ -31,10 +31,54 @@ public class ServletEngineConfigurationImpl
   public static final String KEY_PORT = "com.google.opengse.port";
   public static final String KEY_SECURE = "secure";
   public static final String KEY_THREADS = "threads";
+  public static final String KEY_QUEUE_BACKLOG = "queue.backlog";
+  public static final String KEY_QUEUE_WORK_STEALING = "queue.work.stealing";
+  public static final String KEY_ADMISSION_CONTROL = "admission.control";
+  public static final String KEY_ADMISSION_MIN_LIMIT = "admission.limit.min";
+  public static final String KEY_ADMISSION_MAX_LIMIT = "admission.limit.max";
+  public static final String KEY_ADMISSION_TARGET_WAIT =
+      "admission.target.wait";
+  public static final String KEY_SELECTOR_THREADS = "selector.threads";
+  public static final String KEY_SELECTOR_BALANCING = "selector.balancing";
+  public static final String KEY_SELECTOR_ACCEPTORS = "selector.acceptors";
   public static final String KEY_ENABLED_CIPHER_SUITES = "secure.enabled.cipher.suites";
+  public static final String KEY_MAX_POST_SIZE = "request.body.max.size";
+  public static final String KEY_STREAM_REQUEST_BODIES = "request.body.streaming";
+  public static final String KEY_REQUEST_BODY_SPILL_THRESHOLD =
+      "request.body.spill.threshold";
+  public static final String KEY_KEEPALIVE_TIMEOUT = "keepalive.timeout";
+  public static final String KEY_PIPELINE_DEPTH = "pipeline.depth";
+  public static final String KEY_COMPRESS_RESPONSES = "response.compression";
+  public static final String KEY_COMPRESSION_LEVEL =
+      "response.compression.level";
+  public static final String KEY_COMPRESSION_MIN_SIZE =
+      "response.compression.min.size";
+  public static final String KEY_COMPRESSIBLE_TYPES =
+      "response.compression.types";
+  public static final String DEFAULT_COMPRESSIBLE_TYPES = "text/*, "
+      + "application/json, application/x-javascript, application/*+xml, "
+      + "application/csv";
 
   private int port;
   private int maxThreads;
+  private int maxQueueBacklog;
+  private boolean workStealing;
+  private boolean admissionControl;
+  private int admissionMinLimit;
+  private int admissionMaxLimit;
+  private int admissionTargetWait;
+  private int selectorThreads;
+  private String selectorBalancing;
+  private int acceptorThreads;
+  private int maxPostSize;
+  private boolean streamRequestBodies;
+  private int requestBodySpillThreshold;
+  private int keepAliveTimeout;
+  private int pipelineDepth;
+  private boolean compressResponses;
+  private int compressionLevel;
+  private int compressionMinSize;
+  private String compressibleTypes;
   private boolean secure;
   private String[] enabledCipherSuites;
   private static final String JAVAX_NET_SSL_KEYSTORE = "javax.net.ssl.keyStore";
@@ -48,6 +92,40 @@ public class ServletEngineConfigurationImpl
           "No " + KEY_PORT + " property specified");
     }
     maxThreads = PropertiesUtil.getInteger(props, KEY_THREADS, 5);
+    maxQueueBacklog = PropertiesUtil.getInteger(props, KEY_QUEUE_BACKLOG, 0);
+    workStealing = PropertiesUtil.getBoolean(props, KEY_QUEUE_WORK_STEALING,
+        true);
+    admissionControl = PropertiesUtil.getBoolean(props, KEY_ADMISSION_CONTROL,
+        false);
+    admissionMinLimit = PropertiesUtil.getInteger(props,
+        KEY_ADMISSION_MIN_LIMIT, maxThreads);
+    admissionMaxLimit = PropertiesUtil.getInteger(props,
+        KEY_ADMISSION_MAX_LIMIT, maxThreads * 16);
+    admissionTargetWait = PropertiesUtil.getInteger(props,
+        KEY_ADMISSION_TARGET_WAIT, 10);
+    selectorThreads = PropertiesUtil.getInteger(props, KEY_SELECTOR_THREADS,
+        Runtime.getRuntime().availableProcessors());
+    selectorBalancing = PropertiesUtil.getAliasedProperty(
+        props, KEY_SELECTOR_BALANCING, "round-robin");
+    acceptorThreads = PropertiesUtil.getInteger(props, KEY_SELECTOR_ACCEPTORS,
+        1);
+    maxPostSize = PropertiesUtil.getInteger(props, KEY_MAX_POST_SIZE,
+        1024 * 1024);
+    streamRequestBodies = PropertiesUtil.getBoolean(props,
+        KEY_STREAM_REQUEST_BODIES, false);
+    requestBodySpillThreshold = PropertiesUtil.getInteger(props,
+        KEY_REQUEST_BODY_SPILL_THRESHOLD, 0);
+    keepAliveTimeout = PropertiesUtil.getInteger(props, KEY_KEEPALIVE_TIMEOUT,
+        15 * 1000);
+    pipelineDepth = PropertiesUtil.getInteger(props, KEY_PIPELINE_DEPTH, 1);
+    compressResponses = PropertiesUtil.getBoolean(props,
+        KEY_COMPRESS_RESPONSES, false);
+    compressionLevel = PropertiesUtil.getInteger(props, KEY_COMPRESSION_LEVEL,
+        -1);
+    compressionMinSize = PropertiesUtil.getInteger(props,
+        KEY_COMPRESSION_MIN_SIZE, 1024);
+    compressibleTypes = PropertiesUtil.getAliasedProperty(props,
+        KEY_COMPRESSIBLE_TYPES, DEFAULT_COMPRESSIBLE_TYPES);
     maybeSetupSSL(props);
   }
 
@@ -140,6 +218,42 @@ public class ServletEngineConfigurationImpl
     return maxThreads;
   }
 
+  public int getMaxQueueBacklog() {
+    return maxQueueBacklog;
+  }
+
+  public boolean isWorkStealing() {
+    return workStealing;
+  }
+
+  public boolean admissionControl() {
+    return admissionControl;
+  }
+
+  public int getAdmissionMinLimit() {
+    return admissionMinLimit;
+  }
+
+  public int getAdmissionMaxLimit() {
+    return admissionMaxLimit;
+  }
+
+  public int getAdmissionTargetWait() {
+    return admissionTargetWait;
+  }
+
+  public int getSelectorThreads() {
+    return selectorThreads;
+  }
+
+  public String getSelectorBalancing() {
+    return selectorBalancing;
+  }
+
+  public int getAcceptorThreads() {
+    return acceptorThreads;
+  }
+
   public String getServerType() {
     return "foo";
   }
@@ -160,6 +274,42 @@ public class ServletEngineConfigurationImpl
     return false;
   }
 
+  public int getMaxPostSize() {
+    return maxPostSize;
+  }
+
+  public boolean streamRequestBodies() {
+    return streamRequestBodies;
+  }
+
+  public int getRequestBodySpillThreshold() {
+    return requestBodySpillThreshold;
+  }
+
+  public int getKeepAliveTimeout() {
+    return keepAliveTimeout;
+  }
+
+  public int getPipelineDepth() {
+    return pipelineDepth;
+  }
+
+  public boolean compressResponses() {
+    return compressResponses;
+  }
+
+  public int getCompressionLevel() {
+    return compressionLevel;
+  }
+
+  public int getCompressionMinSize() {
+    return compressionMinSize;
+  }
+
+  public String getCompressibleTypes() {
+    return compressibleTypes;
+  }
+
   public boolean dontPrintPostBody() {
     return false;
   }
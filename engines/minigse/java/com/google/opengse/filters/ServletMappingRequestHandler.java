@@ -0,0 +1,304 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.opengse.filters;
+
+import com.google.opengse.filters.RegularExpressionRequestHandler.PathInfoRequest;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Request handler which dispatches to other request handlers based on
+ * servlet url-patterns. The patterns are compiled into an index, so a path
+ * is mapped in one pass whatever the number of patterns. Matching follows
+ * the precedence of the servlet specification:
+ * <ol>
+ * <li>exact patterns such as <code>/catalog</code>, from a hash table;
+ * <li>path prefix patterns such as <code>/catalog/*</code>, the longest
+ *     matching prefix first, from a trie;
+ * <li>extension patterns such as <code>*.jsp</code>, by the extension of
+ *     the last path segment;
+ * <li>the default handler.
+ * </ol>
+ * The global pattern <code>/*</code> replaces the default handler, so that
+ * a catch-all servlet can be mapped alongside extension patterns. Patterns
+ * of no standard form, such as <code>/a/*&#47;b</code>, are matched as
+ * regular expressions after the extension patterns.
+ *
+ * <p>Patterns are added while a webapp starts; lookups are not
+ * synchronized against additions.
+ *
+ * @see RegularExpressionRequestHandler
+ */
+public class ServletMappingRequestHandler implements FilterChain {
+  private static final String GLOBAL_PATTERN = "/*";
+
+  private final Map<String, FilterChain> exactMatches
+      = new HashMap<String, FilterChain>();
+  private final Node prefixes = new Node(0);
+  private final Map<String, FilterChain> extensions
+      = new HashMap<String, FilterChain>();
+  private final List<RegularExpressionRequestHandler.Entry> others
+      = new ArrayList<RegularExpressionRequestHandler.Entry>();
+  private FilterChain defaultHandler;
+
+  private ServletMappingRequestHandler(FilterChain defaultHandler) {
+    this.defaultHandler = defaultHandler;
+  }
+
+  /**
+   * Creates a ServletMappingRequestHandler given a default request handler.
+   */
+  public static ServletMappingRequestHandler create(
+      FilterChain defaultHandler) {
+    return new ServletMappingRequestHandler(defaultHandler);
+  }
+
+  /**
+   * Maps a url-pattern to a handler. A leading "/" is added to patterns
+   * without one.
+   *
+   * @return false if the pattern was already mapped
+   */
+  public boolean setHandler(String urlPattern, FilterChain handler) {
+    String pattern = urlPattern.startsWith("/") ? urlPattern : "/" + urlPattern;
+    if (pattern.equals(GLOBAL_PATTERN)) {
+      replaceDefaultHandler(handler);
+      return true;
+    }
+    int star = pattern.indexOf('*');
+    if (star == -1) {
+      if (exactMatches.containsKey(pattern)) {
+        return false;
+      }
+      exactMatches.put(pattern, handler);
+      // "/foo/" also answers requests for "/foo"
+      if (pattern.length() > 1 && pattern.endsWith("/")) {
+        String withoutSlash = pattern.substring(0, pattern.length() - 1);
+        if (!exactMatches.containsKey(withoutSlash)) {
+          exactMatches.put(withoutSlash, handler);
+        }
+      }
+      return true;
+    }
+    if (star == pattern.length() - 1 && pattern.endsWith("/*")) {
+      Node node = prefixes;
+      for (int i = 0; i < star - 1; ++i) {
+        node = node.addChild(pattern.charAt(i));
+      }
+      if (node.handler != null) {
+        return false;
+      }
+      node.handler = handler;
+      return true;
+    }
+    if (star == 1 && pattern.charAt(2) == '.'
+        && pattern.indexOf('*', 2) == -1 && pattern.indexOf('/', 2) == -1) {
+      String extension = pattern.substring(3);
+      if (extensions.containsKey(extension)) {
+        return false;
+      }
+      extensions.put(extension, handler);
+      return true;
+    }
+    RegularExpressionRequestHandler.Entry entry
+        = new RegularExpressionRequestHandler.Entry(
+            Pattern.compile(toRegex(pattern)), handler);
+    if (others.contains(entry)) {
+      return false;
+    }
+    others.add(entry);
+    return true;
+  }
+
+  /**
+   * Replaces the handler for paths which match no other pattern.
+   */
+  public void replaceDefaultHandler(FilterChain handler) {
+    defaultHandler = handler;
+  }
+
+  /**
+   * Gets the handler for a given servlet path.
+   * @param requestURI the URI of the request
+   */
+  public FilterChain getHandler(URI requestURI) {
+    String path = requestURI.getPath();
+    FilterChain handler = exactMatches.get(path);
+    if (handler != null) {
+      return handler;
+    }
+    Node prefix = findPrefix(path);
+    if (prefix != null) {
+      return prefix.handler;
+    }
+    handler = findOther(path);
+    return (handler != null) ? handler : defaultHandler;
+  }
+
+  /**
+   * Dispatches the request to the handler of the pattern which matches its
+   * servlet path. For prefix patterns and the default handler the request
+   * is wrapped so that the servlet path is the matched prefix and the path
+   * info the rest of the path.
+   */
+  public void doFilter(ServletRequest req,
+      ServletResponse response) throws IOException, ServletException {
+    HttpServletRequest request = (HttpServletRequest) req;
+    String path = request.getServletPath();
+    FilterChain handler = exactMatches.get(path);
+    if (handler != null) {
+      handler.doFilter(request, response);
+      return;
+    }
+    Node prefix = findPrefix(path);
+    if (prefix != null) {
+      if (prefix.depth < path.length()) {
+        request = new PathInfoRequest(request,
+            path.substring(0, prefix.depth), path.substring(prefix.depth));
+      }
+      prefix.handler.doFilter(request, response);
+      return;
+    }
+    handler = findOther(path);
+    if (handler != null) {
+      handler.doFilter(request, response);
+      return;
+    }
+    // for global wildcard match, servletPath="" and pathInfo=path
+    defaultHandler.doFilter(new PathInfoRequest(request, "", path), response);
+  }
+
+  /**
+   * Returns the node of the longest prefix pattern matching the path, or
+   * null. A prefix only matches up to a "/" or the end of the path.
+   */
+  private Node findPrefix(String path) {
+    int length = path.length();
+    Node best = null;
+    Node node = prefixes;
+    int i = 0;
+    while (node != null) {
+      if (node.handler != null && (i == length || path.charAt(i) == '/')) {
+        best = node;
+      }
+      if (i == length) {
+        break;
+      }
+      node = node.getChild(path.charAt(i++));
+    }
+    return best;
+  }
+
+  /**
+   * Returns the handler of an extension or non-standard pattern matching
+   * the path, or null.
+   */
+  private FilterChain findOther(String path) {
+    if (!extensions.isEmpty()) {
+      // try "tar.gz" before "gz"
+      int segment = path.lastIndexOf('/') + 1;
+      for (int dot = path.indexOf('.', segment); dot != -1;
+           dot = path.indexOf('.', dot + 1)) {
+        FilterChain handler = extensions.get(path.substring(dot + 1));
+        if (handler != null) {
+          return handler;
+        }
+      }
+    }
+    for (RegularExpressionRequestHandler.Entry entry : others) {
+      if (entry.getPattern().matcher(path).matches()) {
+        return entry.getHandler();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Converts a url-pattern in which '*' matches anything to a regular
+   * expression.
+   */
+  private static String toRegex(String pattern) {
+    StringBuilder sb = new StringBuilder();
+    int start = 0;
+    for (int star = pattern.indexOf('*'); star != -1;
+         star = pattern.indexOf('*', start)) {
+      if (star > start) {
+        sb.append(Pattern.quote(pattern.substring(start, star)));
+      }
+      sb.append(".*");
+      start = star + 1;
+    }
+    if (start < pattern.length()) {
+      sb.append(Pattern.quote(pattern.substring(start)));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * A node of the prefix trie. Children are kept in arrays sorted by
+   * character, since most nodes have only one or two.
+   */
+  private static final class Node {
+    private static final char[] NO_CHARS = new char[0];
+    private static final Node[] NO_NODES = new Node[0];
+
+    /** The length of the prefix this node stands for. */
+    final int depth;
+    FilterChain handler;
+    private char[] chars = NO_CHARS;
+    private Node[] children = NO_NODES;
+
+    Node(int depth) {
+      this.depth = depth;
+    }
+
+    Node getChild(char ch) {
+      int i = Arrays.binarySearch(chars, ch);
+      return (i < 0) ? null : children[i];
+    }
+
+    Node addChild(char ch) {
+      int i = Arrays.binarySearch(chars, ch);
+      if (i >= 0) {
+        return children[i];
+      }
+      i = -(i + 1);
+      char[] newChars = new char[chars.length + 1];
+      Node[] newChildren = new Node[children.length + 1];
+      System.arraycopy(chars, 0, newChars, 0, i);
+      System.arraycopy(children, 0, newChildren, 0, i);
+      System.arraycopy(chars, i, newChars, i + 1, chars.length - i);
+      System.arraycopy(children, i, newChildren, i + 1, children.length - i);
+      Node child = new Node(depth + 1);
+      newChars[i] = ch;
+      newChildren[i] = child;
+      chars = newChars;
+      children = newChildren;
+      return child;
+    }
+  }
+}
@@ -0,0 +1,67 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.opengse.filters;
+
+import javax.servlet.FilterChain;
+
+/**
+ * This is a wrapper/compositor over {@code ServletMappingRequestHandler}.
+ *
+ * It understands the "dispatcher" type in selecting the correct handler for
+ * applying filters.
+ */
+public class ServletMappingRequestHandlerDispatcher {
+
+  private ServletMappingRequestHandler requestHandler;
+  private ServletMappingRequestHandler forwardHandler;
+  private ServletMappingRequestHandler includeHandler;
+  private ServletMappingRequestHandler errorHandler;
+
+  public ServletMappingRequestHandler getRequestHandler() {
+    return requestHandler;
+  }
+
+  public ServletMappingRequestHandler getForwardHandler() {
+    return forwardHandler;
+  }
+
+  public ServletMappingRequestHandler getIncludeHandler() {
+    return includeHandler;
+  }
+
+  public ServletMappingRequestHandler getErrorHandler() {
+    return errorHandler;
+  }
+
+  /**
+   * Creates a ServletMappingRequestHandlerDispatcher given a default
+   * request handler.
+   */
+  public static ServletMappingRequestHandlerDispatcher create(
+      FilterChain defaultHandler) {
+    ServletMappingRequestHandlerDispatcher handlerDispatcher =
+        new ServletMappingRequestHandlerDispatcher();
+    handlerDispatcher.requestHandler =
+        ServletMappingRequestHandler.create(defaultHandler);
+    handlerDispatcher.forwardHandler =
+        ServletMappingRequestHandler.create(defaultHandler);
+    handlerDispatcher.includeHandler =
+        ServletMappingRequestHandler.create(defaultHandler);
+    handlerDispatcher.errorHandler =
+        ServletMappingRequestHandler.create(defaultHandler);
+    return handlerDispatcher;
+  }
+
+}
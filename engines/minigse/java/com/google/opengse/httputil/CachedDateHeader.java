@@ -0,0 +1,72 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.opengse.httputil;
+
+import com.google.opengse.HeaderUtil;
+
+/**
+ * The "Date" response header. The header has a resolution of one second,
+ * so it is formatted and encoded once a second rather than once per
+ * response.
+ */
+public final class CachedDateHeader {
+
+  private static volatile Entry current_ = new Entry(Long.MIN_VALUE, null,
+      null);
+
+  private CachedDateHeader() {
+  }
+
+  /**
+   * Returns the header value for a time, such as
+   * "Sun, 06 Nov 1994 08:49:37 GMT".
+   */
+  public static String getValue(long now) {
+    return entry(now).value_;
+  }
+
+  /**
+   * Returns the whole encoded header line, "Date: value" and CRLF, for a
+   * time. The caller must not modify the array.
+   */
+  public static byte[] getLine(long now) {
+    return entry(now).line_;
+  }
+
+  private static Entry entry(long now) {
+    long second = now / 1000;
+    Entry entry = current_;
+    if (entry.second_ != second) {
+      // several threads may format the same second; any of them will do
+      String value = HeaderUtil.toDateHeader(second * 1000);
+      entry = new Entry(second, value,
+          HeaderName.encodeLine(HeaderName.DATE.getPrefix(), value));
+      current_ = entry;
+    }
+    return entry;
+  }
+
+  private static final class Entry {
+    final long second_;
+    final String value_;
+    final byte[] line_;
+
+    Entry(long second, String value, byte[] line) {
+      this.second_ = second;
+      this.value_ = value;
+      this.line_ = line;
+    }
+  }
+}
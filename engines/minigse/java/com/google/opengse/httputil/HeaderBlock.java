@@ -0,0 +1,128 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.opengse.httputil;
+
+/**
+ * A fixed set of response headers, encoded once. A webapp whose responses
+ * all carry the same headers builds a block of them when it starts, and
+ * the engine writes the encoded block into every response with a single
+ * copy. Blocks are immutable and may be shared between threads.
+ */
+public final class HeaderBlock {
+
+  private final String[] names_;
+  private final String[] values_;
+  private final HeaderName[] ids_;
+  private final byte[] bytes_;
+
+  /**
+   * Creates a block of headers.
+   *
+   * @param namesAndValues the names and values of the headers, in turn
+   * @throws IllegalArgumentException if a name has no value, or a name or
+   *         value would break the header line
+   */
+  public HeaderBlock(String... namesAndValues) {
+    if (namesAndValues.length % 2 != 0) {
+      throw new IllegalArgumentException("header without a value");
+    }
+    int n = namesAndValues.length / 2;
+    names_ = new String[n];
+    values_ = new String[n];
+    ids_ = new HeaderName[n];
+    int length = 0;
+    for (int i = 0; i < n; ++i) {
+      String name = check(namesAndValues[2 * i]);
+      String value = check(namesAndValues[2 * i + 1]);
+      if (name.length() == 0 || name.indexOf(':') >= 0) {
+        throw new IllegalArgumentException("bad header name: " + name);
+      }
+      names_[i] = name;
+      values_[i] = value;
+      ids_[i] = HeaderName.lookup(name);
+      length += name.length() + value.length() + 4;
+    }
+    bytes_ = new byte[length];
+    int offset = 0;
+    for (int i = 0; i < n; ++i) {
+      offset = HeaderName.encode(names_[i], bytes_, offset);
+      bytes_[offset++] = ':';
+      bytes_[offset++] = ' ';
+      offset = HeaderName.encode(values_[i], bytes_, offset);
+      bytes_[offset++] = '\r';
+      bytes_[offset++] = '\n';
+    }
+  }
+
+  private static String check(String s) {
+    if (s == null) {
+      throw new IllegalArgumentException("null header name or value");
+    }
+    if (s.indexOf('\r') >= 0 || s.indexOf('\n') >= 0) {
+      throw new IllegalArgumentException("line break in header: " + s);
+    }
+    return s;
+  }
+
+  /** Returns the number of headers in the block. */
+  public int size() {
+    return names_.length;
+  }
+
+  /** Returns the name of a header, as it was given. */
+  public String getName(int i) {
+    return names_[i];
+  }
+
+  /** Returns the value of a header. */
+  public String getValue(int i) {
+    return values_[i];
+  }
+
+  /**
+   * Returns the well-known name of a header, or <code>null</code> if it
+   * has a name of its own.
+   */
+  public HeaderName getId(int i) {
+    return ids_[i];
+  }
+
+  /**
+   * Returns the index of the header with the given name, ignoring case,
+   * or -1 if the block doesn't have it.
+   */
+  public int indexOf(String name) {
+    for (int i = 0; i < names_.length; ++i) {
+      if (names_[i].equalsIgnoreCase(name)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the encoded header lines, each ending in CRLF. The caller must
+   * not modify the array.
+   */
+  public byte[] getBytes() {
+    return bytes_;
+  }
+
+  @Override
+  @SuppressWarnings("deprecation")
+  public String toString() {
+    return new String(bytes_, 0, 0, bytes_.length);
+  }
+}
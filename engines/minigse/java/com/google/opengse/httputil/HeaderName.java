@@ -0,0 +1,244 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.opengse.httputil;
+
+/**
+ * The well-known HTTP header names. Header containers use the ordinal of
+ * a name as an index instead of comparing strings, and only fall back to
+ * a search for names which aren't listed here.
+ *
+ * <p>Each name also keeps its encoded "Name: " prefix, and the names
+ * whose values are drawn from a small set, such as "Connection" or
+ * "Content-Type", keep the encoded lines for the last few values they were
+ * given so that writing a response header rarely has to encode them.
+ */
+public enum HeaderName {
+  ACCEPT("Accept", false),
+  ACCEPT_CHARSET("Accept-Charset", false),
+  ACCEPT_ENCODING("Accept-Encoding", false),
+  ACCEPT_LANGUAGE("Accept-Language", false),
+  ACCEPT_RANGES("Accept-Ranges", true),
+  AGE("Age", false),
+  ALLOW("Allow", true),
+  AUTHORIZATION("Authorization", false),
+  CACHE_CONTROL("Cache-Control", true),
+  CONNECTION("Connection", true),
+  CONTENT_DISPOSITION("Content-Disposition", false),
+  CONTENT_ENCODING("Content-Encoding", true),
+  CONTENT_LANGUAGE("Content-Language", true),
+  CONTENT_LENGTH("Content-Length", false),
+  CONTENT_LOCATION("Content-Location", false),
+  CONTENT_RANGE("Content-Range", false),
+  CONTENT_TYPE("Content-Type", true),
+  COOKIE("Cookie", false),
+  DATE("Date", false),
+  DNT("DNT", false),
+  ETAG("ETag", false),
+  EXPECT("Expect", false),
+  EXPIRES("Expires", false),
+  FORWARDED("Forwarded", false),
+  HOST("Host", false),
+  IF_MATCH("If-Match", false),
+  IF_MODIFIED_SINCE("If-Modified-Since", false),
+  IF_NONE_MATCH("If-None-Match", false),
+  IF_RANGE("If-Range", false),
+  IF_UNMODIFIED_SINCE("If-Unmodified-Since", false),
+  KEEP_ALIVE("Keep-Alive", true),
+  LAST_MODIFIED("Last-Modified", false),
+  LOCATION("Location", false),
+  ORIGIN("Origin", false),
+  PRAGMA("Pragma", true),
+  PROXY_CONNECTION("Proxy-Connection", false),
+  RANGE("Range", false),
+  REFERER("Referer", false),
+  RETRY_AFTER("Retry-After", true),
+  SERVER("Server", true),
+  SET_COOKIE("Set-Cookie", false),
+  TE("TE", false),
+  TRAILER("Trailer", false),
+  TRANSFER_ENCODING("Transfer-Encoding", true),
+  UPGRADE("Upgrade", false),
+  USER_AGENT("User-Agent", false),
+  VARY("Vary", true),
+  VIA("Via", false),
+  WWW_AUTHENTICATE("WWW-Authenticate", false),
+  X_CONTENT_TYPE_OPTIONS("X-Content-Type-Options", true),
+  X_FORWARDED_FOR("X-Forwarded-For", false),
+  X_FORWARDED_HOST("X-Forwarded-Host", false),
+  X_FORWARDED_PROTO("X-Forwarded-Proto", false),
+  X_POWERED_BY("X-Powered-By", true),
+  X_REQUESTED_WITH("X-Requested-With", false);
+
+  /** The number of encoded lines a name with cached values keeps. */
+  private static final int CACHED_VALUES = 4;
+
+  // an open addressed hash table of all the names, ignoring case
+  private static final HeaderName[] TABLE = new HeaderName[256];
+
+  static {
+    for (HeaderName name : values()) {
+      int i = hash(name.name_) & (TABLE.length - 1);
+      while (TABLE[i] != null) {
+        i = (i + 1) & (TABLE.length - 1);
+      }
+      TABLE[i] = name;
+    }
+  }
+
+  private final String name_;
+  private final String lower_case_;
+  private final byte[] prefix_;
+  private final EncodedLine[] lines_;
+  private int next_line_;
+
+  private HeaderName(String name, boolean cache_values) {
+    this.name_ = name;
+    this.lower_case_ = name.toLowerCase().intern();
+    this.prefix_ = new byte[name.length() + 2];
+    encode(name, prefix_, 0);
+    prefix_[name.length()] = ':';
+    prefix_[name.length() + 1] = ' ';
+    this.lines_ = cache_values ? new EncodedLine[CACHED_VALUES] : null;
+  }
+
+  /** Returns the name in its usual case, such as "Content-Type". */
+  public String getName() {
+    return name_;
+  }
+
+  /** Returns the name in lower case, as a constant. */
+  public String getLowerCaseName() {
+    return lower_case_;
+  }
+
+  /**
+   * Returns the encoded "Name: " that starts a header line. The caller
+   * must not modify the array.
+   */
+  public byte[] getPrefix() {
+    return prefix_;
+  }
+
+  /**
+   * Returns the whole encoded header line, "Name: value" and CRLF, for a
+   * value of this header. The line is kept, so the next call for the same
+   * value can return it without encoding anything. Returns
+   * <code>null</code> for the headers, such as "Content-Length" or
+   * "Set-Cookie", whose values seldom repeat; the caller should encode
+   * those itself. The caller must not modify the array.
+   */
+  public byte[] getLine(String value) {
+    if (lines_ == null) {
+      return null;
+    }
+    for (EncodedLine line : lines_) {
+      // racy, but lines are immutable and a miss only costs an encoding
+      if (line != null && (line.value_ == value || line.value_.equals(value))) {
+        return line.bytes_;
+      }
+    }
+    EncodedLine line = new EncodedLine(value, encodeLine(prefix_, value));
+    lines_[next_line_++ & (CACHED_VALUES - 1)] = line;
+    return line.bytes_;
+  }
+
+  /**
+   * Returns the well-known header with the given name, ignoring case, or
+   * <code>null</code>.
+   */
+  public static HeaderName lookup(String name) {
+    int i = hash(name) & (TABLE.length - 1);
+    HeaderName candidate;
+    while ((candidate = TABLE[i]) != null) {
+      if (candidate.name_.equalsIgnoreCase(name)) {
+        return candidate;
+      }
+      i = (i + 1) & (TABLE.length - 1);
+    }
+    return null;
+  }
+
+  /**
+   * Returns the well-known header whose name is spelled by the given
+   * ASCII bytes, ignoring case, or <code>null</code>.
+   */
+  public static HeaderName lookup(byte[] bytes, int start, int length) {
+    int h = 0;
+    for (int i = start; i < start + length; ++i) {
+      h = 31 * h + (bytes[i] | 0x20);
+    }
+    int i = h & (TABLE.length - 1);
+    HeaderName candidate;
+    while ((candidate = TABLE[i]) != null) {
+      if (candidate.name_.length() == length
+          && HttpRequestParser.equalsIgnoreCase(bytes, start,
+              candidate.name_)) {
+        return candidate;
+      }
+      i = (i + 1) & (TABLE.length - 1);
+    }
+    return null;
+  }
+
+  /**
+   * Hashes a name so that the hash is the same whatever the case of its
+   * letters; other characters may collide, which the table tolerates.
+   */
+  private static int hash(String name) {
+    int h = 0;
+    for (int i = 0; i < name.length(); ++i) {
+      h = 31 * h + (name.charAt(i) | 0x20);
+    }
+    return h;
+  }
+
+  /**
+   * Encodes a header value, or any header text, as ISO-8859-1, which is
+   * what the <code>String</code> is assumed to hold. Other characters
+   * become '?', as <code>String.getBytes</code> would make them.
+   *
+   * @return the offset after the encoded string
+   */
+  public static int encode(String s, byte[] dst, int offset) {
+    int length = s.length();
+    for (int i = 0; i < length; ++i) {
+      char c = s.charAt(i);
+      dst[offset++] = (byte) ((c <= 0xff) ? c : '?');
+    }
+    return offset;
+  }
+
+  /**
+   * Encodes a whole header line from an encoded prefix and a value.
+   */
+  static byte[] encodeLine(byte[] prefix, String value) {
+    byte[] line = new byte[prefix.length + value.length() + 2];
+    System.arraycopy(prefix, 0, line, 0, prefix.length);
+    int end = encode(value, line, prefix.length);
+    line[end] = '\r';
+    line[end + 1] = '\n';
+    return line;
+  }
+
+  private static final class EncodedLine {
+    final String value_;
+    final byte[] bytes_;
+
+    EncodedLine(String value, byte[] bytes) {
+      this.value_ = value;
+      this.bytes_ = bytes;
+    }
+  }
+}
@@ -0,0 +1,711 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.opengse.httputil;
+
+import com.google.opengse.GSEConstants;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * An incremental parser for the head of an HTTP/1.x request: the request
+ * line and the headers, up to and including the blank line that ends
+ * them. Bytes are fed in with {@link #parse(ByteBuffer)} as they arrive,
+ * in pieces of any size; the parser keeps its place between calls and
+ * never consumes a byte past the end of the head, so whatever is left in
+ * the buffer is the start of the request body or of the next request.
+ *
+ * <p>Each byte is looked at once by a state machine that copies only the
+ * method, request target, version, header names and header values into
+ * an internal array, dropping the whitespace and line ends between them
+ * and folding continuation lines into the value they continue. Nothing
+ * becomes a <code>String</code> until it is asked for. The standard
+ * methods and well-known header names come back as shared constants, so
+ * parsing a typical request allocates only its header values.
+ *
+ * <p>Malformed input is reported with an <code>IOException</code> from
+ * {@link #parse(ByteBuffer)}, after which the parser must not be used
+ * until it is {@link #reset() reset}. Instances are not thread safe.
+ *
+ * @see <a href="http://www.ietf.org/rfc/rfc2616.txt">RFC 2616</a>,
+ *      sections 4 and 5
+ */
+public final class HttpRequestParser {
+  private static final String ISO_8859_1 = "ISO-8859-1";
+  private static final String HTTP_1_0 = "HTTP/1.0";
+  private static final String HTTP_1_1 = "HTTP/1.1";
+
+  private static final int START = 0;
+  private static final int METHOD = 1;
+  private static final int BEFORE_TARGET = 2;
+  private static final int TARGET = 3;
+  private static final int BEFORE_VERSION = 4;
+  private static final int VERSION = 5;
+  private static final int AFTER_VERSION = 6;
+  private static final int REQUEST_LINE_CR = 7;
+  private static final int LINE_START = 8;
+  private static final int NAME = 9;
+  private static final int BEFORE_VALUE = 10;
+  private static final int VALUE = 11;
+  private static final int FOLD = 12;
+  private static final int HEADER_CR = 13;
+  private static final int END_CR = 14;
+  private static final int DONE = 15;
+
+  // character classes, indexed by byte value
+  private static final byte TOKEN = 1;
+  private static final byte TARGET_CHAR = 2;
+  private static final byte[] CLASSES = new byte[256];
+
+  static {
+    for (int c = 0x21; c < 0x7f; ++c) {
+      CLASSES[c] = TARGET_CHAR;
+    }
+    for (char c : "\"<>\\^`|".toCharArray()) {
+      CLASSES[c] = 0;
+    }
+    for (int c = 0x80; c < 0x100; ++c) {
+      CLASSES[c] = TARGET_CHAR;
+    }
+    for (char c = 'a'; c <= 'z'; ++c) {
+      CLASSES[c] |= TOKEN;
+      CLASSES[Character.toUpperCase(c)] |= TOKEN;
+    }
+    for (char c = '0'; c <= '9'; ++c) {
+      CLASSES[c] |= TOKEN;
+    }
+    for (char c : "!#$%&'*+-.^_`|~".toCharArray()) {
+      CLASSES[c] |= TOKEN;
+    }
+  }
+
+  private static final String[] METHODS = {
+    GSEConstants.GET, GSEConstants.POST, GSEConstants.HEAD, GSEConstants.PUT,
+    GSEConstants.DELETE, GSEConstants.OPTIONS, GSEConstants.TRACE,
+    GSEConstants.CONNECT,
+  };
+
+  private static final Interned METHOD_TABLE = new Interned(METHODS);
+
+  private final int max_line_;
+  private final int max_head_;
+  private final int max_headers_;
+
+  private int state_ = START;
+  private byte[] bytes_ = new byte[256];
+  private int length_ = 0;
+  private int line_length_ = 0;
+  private int head_length_ = 0;
+
+  private String method_;
+  private int target_start_;
+  private int target_end_;
+  private String target_;
+  private int version_start_;
+  private int major_version_ = 0;
+  private int minor_version_ = 9;
+  private boolean have_version_ = false;
+
+  // four offsets into bytes_ per header: name start, name end, value
+  // start and value end
+  private int[] headers_ = new int[4 * 16];
+  private int header_count_ = 0;
+  private String[] names_ = new String[16];
+  private String[] values_ = new String[16];
+  private HeaderName[] ids_ = new HeaderName[16];
+  private int value_end_;
+
+  /**
+   * @param max_line the longest line, in bytes, of the request head
+   * @param max_head the longest request head, in bytes, counting any
+   *        blank lines before the request line
+   * @param max_headers the most header lines a request may have
+   */
+  public HttpRequestParser(int max_line, int max_head, int max_headers) {
+    this.max_line_ = max_line;
+    this.max_head_ = max_head;
+    this.max_headers_ = max_headers;
+  }
+
+  /**
+   * Forgets the request parsed so far, so that the parser can be used for
+   * the next one.
+   */
+  public void reset() {
+    state_ = START;
+    length_ = 0;
+    line_length_ = 0;
+    head_length_ = 0;
+    method_ = null;
+    target_ = null;
+    major_version_ = 0;
+    minor_version_ = 9;
+    have_version_ = false;
+    for (int i = 0; i < header_count_; ++i) {
+      names_[i] = null;
+      values_[i] = null;
+      ids_[i] = null;
+    }
+    header_count_ = 0;
+  }
+
+  /**
+   * Has the parser seen the first byte of the request line? Blank lines
+   * before it don't count, so a connection which is closed when this is
+   * <code>false</code> was closed between requests.
+   */
+  public boolean isStarted() {
+    return state_ != START;
+  }
+
+  /** Has the whole request head been parsed? */
+  public boolean isDone() {
+    return state_ == DONE;
+  }
+
+  /**
+   * Consumes bytes from <code>buf</code> until the end of the request
+   * head or of the buffer, whichever comes first.
+   *
+   * @return <code>true</code> once the whole head has been parsed
+   * @throws IOException if the request is malformed or exceeds one of the
+   *         limits given to the constructor
+   */
+  public boolean parse(ByteBuffer buf) throws IOException {
+    if (state_ == DONE) {
+      return true;
+    }
+    int pos = buf.position();
+    int limit = buf.limit();
+    int state = state_;
+    try {
+      while (pos < limit && state != DONE) {
+        int b = buf.get(pos++) & 0xff;
+        if (b == '\n' || ++line_length_ <= max_line_) {
+          state = step(state, b);
+        } else {
+          throw new IOException("request line or header is longer than "
+              + max_line_ + " bytes");
+        }
+      }
+    } finally {
+      head_length_ += pos - buf.position();
+      buf.position(pos);
+      state_ = state;
+    }
+    if (head_length_ > max_head_) {
+      throw new IOException("request head is longer than " + max_head_
+          + " bytes");
+    }
+    return state == DONE;
+  }
+
+  /**
+   * Moves the state machine along by one byte.
+   *
+   * @return the new state
+   */
+  private int step(int state, int b) throws IOException {
+    switch (state) {
+      case START:
+        // RFC 2616 section 4.1: ignore blank lines where a request line
+        // is expected
+        if (b == ' ' || b == '\t' || b == '\r' || b == '\n') {
+          line_length_ = 0;
+          return START;
+        }
+        if ((CLASSES[b] & TOKEN) == 0) {
+          throw bad("bad character in method", b);
+        }
+        append(b);
+        return METHOD;
+
+      case METHOD:
+        if ((CLASSES[b] & TOKEN) != 0) {
+          append(b);
+          return METHOD;
+        }
+        if (b != ' ' && b != '\t') {
+          throw bad("bad character in method", b);
+        }
+        method_ = METHOD_TABLE.get(bytes_, 0, length_);
+        if (method_ == null) {
+          method_ = new String(bytes_, 0, length_, ISO_8859_1);
+        }
+        return BEFORE_TARGET;
+
+      case BEFORE_TARGET:
+        if (b == ' ' || b == '\t') {
+          return BEFORE_TARGET;
+        }
+        if ((CLASSES[b] & TARGET_CHAR) == 0) {
+          throw bad("bad character in request target", b);
+        }
+        target_start_ = length_;
+        append(b);
+        return TARGET;
+
+      case TARGET:
+        if ((CLASSES[b] & TARGET_CHAR) != 0) {
+          append(b);
+          return TARGET;
+        }
+        target_end_ = length_;
+        return afterTarget(b);
+
+      case BEFORE_VERSION:
+        if (b == ' ' || b == '\t' || b == '\r' || b == '\n') {
+          return afterTarget(b);
+        }
+        version_start_ = length_;
+        append(b);
+        return VERSION;
+
+      case VERSION:
+        if (b > ' ' && b < 0x7f) {
+          append(b);
+          return VERSION;
+        }
+        parseVersion();
+        return afterVersion(b);
+
+      case AFTER_VERSION:
+        return afterVersion(b);
+
+      case REQUEST_LINE_CR:
+        if (b != '\n') {
+          throw bad("CR without LF in request line", b);
+        }
+        return LINE_START;
+
+      case LINE_START:
+        line_length_ = 1;
+        if (b == '\r') {
+          return END_CR;
+        }
+        if (b == '\n') {
+          return DONE;
+        }
+        if (b == ' ' || b == '\t') {
+          if (header_count_ == 0) {
+            throw new IOException("continuation line before any header");
+          }
+          return FOLD;
+        }
+        if ((CLASSES[b] & TOKEN) == 0) {
+          throw bad("bad character in header name", b);
+        }
+        if (header_count_ == max_headers_) {
+          throw new IOException("more than " + max_headers_ + " headers");
+        }
+        if (4 * header_count_ == headers_.length) {
+          growHeaders();
+        }
+        headers_[4 * header_count_] = length_;
+        append(b);
+        return NAME;
+
+      case NAME:
+        if ((CLASSES[b] & TOKEN) != 0) {
+          append(b);
+          return NAME;
+        }
+        if (b != ':') {
+          throw bad("bad character in header name", b);
+        }
+        headers_[4 * header_count_ + 1] = length_;
+        headers_[4 * header_count_ + 2] = length_;
+        value_end_ = length_;
+        return BEFORE_VALUE;
+
+      case BEFORE_VALUE:
+        if (b == ' ' || b == '\t') {
+          return BEFORE_VALUE;
+        }
+        if (b == '\r' || b == '\n') {
+          return endHeader(b);
+        }
+        return value(b);
+
+      case VALUE:
+        if (b == '\r' || b == '\n') {
+          return endHeader(b);
+        }
+        return value(b);
+
+      case FOLD:
+        if (b == ' ' || b == '\t') {
+          return FOLD;
+        }
+        // reopen the previous header, replacing the line break and the
+        // whitespace around it with a single space
+        --header_count_;
+        if (b == '\r' || b == '\n') {
+          return endHeader(b);
+        }
+        length_ = value_end_;
+        if (value_end_ > headers_[4 * header_count_ + 2]) {
+          append(' ');
+        }
+        return value(b);
+
+      case HEADER_CR:
+        if (b != '\n') {
+          throw bad("CR without LF in header", b);
+        }
+        return LINE_START;
+
+      case END_CR:
+        if (b != '\n') {
+          throw bad("CR without LF after headers", b);
+        }
+        return DONE;
+
+      default:
+        throw new IllegalStateException("parser state " + state);
+    }
+  }
+
+  private int afterTarget(int b) throws IOException {
+    if (b == ' ' || b == '\t') {
+      return BEFORE_VERSION;
+    }
+    if (b == '\r') {
+      return REQUEST_LINE_CR;
+    }
+    if (b == '\n') {
+      return LINE_START;
+    }
+    throw bad("bad character in request target", b);
+  }
+
+  private int afterVersion(int b) throws IOException {
+    if (b == ' ' || b == '\t') {
+      return AFTER_VERSION;
+    }
+    if (b == '\r') {
+      return REQUEST_LINE_CR;
+    }
+    if (b == '\n') {
+      return LINE_START;
+    }
+    throw bad("bad character after HTTP version", b);
+  }
+
+  private int value(int b) throws IOException {
+    if (b < ' ' && b != '\t' || b == 0x7f) {
+      throw bad("bad character in header value", b);
+    }
+    append(b);
+    if (b != ' ' && b != '\t') {
+      value_end_ = length_;
+    }
+    return VALUE;
+  }
+
+  private int endHeader(int b) {
+    // drop any trailing whitespace
+    length_ = value_end_;
+    headers_[4 * header_count_ + 3] = value_end_;
+    ++header_count_;
+    return (b == '\r') ? HEADER_CR : LINE_START;
+  }
+
+  /**
+   * Parses "HTTP/major.minor", ignoring the case of "HTTP".
+   */
+  private void parseVersion() throws IOException {
+    int i = version_start_;
+    int end = length_;
+    if (end - i < 8
+        || (bytes_[i] | 0x20) != 'h' || (bytes_[i + 1] | 0x20) != 't'
+        || (bytes_[i + 2] | 0x20) != 't' || (bytes_[i + 3] | 0x20) != 'p'
+        || bytes_[i + 4] != '/') {
+      throw badVersion();
+    }
+    i += 5;
+    int major = 0;
+    int start = i;
+    while (i < end && bytes_[i] >= '0' && bytes_[i] <= '9' && i - start < 3) {
+      major = 10 * major + bytes_[i++] - '0';
+    }
+    if (i == start || i == end || bytes_[i++] != '.') {
+      throw badVersion();
+    }
+    int minor = 0;
+    start = i;
+    while (i < end && bytes_[i] >= '0' && bytes_[i] <= '9' && i - start < 3) {
+      minor = 10 * minor + bytes_[i++] - '0';
+    }
+    if (i == start || i != end) {
+      throw badVersion();
+    }
+    major_version_ = major;
+    minor_version_ = minor;
+    have_version_ = true;
+  }
+
+  private IOException badVersion() throws IOException {
+    return new IOException("bad HTTP version '"
+        + new String(bytes_, version_start_, length_ - version_start_,
+            ISO_8859_1) + "'");
+  }
+
+  private static IOException bad(String message, int b) {
+    return new IOException(message + ": 0x" + Integer.toHexString(b));
+  }
+
+  private void append(int b) {
+    if (length_ == bytes_.length) {
+      byte[] bigger = new byte[2 * bytes_.length];
+      System.arraycopy(bytes_, 0, bigger, 0, length_);
+      bytes_ = bigger;
+    }
+    bytes_[length_++] = (byte) b;
+  }
+
+  private void growHeaders() {
+    int[] headers = new int[2 * headers_.length];
+    System.arraycopy(headers_, 0, headers, 0, headers_.length);
+    headers_ = headers;
+    String[] names = new String[2 * names_.length];
+    System.arraycopy(names_, 0, names, 0, names_.length);
+    names_ = names;
+    String[] values = new String[2 * values_.length];
+    System.arraycopy(values_, 0, values, 0, values_.length);
+    values_ = values;
+    HeaderName[] ids = new HeaderName[2 * ids_.length];
+    System.arraycopy(ids_, 0, ids, 0, ids_.length);
+    ids_ = ids;
+  }
+
+  /**
+   * Returns the request method. The standard methods are the constants in
+   * {@link GSEConstants}, and are recognized whatever their case; others
+   * are returned as sent.
+   */
+  public String getMethod() {
+    return method_;
+  }
+
+  /**
+   * Returns the request target (the Request-URI of RFC 2616) exactly as
+   * sent.
+   */
+  public String getTarget() {
+    if (target_ == null && method_ != null && state_ > TARGET) {
+      target_ = string(target_start_, target_end_);
+    }
+    return target_;
+  }
+
+  /**
+   * Returns 0 for a request which has no version, as HTTP/0.9 requests
+   * don't.
+   */
+  public int getMajorVersion() {
+    return major_version_;
+  }
+
+  public int getMinorVersion() {
+    return minor_version_;
+  }
+
+  /**
+   * Returns the version as "HTTP/1.1" or the like, or <code>null</code>
+   * if the request line didn't have one.
+   */
+  public String getVersion() {
+    if (!have_version_) {
+      return null;
+    }
+    if (major_version_ == 1) {
+      if (minor_version_ == 1) {
+        return HTTP_1_1;
+      }
+      if (minor_version_ == 0) {
+        return HTTP_1_0;
+      }
+    }
+    return "HTTP/" + major_version_ + "." + minor_version_;
+  }
+
+  /**
+   * Returns the number of header lines, after continuation lines have
+   * been joined to the ones they continue. A header which appears on
+   * several lines is counted once per line.
+   */
+  public int getHeaderCount() {
+    return header_count_;
+  }
+
+  /**
+   * Returns the name of a header as sent. Well-known names sent in their
+   * usual case, or in the lower case that proxies speaking HTTP/2 to the
+   * client tend to forward, are shared constants.
+   */
+  public String getHeaderName(int i) {
+    checkHeader(i);
+    if (names_[i] == null) {
+      int start = headers_[4 * i];
+      int end = headers_[4 * i + 1];
+      HeaderName id = HeaderName.lookup(bytes_, start, end - start);
+      String name = null;
+      if (id != null) {
+        ids_[i] = id;
+        if (equals(bytes_, start, id.getName())) {
+          name = id.getName();
+        } else if (equals(bytes_, start, id.getLowerCaseName())) {
+          name = id.getLowerCaseName();
+        }
+      }
+      names_[i] = (name != null) ? name : string(start, end);
+    }
+    return names_[i];
+  }
+
+  /**
+   * Returns the well-known name of a header, whatever the case it was sent
+   * in, or <code>null</code> if the name isn't a well-known one.
+   */
+  public HeaderName getHeaderId(int i) {
+    getHeaderName(i);
+    return ids_[i];
+  }
+
+  /**
+   * Returns the value of a header, without the whitespace around it.
+   */
+  public String getHeaderValue(int i) {
+    checkHeader(i);
+    if (values_[i] == null) {
+      values_[i] = string(headers_[4 * i + 2], headers_[4 * i + 3]);
+    }
+    return values_[i];
+  }
+
+  /**
+   * Returns the value of the first header with the given name, or
+   * <code>null</code>. Case is ignored; other values are not made into
+   * strings.
+   */
+  public String getHeader(String name) {
+    int length = name.length();
+    for (int i = 0; i < header_count_; ++i) {
+      int start = headers_[4 * i];
+      if (headers_[4 * i + 1] - start == length
+          && equalsIgnoreCase(bytes_, start, name)) {
+        return getHeaderValue(i);
+      }
+    }
+    return null;
+  }
+
+  private void checkHeader(int i) {
+    if (i < 0 || i >= header_count_) {
+      throw new IndexOutOfBoundsException("header " + i + " of "
+          + header_count_);
+    }
+  }
+
+  @SuppressWarnings("deprecation")
+  private String string(int start, int end) {
+    // the deprecated constructor is the fastest way to turn ISO-8859-1
+    // bytes into a String: it skips the charset lookup and decoder
+    return new String(bytes_, 0, start, end - start);
+  }
+
+  /** Compares bytes to an ASCII string, ignoring case. */
+  static boolean equalsIgnoreCase(byte[] bytes, int start, String s) {
+    for (int i = 0; i < s.length(); ++i) {
+      int b = bytes[start + i];
+      int c = s.charAt(i);
+      if (b != c && ((b | 0x20) != (c | 0x20) || (c | 0x20) < 'a'
+          || (c | 0x20) > 'z')) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Compares bytes to an ASCII string, minding case. */
+  private static boolean equals(byte[] bytes, int start, String s) {
+    for (int i = 0; i < s.length(); ++i) {
+      if (bytes[start + i] != s.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public String toString() {
+    return "HttpRequestParser[state=" + state_ + ", method=" + method_
+        + ", target=" + getTarget() + ", version=" + getVersion()
+        + ", headers=" + header_count_ + "]";
+  }
+
+  /**
+   * A small table of constant strings, looked up by their bytes without
+   * making a string of them, whatever the case of the bytes. Strings are
+   * bucketed by length and first letter, so a lookup compares against one
+   * or two candidates at most.
+   */
+  private static final class Interned {
+    private final String[][] buckets_ = new String[64 * 32][];
+
+    Interned(String[] strings) {
+      for (String s : strings) {
+        add(s);
+      }
+    }
+
+    private static int bucket(int length, int first) {
+      // the same bucket for either case of the first letter
+      return ((length & 63) << 5) | (first & 31);
+    }
+
+    private void add(String s) {
+      int b = bucket(s.length(), s.charAt(0));
+      String[] old = buckets_[b];
+      int n = (old == null) ? 0 : old.length;
+      String[] bucket = new String[n + 1];
+      if (old != null) {
+        System.arraycopy(old, 0, bucket, 0, n);
+      }
+      bucket[n] = s;
+      buckets_[b] = bucket;
+    }
+
+    /**
+     * Returns the constant spelled by the bytes, or <code>null</code>.
+     */
+    String get(byte[] bytes, int start, int length) {
+      if (length == 0 || length >= 64) {
+        return null;
+      }
+      String[] bucket = buckets_[bucket(length, bytes[start])];
+      if (bucket == null) {
+        return null;
+      }
+      for (String s : bucket) {
+        if (s.length() == length && equalsIgnoreCase(bytes, start, s)) {
+          return s;
+        }
+      }
+      return null;
+    }
+  }
+}
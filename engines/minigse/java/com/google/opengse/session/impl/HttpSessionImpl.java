@@ -61,9 +61,10 @@ final class HttpSessionImpl implements HttpSession, Serializable {
   private long creationTime_;
 
   /**
-   * The last accessed time (in millis since epoch)
+   * The last accessed time (in millis since epoch). Volatile, so that it
+   * can be read without a lock while requests update it.
    */
-  private long lastAccessedTime_;
+  private volatile long lastAccessedTime_;
 
   /**
    * Number of times accessed
@@ -74,7 +75,7 @@ final class HttpSessionImpl implements HttpSession, Serializable {
    * The per-session timeout setting. Can be set using
    * the {@link #setMaxInactiveInterval(int)}
    */
-  private long sessionTimeout_;
+  private volatile long sessionTimeout_;
 
   /**
    * The session identifier (randomly generated)
@@ -87,6 +88,12 @@ final class HttpSessionImpl implements HttpSession, Serializable {
    */
   private boolean isNew_;
 
+  /**
+   * The reaper bucket this session is due to expire in, or
+   * {@link SessionReaper#UNSCHEDULED}.
+   */
+  transient volatile long expiryBucket_ = SessionReaper.UNSCHEDULED;
+
   /**
    * Flag to indicate the session has been invalidated.
    */
@@ -145,7 +152,18 @@ final class HttpSessionImpl implements HttpSession, Serializable {
   protected void access() {
     lastAccessedTime_ = System.currentTimeMillis();
     accessCount_ += 1;
-    isNew_ = false;
+    if (isNew_) {
+      isNew_ = false;
+    }
+  }
+
+  /**
+   * Returns the time at which this session expires unless it is accessed
+   * again, or {@code Long.MAX_VALUE} if it never expires.
+   */
+  long getExpiryTime() {
+    long timeout = sessionTimeout_;
+    return (timeout <= 0) ? Long.MAX_VALUE : lastAccessedTime_ + timeout;
   }
 
   /**
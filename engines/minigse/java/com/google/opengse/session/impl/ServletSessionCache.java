@@ -29,8 +29,9 @@ import com.google.opengse.*;
  * ServletSessionCache: caches ServletSession objects, the GSE implementation of
  * the {@link javax.servlet.http.HttpSession} interface. Each
  * {@link com.google.opengse.HttpRequest} object contains its own independent
- * session cache. Session data is stored in a synchronized (thread-safe)
- * in-memory cache.
+ * session cache. Session data is stored in a segmented, thread-safe
+ * in-memory cache, so that requests for different sessions do not contend
+ * for a single lock.
  *
  * @see javax.servlet.http.HttpSession
  * @author Spencer Kimball
@@ -53,10 +54,10 @@ public class ServletSessionCache implements
   protected static final int DEFAULT_MAX_SESSIONS = 5000;
 
   /**
-   * Purge entries in the timer every 5 minutes to release references to
-   * cancelled entries.
+   * How often idle sessions are looked for, and how late a session may
+   * expire. (in ms)
    */
-  private static final long TIMER_PURGE_INTERVAL = 5 * 60 * 1000;
+  private static final long REAPER_INTERVAL = 5 * 1000;
 
 
   /**
@@ -95,125 +96,12 @@ public class ServletSessionCache implements
   /**
    * The actual cache used to store sessions.
    */
-  protected ThreadSafeCache<String, HttpSessionImpl> sessionCache_;
+  protected SegmentedCache<String, HttpSessionImpl> sessionCache_;
 
   /**
-   * Class to hold timeouts and session IDs. This is used to reap expired
-   * sessions using the {@code sessionTimer_} timer.
+   * Expires idle sessions.
    */
-  private class SessionTimeout extends TimerTask {
-    public String id_;
-    public long delay_;
-    public int timeout_;
-
-    public SessionTimeout(HttpSessionImpl ss) {
-      this.id_ = ss.getId();
-      this.timeout_ = ss.getMaxInactiveInterval();
-      // negative delays are invalid
-      this.delay_ = Math.max(
-          (ss.getLastAccessedTime() + (1000 * timeout_) - System
-              .currentTimeMillis()), 0);
-    }
-
-    @Override public void run() {
-      try {
-        LOGGER.info("session " + id_ + " expired after " + timeout_
-            + " seconds");
-        accounting_.update(id_, SESSION_EXPIRED);
-        // remove timeout and invalidate cache
-        sessionTimer_.remove(this);
-        sessionCache_.invalidate(id_);
-      } catch (Throwable t) {
-        // catch Throwable to prevent the possibility of the Timer
-        // being unintentionally canceled.
-        LOGGER.log(Level.SEVERE, "SessionTimeout", t);
-      }
-    }
-  }
-
-  /**
-   * Class to wrap a timer for expiring sessions and a map for fetching
-   * SessionTimeout objects by session ID. This class does not extend Timer in
-   * order to properly implement the {@code clear()} method, which cancels the
-   * timer and starts a new one.
-   * <p>
-   *
-   */
-  protected class SessionTimer {
-    Timer timer_;
-    Map<String, SessionTimeout> timeoutMap_;
-    long lastPurgeTime_ = System.currentTimeMillis();
-
-    public SessionTimer() {
-      timeoutMap_ = new HashMap<String, SessionTimeout>();
-      resetTimer();
-    }
-
-    public synchronized void add(HttpSessionImpl ss) {
-      SessionTimeout st = new SessionTimeout(ss);
-      timeoutMap_.put(st.id_, st);
-      try {
-        timer_.schedule(st, st.delay_);
-      } catch (IllegalStateException e) {
-        resetTimer();
-      }
-    }
-
-    public synchronized void remove(HttpSessionImpl ss) {
-      SessionTimeout st = timeoutMap_.get(ss.getId());
-      if (st != null) {
-        remove(st);
-      }
-    }
-
-    public synchronized void update(HttpSessionImpl ss) {
-      remove(ss);
-      add(ss);
-    }
-
-    public synchronized void clear() {
-      timer_.cancel();
-      timer_ = new Timer(ServletSessionCache.class.getName(), true);
-      timeoutMap_.clear();
-    }
-
-    public synchronized void remove(SessionTimeout st) {
-      st.cancel();
-      timeoutMap_.remove(st.id_);
-
-      // purge timer entries to free up memory
-      long now = System.currentTimeMillis();
-      if (now - lastPurgeTime_ > TIMER_PURGE_INTERVAL) {
-        timer_.purge();
-        lastPurgeTime_ = now;
-      }
-    }
-
-    protected synchronized int size() {
-      return timeoutMap_.size();
-    }
-
-    /**
-     * Creates a new timer and reschedules all extant session timeouts. This
-     * method is called at startup and in the event that the timer thread exits.
-     * This will reset the timeouts for all sessions still in the cache,
-     * regardless of when they were originally supposed to expire.
-     */
-    private synchronized void resetTimer() {
-      if (timer_ != null) {
-        timer_.cancel();
-      }
-      timer_ = new Timer(ServletSessionCache.class.getName(), true);
-      for (SessionTimeout st : timeoutMap_.values()) {
-        timer_.schedule(st, st.delay_);
-      }
-    }
-  }
-
-  /**
-   * A timer for SessionTimeout objects, which implement TimerTask
-   */
-  protected SessionTimer sessionTimer_;
+  private final SessionReaper reaper_;
 
   /**
    * The session timeout setting.
@@ -363,6 +251,14 @@ public class ServletSessionCache implements
    * @param config
    */
   public ServletSessionCache(SessionConfiguration config) {
+    this(config, REAPER_INTERVAL);
+  }
+
+  /**
+   * Creates a cache whose sessions are looked at for expiry every
+   * {@code reaperInterval} milliseconds.
+   */
+  ServletSessionCache(SessionConfiguration config, long reaperInterval) {
     this.config = config;
     this.serverId_ = config.getServerId();
     this.serverIdExt_ = config.getServerIdExt();
@@ -370,17 +266,18 @@ public class ServletSessionCache implements
     this.nonEmpty_ = false;
     this.activeSessionSet_ = Collections.synchronizedSet(new HashSet<String>());
 
-    // Create a sorted set for reaping expired sessions
-    sessionTimer_ = new SessionTimer();
+    // Create a reaper for expired sessions
+    reaper_ = new SessionReaper(this, reaperInterval);
 
     // Create a thread-safe session cache; multiple request threads WILL
     // be accessing it concurrently.
-    sessionCache_ = new ThreadSafeCache<String, HttpSessionImpl>(
+    sessionCache_ = new SegmentedCache<String, HttpSessionImpl>(
         config.getMaxSessions());
 
     // setup notification of cache events (for session listeners)
     sessionCache_.registerListener(this);
     sessionTimeout_ = config.getSessionTimeoutMillis();
+    reaper_.start();
   }
 
   /**
@@ -409,7 +306,7 @@ public class ServletSessionCache implements
    *          looks up a session based on the provided session ID
    * @return the session or {@code null} if not found
    */
-  public synchronized HttpSession getSession(String sessionId) {
+  public HttpSession getSession(String sessionId) {
     if (sessionId == null) {
       return null;
     }
@@ -425,10 +322,11 @@ public class ServletSessionCache implements
     // to the owner cache.
     ss.cacheId_ = getId();
 
-    // update access timestamp
+    // update access timestamp. Neither the accounting record nor the
+    // reaper is touched, since that would serialize requests on their
+    // locks; the reaper checks the last access time when the session is
+    // due to expire.
     ss.access();
-    accounting_.update(sessionId, SESSION_ACTIVE);
-    updateSession(ss);
 
     return ss;
   }
@@ -442,7 +340,7 @@ public class ServletSessionCache implements
     String sessionId = generateId();
     HttpSessionImpl ss = new HttpSessionImpl(this, sessionTimeout_, sessionId);
     sessionCache_.put(ss.getId(), ss);
-    sessionTimer_.add(ss);
+    reaper_.add(ss);
     notifySessionCreated(ss);
     activeSessionSet_.add(ss.getId());
     accounting_.update(ss.getId(), SESSION_ACTIVE);
@@ -463,7 +361,7 @@ public class ServletSessionCache implements
         LOGGER.log(Level.INFO, "session " + sessionId
             + " invalidated by application code", new Throwable());
       }
-      sessionTimer_.remove(ss);
+      reaper_.remove(ss);
       sessionCache_.invalidate(sessionId);
     }
   }
@@ -477,7 +375,23 @@ public class ServletSessionCache implements
    */
   public void updateSession(HttpSessionImpl ss) {
     // update session timeout
-    sessionTimer_.update(ss);
+    reaper_.update(ss);
+  }
+
+  /**
+   * Invalidates a session which has not been accessed for its maximum
+   * inactive interval. Called on the reaper thread.
+   */
+  void sessionExpired(HttpSessionImpl ss) {
+    String id = ss.getId();
+    if (sessionCache_.get(id) != ss) {
+      // already invalidated or evicted
+      return;
+    }
+    LOGGER.info("session " + id + " expired after "
+        + ss.getMaxInactiveInterval() + " seconds");
+    accounting_.update(id, SESSION_EXPIRED);
+    sessionCache_.invalidate(id);
   }
 
   /**
@@ -510,7 +424,7 @@ public class ServletSessionCache implements
    */
   protected void clearSessions() {
     sessionCache_.clear();
-    sessionTimer_.clear();
+    reaper_.clear();
   }
 
   /**
@@ -599,6 +513,7 @@ public class ServletSessionCache implements
     activeSessionSet_.remove(key);
     accounting_.update(key, SESSION_EVICTED);
     if (ss != null) {
+      reaper_.remove(ss);
       notifySessionDestroyed(ss);
       ss.clearAttributes();
     }
@@ -0,0 +1,234 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.opengse.session.impl;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Expires the idle sessions of a {@link ServletSessionCache}.
+ * <p>
+ * Time is divided into buckets of a fixed width, and each session is kept
+ * in the bucket in which it is due to expire. Accessing a session only
+ * updates its last access time; the bucket is not touched. Instead, when
+ * the reaper thread sweeps a bucket whose time has passed, it checks each
+ * session's actual expiry time, and moves a session which has been
+ * accessed since into a later bucket rather than expiring it. Expiry, and
+ * with it {@link javax.servlet.http.HttpSessionListener#sessionDestroyed},
+ * therefore happens on the reaper thread, up to one bucket late.
+ */
+final class SessionReaper implements Runnable {
+  private static final Logger LOGGER =
+      Logger.getLogger(SessionReaper.class.getName());
+
+  /**
+   * The bucket of a session which is not scheduled to expire. This is also
+   * the value of the field in a newly deserialized session.
+   */
+  static final long UNSCHEDULED = 0;
+
+  private final ServletSessionCache cache_;
+  private final long bucketMillis_;
+  private final ConcurrentSkipListMap<Long, Bucket> buckets_ =
+      new ConcurrentSkipListMap<Long, Bucket>();
+  private final Thread thread_;
+  private volatile boolean running_ = true;
+
+  /**
+   * The sessions due to expire within one bucket's width of time. Once the
+   * reaper has taken a bucket's sessions, no more can be added to it.
+   */
+  private static final class Bucket {
+    private Set<HttpSessionImpl> sessions_ = new HashSet<HttpSessionImpl>();
+
+    synchronized boolean add(HttpSessionImpl ss) {
+      if (sessions_ == null) {
+        return false;
+      }
+      sessions_.add(ss);
+      return true;
+    }
+
+    synchronized void remove(HttpSessionImpl ss) {
+      if (sessions_ != null) {
+        sessions_.remove(ss);
+      }
+    }
+
+    synchronized Set<HttpSessionImpl> take() {
+      Set<HttpSessionImpl> sessions = sessions_;
+      sessions_ = null;
+      return sessions;
+    }
+  }
+
+  /**
+   * @param cache the cache whose sessions are expired
+   * @param bucketMillis the width of a bucket, which is also how often
+   *        the reaper wakes up
+   */
+  SessionReaper(ServletSessionCache cache, long bucketMillis) {
+    this.cache_ = cache;
+    this.bucketMillis_ = bucketMillis;
+    thread_ = new Thread(this, ServletSessionCache.class.getName());
+    thread_.setDaemon(true);
+  }
+
+  void start() {
+    thread_.start();
+  }
+
+  /**
+   * Stops the reaper thread. Sessions are no longer expired.
+   */
+  void shutdown() {
+    running_ = false;
+    thread_.interrupt();
+  }
+
+  /**
+   * Schedules a new session to expire.
+   */
+  void add(HttpSessionImpl ss) {
+    schedule(ss, ss.getExpiryTime());
+  }
+
+  /**
+   * Stops expiring a session, because it has been invalidated or evicted.
+   */
+  void remove(HttpSessionImpl ss) {
+    long index = ss.expiryBucket_;
+    ss.expiryBucket_ = UNSCHEDULED;
+    if (index != UNSCHEDULED) {
+      Bucket bucket = buckets_.get(index);
+      if (bucket != null) {
+        bucket.remove(ss);
+      }
+    }
+  }
+
+  /**
+   * Reschedules a session whose timeout has changed, if it now expires
+   * before the bucket it is in. A session which expires later than its
+   * bucket is moved when the bucket is swept.
+   */
+  void update(HttpSessionImpl ss) {
+    long expiry = ss.getExpiryTime();
+    long index = ss.expiryBucket_;
+    if (index == UNSCHEDULED || bucketFor(expiry) < index) {
+      remove(ss);
+      schedule(ss, expiry);
+    }
+  }
+
+  /**
+   * Forgets all sessions.
+   */
+  void clear() {
+    buckets_.clear();
+  }
+
+  private long bucketFor(long expiry) {
+    return expiry / bucketMillis_ + 1;
+  }
+
+  private void schedule(HttpSessionImpl ss, long expiry) {
+    if (expiry == Long.MAX_VALUE) {
+      // never expires
+      return;
+    }
+    long index = bucketFor(expiry);
+    while (true) {
+      Bucket bucket = buckets_.get(index);
+      if (bucket == null) {
+        Bucket newBucket = new Bucket();
+        bucket = buckets_.putIfAbsent(index, newBucket);
+        if (bucket == null) {
+          bucket = newBucket;
+        }
+      }
+      ss.expiryBucket_ = index;
+      if (bucket.add(ss)) {
+        return;
+      }
+      // the reaper took the bucket while we were adding to it; it has
+      // been removed from the map, so the next try makes a new one that
+      // the reaper will sweep next time round
+    }
+  }
+
+  /**
+   * Expires the sessions of every bucket whose time has passed, and moves
+   * the ones which have been accessed since they were scheduled.
+   */
+  void sweep(long now) {
+    ConcurrentNavigableMap<Long, Bucket> due =
+        buckets_.headMap(now / bucketMillis_, true);
+    while (!due.isEmpty()) {
+      Map.Entry<Long, Bucket> entry = due.pollFirstEntry();
+      if (entry == null) {
+        break;
+      }
+      long index = entry.getKey();
+      List<HttpSessionImpl> expired = new ArrayList<HttpSessionImpl>();
+      for (HttpSessionImpl ss : entry.getValue().take()) {
+        if (ss.expiryBucket_ != index) {
+          // removed, or moved to another bucket
+          continue;
+        }
+        long expiry = ss.getExpiryTime();
+        if (expiry > now) {
+          schedule(ss, expiry);
+        } else {
+          ss.expiryBucket_ = UNSCHEDULED;
+          expired.add(ss);
+        }
+      }
+      for (HttpSessionImpl ss : expired) {
+        try {
+          cache_.sessionExpired(ss);
+        } catch (RuntimeException e) {
+          // keep reaping the other sessions
+          LOGGER.log(Level.SEVERE, "unable to expire session " + ss.getId(),
+              e);
+        }
+      }
+    }
+  }
+
+  public void run() {
+    while (running_) {
+      long now = System.currentTimeMillis();
+      try {
+        Thread.sleep(bucketMillis_ - (now % bucketMillis_));
+      } catch (InterruptedException e) {
+        continue;
+      }
+      try {
+        sweep(System.currentTimeMillis());
+      } catch (Throwable t) {
+        // catch Throwable so that sessions keep expiring
+        LOGGER.log(Level.SEVERE, "SessionReaper", t);
+      }
+    }
+  }
+}
@@ -22,6 +22,14 @@ public interface DispatchQueue {
    * @param r the Runnable to enqueue
    */
   void addRunnable(Runnable r);
+
+  /**
+   * Add a Runnable to this DispatchQueue unless its backlog is full.
+   *
+   * @param r the Runnable to enqueue
+   * @return <code>false</code> if the Runnable was refused
+   */
+  boolean offerRunnable(Runnable r);
   
   /**
    * Blocks until the queue is empty or until the specified timeout
@@ -44,6 +44,12 @@ public final class DispatchQueueImpl implements DispatchQueue {
     queue.add(conn);
   }
 
+  public boolean offerRunnable(Runnable conn) {
+    // the backlog is unbounded
+    queue.add(conn);
+    return true;
+  }
+
   public boolean quit(long timeout) {
     CountDownLatch latch = new CountDownLatch(nWorkerThreads);
     for (int i = 0; i < nWorkerThreads; ++i) {
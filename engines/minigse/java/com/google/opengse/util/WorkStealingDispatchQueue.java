@@ -0,0 +1,391 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.opengse.util;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A {@link DispatchQueue} with no lock on the hand-off path. Every worker
+ * has its own lock-free stripe of the queue; producers spread runnables
+ * over the stripes in turn, and a worker whose stripe is empty steals from
+ * the others before it parks. Idle workers wait on a lock-free list, and
+ * a producer wakes exactly one of them with {@link LockSupport#unpark}, so
+ * there is no monitor for 64 or more workers to convoy on.
+ *
+ * <p>The backlog can be bounded, in which case
+ * {@link #offerRunnable(Runnable)} refuses work once that many runnables
+ * are waiting. The queue also records how many runnables are waiting and
+ * how long each one waited before a worker picked it up.
+ */
+public final class WorkStealingDispatchQueue implements DispatchQueue {
+  private static final Logger LOGGER =
+      Logger.getLogger(WorkStealingDispatchQueue.class.getName());
+
+  private final Worker[] workers_;
+  private final ConcurrentLinkedQueue<Task>[] stripes_;
+  private final ConcurrentLinkedQueue<Worker> idle_ =
+      new ConcurrentLinkedQueue<Worker>();
+  private final int maxBacklog_;
+  private final AtomicInteger depth_ = new AtomicInteger();
+  private final AtomicInteger next_ = new AtomicInteger();
+  /** the number of workers looking for a task before they park */
+  private final AtomicInteger spinning_ = new AtomicInteger();
+  private final AtomicLong rejected_ = new AtomicLong();
+  private volatile boolean quitting_;
+
+  /**
+   * Creates a queue with an unbounded backlog and work stealing.
+   */
+  public WorkStealingDispatchQueue(int nWorkerThreads) {
+    this(nWorkerThreads, 0, true);
+  }
+
+  /**
+   * @param nWorkerThreads the number of worker threads to start
+   * @param maxBacklog the most runnables that may wait for a worker, or
+   *        zero or less for no limit
+   * @param workStealing <code>true</code> to give each worker a stripe of
+   *        its own, <code>false</code> for one stripe shared by all of them
+   */
+  @SuppressWarnings("unchecked")
+  public WorkStealingDispatchQueue(int nWorkerThreads, int maxBacklog,
+                                   boolean workStealing) {
+    if (nWorkerThreads < 1) {
+      throw new IllegalArgumentException("need at least one worker thread");
+    }
+    maxBacklog_ = maxBacklog;
+    stripes_ = new ConcurrentLinkedQueue[workStealing ? nWorkerThreads : 1];
+    for (int i = 0; i < stripes_.length; ++i) {
+      stripes_[i] = new ConcurrentLinkedQueue<Task>();
+    }
+    workers_ = new Worker[nWorkerThreads];
+    for (int i = 0; i < nWorkerThreads; ++i) {
+      workers_[i] = new Worker("GSE worker #" + i, i % stripes_.length);
+    }
+    for (Worker worker : workers_) {
+      worker.start();
+    }
+  }
+
+  /**
+   * Adds a runnable whether or not the backlog is full. This is for work
+   * which must not be dropped, such as finishing a response in progress.
+   */
+  public void addRunnable(Runnable r) {
+    depth_.incrementAndGet();
+    enqueue(r);
+  }
+
+  /**
+   * Adds a runnable unless the backlog is full or the queue is quitting.
+   *
+   * @return <code>false</code> if the runnable was refused
+   */
+  public boolean offerRunnable(Runnable r) {
+    if (quitting_) {
+      rejected_.incrementAndGet();
+      return false;
+    }
+    if (maxBacklog_ > 0) {
+      int depth;
+      do {
+        depth = depth_.get();
+        if (depth >= maxBacklog_) {
+          rejected_.incrementAndGet();
+          return false;
+        }
+      } while (!depth_.compareAndSet(depth, depth + 1));
+    } else {
+      depth_.incrementAndGet();
+    }
+    enqueue(r);
+    return true;
+  }
+
+  private void enqueue(Runnable r) {
+    int i = (stripes_.length == 1) ? 0
+        : (next_.getAndIncrement() & Integer.MAX_VALUE) % stripes_.length;
+    stripes_[i].offer(new Task(r));
+    signal();
+  }
+
+  /**
+   * Wakes one idle worker, if there is one and the workers already looking
+   * for a task are too few to take every waiting task. Each spinning worker
+   * saves one wake-up, no more; and every worker which takes a task while
+   * others are still waiting calls this again, so a burst fans out to as
+   * many workers as it has tasks.
+   */
+  private void signal() {
+    if (depth_.get() <= spinning_.get()) {
+      return;
+    }
+    Worker worker;
+    while ((worker = idle_.poll()) != null) {
+      // entries of workers which went back to work on their own are stale
+      if (worker.idle_.compareAndSet(true, false)) {
+        LockSupport.unpark(worker);
+        return;
+      }
+    }
+  }
+
+  /**
+   * Takes a task from the stripe at <code>home</code>, or failing that
+   * from any other stripe.
+   */
+  private Task poll(int home) {
+    Task task = stripes_[home].poll();
+    for (int i = 1; task == null && i < stripes_.length; ++i) {
+      task = stripes_[(home + i) % stripes_.length].poll();
+    }
+    if (task != null) {
+      depth_.decrementAndGet();
+    }
+    return task;
+  }
+
+  /**
+   * Stops taking runnables, lets the workers finish the ones already
+   * queued, and waits up to <code>timeout</code> milliseconds for them to
+   * exit.
+   *
+   * @return <code>true</code> if all of the workers exited in time
+   */
+  public boolean quit(long timeout) {
+    quitting_ = true;
+    for (Worker worker : workers_) {
+      LockSupport.unpark(worker);
+    }
+    long end = System.currentTimeMillis() + timeout;
+    for (Worker worker : workers_) {
+      if (worker == Thread.currentThread()) {
+        continue;
+      }
+      long wait = end - System.currentTimeMillis();
+      if (wait > 0) {
+        try {
+          worker.join(wait);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return false;
+        }
+      }
+      if (worker.isAlive()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the number of runnables waiting for a worker.
+   */
+  public int getDepth() {
+    return depth_.get();
+  }
+
+  /**
+   * Returns the most runnables that may wait for a worker, zero or less
+   * if there is no limit.
+   */
+  public int getMaxBacklog() {
+    return maxBacklog_;
+  }
+
+  /**
+   * Returns the number of runnables refused by
+   * {@link #offerRunnable(Runnable)}.
+   */
+  public long getRejectedCount() {
+    return rejected_.get();
+  }
+
+  /**
+   * Returns the number of runnables which workers have picked up.
+   */
+  public long getDispatchedCount() {
+    long n = 0;
+    for (Worker worker : workers_) {
+      n += worker.dispatched_;
+    }
+    return n;
+  }
+
+  /**
+   * Returns the total time, in nanoseconds, that runnables spent waiting
+   * for a worker.
+   */
+  public long getTotalWaitNanos() {
+    long n = 0;
+    for (Worker worker : workers_) {
+      n += worker.waitNanos_;
+    }
+    return n;
+  }
+
+  /**
+   * Returns the longest time, in nanoseconds, that a runnable spent
+   * waiting for a worker.
+   */
+  public long getMaxWaitNanos() {
+    long max = 0;
+    for (Worker worker : workers_) {
+      max = Math.max(max, worker.maxWaitNanos_);
+    }
+    return max;
+  }
+
+  @Override
+  public String toString() {
+    long dispatched = getDispatchedCount();
+    long meanWaitMicros = (dispatched == 0) ? 0
+        : getTotalWaitNanos() / dispatched / 1000;
+    return workers_.length + " workers, " + getDepth() + " pending requests, "
+        + getRejectedCount() + " rejected; mean wait " + meanWaitMicros
+        + "us, max wait " + (getMaxWaitNanos() / 1000) + "us";
+  }
+
+  /**
+   * A runnable and the time it was queued.
+   */
+  private static final class Task {
+    final Runnable runnable_;
+    final long queuedNanos_;
+
+    Task(Runnable runnable) {
+      this.runnable_ = runnable;
+      this.queuedNanos_ = System.nanoTime();
+    }
+  }
+
+  /**
+   * How many times an idle worker looks for a task before it parks. Each
+   * look yields first, so even on one CPU the producer gets to run.
+   */
+  private static final int SPINS = 32;
+
+  private final class Worker extends Thread {
+    private final int home_;
+    /** true while this worker is on the idle list, waiting to be woken */
+    final AtomicBoolean idle_ = new AtomicBoolean();
+    // Written only by this worker, so the totals need no atomic updates.
+    volatile long dispatched_;
+    volatile long waitNanos_;
+    volatile long maxWaitNanos_;
+
+    Worker(String name, int home) {
+      super(name);
+      this.home_ = home;
+      setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      for (;;) {
+        Task task = poll(home_);
+        if (task == null) {
+          task = spin();
+        }
+        if (task == null) {
+          task = await();
+          if (task == null) {
+            return;
+          }
+        }
+        if (depth_.get() > 0) {
+          // the producers may have counted on us to wake the next worker
+          signal();
+        }
+        long wait = System.nanoTime() - task.queuedNanos_;
+        dispatched_ = dispatched_ + 1;
+        waitNanos_ = waitNanos_ + wait;
+        if (wait > maxWaitNanos_) {
+          maxWaitNanos_ = wait;
+        }
+        runTask(task.runnable_);
+      }
+    }
+
+    /**
+     * Looks for a task for a little while before parking, since parking
+     * and being woken cost far more than a short hand-off.
+     */
+    private Task spin() {
+      spinning_.incrementAndGet();
+      Task task = null;
+      for (int i = 0; task == null && i < SPINS && !quitting_; ++i) {
+        Thread.yield();
+        task = poll(home_);
+      }
+      spinning_.decrementAndGet();
+      return task;
+    }
+
+    /**
+     * Parks until there is a task to run.
+     *
+     * @return the task, or <code>null</code> once the queue is quitting
+     *         and empty
+     */
+    private Task await() {
+      for (;;) {
+        idle_.set(true);
+        WorkStealingDispatchQueue.this.idle_.offer(this);
+        // A producer which queued its task before we were on the idle
+        // list did not see us, so look again before parking.
+        Task task = poll(home_);
+        if (task != null) {
+          // If a producer took us off the idle list meanwhile, its wake-up
+          // is passed on by run(), since it sees the task we left behind.
+          idle_.set(false);
+          return task;
+        }
+        // Spurious wake-ups leave us on the idle list; a producer takes
+        // us off it before waking us.
+        do {
+          if (quitting_) {
+            return poll(home_);
+          }
+          LockSupport.park(this);
+        } while (idle_.get());
+        task = poll(home_);
+        if (task != null) {
+          return task;
+        }
+        // another worker got there first
+      }
+    }
+
+    private void runTask(Runnable r) {
+      try {
+        r.run();
+      } catch (Exception e) {
+        LOGGER.log(Level.WARNING, "caught an exception", e);
+      } catch (Error e) {
+        LOGGER.log(Level.SEVERE, "caught an error", e);
+      } finally {
+        // clear the interrupted flag if it's set
+        interrupted();
+      }
+    }
+  }
+}
@@ -46,6 +46,7 @@ public class ErrorPageManager {
 
   private final List<WebAppErrorPage> errorPages;
   private String defaultErrorPage;
+  private volatile boolean hasErrorCodePages;
 
   public ErrorPageManager() {
     // do NOT change the following line to Lists.newArrayList()
@@ -56,6 +57,9 @@ public class ErrorPageManager {
     if (errorPage.getExceptionType() != null
         || errorPage.getErrorCode() != null) {
       errorPages.add(errorPage);
+      if (errorPage.getErrorCode() != null) {
+        hasErrorCodePages = true;
+      }
     }
     String etype = errorPage.getExceptionType();
     if (etype != null && etype.equals("java.lang.Exception")
@@ -167,9 +171,15 @@ public class ErrorPageManager {
     errorDispatcher.forward(request, response);
   }
 
+  /**
+   * Wraps a response so that errors sent through it show the error pages.
+   * Without any pages for error codes, errors are sent as they would be
+   * anyway, and the response is returned as it is.
+   */
   public ServletResponse wrapResponse(
       ServletRequest request, ServletResponse response, String servletName) {
-    if ((response instanceof HttpServletResponse)
+    if (hasErrorCodePages
+        && (response instanceof HttpServletResponse)
         && (request instanceof HttpServletRequest)) {
       return wrapResponse((HttpServletRequest) request,
           (HttpServletResponse) response, servletName);
@@ -25,36 +25,59 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
-import java.net.MalformedURLException;
-import java.net.URL;
 import java.net.URLConnection;
 
 /**
  * A basic file-serving servlet. This servlet gets invoked when nothing else
  * handles an incoming request.
  *
+ * <p>Files are served from a {@link StaticContentCache}, with an
+ * {@code ETag} and {@code Last-Modified} header, and a request whose
+ * {@code If-None-Match} or {@code If-Modified-Since} header shows that the
+ * client already has the file gets a 304. The cache is sized by the
+ * {@code opengse.filecache.size}, {@code opengse.filecache.maxfilesize}
+ * and {@code opengse.filecache.checkinterval} init or context parameters.
+ *
  * @author Mike Jennings
  */
 public class FileServingServlet extends HttpServlet {
   private static final long serialVersionUID = 1L;
 
-  private WebAppConfiguration config;
-  private String[] welcomeFiles;
+  private static final String INCLUDE_REQUEST_URI =
+      "javax.servlet.include.request_uri";
+  private static final String UNKNOWN_CONTENT_TYPE = "content/unknown";
+
+  /** the default for {@link #CACHE_SIZE_PARAM}: 32MB */
+  static final long DEFAULT_CACHE_SIZE = 32L * 1024 * 1024;
+  /** the default for {@link #CACHE_MAX_FILE_SIZE_PARAM}: 256KB */
+  static final int DEFAULT_CACHE_MAX_FILE_SIZE = 256 * 1024;
+  /** the default for {@link #CACHE_CHECK_INTERVAL_PARAM}: 2 seconds */
+  static final long DEFAULT_CACHE_CHECK_INTERVAL = 2000;
+
+  /** init parameter: the most bytes of static content to hold in memory */
+  static final String CACHE_SIZE_PARAM = "opengse.filecache.size";
+  /** init parameter: the size of the biggest file to hold in memory */
+  static final String CACHE_MAX_FILE_SIZE_PARAM =
+      "opengse.filecache.maxfilesize";
+  /** init parameter: milliseconds between checks that a file has changed */
+  static final String CACHE_CHECK_INTERVAL_PARAM =
+      "opengse.filecache.checkinterval";
+
+  private String[] welcomeFiles = new String[0];
+  private StaticContentCache cache;
 
   @Override
   public void init() throws ServletException {
     super.init();
 
-    WebAppConfiguration config;
     WebAppWelcomeFileList welcomeFileList;
-    String contextdir = this.getServletContext().getRealPath("/");
     try {
-      config = WebAppConfigurationFactory.getConfiguration(new File(contextdir));
-      welcomeFileList = config.getWelcomeFileList();
+      welcomeFileList = getConfiguration().getWelcomeFileList();
     } catch (WebAppConfigurationException e) {
       // Errors on getting configuration from web.xml
       welcomeFileList = null;
@@ -65,109 +88,184 @@ public class FileServingServlet extends HttpServlet {
         welcomeFiles[i] = welcomeFiles[i].trim();
       }
     }
+    cache = new StaticContentCache(
+        getLongParameter(CACHE_SIZE_PARAM, DEFAULT_CACHE_SIZE),
+        (int) getLongParameter(CACHE_MAX_FILE_SIZE_PARAM,
+            DEFAULT_CACHE_MAX_FILE_SIZE),
+        getLongParameter(CACHE_CHECK_INTERVAL_PARAM,
+            DEFAULT_CACHE_CHECK_INTERVAL));
+  }
+
+  /**
+   * Returns the configuration the webapp was loaded with, or failing that
+   * (if we are not running in a minigse webapp) the one in its web.xml.
+   */
+  private WebAppConfiguration getConfiguration()
+      throws WebAppConfigurationException {
+    Object config = getServletContext().getAttribute(
+        WebAppImpl.CONFIGURATION_ATTRIBUTE);
+    if (config instanceof WebAppConfiguration) {
+      return (WebAppConfiguration) config;
+    }
+    String contextdir = getServletContext().getRealPath("/");
+    return WebAppConfigurationFactory.getConfiguration(new File(contextdir));
+  }
+
+  private long getLongParameter(String name, long defaultValue) {
+    String value = getInitParameter(name);
+    if (value == null) {
+      value = getServletContext().getInitParameter(name);
+    }
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      log("ignoring bad value '" + value + "' for " + name);
+      return defaultValue;
+    }
   }
 
   @Override
   protected void service(HttpServletRequest req, HttpServletResponse resp)
       throws ServletException, IOException {
-    URL resource = getResourceURLFromRequest(req);
-    if (resource == null) {
+    String path = getResourcePathFromRequest(req);
+    if (path == null) {
       resp.sendError(HttpServletResponse.SC_NOT_FOUND);
       return;
     }
-    URLConnection urlConn = null;
-    String file = resource.getPath();
-    int lastSlash = file.lastIndexOf('/');
-    if (lastSlash != -1) {
-      file = file.substring(lastSlash + 1);
-    }
-    if (file.equals("")) {
-      String resourceAsString = resource.toString();
-      for (String welcomeFile : welcomeFiles) {
-        URL resourceToTry = new URL(resourceAsString + welcomeFile);
-        urlConn = resourceToTry.openConnection();
-        if (urlConn != null && urlConn.getContentLength() > 0) {
-          file = welcomeFile;
-          break;
-        }
+    StaticContentCache.Entry entry = cache.get(path);
+    if (entry == null) {
+      entry = loadEntry(path);
+      if (entry == null) {
+        resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+        return;
       }
     }
-    String mimeType = getServletContext().getMimeType(file);
-    if (urlConn == null) {
-      urlConn = resource.openConnection();
-    }
-    int length = urlConn.getContentLength();
-    if (mimeType == null) {
-      // fall back to using the JRE to figure out the mime-type
-      mimeType = urlConn.getContentType();
-      if (mimeType == null) {
-        /*
-         * If the jvm didn't know the mime type and it was not registered in
-         * any web.xml, send an error, cuz it's the only thing we can do.
-         */
-        resp.sendError(HttpServletResponse.SC_NOT_FOUND,
-            "Unknown mime type for '" + file + "'");
+    boolean included = (req.getAttribute(INCLUDE_REQUEST_URI) != null);
+    if (!included) {
+      resp.setDateHeader("Last-Modified", entry.lastModified);
+      resp.setHeader("ETag", entry.etag);
+      if (isNotModified(req, entry)) {
+        resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
         return;
       }
     }
-    urlConn.connect();
-    InputStream istr = urlConn.getInputStream();
-    if (istr == null) {
-      resp.sendError(HttpServletResponse.SC_NOT_FOUND,
-          "Cannot read from '" + resource + "'");
+    resp.setContentType(entry.mimeType);
+    resp.setContentLength((int) entry.length);
+    if ("HEAD".equals(req.getMethod())) {
       return;
     }
     OutputStream ostr = null;
     try {
       ostr = resp.getOutputStream();
-    } catch (IOException e) {
-      // ignore if stream is not available, not supported, or just bad ...
     } catch (IllegalStateException e) {
-      // ignore if stream is not available, not supported, or just bad ...
+      // the includer has already called getWriter()
     }
-    try {
-      if (ostr != null) {
-        writeFileContent(resp, mimeType, length, istr, ostr);
+    if (ostr != null) {
+      if (entry.content != null) {
+        ostr.write(entry.content);
+      } else {
+        InputStream istr = new FileInputStream(entry.file);
+        try {
+          copy(istr, ostr, entry.length);
+        } finally {
+          istr.close();
+        }
+      }
+      ostr.close();
+    } else {
+      // Note: Jasper runtime only supports PrintWriter.
+      PrintWriter printWriter = resp.getWriter();
+      if (entry.content != null) {
+        // TODO: locale?
+        printWriter.write(new String(entry.content));
       } else {
-        /*
-         * Bad output stream, and we fall back to PrintWriter.
-         * Note: Jasper runtime only supports PrintWriter.
-         */
-        PrintWriter printWriter = resp.getWriter();
-        if (printWriter != null) {
-          resp.setContentType(mimeType);
-          resp.setContentLength(length);
-          ostr = new ByteArrayOutputStream();
-          writeFileContent(resp, mimeType, length, istr, ostr);
-
-          // TODO: locale?
-          printWriter.write((((ByteArrayOutputStream) ostr).toString()));
-        }  // else - we are done: bad input
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        InputStream istr = new FileInputStream(entry.file);
+        try {
+          copy(istr, buf, entry.length);
+        } finally {
+          istr.close();
+        }
+        printWriter.write(buf.toString());
       }
-    } finally {
-      istr.close();
-      if (ostr != null) {
-        ostr.close();
+    }
+  }
+
+  /**
+   * Finds the file for {@code path}, which is a welcome file if
+   * {@code path} names a directory, and caches it.
+   *
+   * @return the new cache entry, or null if there is no such file
+   */
+  private StaticContentCache.Entry loadEntry(String path) throws IOException {
+    String realPath = getServletContext().getRealPath(path);
+    if (realPath == null) {
+      return null;
+    }
+    File file = new File(realPath);
+    if (path.endsWith("/")) {
+      if (!file.isDirectory()) {
+        return null;
       }
+      File welcome = null;
+      for (String welcomeFile : welcomeFiles) {
+        File fileToTry = new File(file, welcomeFile);
+        if (fileToTry.isFile() && fileToTry.length() > 0) {
+          welcome = fileToTry;
+          break;
+        }
+      }
+      if (welcome == null) {
+        return null;
+      }
+      file = welcome;
+    } else if (!file.isFile()) {
+      return null;
     }
+    String name = file.getName();
+    String mimeType = getServletContext().getMimeType(name);
+    if (mimeType == null) {
+      // fall back to using the JRE to figure out the mime-type
+      mimeType = URLConnection.getFileNameMap().getContentTypeFor(name);
+      if (mimeType == null) {
+        mimeType = UNKNOWN_CONTENT_TYPE;
+      }
+    }
+    return cache.load(path, file, mimeType);
   }
 
-  private void writeFileContent(HttpServletResponse resp, String mimeType,
-                                int length, InputStream istr, OutputStream ostr)
-      throws IOException {
-    resp.setContentType(mimeType);
-    resp.setContentLength(length);
-    try {
-      copy(istr, ostr, length);
-      istr.close();
-      istr = null;
-      ostr.close();
-      ostr = null;
-    } finally {
-      if (istr != null) {
-        istr.close();
+  /**
+   * Returns true if the client's copy of {@code entry}, as described by
+   * its If-None-Match or If-Modified-Since header, is current.
+   */
+  static boolean isNotModified(HttpServletRequest req,
+                               StaticContentCache.Entry entry) {
+    String ifNoneMatch = req.getHeader("If-None-Match");
+    if (ifNoneMatch != null) {
+      // If-None-Match takes precedence, and uses the weak comparison
+      for (String tag : ifNoneMatch.split(",")) {
+        tag = tag.trim();
+        if (tag.startsWith("W/")) {
+          tag = tag.substring(2);
+        }
+        if (tag.equals("*") || tag.equals(entry.etag)) {
+          return true;
+        }
       }
+      return false;
     }
+    long ifModifiedSince;
+    try {
+      ifModifiedSince = req.getDateHeader("If-Modified-Since");
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+    // HTTP dates only have a resolution of one second
+    return ifModifiedSince != -1
+        && entry.lastModified / 1000 <= ifModifiedSince / 1000;
   }
 
   /**
@@ -178,14 +276,15 @@ public class FileServingServlet extends HttpServlet {
    * @return the total number of bytes copied
    * @throws IOException
    */
-  private static int copy(
-      final InputStream istr, final OutputStream out, final int maxBytes)
+  private static long copy(
+      final InputStream istr, final OutputStream out, final long maxBytes)
       throws IOException {
-    byte[] buf = new byte[512];
+    byte[] buf = new byte[8192];
     int bytesRead = 0;
-    int totalBytesRead = 0;
+    long totalBytesRead = 0;
     while (bytesRead != -1 && totalBytesRead < maxBytes) {
-      bytesRead = istr.read(buf, 0, buf.length);
+      bytesRead = istr.read(buf, 0,
+          (int) Math.min(buf.length, maxBytes - totalBytesRead));
       if (bytesRead > 0) {
         totalBytesRead += bytesRead;
         out.write(buf, 0, bytesRead);
@@ -194,9 +293,8 @@ public class FileServingServlet extends HttpServlet {
     return totalBytesRead;
   }
 
-
-  private URL getResourceURLFromRequest(final HttpServletRequest req)
-      throws MalformedURLException {
+  private static String getResourcePathFromRequest(
+      final HttpServletRequest req) {
     String uri = req.getRequestURI();
     String contextPath = req.getContextPath();
     String resource = uri.substring(contextPath.length());
@@ -204,7 +302,7 @@ public class FileServingServlet extends HttpServlet {
       // make sure we don't serve things from the WEB-INF directory
       return null;
     }
-    return this.getServletContext().getResource(resource);
+    return resource;
   }
 
 }
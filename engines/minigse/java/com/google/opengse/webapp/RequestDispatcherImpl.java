@@ -14,8 +14,8 @@
 
 package com.google.opengse.webapp;
 
-import com.google.opengse.filters.RegularExpressionRequestHandler;
-import com.google.opengse.filters.RegularExpressionRequestHandlerDispatcher;
+import com.google.opengse.filters.ServletMappingRequestHandler;
+import com.google.opengse.filters.ServletMappingRequestHandlerDispatcher;
 import com.google.opengse.wrappers.ForwardRequestWrapper;
 import com.google.opengse.wrappers.ForwardResponseWrapper;
 import com.google.opengse.wrappers.IncludeRequestWrapper;
@@ -51,16 +51,16 @@ final class RequestDispatcherImpl implements RequestDispatcher {
       "error.dispatcher.forward";
 
   private String path;
-  private final RegularExpressionRequestHandlerDispatcher handlerDispatcher;
+  private final ServletMappingRequestHandlerDispatcher handlerDispatcher;
 
   private RequestDispatcherImpl(String path,
-      RegularExpressionRequestHandlerDispatcher handlerDispatcher) {
+      ServletMappingRequestHandlerDispatcher handlerDispatcher) {
     this.path = path;
     this.handlerDispatcher = handlerDispatcher;
   }
 
   static RequestDispatcher create(String path,
-      RegularExpressionRequestHandlerDispatcher handlerDispatcher) {
+      ServletMappingRequestHandlerDispatcher handlerDispatcher) {
     return new RequestDispatcherImpl(path, handlerDispatcher);
   }
 
@@ -82,7 +82,7 @@ final class RequestDispatcherImpl implements RequestDispatcher {
     }
     request = ForwardRequestWrapper.create(request, requestUri);
     response = ForwardResponseWrapper.create(response);
-    RegularExpressionRequestHandler handler;
+    ServletMappingRequestHandler handler;
     try {
       if (request.getAttribute(ERROR_DISPATCHER_FORWARD_ATTRIBUTE) != null) {
         handler = handlerDispatcher.getErrorHandler();
@@ -22,8 +22,8 @@ import com.google.opengse.configuration.WebAppFilterMapping;
 import com.google.opengse.configuration.WebAppInitParam;
 import com.google.opengse.configuration.WebAppServlet;
 import com.google.opengse.configuration.WebAppServletMapping;
-import com.google.opengse.filters.RegularExpressionRequestHandler;
-import com.google.opengse.filters.RegularExpressionRequestHandlerDispatcher;
+import com.google.opengse.filters.ServletMappingRequestHandler;
+import com.google.opengse.filters.ServletMappingRequestHandlerDispatcher;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -97,21 +97,21 @@ public final class ServletManager {
   }
 
   void combineFilterAndServletMappings(
-      RegularExpressionRequestHandlerDispatcher regexHandler)
+      ServletMappingRequestHandlerDispatcher mappingHandler)
       throws WebAppConfigurationException {
     createPlaceholderServletsIfNecessary();
     combineFilterAndServletMappings(
-        regexHandler.getRequestHandler(), uriPatternToRequestFilters);
+        mappingHandler.getRequestHandler(), uriPatternToRequestFilters);
     combineFilterAndServletMappings(
-        regexHandler.getForwardHandler(), uriPatternToForwardFilters);
+        mappingHandler.getForwardHandler(), uriPatternToForwardFilters);
     combineFilterAndServletMappings(
-        regexHandler.getIncludeHandler(), uriPatternToIncludeFilters);
+        mappingHandler.getIncludeHandler(), uriPatternToIncludeFilters);
     combineFilterAndServletMappings(
-        regexHandler.getErrorHandler(), uriPatternToErrorFilters);
+        mappingHandler.getErrorHandler(), uriPatternToErrorFilters);
   }
 
   void combineFilterAndServletMappings(
-      RegularExpressionRequestHandler regexHandler,
+      ServletMappingRequestHandler mappingHandler,
       Map<UriKey, List<FilterInfo>> uriPatternToFilters)
       throws WebAppConfigurationException {
     createPlaceholderServletsIfNecessary();
@@ -137,10 +137,9 @@ public final class ServletManager {
         }
 
         if (uriPattern.isGlobalPattern()) {
-          regexHandler.replaceDefaultHandler(handler);
+          mappingHandler.replaceDefaultHandler(handler);
         } else {
-          String regex = uriPattern.toRegex();
-          if (!regexHandler.setHandler(regex, handler)) {
+          if (!mappingHandler.setHandler(uriPattern.toString(), handler)) {
             // throw an exception if we are replacing a non-global pattern
             throw new WebAppConfigurationException(
                 "Pattern '" + uriPattern + "' already registered");
@@ -480,26 +479,6 @@ public final class ServletManager {
       return (key.equals("/*"));
     }
 
-    public String toRegex() {
-      if (isGlobalPattern()) {
-        return ".*";
-      }
-      StringBuilder sb = new StringBuilder();
-      for (char ch : key.toCharArray()) {
-        switch (ch) {
-          case '*':
-            sb.append(".*");
-            break;
-          case '.':
-            sb.append("\\.");
-            break;
-          default:
-            sb.append(ch);
-        }
-      }
-      return sb.toString();
-    }
-
     @Override
     public boolean equals(Object obj) {
       if (obj instanceof UriKey) {
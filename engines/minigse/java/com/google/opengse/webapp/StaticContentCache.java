@@ -0,0 +1,214 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.opengse.webapp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The files served by {@link FileServingServlet}, kept in memory. The
+ * cache holds up to {@code maxBytes} bytes in least-recently-used order.
+ * A file of up to {@code maxFileBytes} bytes is held whole; for a larger
+ * one only its metadata is kept and its content is read from disk.
+ * <p>
+ * An entry is checked against its file's length and modification time at
+ * most once every {@code checkInterval} milliseconds, so a hot file is
+ * served without touching the filesystem at all.
+ */
+final class StaticContentCache {
+
+  /**
+   * What an entry is charged on top of its content, so that a cache full
+   * of metadata-only entries is still bounded.
+   */
+  static final int ENTRY_OVERHEAD = 256;
+
+  /**
+   * A file and everything needed to serve it. Entries are immutable,
+   * apart from the time they were last checked.
+   */
+  static final class Entry {
+    final File file;
+    final String mimeType;
+    final long length;
+    final long lastModified;
+    /** a strong entity tag made from the length and modification time */
+    final String etag;
+    /** the content of the file, or null if it is too big to hold */
+    final byte[] content;
+    volatile long checkedAt;
+
+    Entry(File file, String mimeType, long length, long lastModified,
+          byte[] content, long now) {
+      this.file = file;
+      this.mimeType = mimeType;
+      this.length = length;
+      this.lastModified = lastModified;
+      this.etag = "\"" + Long.toHexString(length) + "-"
+          + Long.toHexString(lastModified) + "\"";
+      this.content = content;
+      this.checkedAt = now;
+    }
+
+    int getCost() {
+      return ENTRY_OVERHEAD + ((content == null) ? 0 : content.length);
+    }
+  }
+
+  private final long maxBytes;
+  private final int maxFileBytes;
+  private final long checkInterval;
+  // guarded by this
+  private final LinkedHashMap<String, Entry> entries;
+  private long bytes;
+  private long hits;
+  private long misses;
+
+  /**
+   * @param maxBytes the most bytes the cache may hold
+   * @param maxFileBytes the size of the biggest file to hold in memory
+   * @param checkInterval how many milliseconds an entry is trusted before
+   *        its file is looked at again
+   */
+  StaticContentCache(long maxBytes, int maxFileBytes, long checkInterval) {
+    this.maxBytes = maxBytes;
+    this.maxFileBytes = maxFileBytes;
+    this.checkInterval = checkInterval;
+    entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+  }
+
+  /**
+   * Returns the entry for {@code path}, or null if there is none or its
+   * file has changed since it was read.
+   */
+  Entry get(String path) {
+    Entry entry;
+    synchronized (this) {
+      entry = entries.get(path);
+      if (entry == null) {
+        ++misses;
+        return null;
+      }
+      ++hits;
+    }
+    long now = System.currentTimeMillis();
+    if (now - entry.checkedAt >= checkInterval) {
+      File file = entry.file;
+      if (file.lastModified() != entry.lastModified
+          || file.length() != entry.length || !file.isFile()) {
+        remove(path, entry);
+        return null;
+      }
+      entry.checkedAt = now;
+    }
+    return entry;
+  }
+
+  /**
+   * Reads {@code file} and caches it as the entry for {@code path}.
+   *
+   * @return the new entry
+   * @throws IOException if the file cannot be read
+   */
+  Entry load(String path, File file, String mimeType) throws IOException {
+    long now = System.currentTimeMillis();
+    long lastModified = file.lastModified();
+    long length = file.length();
+    byte[] content = null;
+    if (length <= maxFileBytes) {
+      content = readFully(file, (int) length);
+      length = content.length;
+    }
+    Entry entry = new Entry(file, mimeType, length, lastModified, content, now);
+    put(path, entry);
+    return entry;
+  }
+
+  private synchronized void put(String path, Entry entry) {
+    Entry old = entries.put(path, entry);
+    if (old != null) {
+      bytes -= old.getCost();
+    }
+    bytes += entry.getCost();
+    Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+    while (bytes > maxBytes && it.hasNext()) {
+      bytes -= it.next().getValue().getCost();
+      it.remove();
+    }
+  }
+
+  /**
+   * Drops a stale entry, and counts the lookup that found it as a miss.
+   */
+  private synchronized void remove(String path, Entry entry) {
+    --hits;
+    ++misses;
+    // another thread may already have replaced it
+    if (entries.get(path) == entry) {
+      entries.remove(path);
+      bytes -= entry.getCost();
+    }
+  }
+
+  /**
+   * Reads up to {@code length} bytes of {@code file}. If the file changes
+   * while we read it, its new modification time makes the entry stale.
+   */
+  private static byte[] readFully(File file, int length) throws IOException {
+    InputStream in = new FileInputStream(file);
+    try {
+      byte[] buf = new byte[length];
+      int n = 0;
+      int count;
+      while (n < buf.length && (count = in.read(buf, n, buf.length - n)) > 0) {
+        n += count;
+      }
+      if (n == buf.length) {
+        return buf;
+      }
+      byte[] exact = new byte[n];
+      System.arraycopy(buf, 0, exact, 0, n);
+      return exact;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Returns the number of bytes held, counting {@link #ENTRY_OVERHEAD} for
+   * each entry.
+   */
+  synchronized long getBytes() {
+    return bytes;
+  }
+
+  synchronized int size() {
+    return entries.size();
+  }
+
+  synchronized long getHits() {
+    return hits;
+  }
+
+  synchronized long getMisses() {
+    return misses;
+  }
+}
@@ -14,8 +14,12 @@
 
 package com.google.opengse.webapp;
 
+import com.google.opengse.DispatchView;
+import com.google.opengse.HttpServletRequestAdapter;
+import com.google.opengse.HttpServletResponseAdapter;
 import com.google.opengse.configuration.WebAppConfigurationException;
 import com.google.opengse.util.PropertiesUtil;
+import com.google.opengse.httputil.HeaderBlock;
 import com.google.opengse.session.SessionCache;
 import com.google.opengse.session.SessionCacheFactory;
 import com.google.opengse.session.HttpSessions;
@@ -57,6 +61,11 @@ final class WebAppCollectionImpl implements WebAppCollection {
   private static final String CONTEXTKEY_SESSIONCACHE
       = SessionCache.class.getName();
   private final boolean sessionsEnabled;
+  private static final String POWERED_BY_HEADER = "X-Powered-By";
+  private static final String POWERED_BY = "Servlet/2.5 (OpenGSE/0.9)";
+  // the headers every response gets, encoded once
+  private static final HeaderBlock STATIC_HEADERS =
+      new HeaderBlock(POWERED_BY_HEADER, POWERED_BY);
 
   private WebAppCollectionImpl(Properties props)
       throws IOException, WebAppConfigurationException {
@@ -247,9 +256,12 @@ final class WebAppCollectionImpl implements WebAppCollection {
    */
   public void doFilter(ServletRequest req,
       ServletResponse response) throws IOException, ServletException {
-    if (response instanceof HttpServletResponse) {
+    if (response instanceof HttpServletResponseAdapter) {
+      ((HttpServletResponseAdapter) response).setStaticHeaders(
+          STATIC_HEADERS);
+    } else if (response instanceof HttpServletResponse) {
       HttpServletResponse hsr = (HttpServletResponse) response;
-      hsr.setHeader("X-Powered-By", "Servlet/2.5 (OpenGSE/0.9)");
+      hsr.setHeader(POWERED_BY_HEADER, POWERED_BY);
     }
     HttpServletRequest request = (HttpServletRequest) req;
     String requestURI = request.getRequestURI();
@@ -276,11 +288,73 @@ final class WebAppCollectionImpl implements WebAppCollection {
       request = new SessionHandlingRequestWrapper2(
           request, getHttpSessions(), response);
     }
-    request = new WebAppRequestWrapper(request, webapp);
-    response = new WebAppResponseWrapper(
-        (HttpServletResponse) response, webapp, request);
-    webapp.doFilter(request, response);
+    WebAppView view = getWebAppView(req, response);
+    if (view == null) {
+      request = new WebAppRequestWrapper(request, webapp);
+      response = new WebAppResponseWrapper(
+          (HttpServletResponse) response, webapp, request);
+    } else {
+      view.wrap(request, (HttpServletResponse) response, webapp);
+      request = view.request;
+      response = view.response;
+    }
+    try {
+      webapp.doFilter(request, response);
+    } finally {
+      if (view != null) {
+        view.inUse = false;
+      }
+    }
+  }
+
+  /**
+   * Returns the wrappers kept with the view a request and response were
+   * dispatched with, or null if they weren't dispatched with a view.
+   */
+  private static WebAppView getWebAppView(ServletRequest req,
+      ServletResponse response) {
+    if (!(req instanceof HttpServletRequestAdapter)) {
+      return null;
+    }
+    DispatchView dispatchView
+        = ((HttpServletRequestAdapter) req).getDispatchView();
+    if (dispatchView == null || dispatchView.getResponse() != response) {
+      return null;
+    }
+    Object attachment = dispatchView.getAttachment();
+    WebAppView view;
+    if (attachment instanceof WebAppView) {
+      view = (WebAppView) attachment;
+      if (view.inUse) {
+        // the request came back in from a filter or forward
+        return null;
+      }
+    } else {
+      view = new WebAppView();
+      dispatchView.setAttachment(view);
+    }
+    view.inUse = true;
+    return view;
   }
 
+  /**
+   * The webapp wrappers of a {@link DispatchView}, which are reset for
+   * each request rather than allocated again.
+   */
+  private static final class WebAppView {
+    WebAppRequestWrapper request;
+    WebAppResponseWrapper response;
+    boolean inUse;
 
+    void wrap(HttpServletRequest req, HttpServletResponse resp,
+        WebApp webapp) {
+      if (request == null) {
+        request = new WebAppRequestWrapper(req, webapp);
+        response = new WebAppResponseWrapper(resp, webapp, request);
+      } else {
+        request.reset(req, webapp);
+        response.reset(resp, webapp, request);
+      }
+    }
+  }
 }
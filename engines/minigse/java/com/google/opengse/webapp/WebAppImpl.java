@@ -25,8 +25,8 @@ import com.google.opengse.configuration.WebAppListener;
 import com.google.opengse.configuration.WebAppServlet;
 import com.google.opengse.configuration.WebAppServletMapping;
 import com.google.opengse.configuration.webxml.WebAppConfigurationCombiner;
-import com.google.opengse.filters.RegularExpressionRequestHandler;
-import com.google.opengse.filters.RegularExpressionRequestHandlerDispatcher;
+import com.google.opengse.filters.ServletMappingRequestHandler;
+import com.google.opengse.filters.ServletMappingRequestHandlerDispatcher;
 import com.google.opengse.handlers.NotFoundHandler;
 import com.google.opengse.webapp.listeners.HttpSessionAttributeListenerList;
 import com.google.opengse.webapp.listeners.HttpSessionListenerList;
@@ -77,7 +77,7 @@ final class WebAppImpl implements WebApp {
   private final ClassLoader classLoader;
   private final WebAppConfiguration config;
   private final ServletContext context;
-  private final RegularExpressionRequestHandlerDispatcher regexHandler;
+  private final ServletMappingRequestHandlerDispatcher mappingHandler;
   private final ServletManager manager;
   private LoggerFactory loggerFactory;
   private final Hashtable<String, String> contextParams;
@@ -89,6 +89,8 @@ final class WebAppImpl implements WebApp {
   private final HttpSessionListenerList sessionListeners;
   private static final String JASPER_CLASSPATH_ATTRIBUTE =
       "org.apache.catalina.jsp_classpath";
+  static final String CONFIGURATION_ATTRIBUTE =
+      "com.google.opengse.webapp.configuration";
 
   private WebAppImpl(String uriPrefix, File contextbase,
                      ClassLoader classLoader, WebAppConfiguration wac,
@@ -101,8 +103,8 @@ final class WebAppImpl implements WebApp {
         makeTheClassLoaderThatJasperExpects(classLoader);
     this.classLoader = jasperFriendlyClassLoader;
     this.config = wac;
-    regexHandler =
-        RegularExpressionRequestHandlerDispatcher.create(new NotFoundHandler());
+    mappingHandler =
+        ServletMappingRequestHandlerDispatcher.create(new NotFoundHandler());
 
     context =
         ServletContextImpl
@@ -276,7 +278,7 @@ final class WebAppImpl implements WebApp {
       // process the servlet and filter mappings
       processServletAndFilterMappings();
       // combine the servlet and filter mappings
-      manager.combineFilterAndServletMappings(regexHandler);
+      manager.combineFilterAndServletMappings(mappingHandler);
     } catch (WebAppConfigurationException e) {
       throw new ServletException(e);
     }
@@ -476,8 +478,13 @@ final class WebAppImpl implements WebApp {
     return context;
   }
 
+  /**
+   * Returns the webapp's {@link WebAppConfiguration} for
+   * {@link #CONFIGURATION_ATTRIBUTE}, so that container servlets such as
+   * {@link FileServingServlet} need not parse web.xml again.
+   */
   public Object getAttribute(String name) {
-    return null;
+    return CONFIGURATION_ATTRIBUTE.equals(name) ? config : null;
   }
 
   public File getContextBase() {
@@ -518,7 +525,7 @@ final class WebAppImpl implements WebApp {
     if (path == null) {
       throw new NullPointerException("null path");
     }
-    return RequestDispatcherImpl.create(path, regexHandler);
+    return RequestDispatcherImpl.create(path, mappingHandler);
   }
 
   RequestDispatcher getNamedDispatcher(String name) throws URISyntaxException {
@@ -555,14 +562,16 @@ final class WebAppImpl implements WebApp {
     // set our context classloader
     Thread.currentThread().setContextClassLoader(classLoader);
     // send a requestInititalized event
-    ServletRequestEvent sre = new ServletRequestEvent(context, request);
-    srListeners.requestInitialized(sre);
-    // if (!sraListeners.isEmpty()) {
-    // if we have at least one request attribute listener, wrap the
-    // request so we can intercept calls to setAttribute/removeAttribute
-    request = wrapRequestForServletRequestAttributeListeners(request);
-    // }
-    RegularExpressionRequestHandler handler = regexHandler.getRequestHandler();
+    if (!srListeners.isEmpty()) {
+      ServletRequestEvent sre = new ServletRequestEvent(context, request);
+      srListeners.requestInitialized(sre);
+    }
+    if (!sraListeners.isEmpty()) {
+      // if we have at least one request attribute listener, wrap the
+      // request so we can intercept calls to setAttribute/removeAttribute
+      request = wrapRequestForServletRequestAttributeListeners(request);
+    }
+    ServletMappingRequestHandler handler = mappingHandler.getRequestHandler();
     handler.doFilter(request, response);
   }
 
@@ -42,13 +42,13 @@ final class WebAppRequestWrapper extends HttpServletRequestWrapper {
   private static final String SERVLET_CONTEXT_ATTRIBUTE
       = ServletContext.class.getName();
 
-  private final String uriPrefix;
-  private final int uriPrefixLength;
-  private final WebApp webapp;
+  private String uriPrefix;
+  private int uriPrefixLength;
+  private WebApp webapp;
   private HttpSession session;
   private WebAppSessionWrapper wrappedSession;
-  private final String requestURI;
-  private final String servletPath;
+  private String requestURI;
+  private String servletPath;
   private ContentType ctype_;
   private String content_type_;
   private String char_encoding_;
@@ -56,12 +56,26 @@ final class WebAppRequestWrapper extends HttpServletRequestWrapper {
 
   WebAppRequestWrapper(HttpServletRequest request, WebApp webapp) {
     super(request);
+    reset(request, webapp);
+  }
+
+  /**
+   * Wraps another request, forgetting everything about the last one.
+   */
+  void reset(HttpServletRequest request, WebApp webapp) {
+    setRequest(request);
     this.webapp = webapp;
     uriPrefix = webapp.getUriPrefix();
     uriPrefixLength = uriPrefix.length();
     requestURI = request.getRequestURI();
     // compute the servlet path from the request URI
     servletPath = requestURI.substring(uriPrefixLength);
+    session = null;
+    wrappedSession = null;
+    ctype_ = null;
+    content_type_ = null;
+    char_encoding_ = null;
+    cookies_ = null;
   }
 
   @Override
@@ -30,8 +30,8 @@ import java.net.URI;
  *         Date: Jun 10, 2008
  */
 public class WebAppResponseWrapper extends HttpServletResponseWrapper {
-  private final WebApp webapp;
-  private final HttpServletRequest request;
+  private WebApp webapp;
+  private HttpServletRequest request;
   private boolean errorSent;
   private boolean redirectSent;
   private WebAppServletOutputStreamWrapper outputStream;
@@ -45,6 +45,15 @@ public class WebAppResponseWrapper extends HttpServletResponseWrapper {
   public WebAppResponseWrapper(
       HttpServletResponse response, WebApp webapp, HttpServletRequest request) {
     super(response);
+    reset(response, webapp, request);
+  }
+
+  /**
+   * Wraps the response to another request.
+   */
+  void reset(
+      HttpServletResponse response, WebApp webapp, HttpServletRequest request) {
+    setResponse(response);
     this.webapp = webapp;
     this.request = request;
     errorSent = false;
@@ -37,6 +37,10 @@ public class ServletRequestListenerList implements ServletRequestListener {
     listeners.add(listener);
   }
 
+  public boolean isEmpty() {
+    return listeners.isEmpty();
+  }
+
   public void requestDestroyed(ServletRequestEvent sre) {
     for (ServletRequestListener listener : listeners) {
       listener.requestDestroyed(sre);
@@ -0,0 +1,55 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.opengse;
+
+import junit.framework.TestCase;
+import org.easymock.classextension.EasyMock;
+
+/**
+ * Unit test for {@link DispatchView}.
+ */
+public class DispatchViewTest extends TestCase {
+
+  public void testReset() {
+    HttpRequest first = EasyMock.createNiceMock(HttpRequest.class);
+    HttpRequest second = EasyMock.createNiceMock(HttpRequest.class);
+    HttpResponse response = EasyMock.createNiceMock(HttpResponse.class);
+    EasyMock.expect(first.getMethod()).andReturn("GET");
+    EasyMock.expect(second.getMethod()).andReturn("POST");
+    EasyMock.replay(first, second, response);
+    DispatchView view = new DispatchView(first, response);
+    assertSame(view, view.getRequest().getDispatchView());
+    assertEquals("GET", view.getRequest().getMethod());
+    view.getRequest().setAttribute("name", "value");
+    view.setAttachment("attachment");
+
+    HttpServletRequestAdapter request = view.getRequest();
+    HttpServletResponseAdapter servletResponse = view.getResponse();
+    view.reset(second, response);
+    assertSame(request, view.getRequest());
+    assertSame(servletResponse, view.getResponse());
+    assertEquals("POST", view.getRequest().getMethod());
+    assertNull(view.getRequest().getAttribute("name"));
+    assertFalse(view.getRequest().getAttributeNames().hasMoreElements());
+    // the attachment belongs to the layer above, which resets it itself
+    assertEquals("attachment", view.getAttachment());
+  }
+
+  public void testStandaloneAdapterHasNoView() {
+    HttpRequest request = EasyMock.createNiceMock(HttpRequest.class);
+    EasyMock.replay(request);
+    assertNull(new HttpServletRequestAdapter(request).getDispatchView());
+  }
+}
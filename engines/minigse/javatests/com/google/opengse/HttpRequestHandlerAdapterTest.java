@@ -20,6 +20,8 @@ import org.junit.Test;
 
 import javax.servlet.FilterChain;
 
+import java.io.IOException;
+
 /**
  * @author jennings
  *         Date: Jul 13, 2008
@@ -35,8 +37,52 @@ public class HttpRequestHandlerAdapterTest extends TestCase {
         EasyMock.isA(HttpServletResponseAdapter.class));
     EasyMock.expectLastCall();
     EasyMock.expect(request.getConnectionInformation()).andReturn(null);
+    EasyMock.expect(request.getConnectionAttachment()).andReturn(null);
+    request.setConnectionAttachment(EasyMock.isA(DispatchView.class));
+    EasyMock.replay(chain, request, response);
+    adapter.handleRequest(request, response);
+    EasyMock.verify(chain, request, response);
+  }
+
+  @Test
+  public void testViewIsRecycled() throws Exception {
+    FilterChain chain = EasyMock.createMock(FilterChain.class);
+    HttpRequest request = EasyMock.createMock(HttpRequest.class);
+    HttpResponse response = EasyMock.createMock(HttpResponse.class);
+    HttpRequestHandlerAdapter adapter = new HttpRequestHandlerAdapter(chain);
+    HttpRequest lastRequest = EasyMock.createNiceMock(HttpRequest.class);
+    EasyMock.replay(lastRequest);
+    DispatchView view = new DispatchView(lastRequest, response);
+    view.getRequest().setAttribute("stale", "value");
+    chain.doFilter(view.getRequest(), view.getResponse());
+    EasyMock.expectLastCall();
+    EasyMock.expect(request.getConnectionInformation()).andReturn(null);
+    EasyMock.expect(request.getConnectionAttachment()).andReturn(view);
+    request.setConnectionAttachment(null);
+    request.setConnectionAttachment(view);
     EasyMock.replay(chain, request, response);
     adapter.handleRequest(request, response);
     EasyMock.verify(chain, request, response);
+    assertNull(view.getRequest().getAttribute("stale"));
+  }
+
+  @Test
+  public void testViewIsDroppedOnFailure() throws Exception {
+    FilterChain chain = EasyMock.createMock(FilterChain.class);
+    HttpRequest request = EasyMock.createMock(HttpRequest.class);
+    HttpResponse response = EasyMock.createMock(HttpResponse.class);
+    HttpRequestHandlerAdapter adapter = new HttpRequestHandlerAdapter(chain);
+    chain.doFilter(EasyMock.isA(HttpServletRequestAdapter.class),
+        EasyMock.isA(HttpServletResponseAdapter.class));
+    EasyMock.expectLastCall().andThrow(new IOException("failed"));
+    EasyMock.expect(request.getConnectionInformation()).andReturn(null);
+    EasyMock.expect(request.getConnectionAttachment()).andReturn(null);
+    EasyMock.replay(chain, request, response);
+    try {
+      adapter.handleRequest(request, response);
+      fail("exception swallowed");
+    } catch (RuntimeException expected) {
+    }
+    EasyMock.verify(chain, request, response);
   }
 }
@@ -0,0 +1,151 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.opengse;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit test for {@link SegmentedCache}.
+ */
+public class SegmentedCacheTest extends TestCase {
+
+  /**
+   * Records the keys passed to it.
+   */
+  private static class RecordingListener
+      implements CacheListener<Integer, String> {
+    final List<Integer> invalidated = new ArrayList<Integer>();
+    final List<Integer> evicted = new ArrayList<Integer>();
+    SegmentedCache<Integer, String> cache;
+    String valueSeenOnInvalidate;
+
+    public synchronized void entryInvalidated(Integer key) {
+      invalidated.add(key);
+      valueSeenOnInvalidate = cache.get(key);
+    }
+
+    public synchronized void entryEvicted(Integer key, String data) {
+      evicted.add(key);
+      assertEquals("v" + key, data);
+    }
+  }
+
+  public void testPutGetInvalidate() {
+    SegmentedCache<Integer, String> cache =
+        new SegmentedCache<Integer, String>();
+    RecordingListener listener = new RecordingListener();
+    listener.cache = cache;
+    cache.registerListener(listener);
+
+    cache.put(1, "v1");
+    cache.put(2, "v2");
+    assertEquals("v1", cache.get(1));
+    assertEquals(2, cache.size());
+
+    cache.invalidate(1);
+    assertNull(cache.get(1));
+    assertEquals(1, cache.size());
+    // the value is still there while listeners are told
+    assertEquals("v1", listener.valueSeenOnInvalidate);
+
+    // invalidating a missing key signals nothing
+    cache.invalidate(1);
+    assertEquals(1, listener.invalidated.size());
+
+    cache.clear();
+    assertEquals(0, cache.size());
+    assertNull(cache.get(2));
+    assertTrue(listener.evicted.isEmpty());
+  }
+
+  public void testSegmentsDoNotExceedMaxSize() {
+    assertEquals(16, new SegmentedCache<Integer, String>(100).getSegmentCount());
+    assertEquals(2, new SegmentedCache<Integer, String>(3).getSegmentCount());
+    assertEquals(1, new SegmentedCache<Integer, String>(1).getSegmentCount());
+
+    SegmentedCache<Integer, String> cache =
+        new SegmentedCache<Integer, String>(100);
+    RecordingListener listener = new RecordingListener();
+    cache.registerListener(listener);
+    for (int i = 0; i < 1000; ++i) {
+      cache.put(i, "v" + i);
+      assertTrue(cache.size() <= 100);
+    }
+    assertEquals(1000 - cache.size(), listener.evicted.size());
+  }
+
+  public void testRecentlyUsedEntriesAreSpared() {
+    SegmentedCache<Integer, String> cache =
+        new SegmentedCache<Integer, String>(4, 1);
+    RecordingListener listener = new RecordingListener();
+    cache.registerListener(listener);
+    for (int i = 0; i < 4; ++i) {
+      cache.put(i, "v" + i);
+    }
+    // the first eviction passes over every entry, all new
+    cache.put(4, "v4");
+    assertEquals(1, listener.evicted.size());
+    int first = listener.evicted.get(0);
+
+    // keep using the oldest survivor; it outlives the others
+    int kept = (first == 1) ? 2 : 1;
+    for (int i = 5; i < 12; ++i) {
+      assertEquals("v" + kept, cache.get(kept));
+      cache.put(i, "v" + i);
+    }
+    assertEquals("v" + kept, cache.get(kept));
+    assertFalse(listener.evicted.contains(kept));
+    assertEquals(4, cache.size());
+  }
+
+  public void testConcurrentAccess() throws Exception {
+    final SegmentedCache<Integer, String> cache =
+        new SegmentedCache<Integer, String>(64);
+    final AtomicInteger failures = new AtomicInteger();
+    final CountDownLatch done = new CountDownLatch(4);
+    for (int t = 0; t < 4; ++t) {
+      final int base = t * 10000;
+      new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < 10000; ++i) {
+              cache.put(base + i, "v" + (base + i));
+              String v = cache.get(base + i - 1);
+              if (v != null && !v.equals("v" + (base + i - 1))) {
+                failures.incrementAndGet();
+              }
+              if (i % 7 == 0) {
+                cache.invalidate(base + i);
+              }
+            }
+          } catch (RuntimeException e) {
+            failures.incrementAndGet();
+          } finally {
+            done.countDown();
+          }
+        }
+      }.start();
+    }
+    done.await();
+    assertEquals(0, failures.get());
+    assertTrue(cache.size() <= 64);
+  }
+}
@@ -0,0 +1,160 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.opengse.filters;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+
+import java.net.URI;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Unit test for {@link ServletMappingRequestHandler}.
+ */
+public class ServletMappingRequestHandlerTest extends TestCase {
+
+  /**
+   * Remembers the last request it handled.
+   */
+  private static class RecordingHandler implements FilterChain {
+    private final String name;
+    HttpServletRequest request;
+
+    RecordingHandler(String name) {
+      this.name = name;
+    }
+
+    public void doFilter(ServletRequest req, ServletResponse response) {
+      request = (HttpServletRequest) req;
+    }
+
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
+
+  private RecordingHandler defaultHandler;
+  private ServletMappingRequestHandler handler;
+  private HttpServletResponse response;
+
+  @Override
+  protected void setUp() throws Exception {
+    defaultHandler = new RecordingHandler("default");
+    handler = ServletMappingRequestHandler.create(defaultHandler);
+    response = EasyMock.createMock(HttpServletResponse.class);
+  }
+
+  private RecordingHandler map(String urlPattern) {
+    RecordingHandler h = new RecordingHandler(urlPattern);
+    assertTrue(handler.setHandler(urlPattern, h));
+    return h;
+  }
+
+  /**
+   * Dispatches a request for <code>path</code> and checks that it reached
+   * <code>expected</code> with the given servlet path and path info.
+   */
+  private void assertDispatch(RecordingHandler expected, String path,
+      String servletPath, String pathInfo) throws Exception {
+    HttpServletRequest request
+        = EasyMock.createNiceMock(HttpServletRequest.class);
+    EasyMock.expect(request.getServletPath()).andReturn(path).anyTimes();
+    EasyMock.replay(request);
+    expected.request = null;
+    handler.doFilter(request, response);
+    assertNotNull("not dispatched to " + expected, expected.request);
+    assertEquals(servletPath, expected.request.getServletPath());
+    assertEquals(pathInfo, expected.request.getPathInfo());
+    assertSame(expected, handler.getHandler(new URI(path)));
+  }
+
+  public void testExactMatch() throws Exception {
+    RecordingHandler exact = map("/catalog");
+    map("/catalog/*");
+    assertDispatch(exact, "/catalog", "/catalog", null);
+  }
+
+  public void testExactMatchWithTrailingSlash() throws Exception {
+    RecordingHandler exact = map("/catalog/");
+    assertDispatch(exact, "/catalog/", "/catalog/", null);
+    assertDispatch(exact, "/catalog", "/catalog", null);
+  }
+
+  public void testLongestPrefixWins() throws Exception {
+    RecordingHandler foo = map("/foo/*");
+    RecordingHandler foobar = map("/foo/bar/*");
+    assertDispatch(foobar, "/foo/bar/baz", "/foo/bar", "/baz");
+    assertDispatch(foobar, "/foo/bar", "/foo/bar", null);
+    assertDispatch(foo, "/foo/barn", "/foo", "/barn");
+    assertDispatch(foo, "/foo/", "/foo", "/");
+    assertDispatch(foo, "/foo", "/foo", null);
+  }
+
+  public void testPrefixOnlyMatchesWholeSegments() throws Exception {
+    map("/foo/*");
+    assertDispatch(defaultHandler, "/foobar", "", "/foobar");
+  }
+
+  public void testPrefixBeatsExtension() throws Exception {
+    RecordingHandler prefix = map("/pages/*");
+    RecordingHandler jsp = map("*.jsp");
+    assertDispatch(prefix, "/pages/index.jsp", "/pages", "/index.jsp");
+    assertDispatch(jsp, "/other/index.jsp", "/other/index.jsp", null);
+  }
+
+  public void testExtensionOfLastSegmentOnly() throws Exception {
+    map("*.jsp");
+    assertDispatch(defaultHandler, "/a.jsp/b", "", "/a.jsp/b");
+  }
+
+  public void testCompoundExtension() throws Exception {
+    RecordingHandler targz = map("*.tar.gz");
+    RecordingHandler gz = map("*.gz");
+    assertDispatch(targz, "/dist/x.tar.gz", "/dist/x.tar.gz", null);
+    assertDispatch(gz, "/dist/x.gz", "/dist/x.gz", null);
+  }
+
+  public void testGlobalPatternReplacesDefault() throws Exception {
+    RecordingHandler global = map("/*");
+    RecordingHandler jsp = map("*.jsp");
+    assertDispatch(global, "/index.html", "", "/index.html");
+    assertDispatch(jsp, "/index.jsp", "/index.jsp", null);
+  }
+
+  public void testNonStandardPattern() throws Exception {
+    RecordingHandler other = map("/a/*/b");
+    assertDispatch(other, "/a/x/b", "/a/x/b", null);
+    assertDispatch(defaultHandler, "/a/x/c", "", "/a/x/c");
+  }
+
+  public void testDuplicatePatternsAreRejected() {
+    map("/catalog");
+    map("/catalog/*");
+    map("*.jsp");
+    map("/a/*/b");
+    FilterChain h = new RecordingHandler("duplicate");
+    assertFalse(handler.setHandler("/catalog", h));
+    assertFalse(handler.setHandler("/catalog/*", h));
+    assertFalse(handler.setHandler("*.jsp", h));
+    assertFalse(handler.setHandler("/a/*/b", h));
+  }
+}
@@ -0,0 +1,51 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.opengse.httputil;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import com.google.opengse.HeaderUtil;
+import com.google.opengse.UtilityClassTestCase;
+
+/**
+ * Unit test for {@link CachedDateHeader}.
+ */
+public class CachedDateHeaderTest extends UtilityClassTestCase {
+
+  @Override protected Class<?> getClassUnderTest() {
+    return CachedDateHeader.class;
+  }
+
+  @Test
+  public void testValue() {
+    long now = 1224000000000L;
+    assertEquals(HeaderUtil.toDateHeader(now),
+        CachedDateHeader.getValue(now + 999));
+    assertEquals(HeaderUtil.toDateHeader(now + 1000),
+        CachedDateHeader.getValue(now + 1000));
+  }
+
+  @Test
+  public void testLineIsSharedWithinASecond() throws Exception {
+    long now = 1224000000000L;
+    byte[] line = CachedDateHeader.getLine(now);
+    assertEquals("Date: " + HeaderUtil.toDateHeader(now) + "\r\n",
+        new String(line, "ISO-8859-1"));
+    assertSame(line, CachedDateHeader.getLine(now + 500));
+  }
+}
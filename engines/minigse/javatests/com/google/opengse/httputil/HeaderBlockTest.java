@@ -0,0 +1,60 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.opengse.httputil;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for {@link HeaderBlock}.
+ */
+public class HeaderBlockTest extends TestCase {
+
+  public void testBlock() throws Exception {
+    HeaderBlock block = new HeaderBlock("X-Powered-By", "Servlet/2.5",
+        "X-Custom", "a value");
+    assertEquals(2, block.size());
+    assertEquals("X-Powered-By", block.getName(0));
+    assertEquals("Servlet/2.5", block.getValue(0));
+    assertSame(HeaderName.X_POWERED_BY, block.getId(0));
+    assertNull(block.getId(1));
+    assertEquals(1, block.indexOf("x-custom"));
+    assertEquals(-1, block.indexOf("X-Other"));
+    assertEquals("X-Powered-By: Servlet/2.5\r\nX-Custom: a value\r\n",
+        new String(block.getBytes(), "ISO-8859-1"));
+  }
+
+  public void testEmptyBlock() {
+    HeaderBlock block = new HeaderBlock();
+    assertEquals(0, block.size());
+    assertEquals(0, block.getBytes().length);
+  }
+
+  public void testBadHeaders() {
+    assertBad("X-Name");
+    assertBad("X-Name", null);
+    assertBad("", "value");
+    assertBad("X:Name", "value");
+    assertBad("X-Name", "value\r\nX-Injected: value");
+    assertBad("X-Name\n", "value");
+  }
+
+  private static void assertBad(String... namesAndValues) {
+    try {
+      new HeaderBlock(namesAndValues);
+      fail("accepted a bad header");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+}
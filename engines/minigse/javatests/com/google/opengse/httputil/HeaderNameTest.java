@@ -0,0 +1,70 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.opengse.httputil;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for {@link HeaderName}.
+ */
+public class HeaderNameTest extends TestCase {
+
+  public void testLookupIgnoresCase() {
+    for (HeaderName name : HeaderName.values()) {
+      assertSame(name, HeaderName.lookup(name.getName()));
+      assertSame(name, HeaderName.lookup(name.getName().toUpperCase()));
+      assertSame(name, HeaderName.lookup(name.getLowerCaseName()));
+    }
+    assertNull(HeaderName.lookup("X-Custom"));
+    assertNull(HeaderName.lookup(""));
+    // '-' is not a letter and must not match '\r', which folds onto it
+    assertNull(HeaderName.lookup("Content\rType"));
+  }
+
+  public void testLookupBytes() throws Exception {
+    byte[] bytes = "xxcontent-LENGTHxx".getBytes("ISO-8859-1");
+    assertSame(HeaderName.CONTENT_LENGTH, HeaderName.lookup(bytes, 2, 14));
+    assertNull(HeaderName.lookup(bytes, 2, 13));
+    assertNull(HeaderName.lookup(bytes, 0, 16));
+  }
+
+  public void testLowerCaseNameIsInterned() {
+    assertSame("user-agent", HeaderName.USER_AGENT.getLowerCaseName());
+  }
+
+  public void testPrefix() throws Exception {
+    assertEquals("Content-Type: ",
+        new String(HeaderName.CONTENT_TYPE.getPrefix(), "ISO-8859-1"));
+  }
+
+  public void testLineIsCached() throws Exception {
+    byte[] line = HeaderName.CONNECTION.getLine("keep-alive");
+    assertEquals("Connection: keep-alive\r\n",
+        new String(line, "ISO-8859-1"));
+    assertSame(line, HeaderName.CONNECTION.getLine(new String("keep-alive")));
+    assertEquals("Connection: close\r\n",
+        new String(HeaderName.CONNECTION.getLine("close"), "ISO-8859-1"));
+  }
+
+  public void testLineOfUncachedHeader() {
+    assertNull(HeaderName.CONTENT_LENGTH.getLine("42"));
+  }
+
+  public void testEncode() throws Exception {
+    byte[] bytes = new byte[6];
+    assertEquals(5, HeaderName.encode("a\u00e9\u20acb", bytes, 1));
+    assertEquals("a\u00e9?b", new String(bytes, 1, 4, "ISO-8859-1"));
+  }
+}
@@ -0,0 +1,102 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.opengse.httputil;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Measures the raw throughput of {@link HttpRequestParser}, without the
+ * header containers of either transport: the request head is parsed, the
+ * method and target are asked for and each header value is made into a
+ * string. Each request is fed in pieces of <code>chunk</code> bytes, so
+ * a small chunk shows the cost of resuming across partial reads.
+ *
+ * <p>Run with
+ * <code>java com.google.opengse.httputil.HttpRequestParserBenchmark
+ * [requests] [chunk]</code>.
+ */
+public final class HttpRequestParserBenchmark {
+
+  private HttpRequestParserBenchmark() {
+    /* Launcher class: do not instantiate. */
+  }
+
+  private static final String REQUEST =
+      "GET /search?q=opengse&hl=en&start=10 HTTP/1.1\r\n"
+      + "Host: www.example.com\r\n"
+      + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:100.0) "
+      + "Gecko/20100101 Firefox/100.0\r\n"
+      + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,"
+      + "*/*;q=0.8\r\n"
+      + "Accept-Language: en-US,en;q=0.5\r\n"
+      + "Accept-Encoding: gzip, deflate\r\n"
+      + "Referer: http://www.example.com/\r\n"
+      + "Cookie: PREF=ID=1234567890abcdef:TM=1200000000:LM=1200000000; "
+      + "SID=DQAAAHAAAABbc2Rm\r\n"
+      + "Connection: keep-alive\r\n"
+      + "Cache-Control: max-age=0\r\n"
+      + "\r\n";
+
+  public static void main(String[] args) throws Exception {
+    int requests = (args.length > 0) ? Integer.parseInt(args[0]) : 2000000;
+    int chunk = (args.length > 1) ? Integer.parseInt(args[1]) : 0;
+    byte[] bytes = REQUEST.getBytes("ISO-8859-1");
+    if (chunk <= 0) {
+      chunk = bytes.length;
+    }
+
+    // Run each one twice so the second figures are from a warm JIT.
+    for (int round = 0; round < 2; ++round) {
+      for (int direct = 0; direct < 2; ++direct) {
+        ByteBuffer buf = (direct == 1)
+            ? ByteBuffer.allocateDirect(bytes.length)
+            : ByteBuffer.allocate(bytes.length);
+        buf.put(bytes);
+        long start = System.nanoTime();
+        run(buf, requests, chunk);
+        long nanos = System.nanoTime() - start;
+        System.out.println(((direct == 1) ? "direct" : "heap") + " buffer, "
+            + chunk + "-byte pieces: "
+            + (requests * 1000000000L / nanos) + " requests/sec, "
+            + (bytes.length * (long) requests * 1000 / nanos) + " MB/sec");
+      }
+    }
+  }
+
+  private static void run(ByteBuffer buf, int requests, int chunk)
+      throws Exception {
+    HttpRequestParser parser = new HttpRequestParser(8192, 65536, 100);
+    int length = buf.capacity();
+    long check = 0;
+    for (int i = 0; i < requests; ++i) {
+      parser.reset();
+      boolean done = false;
+      for (int off = 0; !done; off += chunk) {
+        buf.limit(Math.min(off + chunk, length));
+        buf.position(off);
+        done = parser.parse(buf);
+      }
+      check += parser.getMethod().length() + parser.getTarget().length();
+      for (int h = 0; h < parser.getHeaderCount(); ++h) {
+        check += parser.getHeaderName(h).length()
+            + parser.getHeaderValue(h).length();
+      }
+    }
+    if (check == 0) {
+      throw new AssertionError("nothing was parsed");
+    }
+  }
+}
@@ -0,0 +1,220 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.opengse.httputil;
+
+import com.google.opengse.GSEConstants;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Unit test for {@link HttpRequestParser}.
+ */
+public class HttpRequestParserTest extends TestCase {
+
+  private static final String REQUEST =
+      "GET /search?q=a%20b HTTP/1.1\r\n"
+      + "Host: www.example.com\r\n"
+      + "user-agent: test\r\n"
+      + "X-Custom:  padded value \t\r\n"
+      + "Empty:\r\n"
+      + "\r\n";
+
+  private static ByteBuffer bytes(String s) throws IOException {
+    return ByteBuffer.wrap(s.getBytes("ISO-8859-1"));
+  }
+
+  private static HttpRequestParser parser() {
+    return new HttpRequestParser(1000, 4000, 20);
+  }
+
+  private static HttpRequestParser parse(String request) throws IOException {
+    HttpRequestParser parser = parser();
+    assertTrue(parser.parse(bytes(request)));
+    return parser;
+  }
+
+  private static void assertBad(String request) {
+    try {
+      parser().parse(bytes(request));
+      fail("parsed " + request);
+    } catch (IOException expected) {
+    }
+  }
+
+  private static void assertParsed(HttpRequestParser parser) {
+    assertTrue(parser.isDone());
+    assertSame(GSEConstants.GET, parser.getMethod());
+    assertEquals("/search?q=a%20b", parser.getTarget());
+    assertSame("HTTP/1.1", parser.getVersion());
+    assertEquals(1, parser.getMajorVersion());
+    assertEquals(1, parser.getMinorVersion());
+    assertEquals(4, parser.getHeaderCount());
+    assertSame("Host", parser.getHeaderName(0));
+    assertEquals("www.example.com", parser.getHeaderValue(0));
+    assertSame("user-agent", parser.getHeaderName(1));
+    assertEquals("X-Custom", parser.getHeaderName(2));
+    assertEquals("padded value", parser.getHeaderValue(2));
+    assertEquals("Empty", parser.getHeaderName(3));
+    assertEquals("", parser.getHeaderValue(3));
+    assertSame(HeaderName.HOST, parser.getHeaderId(0));
+    assertSame(HeaderName.USER_AGENT, parser.getHeaderId(1));
+    assertNull(parser.getHeaderId(2));
+  }
+
+  public void testHeaderIdIgnoresCase() throws Exception {
+    HttpRequestParser parser =
+        parse("GET / HTTP/1.1\r\nCONTENT-type: text/plain\r\n\r\n");
+    assertEquals("CONTENT-type", parser.getHeaderName(0));
+    assertSame(HeaderName.CONTENT_TYPE, parser.getHeaderId(0));
+  }
+
+  public void testWholeRequest() throws Exception {
+    assertParsed(parse(REQUEST));
+  }
+
+  public void testOneByteAtATime() throws Exception {
+    HttpRequestParser parser = parser();
+    byte[] request = REQUEST.getBytes("ISO-8859-1");
+    for (int i = 0; i < request.length; ++i) {
+      ByteBuffer buf = ByteBuffer.wrap(request, i, 1);
+      assertEquals(i == request.length - 1, parser.parse(buf));
+      assertFalse(buf.hasRemaining());
+    }
+    assertParsed(parser);
+  }
+
+  public void testDirectBufferAndWhatFollowsIsLeft() throws Exception {
+    byte[] request = (REQUEST + "body").getBytes("ISO-8859-1");
+    ByteBuffer buf = ByteBuffer.allocateDirect(request.length);
+    buf.put(request);
+    buf.flip();
+    HttpRequestParser parser = parser();
+    assertTrue(parser.parse(buf));
+    assertEquals(4, buf.remaining());
+    assertEquals('b', buf.get());
+    assertParsed(parser);
+    // further calls consume nothing
+    assertTrue(parser.parse(buf));
+    assertEquals(3, buf.remaining());
+  }
+
+  public void testLeadingBlankLinesAndBareLineFeeds() throws Exception {
+    HttpRequestParser parser = parser();
+    assertFalse(parser.parse(bytes("\r\n\n")));
+    assertFalse(parser.isStarted());
+    assertTrue(parser.parse(bytes("POST / HTTP/1.0\nA: b\n\n")));
+    assertTrue(parser.isStarted());
+    assertSame(GSEConstants.POST, parser.getMethod());
+    assertSame("HTTP/1.0", parser.getVersion());
+    assertEquals("b", parser.getHeader("a"));
+  }
+
+  public void testMethods() throws Exception {
+    assertSame(GSEConstants.OPTIONS, parse("options * HTTP/1.1\r\n\r\n")
+        .getMethod());
+    assertEquals("PROPFIND", parse("PROPFIND /x HTTP/1.1\r\n\r\n")
+        .getMethod());
+    assertBad("GE(T / HTTP/1.1\r\n\r\n");
+  }
+
+  public void testVersions() throws Exception {
+    HttpRequestParser parser = parse("GET /\r\n\r\n");
+    assertNull(parser.getVersion());
+    assertEquals(0, parser.getMajorVersion());
+    assertEquals(9, parser.getMinorVersion());
+    assertEquals("/", parser.getTarget());
+    assertEquals("HTTP/1.1", parse("GET / http/1.1  \r\n\r\n").getVersion());
+    assertEquals("HTTP/2.0", parse("GET / HTTP/2.0\r\n\r\n").getVersion());
+    assertBad("GET / HTTP/1\r\n\r\n");
+    assertBad("GET / HTTP/1.x\r\n\r\n");
+    assertBad("GET / FTP/1.1\r\n\r\n");
+    assertBad("GET / HTTP/1.1 extra\r\n\r\n");
+  }
+
+  public void testBadTargets() throws Exception {
+    assertBad("GET /a\"b HTTP/1.1\r\n\r\n");
+    assertBad("GET /a\u0001 HTTP/1.1\r\n\r\n");
+    assertBad("GET \r\n\r\n");
+    assertEquals("/{x}", parse("GET /{x} HTTP/1.1\r\n\r\n").getTarget());
+  }
+
+  public void testContinuationLines() throws Exception {
+    HttpRequestParser parser = parse("GET / HTTP/1.1\r\n"
+        + "A: one  \r\n"
+        + "   two\r\n"
+        + "\tthree\r\n"
+        + "B:\r\n"
+        + " only\r\n"
+        + "\r\n");
+    assertEquals(2, parser.getHeaderCount());
+    assertEquals("one two three", parser.getHeaderValue(0));
+    assertEquals("only", parser.getHeaderValue(1));
+    assertBad("GET / HTTP/1.1\r\n continued\r\n\r\n");
+  }
+
+  public void testBadHeaders() throws Exception {
+    assertBad("GET / HTTP/1.1\r\nNo colon\r\n\r\n");
+    assertBad("GET / HTTP/1.1\r\nName : value\r\n\r\n");
+    assertBad("GET / HTTP/1.1\r\nA: b\rc\r\n\r\n");
+    assertBad("GET / HTTP/1.1\r\nA: b\u0000\r\n\r\n");
+  }
+
+  public void testLimits() throws Exception {
+    StringBuilder many = new StringBuilder("GET / HTTP/1.1\r\n");
+    for (int i = 0; i < 21; ++i) {
+      many.append("H").append(i).append(": x\r\n");
+    }
+    assertBad(many.append("\r\n").toString());
+
+    StringBuilder longLine = new StringBuilder("GET / HTTP/1.1\r\nA: ");
+    for (int i = 0; i < 1000; ++i) {
+      longLine.append('x');
+    }
+    assertBad(longLine.append("\r\n\r\n").toString());
+
+    StringBuilder longHead = new StringBuilder("GET / HTTP/1.1\r\n");
+    for (int i = 0; i < 10; ++i) {
+      longHead.append("H").append(i).append(": ");
+      for (int j = 0; j < 500; ++j) {
+        longHead.append('x');
+      }
+      longHead.append("\r\n");
+    }
+    assertBad(longHead.append("\r\n").toString());
+  }
+
+  public void testGetHeaderIgnoresCase() throws Exception {
+    HttpRequestParser parser = parse(REQUEST);
+    assertEquals("test", parser.getHeader("User-Agent"));
+    assertEquals("www.example.com", parser.getHeader("HOST"));
+    assertNull(parser.getHeader("Hosts"));
+    assertNull(parser.getHeader("Cookie"));
+  }
+
+  public void testReset() throws Exception {
+    HttpRequestParser parser = parse(REQUEST);
+    parser.reset();
+    assertFalse(parser.isStarted());
+    assertEquals(0, parser.getHeaderCount());
+    assertTrue(parser.parse(bytes("HEAD /x HTTP/1.0\r\nB: c\r\n\r\n")));
+    assertSame(GSEConstants.HEAD, parser.getMethod());
+    assertEquals("/x", parser.getTarget());
+    assertEquals("c", parser.getHeaderValue(0));
+  }
+}
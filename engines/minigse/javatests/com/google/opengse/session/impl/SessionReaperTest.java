@@ -0,0 +1,114 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.opengse.session.impl;
+
+import com.google.opengse.session.SessionConfigurationImpl;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpSessionEvent;
+import javax.servlet.http.HttpSessionListener;
+
+/**
+ * Unit test for {@link SessionReaper}.
+ */
+public class SessionReaperTest extends TestCase {
+
+  /**
+   * Records destroyed sessions and the threads they were destroyed on.
+   */
+  private static class RecordingListener implements HttpSessionListener {
+    final List<String> destroyed = new CopyOnWriteArrayList<String>();
+    final CountDownLatch latch = new CountDownLatch(1);
+    volatile Thread thread;
+
+    public void sessionCreated(HttpSessionEvent event) {
+    }
+
+    public void sessionDestroyed(HttpSessionEvent event) {
+      destroyed.add(event.getSession().getId());
+      thread = Thread.currentThread();
+      latch.countDown();
+    }
+  }
+
+  private ServletSessionCache cache;
+  private RecordingListener listener;
+
+  @Override
+  protected void setUp() throws Exception {
+    cache = new ServletSessionCache(new SessionConfigurationImpl(0, 0), 20);
+    cache.setSessionTimeout(150);
+    listener = new RecordingListener();
+    cache.registerSessionListener(listener);
+  }
+
+  public void testIdleSessionExpiresOnReaperThread() throws Exception {
+    String id = cache.createSession(null).getId();
+    assertTrue(listener.latch.await(10, TimeUnit.SECONDS));
+    assertEquals(id, listener.destroyed.get(0));
+    assertNotSame(Thread.currentThread(), listener.thread);
+    assertEquals(ServletSessionCache.class.getName(), listener.thread.getName());
+    // listeners are told just before the session is removed
+    long deadline = System.currentTimeMillis() + 10000;
+    while (cache.getSession(id) != null
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertNull(cache.getSession(id));
+  }
+
+  public void testAccessedSessionIsKept() throws Exception {
+    String id = cache.createSession(null).getId();
+    for (int i = 0; i < 12; ++i) {
+      Thread.sleep(50);
+      assertNotNull(cache.getSession(id));
+    }
+    assertTrue(listener.destroyed.isEmpty());
+    assertTrue(listener.latch.await(10, TimeUnit.SECONDS));
+    assertEquals(id, listener.destroyed.get(0));
+  }
+
+  public void testShortenedTimeoutIsHonoured() throws Exception {
+    cache.setSessionTimeout(60 * 60 * 1000);
+    HttpSessionImpl ss = (HttpSessionImpl) cache.createSession(null);
+    ss.setMaxInactiveInterval(1);
+    assertTrue(listener.latch.await(10, TimeUnit.SECONDS));
+    assertEquals(ss.getId(), listener.destroyed.get(0));
+  }
+
+  public void testNegativeTimeoutNeverExpires() throws Exception {
+    HttpSessionImpl ss = (HttpSessionImpl) cache.createSession(null);
+    ss.setMaxInactiveInterval(-1);
+    assertEquals(Long.MAX_VALUE, ss.getExpiryTime());
+    Thread.sleep(400);
+    assertTrue(listener.destroyed.isEmpty());
+    assertSame(ss, cache.getSession(ss.getId()));
+  }
+
+  public void testInvalidatedSessionIsDestroyedOnce() throws Exception {
+    HttpSessionImpl ss = (HttpSessionImpl) cache.createSession(null);
+    ss.invalidate();
+    assertEquals(1, listener.destroyed.size());
+    assertEquals(SessionReaper.UNSCHEDULED, ss.expiryBucket_);
+    Thread.sleep(400);
+    assertEquals(1, listener.destroyed.size());
+  }
+}
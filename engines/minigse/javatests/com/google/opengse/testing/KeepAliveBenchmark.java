@@ -0,0 +1,251 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.opengse.testing;
+
+import com.google.opengse.ServletEngine;
+import com.google.opengse.ServletEngineConfiguration;
+import com.google.opengse.ServletEngineConfigurationImpl;
+import com.google.opengse.ServletEngineFactory;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Properties;
+
+/**
+ * Measures how many small GET requests per second each transport serves,
+ * first over keep-alive connections and then with a new connection for
+ * every request. Each client thread sends its next request as soon as it
+ * has read the previous response.
+ *
+ * <p>Run with
+ * <code>java com.google.opengse.testing.KeepAliveBenchmark [connections]
+ * [seconds] [ServletEngineFactory class...]</code>, with the test classes
+ * on the classpath. The default is to compare the blocking and nio
+ * transports, so both need to be there too.
+ */
+public final class KeepAliveBenchmark {
+
+  private KeepAliveBenchmark() { /* Launcher class: do not instantiate. */ }
+
+  private static final String[] DEFAULT_FACTORIES = {
+      "com.google.opengse.blockingcore.BlockingServletEngineFactory",
+      "com.google.opengse.core.ServletEngineFactoryImpl",
+  };
+
+  private static final String MESSAGE = "Hello, world!";
+
+  public static void main(String[] args) throws Exception {
+    int connections = (args.length > 0) ? Integer.parseInt(args[0]) : 16;
+    int seconds = (args.length > 1) ? Integer.parseInt(args[1]) : 5;
+    String[] factories = DEFAULT_FACTORIES;
+    if (args.length > 2) {
+      factories = new String[args.length - 2];
+      System.arraycopy(args, 2, factories, 0, factories.length);
+    }
+
+    for (String factoryName : factories) {
+      ServletEngineFactory factory = (ServletEngineFactory)
+          Class.forName(factoryName).getDeclaredConstructor().newInstance();
+      Properties props = new Properties();
+      props.setProperty(ServletEngineConfigurationImpl.KEY_PORT, "-1");
+      // the blocking transport keeps a connection open only while it has
+      // a thread for it and another one left to accept with
+      props.setProperty(ServletEngineConfigurationImpl.KEY_THREADS,
+          Integer.toString(connections + 1));
+      ServletEngineConfiguration config
+          = new ServletEngineConfigurationImpl(props);
+      ServletEngine engine = factory.createServletEngine(
+          FilterChains.withPlainMessage(MESSAGE), config);
+      Thread engineThread = new Thread(engine, factoryName);
+      engineThread.setDaemon(true);
+      engineThread.start();
+      engine.awaitInitialization(10000);
+      InetSocketAddress address
+          = new InetSocketAddress("localhost", engine.getPort());
+
+      // Run each one twice so the second figures are from a warm JIT.
+      for (int round = 0; round < 2; ++round) {
+        report(factoryName, "keep-alive",
+            run(address, connections, seconds, true), seconds);
+        report(factoryName, "close",
+            run(address, connections, seconds, false), seconds);
+      }
+      engine.quit(10000);
+    }
+  }
+
+  private static void report(String factoryName, String mode, long requests,
+      int seconds) {
+    System.out.println(factoryName + " (" + mode + "): "
+        + (requests / seconds) + " requests/sec");
+  }
+
+  /**
+   * Has <code>connections</code> clients send requests to
+   * <code>address</code> for <code>seconds</code>.
+   *
+   * @return the total number of responses read
+   */
+  private static long run(final InetSocketAddress address, int connections,
+      int seconds, final boolean keepAlive) throws Exception {
+    final long end = System.currentTimeMillis() + seconds * 1000L;
+    final long[] counts = new long[connections];
+    final Exception[] failures = new Exception[connections];
+    Thread[] clients = new Thread[connections];
+    for (int c = 0; c < connections; ++c) {
+      final int id = c;
+      clients[c] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            counts[id] = keepAlive
+                ? runKeepAliveClient(address, end)
+                : runClosingClient(address, end);
+          } catch (Exception e) {
+            failures[id] = e;
+          }
+        }
+      };
+      clients[c].start();
+    }
+    long total = 0;
+    for (int c = 0; c < connections; ++c) {
+      clients[c].join();
+      if (failures[c] != null) {
+        throw failures[c];
+      }
+      total += counts[c];
+    }
+    return total;
+  }
+
+  private static long runKeepAliveClient(InetSocketAddress address, long end)
+      throws IOException {
+    byte[] request = ("GET /bench HTTP/1.1\r\n"
+        + "Host: localhost\r\n\r\n").getBytes("ISO-8859-1");
+    Socket socket = connect(address);
+    try {
+      InputStream in = new BufferedInputStream(socket.getInputStream());
+      OutputStream out = socket.getOutputStream();
+      long n = 0;
+      while (System.currentTimeMillis() < end) {
+        out.write(request);
+        if (!readResponse(in)) {
+          throw new IOException("Server closed a keep-alive connection");
+        }
+        ++n;
+      }
+      return n;
+    } finally {
+      socket.close();
+    }
+  }
+
+  private static long runClosingClient(InetSocketAddress address, long end)
+      throws IOException {
+    byte[] request = ("GET /bench HTTP/1.1\r\n"
+        + "Host: localhost\r\nConnection: close\r\n\r\n").getBytes("ISO-8859-1");
+    long n = 0;
+    while (System.currentTimeMillis() < end) {
+      Socket socket = connect(address);
+      try {
+        socket.getOutputStream().write(request);
+        readResponse(new BufferedInputStream(socket.getInputStream()));
+        ++n;
+      } finally {
+        socket.close();
+      }
+    }
+    return n;
+  }
+
+  private static Socket connect(InetSocketAddress address) throws IOException {
+    Socket socket = new Socket();
+    socket.setTcpNoDelay(true);
+    socket.connect(address);
+    return socket;
+  }
+
+  /**
+   * Reads one response with a Content-Length or chunked body.
+   *
+   * @return <code>false</code> if the server asked to close the connection
+   */
+  private static boolean readResponse(InputStream in) throws IOException {
+    String statusLine = readLine(in);
+    if (!statusLine.startsWith("HTTP/1.1 200")) {
+      throw new IOException("Unexpected response: " + statusLine);
+    }
+    long contentLength = -1;
+    boolean chunked = false;
+    boolean close = false;
+    String line;
+    while ((line = readLine(in)).length() != 0) {
+      String lower = line.toLowerCase();
+      if (lower.startsWith("content-length:")) {
+        contentLength = Long.parseLong(line.substring(15).trim());
+      } else if (lower.startsWith("transfer-encoding:")) {
+        chunked = lower.indexOf("chunked") != -1;
+      } else if (lower.startsWith("connection:")) {
+        close = lower.indexOf("close") != -1;
+      }
+    }
+    if (chunked) {
+      long size;
+      while ((size = Long.parseLong(readLine(in).trim(), 16)) != 0) {
+        skip(in, size);
+        readLine(in);
+      }
+      while (readLine(in).length() != 0) {
+        // trailers
+      }
+    } else if (contentLength >= 0) {
+      skip(in, contentLength);
+    } else {
+      while (in.read() != -1) {
+        // the body runs to the end of the connection
+      }
+      close = true;
+    }
+    return !close;
+  }
+
+  private static String readLine(InputStream in) throws IOException {
+    StringBuilder line = new StringBuilder();
+    int thebyte;
+    while ((thebyte = in.read()) != '\n') {
+      if (thebyte == -1) {
+        throw new EOFException();
+      }
+      if (thebyte != '\r') {
+        line.append((char) thebyte);
+      }
+    }
+    return line.toString();
+  }
+
+  private static void skip(InputStream in, long n) throws IOException {
+    for (long i = 0; i < n; ++i) {
+      if (in.read() == -1) {
+        throw new EOFException();
+      }
+    }
+  }
+}
@@ -0,0 +1,167 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.opengse.util;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit test for {@link WorkStealingDispatchQueue}.
+ */
+public class WorkStealingDispatchQueueTest extends TestCase {
+
+  public void testRunsEverything() throws Exception {
+    runsEverything(new WorkStealingDispatchQueue(4));
+  }
+
+  public void testRunsEverythingWithoutStealing() throws Exception {
+    runsEverything(new WorkStealingDispatchQueue(4, 0, false));
+  }
+
+  private void runsEverything(WorkStealingDispatchQueue queue)
+      throws Exception {
+    final CountDownLatch latch = new CountDownLatch(1000);
+    for (int i = 0; i < 1000; ++i) {
+      assertTrue(queue.offerRunnable(new CountDown(latch)));
+    }
+    assertTrue(latch.await(10, TimeUnit.SECONDS));
+    assertEquals(1000, queue.getDispatchedCount());
+    assertEquals(0, queue.getDepth());
+    assertEquals(0, queue.getRejectedCount());
+    assertTrue(queue.getMaxWaitNanos() > 0);
+    assertTrue(queue.getTotalWaitNanos() >= queue.getMaxWaitNanos());
+    assertTrue(queue.quit(10000));
+  }
+
+  public void testBurstFansOutToAllWorkers() throws Exception {
+    burstFansOut(new WorkStealingDispatchQueue(16));
+  }
+
+  public void testBurstFansOutWithoutStealing() throws Exception {
+    burstFansOut(new WorkStealingDispatchQueue(16, 0, false));
+  }
+
+  /**
+   * Submits a trivial runnable, so that a worker is spinning, and then one
+   * blocking runnable per worker; all of those must run at once.
+   */
+  private void burstFansOut(WorkStealingDispatchQueue queue)
+      throws Exception {
+    int n = 16;
+    CountDownLatch started = new CountDownLatch(n);
+    CountDownLatch release = new CountDownLatch(1);
+    try {
+      // let the workers park first
+      Thread.sleep(100);
+      queue.addRunnable(new Count(new AtomicInteger()));
+      for (int i = 0; i < n; ++i) {
+        queue.addRunnable(new Block(started, release));
+      }
+      boolean allStarted = started.await(10, TimeUnit.SECONDS);
+      assertTrue(started.getCount() + " never started", allStarted);
+      assertEquals(0, queue.getDepth());
+    } finally {
+      release.countDown();
+    }
+    assertTrue(queue.quit(10000));
+  }
+
+  public void testFullBacklogIsRefused() throws Exception {
+    WorkStealingDispatchQueue queue = new WorkStealingDispatchQueue(2, 3, true);
+    CountDownLatch started = new CountDownLatch(2);
+    CountDownLatch release = new CountDownLatch(1);
+    queue.addRunnable(new Block(started, release));
+    queue.addRunnable(new Block(started, release));
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+
+    AtomicInteger ran = new AtomicInteger();
+    for (int i = 0; i < 3; ++i) {
+      assertTrue(queue.offerRunnable(new Count(ran)));
+    }
+    assertEquals(3, queue.getDepth());
+    assertFalse(queue.offerRunnable(new Count(ran)));
+    assertEquals(1, queue.getRejectedCount());
+
+    // work which must not be dropped still goes in
+    queue.addRunnable(new Count(ran));
+    assertEquals(4, queue.getDepth());
+
+    release.countDown();
+    assertTrue(queue.quit(10000));
+    assertEquals(4, ran.get());
+    assertEquals(0, queue.getDepth());
+  }
+
+  public void testQuitRefusesNewWork() throws Exception {
+    WorkStealingDispatchQueue queue = new WorkStealingDispatchQueue(1);
+    assertTrue(queue.quit(10000));
+    assertFalse(queue.offerRunnable(new Count(new AtomicInteger())));
+    assertEquals(1, queue.getRejectedCount());
+  }
+
+  public void testBadWorkerCount() {
+    try {
+      new WorkStealingDispatchQueue(0);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) { /* expected */ }
+  }
+
+  private static class CountDown implements Runnable {
+    private final CountDownLatch latch;
+
+    CountDown(CountDownLatch latch) {
+      this.latch = latch;
+    }
+
+    public void run() {
+      latch.countDown();
+    }
+  }
+
+  private static class Count implements Runnable {
+    private final AtomicInteger count;
+
+    Count(AtomicInteger count) {
+      this.count = count;
+    }
+
+    public void run() {
+      count.incrementAndGet();
+    }
+  }
+
+  private static class Block implements Runnable {
+    private final CountDownLatch started;
+    private final CountDownLatch release;
+
+    Block(CountDownLatch started, CountDownLatch release) {
+      this.started = started;
+      this.release = release;
+    }
+
+    public void run() {
+      started.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
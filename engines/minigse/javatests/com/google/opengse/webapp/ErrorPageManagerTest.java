@@ -14,11 +14,45 @@
 
 package com.google.opengse.webapp;
 
-import com.google.opengse.UnwrittenTestCase;
+import com.google.opengse.configuration.impl.MutableWebAppErrorPage;
+
+import junit.framework.TestCase;
+import org.easymock.classextension.EasyMock;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 /**
  * Unit test for {@link ErrorPageManager}.
  */
-public class ErrorPageManagerTest extends UnwrittenTestCase {
+public class ErrorPageManagerTest extends TestCase {
+
+  private final HttpServletRequest request =
+      EasyMock.createNiceMock(HttpServletRequest.class);
+  private final HttpServletResponse response =
+      EasyMock.createNiceMock(HttpServletResponse.class);
+
+  private static MutableWebAppErrorPage page(String code, String type) {
+    MutableWebAppErrorPage page = MutableWebAppErrorPage.create();
+    if (code != null) {
+      page.setErrorCode(code);
+    }
+    page.setExceptionType(type);
+    page.setLocation("/error");
+    return page;
+  }
+
+  public void testResponseIsNotWrappedWithoutErrorCodePages() {
+    ErrorPageManager manager = new ErrorPageManager();
+    assertSame(response, manager.wrapResponse(request, response, "servlet"));
+    manager.addErrorPage(page(null, "java.lang.Exception"));
+    assertSame(response, manager.wrapResponse(request, response, "servlet"));
+  }
 
+  public void testResponseIsWrappedForErrorCodePages() {
+    ErrorPageManager manager = new ErrorPageManager();
+    manager.addErrorPage(page("404", null));
+    assertTrue(manager.wrapResponse(request, response, "servlet")
+        instanceof ErrorCodeResponseWrapper);
+  }
 }
@@ -0,0 +1,122 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.opengse.webapp;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Unit test for {@link StaticContentCache}.
+ */
+public class StaticContentCacheTest extends TestCase {
+  private File dir;
+
+  @Override
+  protected void setUp() throws Exception {
+    dir = File.createTempFile("StaticContentCacheTest", "");
+    dir.delete();
+    dir.mkdir();
+  }
+
+  @Override
+  protected void tearDown() {
+    for (File file : dir.listFiles()) {
+      file.delete();
+    }
+    dir.delete();
+  }
+
+  private File write(String name, int length) throws IOException {
+    File file = new File(dir, name);
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      for (int i = 0; i < length; ++i) {
+        out.write('a' + i % 26);
+      }
+    } finally {
+      out.close();
+    }
+    return file;
+  }
+
+  public void testSmallFileIsHeld() throws Exception {
+    StaticContentCache cache = new StaticContentCache(100000, 1000, 60000);
+    File file = write("a.txt", 30);
+    assertNull(cache.get("/a.txt"));
+    StaticContentCache.Entry entry = cache.load("/a.txt", file, "text/plain");
+    assertEquals(30, entry.length);
+    assertEquals("abcdefghijklmnopqrstuvwxyzabcd", new String(entry.content));
+    assertEquals("text/plain", entry.mimeType);
+    assertEquals(file.lastModified(), entry.lastModified);
+    assertTrue(entry.etag.startsWith("\"") && entry.etag.endsWith("\""));
+    assertSame(entry, cache.get("/a.txt"));
+    assertEquals(1, cache.getHits());
+    assertEquals(1, cache.getMisses());
+    assertEquals(30 + StaticContentCache.ENTRY_OVERHEAD, cache.getBytes());
+  }
+
+  public void testBigFileKeepsOnlyMetadata() throws Exception {
+    StaticContentCache cache = new StaticContentCache(100000, 1000, 60000);
+    StaticContentCache.Entry entry =
+        cache.load("/big", write("big", 5000), "application/octet-stream");
+    assertNull(entry.content);
+    assertEquals(5000, entry.length);
+    assertSame(entry, cache.get("/big"));
+    assertEquals(StaticContentCache.ENTRY_OVERHEAD, cache.getBytes());
+  }
+
+  public void testLeastRecentlyUsedIsEvicted() throws Exception {
+    int cost = 1000 + StaticContentCache.ENTRY_OVERHEAD;
+    StaticContentCache cache = new StaticContentCache(3 * cost, 1000, 60000);
+    cache.load("/1", write("1", 1000), "text/plain");
+    cache.load("/2", write("2", 1000), "text/plain");
+    cache.load("/3", write("3", 1000), "text/plain");
+    assertNotNull(cache.get("/1"));
+    cache.load("/4", write("4", 1000), "text/plain");
+    assertEquals(3, cache.size());
+    assertEquals(3 * cost, cache.getBytes());
+    assertNull(cache.get("/2"));
+    assertNotNull(cache.get("/1"));
+    assertNotNull(cache.get("/3"));
+    assertNotNull(cache.get("/4"));
+  }
+
+  public void testChangedFileIsDropped() throws Exception {
+    StaticContentCache cache = new StaticContentCache(100000, 1000, 0);
+    File file = write("a.txt", 30);
+    StaticContentCache.Entry entry = cache.load("/a.txt", file, "text/plain");
+    assertSame(entry, cache.get("/a.txt"));
+    write("a.txt", 31);
+    assertNull(cache.get("/a.txt"));
+    assertEquals(0, cache.size());
+    assertEquals(0, cache.getBytes());
+
+    entry = cache.load("/a.txt", file, "text/plain");
+    file.delete();
+    assertNull(cache.get("/a.txt"));
+  }
+
+  public void testChangeIsNotNoticedWithinCheckInterval() throws Exception {
+    StaticContentCache cache = new StaticContentCache(100000, 1000, 60000);
+    File file = write("a.txt", 30);
+    StaticContentCache.Entry entry = cache.load("/a.txt", file, "text/plain");
+    file.delete();
+    assertSame(entry, cache.get("/a.txt"));
+  }
+}
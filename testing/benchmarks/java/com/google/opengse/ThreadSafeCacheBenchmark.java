@@ -0,0 +1,96 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.opengse;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link ThreadSafeCache} with several threads using it at once,
+ * as the request threads of a busy server do: all of them reading, and
+ * most of them reading while one keeps replacing entries and so evicting
+ * others.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ThreadSafeCacheBenchmark {
+
+  /** The number of distinct keys, which is twice the cache's size. */
+  @Param({"1024"})
+  public int keys;
+
+  private ThreadSafeCache<String, Object> cache_;
+  private String[] names_;
+
+  @Setup
+  public void setUp() {
+    cache_ = new ThreadSafeCache<String, Object>(keys / 2);
+    names_ = new String[keys];
+    for (int i = 0; i < keys; ++i) {
+      names_[i] = "/webapp/resource/" + i;
+      cache_.put(names_[i], Integer.valueOf(i));
+    }
+  }
+
+  /** Where each thread is in its walk through the keys. */
+  @State(Scope.Thread)
+  public static class Cursor {
+    private int next_ = (int) Thread.currentThread().getId() * 7919;
+
+    int next(int keys) {
+      next_ = (next_ + 31) & Integer.MAX_VALUE;
+      return next_ % keys;
+    }
+  }
+
+  @Benchmark
+  @Threads(4)
+  public Object get(Cursor cursor) {
+    return cache_.get(names_[cursor.next(keys)]);
+  }
+
+  @Benchmark
+  @Group("readMostly")
+  @GroupThreads(3)
+  public Object readMostlyGet(Cursor cursor) {
+    return cache_.get(names_[cursor.next(keys)]);
+  }
+
+  @Benchmark
+  @Group("readMostly")
+  @GroupThreads(1)
+  public void readMostlyPut(Cursor cursor) {
+    int i = cursor.next(keys);
+    cache_.put(names_[i], Integer.valueOf(i));
+  }
+}
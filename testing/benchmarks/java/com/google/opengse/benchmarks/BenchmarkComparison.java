@@ -0,0 +1,201 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.opengse.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares two sets of benchmark results, as JMH writes them with
+ * <code>-rf csv</code>, and fails if any benchmark got slower than the
+ * baseline by more than a tolerance. Throughput scores are worse when they
+ * drop and all others, which are times, are worse when they rise.
+ *
+ * <p>Run with
+ * <code>java com.google.opengse.benchmarks.BenchmarkComparison
+ * baseline.csv results.csv [tolerance-percent]</code>. The exit status is
+ * 1 if there is a regression, and 2 if the files can't be read.
+ */
+public final class BenchmarkComparison {
+
+  private BenchmarkComparison() { /* Launcher class: do not instantiate. */ }
+
+  private static final double DEFAULT_TOLERANCE_PERCENT = 10;
+
+  public static void main(String[] args) {
+    if (args.length < 2 || args.length > 3) {
+      System.err.println("usage: BenchmarkComparison baseline.csv results.csv"
+          + " [tolerance-percent]");
+      System.exit(2);
+    }
+    double tolerance = (args.length > 2)
+        ? Double.parseDouble(args[2]) : DEFAULT_TOLERANCE_PERCENT;
+    Map<String, Result> baseline;
+    Map<String, Result> results;
+    try {
+      baseline = read(args[0]);
+      results = read(args[1]);
+    } catch (IOException e) {
+      System.err.println(e.getMessage());
+      System.exit(2);
+      return;
+    }
+    int regressions = compare(baseline, results, tolerance);
+    if (regressions > 0) {
+      System.out.println(regressions + " benchmark(s) regressed by more than "
+          + tolerance + "%");
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Prints how each benchmark changed from the baseline.
+   *
+   * @return the number of benchmarks that got worse by more than
+   *         <code>tolerance</code> percent
+   */
+  static int compare(Map<String, Result> baseline,
+      Map<String, Result> results, double tolerance) {
+    int regressions = 0;
+    for (Map.Entry<String, Result> entry : results.entrySet()) {
+      Result now = entry.getValue();
+      Result before = baseline.get(entry.getKey());
+      if (before == null || !before.unit.equals(now.unit)) {
+        System.out.println("  new  " + entry.getKey() + ": " + now);
+        continue;
+      }
+      // positive when the benchmark got worse
+      double change = 100 * (now.score - before.score) / before.score;
+      if (now.isThroughput()) {
+        change = -change;
+      }
+      boolean regressed = change > tolerance;
+      if (regressed) {
+        ++regressions;
+      }
+      System.out.println((regressed ? "WORSE " : "   ok ") + entry.getKey()
+          + ": " + before + " -> " + now + " ("
+          + ((change >= 0) ? Math.round(change) + "% worse)"
+              : Math.round(-change) + "% better)"));
+    }
+    return regressions;
+  }
+
+  /**
+   * Reads a JMH CSV file into results keyed by the benchmark, its mode and
+   * its parameters.
+   */
+  static Map<String, Result> read(String file) throws IOException {
+    BufferedReader in = new BufferedReader(
+        new InputStreamReader(new FileInputStream(file), "UTF-8"));
+    try {
+      String line = in.readLine();
+      if (line == null) {
+        throw new IOException(file + " is empty");
+      }
+      List<String> columns = split(line);
+      int benchmark = column(file, columns, "Benchmark");
+      int mode = column(file, columns, "Mode");
+      int score = column(file, columns, "Score");
+      int unit = column(file, columns, "Unit");
+      Map<String, Result> results = new LinkedHashMap<String, Result>();
+      while ((line = in.readLine()) != null) {
+        if (line.length() == 0) {
+          continue;
+        }
+        List<String> fields = split(line);
+        StringBuilder key = new StringBuilder(fields.get(benchmark));
+        key.append(" [").append(fields.get(mode)).append(']');
+        for (int i = 0; i < columns.size(); ++i) {
+          if (columns.get(i).startsWith("Param: ") && i < fields.size()
+              && fields.get(i).length() > 0) {
+            key.append(' ').append(columns.get(i).substring(7))
+                .append('=').append(fields.get(i));
+          }
+        }
+        try {
+          results.put(key.toString(), new Result(fields.get(mode),
+              Double.parseDouble(fields.get(score)), fields.get(unit)));
+        } catch (NumberFormatException e) {
+          throw new IOException(file + ": bad score in " + line);
+        }
+      }
+      return results;
+    } finally {
+      in.close();
+    }
+  }
+
+  private static int column(String file, List<String> columns, String name)
+      throws IOException {
+    int i = columns.indexOf(name);
+    if (i < 0) {
+      throw new IOException(file + " has no " + name + " column");
+    }
+    return i;
+  }
+
+  /** Splits a line of CSV, removing the quotes around fields. */
+  static List<String> split(String line) {
+    List<String> fields = new ArrayList<String>();
+    StringBuilder field = new StringBuilder();
+    boolean quoted = false;
+    for (int i = 0; i < line.length(); ++i) {
+      char c = line.charAt(i);
+      if (c == '"') {
+        if (quoted && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+          field.append('"');
+          ++i;
+        } else {
+          quoted = !quoted;
+        }
+      } else if (c == ',' && !quoted) {
+        fields.add(field.toString());
+        field.setLength(0);
+      } else {
+        field.append(c);
+      }
+    }
+    fields.add(field.toString());
+    return fields;
+  }
+
+  static final class Result {
+    final String mode;
+    final double score;
+    final String unit;
+
+    Result(String mode, double score, String unit) {
+      this.mode = mode;
+      this.score = score;
+      this.unit = unit;
+    }
+
+    boolean isThroughput() {
+      return "thrpt".equals(mode);
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%.3f %s", score, unit);
+    }
+  }
+}
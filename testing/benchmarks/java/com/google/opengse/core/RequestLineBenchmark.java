@@ -0,0 +1,79 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.opengse.core;
+
+import com.google.opengse.iobuffer.IOBuffer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how {@link RequestContext} reads a request line out of an
+ * <code>IOBuffer</code> and splits its URI into a path and query, with as
+ * few headers as a request can have so the request line dominates.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RequestLineBenchmark {
+
+  /** The request target, and how a client would send it. */
+  @Param({
+    "/",
+    "/static/css/site.css",
+    "/search?q=open+source+servlet+engine&hl=en&start=10&num=20",
+    "http://www.example.com/proxy/path?x=1"
+  })
+  public String target;
+
+  private byte[] head_;
+  private IOBuffer buf_;
+
+  @Setup
+  public void setUp() throws IOException {
+    head_ = ("GET " + target + " HTTP/1.1\r\n"
+        + "Host: www.example.com\r\n"
+        + "\r\n").getBytes("ISO-8859-1");
+    buf_ = new IOBuffer();
+  }
+
+  @Benchmark
+  public int parse() throws IOException {
+    buf_.writeBytes(head_);
+    buf_.flush();
+    RequestContext context = new RequestContext();
+    if (!RequestContextFactory.parse(context, buf_)) {
+      throw new AssertionError("request was not parsed");
+    }
+    String query = context.getRawQuery();
+    return context.getMethod().length() + context.getRawPath().length()
+        + ((query == null) ? 0 : query.length());
+  }
+}
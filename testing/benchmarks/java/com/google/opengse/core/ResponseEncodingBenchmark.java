@@ -0,0 +1,123 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.opengse.core;
+
+import com.google.opengse.ServletEngineConfigurationImpl;
+import com.google.opengse.httputil.CachedDateHeader;
+import com.google.opengse.httputil.HeaderBlock;
+import com.google.opengse.httputil.HeaderName;
+import com.google.opengse.iobuffer.IOBuffer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the two ways {@link HttpResponseImpl} encodes what it sends:
+ * writing the status line and headers of a typical response, and
+ * compressing a body with gzip as {@link ContentEncoder} does for a client
+ * that accepts it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ResponseEncodingBenchmark {
+
+  private static final HeaderBlock STATIC_HEADERS =
+      new HeaderBlock("X-Powered-By", "opengse");
+
+  /** The size of the body to compress. */
+  @Param({"1024", "16384"})
+  public int bodySize;
+
+  private ServletEngineConfigurationImpl config_;
+  private ResponseCompression compression_;
+  private byte[] body_;
+  private IOBuffer src_;
+  private IOBuffer dst_;
+
+  @Setup
+  public void setUp() throws IOException {
+    Properties props = new Properties();
+    props.setProperty(ServletEngineConfigurationImpl.KEY_PORT, "-1");
+    config_ = new ServletEngineConfigurationImpl(props);
+    compression_ = new ResponseCompression();
+
+    // HTML is what usually gets compressed; repeat a fragment of it
+    StringBuilder html = new StringBuilder(bodySize);
+    for (int i = 0; html.length() < bodySize; ++i) {
+      html.append("<tr><td class=\"name\"><a href=\"/item?id=").append(i)
+          .append("\">Item ").append(i).append("</a></td><td>")
+          .append(i * 37 % 1000).append(".00</td></tr>\n");
+    }
+    html.setLength(bodySize);
+    body_ = html.toString().getBytes("ISO-8859-1");
+    src_ = new IOBuffer();
+    dst_ = new IOBuffer();
+  }
+
+  /**
+   * Sets the headers a servlet and the engine set on a typical response
+   * and writes the response head.
+   */
+  @Benchmark
+  public int headers() throws IOException {
+    HttpResponseImpl response = new HttpResponseImpl(config_);
+    response.setVersion(1, 1);
+    response.setStatus(200);
+    response.setContentType("text/html; charset=UTF-8");
+    response.setStaticHeaders(STATIC_HEADERS);
+    response.addHeader("Set-Cookie", "JSESSIONID=1f0c4a7d9e2b3c5a; Path=/");
+    long now = System.currentTimeMillis();
+    response.setHeader(HeaderName.DATE, CachedDateHeader.getValue(now),
+        CachedDateHeader.getLine(now));
+    response.setHeader(HeaderName.CACHE_CONTROL, "private", null);
+    response.setContentLength(bodySize);
+    response.setHeader(HeaderName.CONNECTION, "keep-alive", null);
+    response.setHeader(HeaderName.KEEP_ALIVE, "timeout=30", null);
+    response.writeIOBuffer(dst_);
+    dst_.flush();
+    int n = dst_.availableBytes();
+    dst_.clear();
+    return n;
+  }
+
+  /** Compresses a whole body into the connection's output buffer. */
+  @Benchmark
+  public int gzip() throws IOException {
+    src_.writeBytes(body_);
+    src_.flush();
+    new ContentEncoder(compression_, "gzip").encode(src_, dst_, true);
+    dst_.flush();
+    int n = dst_.availableBytes();
+    dst_.clear();
+    return n;
+  }
+}
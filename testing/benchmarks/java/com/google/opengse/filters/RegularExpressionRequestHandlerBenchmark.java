@@ -0,0 +1,130 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.opengse.filters;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Measures {@link RegularExpressionRequestHandler} dispatching requests
+ * through mapping sets of the sizes real web.xml files have: exact paths,
+ * prefix mappings, and patterns whose group becomes the path info. The
+ * requests hit early, late and default mappings in turn.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RegularExpressionRequestHandlerBenchmark {
+
+  /** The number of mappings besides the default one. */
+  @Param({"8", "64"})
+  public int mappings;
+
+  private RegularExpressionRequestHandler handler;
+  private HttpServletRequest[] requests;
+  private final CountingChain chain = new CountingChain();
+  private int next;
+
+  @Setup
+  public void setUp() {
+    handler = RegularExpressionRequestHandler.create(chain);
+    for (int i = 0; i < mappings; ++i) {
+      switch (i % 4) {
+        case 0:
+          handler.setHandler("/page" + i + "\\.html", chain);
+          break;
+        case 1:
+          handler.setHandler("/static" + i + "/.*", chain);
+          break;
+        case 2:
+          handler.setHandler("/svc" + i + "(/.*)?", chain);
+          break;
+        default:
+          handler.setHandler("/api/v" + i + "/items/([0-9]+)", chain);
+          break;
+      }
+    }
+    int last = mappings - 1;
+    String[] paths = {
+      "/page0.html",
+      "/static1/css/site.css",
+      "/svc2/account/settings",
+      "/api/v3/items/12345",
+      "/page" + (last - last % 4) + ".html",
+      "/api/v" + (last - last % 4 + 3) + "/items/7",
+      "/index.jsp",
+      "/not/mapped/anywhere",
+    };
+    requests = new HttpServletRequest[paths.length];
+    for (int i = 0; i < paths.length; ++i) {
+      requests[i] = newRequest(paths[i]);
+    }
+  }
+
+  @Benchmark
+  public int doFilter() throws IOException, ServletException {
+    HttpServletRequest request = requests[next];
+    next = (next + 1) % requests.length;
+    handler.doFilter(request, null);
+    return chain.count;
+  }
+
+  /** Returns a request whose only property is its servlet path. */
+  private static HttpServletRequest newRequest(final String servletPath) {
+    return (HttpServletRequest) Proxy.newProxyInstance(
+        HttpServletRequest.class.getClassLoader(),
+        new Class<?>[] { HttpServletRequest.class },
+        new InvocationHandler() {
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            if ("getServletPath".equals(method.getName())) {
+              return servletPath;
+            }
+            throw new UnsupportedOperationException(method.getName());
+          }
+        });
+  }
+
+  private static class CountingChain implements FilterChain {
+    int count;
+
+    public void doFilter(ServletRequest request, ServletResponse response) {
+      ++count;
+    }
+  }
+}
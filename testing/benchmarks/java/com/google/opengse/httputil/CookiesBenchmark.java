@@ -0,0 +1,57 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.opengse.httputil;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link Cookies#parse(String)} on the Cookie headers browsers
+ * send: a single session cookie, and the long header a site with
+ * analytics and preference cookies gets.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CookiesBenchmark {
+
+  /** The Cookie header to parse. */
+  @Param({
+    "JSESSIONID=1f0c4a7d9e2b3c5a",
+    "PREF=ID=1234567890abcdef:TM=1200000000:LM=1200000000:S=abcdEFGHijkl; "
+        + "SID=DQAAAHAAAABbc2RmZ2hqa2w; HSID=AbCdEfGhIjKlMnOp; "
+        + "_ga=GA1.2.123456789.1200000000; _gid=GA1.2.987654321.1200000000; "
+        + "theme=dark; lang=en-US; tz=\"America/New_York\""
+  })
+  public String header;
+
+  @Benchmark
+  public int parse() {
+    return Cookies.parse(header).size();
+  }
+}
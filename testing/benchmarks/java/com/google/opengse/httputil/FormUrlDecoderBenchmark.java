@@ -0,0 +1,57 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.opengse.httputil;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link FormUrlDecoder#parse} on query strings and form posts,
+ * from a couple of plain parameters to a long form full of escapes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FormUrlDecoderBenchmark {
+
+  /** The encoded parameters to decode. */
+  @Param({
+    "q=opengse&hl=en",
+    "q=open+source+servlet+engine&hl=en&start=10&num=20&safe=off"
+        + "&client=firefox-a&rls=org.mozilla%3Aen-US%3Aofficial&sa=N",
+    "name=J%C3%BCrgen+M%C3%BCller&email=jm%40example.com"
+        + "&address=Stra%C3%9Fe+12%2C+10115+Berlin&comment=Hello%2C+world%21"
+        + "+%3C%3E+%26+%25+%23&tags=a&tags=b&tags=c&tags=d&agree=on"
+  })
+  public String form;
+
+  @Benchmark
+  public ParamMap parse() {
+    return FormUrlDecoder.parse(form, null, "UTF-8");
+  }
+}
@@ -0,0 +1,99 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.opengse.iobuffer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures moving bytes into, out of and between {@link IOBuffer}s, with
+ * heap buffers and with the pooled direct buffers connections use.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class IOBufferBenchmark {
+
+  /** The number of bytes moved by each operation. */
+  @Param({"64", "4096", "65536"})
+  public int size;
+
+  /** Whether the buffers come from the default {@link BufferPool}. */
+  @Param({"false", "true"})
+  public boolean pooled;
+
+  private byte[] data_;
+  private byte[] sink_;
+  private IOBuffer src_;
+  private IOBuffer dst_;
+
+  @Setup
+  public void setUp() {
+    data_ = new byte[size];
+    Arrays.fill(data_, (byte) 'x');
+    sink_ = new byte[size];
+    src_ = pooled ? new IOBuffer(BufferPool.getDefault()) : new IOBuffer();
+    dst_ = pooled ? new IOBuffer(BufferPool.getDefault()) : new IOBuffer();
+  }
+
+  /** Writes bytes and flushes them, as a response body is written. */
+  @Benchmark
+  public int write() throws IOException {
+    src_.writeBytes(data_);
+    src_.flush();
+    int n = src_.availableBytes();
+    src_.clear();
+    return n;
+  }
+
+  /** Writes bytes and reads them back out, as a request is consumed. */
+  @Benchmark
+  public int writeThenRead() throws IOException {
+    src_.writeBytes(data_);
+    src_.flush();
+    int n = 0;
+    while (n < size) {
+      n += src_.readBytes(sink_, n, size - n);
+    }
+    return n;
+  }
+
+  /** Moves bytes from one buffer to another without copying them. */
+  @Benchmark
+  public int transfer() throws IOException {
+    src_.writeBytes(data_);
+    src_.flush();
+    int n = dst_.transfer(src_, size);
+    src_.clear();
+    dst_.clear();
+    return n;
+  }
+}
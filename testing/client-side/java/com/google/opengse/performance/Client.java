@@ -51,6 +51,7 @@ public abstract class Client implements Comparable<Client> {
    */
   protected long bytes_;
   protected long wait_;
+  protected LatencyHistogram waits_; // wait of each request (in ms)
   protected int requests_;
   protected int successes_;
   protected int failures_;
@@ -89,6 +90,7 @@ public abstract class Client implements Comparable<Client> {
 
     this.bytes_ = 0;
     this.wait_ = 0;
+    this.waits_ = new LatencyHistogram(3600L * 1000, 3);
     this.requests_ = 0;
     this.successes_ = 0;
     this.failures_ = 0;
@@ -114,7 +116,12 @@ public abstract class Client implements Comparable<Client> {
   public abstract void handleResponse();
 
   public int compareTo(Client c) {
-    return (int) (next_ - c.next_);
+    if (next_ != c.next_) {
+      return (next_ < c.next_) ? -1 : 1;
+    }
+    // Clients due in the same millisecond must not look like duplicates
+    // to the simulator's TreeSet, or all but one would be dropped.
+    return name_.compareTo(c.name_);
   }
 
   @Override
@@ -177,6 +184,7 @@ public abstract class Client implements Comparable<Client> {
       long wait = (System.currentTimeMillis() - start_);
       long xfer = (long) (1000 * (size_ / (speed_ * 1024 / 8)));
       wait_ += (wait - xfer);
+      waits_.recordValue(Math.max(0, wait - xfer));
       start_ = 0;
       read_header_ = false;
       header_ = new StringBuffer();
@@ -0,0 +1,286 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.opengse.performance;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * A histogram of latencies in the manner of HdrHistogram: values are
+ * counted in buckets whose width grows with the value, so that every
+ * value from one unit up to the highest trackable one is kept to a fixed
+ * number of significant decimal digits in a fixed amount of memory.
+ * Percentiles read from it are exact to that precision, however long the
+ * tail, which an average or a reservoir sample can't promise.
+ *
+ * <p>Bucket <i>b</i> holds values of <i>2^b</i> times a sub-bucket index,
+ * with the low half of each bucket's sub-buckets overlapping the previous
+ * bucket and so left out. Values above the highest trackable one are
+ * counted as that value, and the real maximum is kept separately.
+ *
+ * <p>Instances are not thread safe.
+ */
+public final class LatencyHistogram {
+
+  private final long highest_;
+  private final int sub_bucket_half_count_magnitude_;
+  private final int sub_bucket_half_count_;
+  private final long sub_bucket_mask_;
+  private final int leading_zero_count_base_;
+  private final long[] counts_;
+
+  private long total_count_;
+  private long min_ = Long.MAX_VALUE;
+  private long max_;
+  private double sum_;
+
+  /**
+   * @param highest the highest value to track exactly, at least 2
+   * @param digits the number of significant decimal digits to keep, from
+   *        1 to 5
+   */
+  public LatencyHistogram(long highest, int digits) {
+    if (highest < 2) {
+      throw new IllegalArgumentException("highest must be at least 2");
+    }
+    if (digits < 1 || digits > 5) {
+      throw new IllegalArgumentException("digits must be from 1 to 5");
+    }
+    this.highest_ = highest;
+    long largest_single_unit = 2 * (long) Math.pow(10, digits);
+    int sub_bucket_count_magnitude =
+        (int) Math.ceil(Math.log(largest_single_unit) / Math.log(2));
+    this.sub_bucket_half_count_magnitude_ = sub_bucket_count_magnitude - 1;
+    int sub_bucket_count = 1 << sub_bucket_count_magnitude;
+    this.sub_bucket_half_count_ = sub_bucket_count / 2;
+    this.sub_bucket_mask_ = sub_bucket_count - 1;
+    this.leading_zero_count_base_ = 64 - sub_bucket_count_magnitude;
+
+    int buckets = 1;
+    for (long limit = sub_bucket_count; limit <= highest; limit <<= 1) {
+      ++buckets;
+    }
+    this.counts_ = new long[(buckets + 1) * sub_bucket_half_count_];
+  }
+
+  /** Counts a value, which must not be negative. */
+  public void recordValue(long value) {
+    recordValues(value, 1);
+  }
+
+  /** Counts a value, which must not be negative, several times. */
+  public void recordValues(long value, long count) {
+    if (value < 0) {
+      throw new IllegalArgumentException("negative value " + value);
+    }
+    counts_[indexOf(Math.min(value, highest_))] += count;
+    total_count_ += count;
+    min_ = Math.min(min_, value);
+    max_ = Math.max(max_, value);
+    sum_ += (double) value * count;
+  }
+
+  /**
+   * Counts a value that was measured by a client that waits for each
+   * response before it sends the next request, every
+   * <code>expected_interval</code> if nothing is slow. A response that
+   * took several intervals held back the requests that should have been
+   * sent meanwhile, so they are counted too, each with the latency it
+   * would have seen. This corrects for coordinated omission after the
+   * fact; an open-loop client, which measures from when each request was
+   * due, has nothing to correct.
+   */
+  public void recordValueWithExpectedInterval(long value,
+      long expected_interval) {
+    recordValue(value);
+    if (expected_interval <= 0) {
+      return;
+    }
+    for (long missed = value - expected_interval; missed >= expected_interval;
+         missed -= expected_interval) {
+      recordValue(missed);
+    }
+  }
+
+  /** Adds the counts of another histogram with the same shape. */
+  public void add(LatencyHistogram other) {
+    if (other.counts_.length != counts_.length
+        || other.sub_bucket_half_count_ != sub_bucket_half_count_) {
+      throw new IllegalArgumentException("histograms differ in shape");
+    }
+    for (int i = 0; i < counts_.length; ++i) {
+      counts_[i] += other.counts_[i];
+    }
+    total_count_ += other.total_count_;
+    min_ = Math.min(min_, other.min_);
+    max_ = Math.max(max_, other.max_);
+    sum_ += other.sum_;
+  }
+
+  /** Forgets every value counted so far. */
+  public void reset() {
+    Arrays.fill(counts_, 0);
+    total_count_ = 0;
+    min_ = Long.MAX_VALUE;
+    max_ = 0;
+    sum_ = 0;
+  }
+
+  public long getTotalCount() {
+    return total_count_;
+  }
+
+  /** Returns the smallest value counted, or 0 if there are none. */
+  public long getMinValue() {
+    return (total_count_ == 0) ? 0 : min_;
+  }
+
+  /** Returns the largest value counted, exactly, or 0 if there are none. */
+  public long getMaxValue() {
+    return max_;
+  }
+
+  /** Returns the mean of the values counted, or 0 if there are none. */
+  public double getMean() {
+    return (total_count_ == 0) ? 0 : sum_ / total_count_;
+  }
+
+  /**
+   * Returns the value that <code>percentile</code> percent of the values
+   * counted are at or below, to the histogram's precision. The 100th
+   * percentile is the exact maximum.
+   */
+  public long getValueAtPercentile(double percentile) {
+    if (total_count_ == 0) {
+      return 0;
+    }
+    if (percentile >= 100) {
+      return max_;
+    }
+    long wanted = Math.max(1,
+        (long) Math.ceil(percentile / 100 * total_count_));
+    long seen = 0;
+    for (int i = 0; i < counts_.length; ++i) {
+      seen += counts_[i];
+      if (seen >= wanted) {
+        return Math.min(highestEquivalentValue(i), max_);
+      }
+    }
+    return max_;
+  }
+
+  /**
+   * Prints the distribution of the values as a table of value, percentile,
+   * count and 1/(1-percentile), in the format HdrHistogram's plotting
+   * tools read, with values divided by <code>scale</code>. Each halving of
+   * the remaining tail gets <code>ticks</code> rows.
+   */
+  public void outputPercentileDistribution(PrintStream out, int ticks,
+      double scale) {
+    out.println(String.format(Locale.US, "%12s %14s %10s %14s",
+        "Value", "Percentile", "TotalCount", "1/(1-Percentile)"));
+    out.println();
+    if (total_count_ > 0) {
+      double percentile = 0;
+      double step = 100.0 / (2 * ticks);
+      double half = 50;
+      long last_count = -1;
+      while (true) {
+        long value = getValueAtPercentile(percentile);
+        long count = countAtOrBelow(value);
+        if (count != last_count || percentile == 0) {
+          out.println(String.format(Locale.US, "%12.3f %2.12f %10d %14.2f",
+              value / scale, percentile / 100, count,
+              1 / (1 - percentile / 100)));
+          last_count = count;
+        }
+        if (count >= total_count_) {
+          break;
+        }
+        percentile += step;
+        if (percentile >= 100 - half) {
+          half /= 2;
+          step /= 2;
+        }
+      }
+      out.println(String.format(Locale.US, "%12.3f %2.12f %10d",
+          max_ / scale, 1.0, total_count_));
+    }
+    out.println(String.format(Locale.US,
+        "#[Mean    = %12.3f, StdDeviation   = %12.3f]",
+        getMean() / scale, getStdDeviation() / scale));
+    out.println(String.format(Locale.US,
+        "#[Max     = %12.3f, Total count    = %12d]",
+        max_ / scale, total_count_));
+  }
+
+  /** Returns the standard deviation of the values, to its precision. */
+  public double getStdDeviation() {
+    if (total_count_ == 0) {
+      return 0;
+    }
+    double mean = getMean();
+    double squares = 0;
+    for (int i = 0; i < counts_.length; ++i) {
+      if (counts_[i] != 0) {
+        double d = medianEquivalentValue(i) - mean;
+        squares += d * d * counts_[i];
+      }
+    }
+    return Math.sqrt(squares / total_count_);
+  }
+
+  private long countAtOrBelow(long value) {
+    int last = indexOf(Math.min(value, highest_));
+    long count = 0;
+    for (int i = 0; i <= last; ++i) {
+      count += counts_[i];
+    }
+    return count;
+  }
+
+  private int indexOf(long value) {
+    int bucket = leading_zero_count_base_
+        - Long.numberOfLeadingZeros(value | sub_bucket_mask_);
+    int sub_bucket = (int) (value >>> bucket);
+    return ((bucket + 1) << sub_bucket_half_count_magnitude_)
+        + (sub_bucket - sub_bucket_half_count_);
+  }
+
+  private long lowestEquivalentValue(int index) {
+    int bucket = (index >> sub_bucket_half_count_magnitude_) - 1;
+    int sub_bucket = (index & (sub_bucket_half_count_ - 1))
+        + sub_bucket_half_count_;
+    if (bucket < 0) {
+      sub_bucket -= sub_bucket_half_count_;
+      bucket = 0;
+    }
+    return ((long) sub_bucket) << bucket;
+  }
+
+  private long bucketWidth(int index) {
+    int bucket = Math.max(0, (index >> sub_bucket_half_count_magnitude_) - 1);
+    return 1L << bucket;
+  }
+
+  private long highestEquivalentValue(int index) {
+    return lowestEquivalentValue(index) + bucketWidth(index) - 1;
+  }
+
+  private double medianEquivalentValue(int index) {
+    return lowestEquivalentValue(index) + (bucketWidth(index) - 1) / 2.0;
+  }
+}
@@ -0,0 +1,597 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.opengse.performance;
+
+import com.google.opengse.performance.Scenario.Mode;
+import com.google.opengse.performance.Scenario.Workload;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.text.NumberFormat;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * OpenLoopSimulator: sends requests at a constant rate, whether or not the
+ * server keeps up, and records how long they took in latency histograms.
+ *
+ * <p>The {@link Simulator}'s clients each wait for a response before they
+ * send again, so when the server stalls they stop sending, and the
+ * requests that would have waited out the stall are never measured. This
+ * simulator instead decides up front when each request is due, and
+ * measures its <em>response time</em> from that moment to the end of its
+ * response. A request that had to queue behind a slow one on its
+ * connection is charged for the wait, as a user would be, so the tail
+ * percentiles are not hidden by coordinated omission. The <em>service
+ * time</em>, from when the request was actually sent, is recorded too;
+ * the gap between the two is the queueing the server caused.
+ *
+ * <p>Each request goes to one of the {@link Scenario}'s workloads in
+ * proportion to their weights, and to its workload's connections in turn.
+ * All of the connections are served by one thread and one selector.
+ * Only responses with a status below 400 are counted in the histograms;
+ * the others are counted as failures, and requests that got no response
+ * at all as errors.
+ *
+ * <p>Run with
+ * <code>java com.google.opengse.performance.OpenLoopSimulator
+ * scenario.properties</code>.
+ */
+public class OpenLoopSimulator {
+
+  private static final Logger LOGGER =
+      Logger.getLogger(OpenLoopSimulator.class.getName());
+
+  /** Latencies are recorded in microseconds, up to an hour. */
+  private static final long HIGHEST_LATENCY = 3600L * 1000 * 1000;
+  private static final int LATENCY_DIGITS = 3;
+
+  private static final double[] PERCENTILES = { 50, 90, 99, 99.9, 99.99 };
+
+  private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+  private final Scenario scenario_;
+  private final InetSocketAddress address_;
+  private final List<Workload> workloads_;
+  private final Stats[] stats_;
+  private final Connection[][] connections_;
+  private final int[] next_connection_;
+  private final int[] current_weight_;
+  private final int total_weight_;
+
+  private Selector selector_;
+  private long record_from_;
+  private int outstanding_;
+
+  public OpenLoopSimulator(Scenario scenario) {
+    scenario_ = scenario;
+    address_ = new InetSocketAddress(scenario.getServer(), scenario.getPort());
+    workloads_ = scenario.getWorkloads();
+    int n = workloads_.size();
+    stats_ = new Stats[n];
+    connections_ = new Connection[n][];
+    next_connection_ = new int[n];
+    current_weight_ = new int[n];
+    int total_weight = 0;
+    for (int i = 0; i < n; ++i) {
+      Workload workload = workloads_.get(i);
+      stats_[i] = new Stats();
+      connections_[i] = new Connection[workload.getConnections()];
+      for (int j = 0; j < connections_[i].length; ++j) {
+        connections_[i][j] = new Connection(workload, stats_[i]);
+      }
+      total_weight += workload.getWeight();
+    }
+    total_weight_ = total_weight;
+  }
+
+  /**
+   * Runs the scenario and prints the results.
+   */
+  public void run() throws IOException {
+    outputSetup();
+    selector_ = Selector.open();
+    long start = System.nanoTime();
+    record_from_ = start + scenario_.getWarmup() * 1000000000L;
+    long stop = record_from_ + scenario_.getDuration() * 1000000000L;
+    long deadline = stop + scenario_.getDrain() * 1000000000L;
+    double interval = 1e9 / scenario_.getRate();
+    try {
+      long arrivals = 0;
+      long next = start;
+      for (;;) {
+        long now = System.nanoTime();
+
+        // send everything that is due, each stamped with when it was due
+        while (next <= now && next < stop) {
+          dispatch(next, now);
+          next = start + (long) (++arrivals * interval);
+        }
+        if (next >= stop && (outstanding_ == 0 || now >= deadline)) {
+          break;
+        }
+
+        // spin rather than sleep when the next request is due within a
+        // millisecond, as select can't wait any less
+        long wait = ((next < stop) ? next : deadline) - now;
+        if (wait < 1000000) {
+          selector_.selectNow();
+        } else {
+          selector_.select(wait / 1000000);
+        }
+        handleSelectedKeys();
+      }
+      for (Connection[] connections : connections_) {
+        for (Connection connection : connections) {
+          connection.abandon();
+        }
+      }
+    } finally {
+      selector_.close();
+    }
+    outputResults();
+  }
+
+  /**
+   * Queues a request that was due at <code>intended</code> on the next
+   * connection of the next workload.
+   */
+  private void dispatch(long intended, long now) {
+    int best = 0;
+    for (int i = 0; i < current_weight_.length; ++i) {
+      // smooth weighted round robin, which spreads each workload's share
+      current_weight_[i] += workloads_.get(i).getWeight();
+      if (current_weight_[i] > current_weight_[best]) {
+        best = i;
+      }
+    }
+    current_weight_[best] -= total_weight_;
+
+    Connection[] connections = connections_[best];
+    int i = next_connection_[best];
+    next_connection_[best] = (i + 1) % connections.length;
+    if (intended >= record_from_) {
+      ++stats_[best].sent_;
+    }
+    ++outstanding_;
+    connections[i].queue(intended, now);
+  }
+
+  private void handleSelectedKeys() {
+    long now = System.nanoTime();
+    for (Iterator<SelectionKey> i = selector_.selectedKeys().iterator();
+         i.hasNext();) {
+      SelectionKey key = i.next();
+      i.remove();
+      Connection connection = (Connection) key.attachment();
+      try {
+        if (key.isValid() && key.isConnectable()) {
+          connection.finishConnect(now);
+        }
+        if (key.isValid() && key.isReadable()) {
+          connection.read(now);
+        }
+        if (key.isValid() && key.isWritable()) {
+          connection.pump(now);
+        }
+      } catch (IOException e) {
+        connection.fail(e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Print the setup info
+   */
+  public void outputSetup() {
+    report("Open-loop scenario");
+    report("------------------");
+    report("Server:\t\t" + scenario_.getServer() + ":" + scenario_.getPort());
+    report("Rate:\t\t" + scenario_.getRate() + " requests/s");
+    report("Duration:\t" + scenario_.getDuration() + " s after a "
+        + scenario_.getWarmup() + " s warmup");
+    report("Workloads:");
+    for (Workload workload : workloads_) {
+      report("  " + workload);
+    }
+  }
+
+  /**
+   * Print the output info
+   */
+  public void outputResults() throws IOException {
+    Stats total = new Stats();
+    for (int i = 0; i < stats_.length; ++i) {
+      report("");
+      report("Results: " + workloads_.get(i));
+      outputStats(stats_[i]);
+      total.add(stats_[i]);
+    }
+    if (stats_.length > 1) {
+      report("");
+      report("Results: all workloads");
+      outputStats(total);
+    }
+
+    String file = scenario_.getHistogramFile();
+    if (file != null) {
+      PrintStream out = new PrintStream(new File(file), "UTF-8");
+      try {
+        total.response_.outputPercentileDistribution(out, 5, 1000.0);
+      } finally {
+        out.close();
+      }
+      report("");
+      report("Response time distribution (ms) written to " + file);
+    }
+  }
+
+  private void outputStats(Stats stats) {
+    NumberFormat nf = NumberFormat.getInstance();
+    nf.setMinimumFractionDigits(2);
+    nf.setMaximumFractionDigits(2);
+    report("  Requests:\t" + stats.sent_ + " sent, " + stats.ok_ + " ok, "
+        + stats.failed_ + " failed, " + stats.errors_ + " errors, "
+        + (stats.sent_ - stats.ok_ - stats.failed_ - stats.errors_)
+        + " unfinished");
+    report("  Throughput:\t"
+        + nf.format((double) stats.ok_ / scenario_.getDuration()) + " ok/s");
+    report("  Response time (ms), from when each request was due:");
+    report("    " + percentiles(stats.response_));
+    report("  Service time (ms), from when each request was sent:");
+    report("    " + percentiles(stats.service_));
+  }
+
+  private static String percentiles(LatencyHistogram histogram) {
+    NumberFormat nf = NumberFormat.getInstance();
+    nf.setMinimumFractionDigits(3);
+    nf.setMaximumFractionDigits(3);
+    StringBuilder sb = new StringBuilder();
+    for (double percentile : PERCENTILES) {
+      String name = Double.toString(percentile);
+      if (name.endsWith(".0")) {
+        name = name.substring(0, name.length() - 2);
+      }
+      sb.append('p').append(name).append(' ')
+          .append(nf.format(histogram.getValueAtPercentile(percentile) / 1000.0))
+          .append("  ");
+    }
+    sb.append("max ").append(nf.format(histogram.getMaxValue() / 1000.0));
+    sb.append("  mean ").append(nf.format(histogram.getMean() / 1000.0));
+    return sb.toString();
+  }
+
+  private void report(String text) {
+    System.out.println(text);
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length != 1) {
+      System.err.println("usage: OpenLoopSimulator scenario.properties");
+      System.exit(2);
+    }
+    new OpenLoopSimulator(Scenario.load(new File(args[0]))).run();
+    System.exit(0);
+  }
+
+  /** The counts and latencies of the recorded requests of a workload. */
+  private static final class Stats {
+    final LatencyHistogram response_ =
+        new LatencyHistogram(HIGHEST_LATENCY, LATENCY_DIGITS);
+    final LatencyHistogram service_ =
+        new LatencyHistogram(HIGHEST_LATENCY, LATENCY_DIGITS);
+    long sent_;
+    long ok_;
+    long failed_;
+    long errors_;
+
+    void add(Stats other) {
+      response_.add(other.response_);
+      service_.add(other.service_);
+      sent_ += other.sent_;
+      ok_ += other.ok_;
+      failed_ += other.failed_;
+      errors_ += other.errors_;
+    }
+  }
+
+  /**
+   * A connection to the server, and the requests queued for it. The
+   * connection is opened when there is a request to send and reopened
+   * when the server closes it.
+   */
+  private final class Connection {
+    private final Workload workload_;
+    private final Stats stats_;
+    private final ResponseParser parser_ = new ResponseParser();
+    private final ByteBuffer in_ = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+    // when each request was due, for those not yet sent and those sent
+    private final LongQueue queued_ = new LongQueue();
+    private final LongQueue intended_ = new LongQueue();
+    // when each request in flight was sent
+    private final LongQueue sent_ = new LongQueue();
+
+    private SocketChannel channel_;
+    private SelectionKey key_;
+    private boolean connected_;
+    private long connect_started_;
+    private int requests_;
+    private int responses_;
+    private ByteBuffer out_;
+
+    Connection(Workload workload, Stats stats) {
+      this.workload_ = workload;
+      this.stats_ = stats;
+    }
+
+    void queue(long intended, long now) {
+      queued_.addLast(intended);
+      try {
+        pump(now);
+      } catch (IOException e) {
+        fail(e.getMessage());
+      }
+    }
+
+    /**
+     * Opens the connection, or writes as many of the queued requests as
+     * the workload allows to be outstanding, as far as it can without
+     * blocking.
+     */
+    void pump(long now) throws IOException {
+      if (channel_ == null) {
+        if (!queued_.isEmpty()) {
+          connect(now);
+        }
+        return;
+      }
+      if (!connected_) {
+        return;
+      }
+      for (;;) {
+        if (out_ != null) {
+          channel_.write(out_);
+          if (out_.hasRemaining()) {
+            break;
+          }
+          out_ = null;
+        }
+        if (queued_.isEmpty() || intended_.size() >= workload_.getDepth()
+            || (workload_.getMode() == Mode.CLOSE && requests_ > 0)) {
+          break;
+        }
+        if (intended_.isEmpty()) {
+          parser_.reset(workload_.isHead());
+        }
+        intended_.addLast(queued_.removeFirst());
+        // the first request on a connection waited for it to open
+        sent_.addLast((requests_++ == 0) ? connect_started_ : now);
+        out_ = ByteBuffer.wrap(workload_.getRequest());
+      }
+      key_.interestOps((out_ != null)
+          ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+          : SelectionKey.OP_READ);
+    }
+
+    private void connect(long now) throws IOException {
+      connect_started_ = now;
+      requests_ = 0;
+      responses_ = 0;
+      channel_ = SocketChannel.open();
+      channel_.configureBlocking(false);
+      channel_.socket().setTcpNoDelay(true);
+      connected_ = channel_.connect(address_);
+      key_ = channel_.register(selector_,
+          connected_ ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+      if (connected_) {
+        pump(now);
+      }
+    }
+
+    void finishConnect(long now) throws IOException {
+      if (channel_.finishConnect()) {
+        connected_ = true;
+        key_.interestOps(SelectionKey.OP_READ);
+        pump(now);
+      }
+    }
+
+    void read(long now) throws IOException {
+      int n = channel_.read(in_);
+      in_.flip();
+      boolean keep_alive = true;
+      while (in_.hasRemaining() && keep_alive) {
+        if (intended_.isEmpty()) {
+          throw new IOException("response to no request");
+        }
+        if (!parser_.parse(in_)) {
+          break;
+        }
+        keep_alive = parser_.isKeepAlive()
+            && workload_.getMode() != Mode.CLOSE;
+        complete(now);
+        parser_.reset(workload_.isHead());
+      }
+      in_.compact();
+
+      if (n < 0 && keep_alive) {
+        if (!intended_.isEmpty() && parser_.endOfStream()) {
+          complete(now);
+        }
+        keep_alive = false;
+      }
+      if (!keep_alive || workload_.getMode() == Mode.CLOSE
+          && intended_.isEmpty()) {
+        closed(now);
+      } else {
+        pump(now);
+      }
+    }
+
+    /** Records the response to the oldest request in flight. */
+    private void complete(long now) {
+      long intended = intended_.removeFirst();
+      long sent = sent_.removeFirst();
+      ++responses_;
+      --outstanding_;
+      if (intended < record_from_) {
+        return;
+      }
+      if (parser_.getStatus() >= 400) {
+        ++stats_.failed_;
+      } else {
+        ++stats_.ok_;
+        stats_.response_.recordValue((now - intended) / 1000);
+        stats_.service_.recordValue((now - sent) / 1000);
+      }
+    }
+
+    /**
+     * Handles the end of the connection. Requests the server never
+     * answered go back on the queue if it had answered others, as a
+     * persistent connection may be closed at any time between requests,
+     * and are errors otherwise.
+     */
+    private void closed(long now) throws IOException {
+      boolean retry = responses_ > 0 && !parser_.isStarted();
+      close();
+      if (!intended_.isEmpty()) {
+        if (retry) {
+          while (!intended_.isEmpty()) {
+            queued_.addFirst(intended_.removeLast());
+          }
+          sent_.clear();
+        } else {
+          failInFlight();
+        }
+      }
+      pump(now);
+    }
+
+    /** Gives up on every request of the connection after an I/O error. */
+    void fail(String message) {
+      if (Simulator.FLAG_verbose) {
+        LOGGER.warning(workload_.getName() + ": " + message);
+      }
+      close();
+      failInFlight();
+      while (!queued_.isEmpty()) {
+        error(queued_.removeFirst());
+      }
+    }
+
+    /** Forgets the requests still outstanding at the end of the run. */
+    void abandon() {
+      close();
+      outstanding_ -= intended_.size() + queued_.size();
+      intended_.clear();
+      sent_.clear();
+      queued_.clear();
+    }
+
+    private void failInFlight() {
+      while (!intended_.isEmpty()) {
+        error(intended_.removeFirst());
+      }
+      sent_.clear();
+    }
+
+    private void error(long intended) {
+      --outstanding_;
+      if (intended >= record_from_) {
+        ++stats_.errors_;
+      }
+    }
+
+    private void close() {
+      if (channel_ != null) {
+        key_.cancel();
+        try {
+          channel_.close();
+        } catch (IOException e) {
+          // nothing more to do with it
+        }
+      }
+      channel_ = null;
+      key_ = null;
+      connected_ = false;
+      out_ = null;
+      in_.clear();
+    }
+  }
+
+  /** A double-ended queue of <code>long</code>s, without boxing. */
+  private static final class LongQueue {
+    private long[] items_ = new long[8];
+    private int head_;
+    private int size_;
+
+    boolean isEmpty() {
+      return size_ == 0;
+    }
+
+    int size() {
+      return size_;
+    }
+
+    void clear() {
+      head_ = 0;
+      size_ = 0;
+    }
+
+    void addLast(long item) {
+      grow();
+      items_[(head_ + size_++) & (items_.length - 1)] = item;
+    }
+
+    void addFirst(long item) {
+      grow();
+      head_ = (head_ - 1) & (items_.length - 1);
+      items_[head_] = item;
+      ++size_;
+    }
+
+    long removeFirst() {
+      long item = items_[head_];
+      head_ = (head_ + 1) & (items_.length - 1);
+      --size_;
+      return item;
+    }
+
+    long removeLast() {
+      --size_;
+      return items_[(head_ + size_) & (items_.length - 1)];
+    }
+
+    private void grow() {
+      if (size_ == items_.length) {
+        long[] items = new long[2 * items_.length];
+        for (int i = 0; i < size_; ++i) {
+          items[i] = items_[(head_ + i) & (items_.length - 1)];
+        }
+        items_ = items;
+        head_ = 0;
+      }
+    }
+  }
+}
@@ -0,0 +1,253 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.opengse.performance;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Finds where each HTTP/1.x response ends in the bytes read from a
+ * connection, so that a client can match responses to pipelined requests
+ * and reuse a connection. It reads the status line and the headers that
+ * frame the body, then skips the body by its Content-Length, its chunks,
+ * or up to the end of the stream. Interim 1xx responses are skipped.
+ *
+ * <p>Instances are not thread safe.
+ */
+final class ResponseParser {
+  private static final int STATUS_LINE = 0;
+  private static final int HEADER_LINE = 1;
+  private static final int BODY = 2;
+  private static final int CHUNK_SIZE = 3;
+  private static final int CHUNK_DATA = 4;
+  private static final int CHUNK_END = 5;
+  private static final int TRAILER_LINE = 6;
+  private static final int UNTIL_CLOSE = 7;
+  private static final int DONE = 8;
+
+  private static final int MAX_LINE = 16384;
+
+  private final StringBuilder line_ = new StringBuilder();
+  private int state_;
+  private boolean head_request_;
+  private int status_;
+  private boolean keep_alive_;
+  private boolean chunked_;
+  private long content_length_;
+  private long remaining_;
+
+  ResponseParser() {
+    reset(false);
+  }
+
+  /**
+   * Prepares for the next response.
+   *
+   * @param head_request whether the response is to a HEAD request, and so
+   *        has no body whatever its headers say
+   */
+  void reset(boolean head_request) {
+    head_request_ = head_request;
+    startHead();
+  }
+
+  private void startHead() {
+    state_ = STATUS_LINE;
+    line_.setLength(0);
+    status_ = 0;
+    keep_alive_ = false;
+    chunked_ = false;
+    content_length_ = -1;
+    remaining_ = 0;
+  }
+
+  /**
+   * Consumes bytes from <code>buf</code> up to the end of the response or
+   * of the buffer, whichever comes first.
+   *
+   * @return <code>true</code> once the whole response has been read
+   * @throws IOException if the response is malformed
+   */
+  boolean parse(ByteBuffer buf) throws IOException {
+    while (state_ != DONE && buf.hasRemaining()) {
+      switch (state_) {
+        case BODY:
+        case CHUNK_DATA:
+        case UNTIL_CLOSE:
+          int n = (int) Math.min(buf.remaining(),
+              (state_ == UNTIL_CLOSE) ? Integer.MAX_VALUE : remaining_);
+          buf.position(buf.position() + n);
+          remaining_ -= n;
+          if (state_ == BODY && remaining_ == 0) {
+            state_ = DONE;
+          } else if (state_ == CHUNK_DATA && remaining_ == 0) {
+            state_ = CHUNK_END;
+          }
+          break;
+        default:
+          if (readLine(buf)) {
+            handleLine(line_.toString());
+            line_.setLength(0);
+          }
+          break;
+      }
+    }
+    return state_ == DONE;
+  }
+
+  /**
+   * Tells the parser that the connection was closed.
+   *
+   * @return <code>true</code> if that ended the response, which it does
+   *         when the body had no length
+   */
+  boolean endOfStream() {
+    if (state_ == UNTIL_CLOSE) {
+      state_ = DONE;
+    }
+    return state_ == DONE;
+  }
+
+  /** Has the parser seen any of a response yet? */
+  boolean isStarted() {
+    return state_ != STATUS_LINE || line_.length() > 0;
+  }
+
+  /** Returns the status code of the response. */
+  int getStatus() {
+    return status_;
+  }
+
+  /** May the connection be used for another request after this response? */
+  boolean isKeepAlive() {
+    return keep_alive_ && state_ == DONE;
+  }
+
+  private boolean readLine(ByteBuffer buf) throws IOException {
+    while (buf.hasRemaining()) {
+      char c = (char) (buf.get() & 0xff);
+      if (c == '\n') {
+        int length = line_.length();
+        if (length > 0 && line_.charAt(length - 1) == '\r') {
+          line_.setLength(length - 1);
+        }
+        return true;
+      }
+      if (line_.length() == MAX_LINE) {
+        throw new IOException("response line longer than " + MAX_LINE);
+      }
+      line_.append(c);
+    }
+    return false;
+  }
+
+  private void handleLine(String line) throws IOException {
+    switch (state_) {
+      case STATUS_LINE:
+        if (line.length() == 0) {
+          return;  // tolerate a stray line end between responses
+        }
+        if (!line.startsWith("HTTP/1.") || line.length() < 12) {
+          throw new IOException("bad status line: " + line);
+        }
+        // HTTP/1.1 connections persist unless they say otherwise
+        keep_alive_ = line.charAt(7) != '0';
+        try {
+          status_ = Integer.parseInt(line.substring(9, 12));
+        } catch (NumberFormatException e) {
+          throw new IOException("bad status line: " + line);
+        }
+        state_ = HEADER_LINE;
+        break;
+
+      case HEADER_LINE:
+        if (line.length() > 0) {
+          header(line);
+        } else {
+          startBody();
+        }
+        break;
+
+      case CHUNK_SIZE:
+        int semicolon = line.indexOf(';');
+        String size = (semicolon < 0) ? line : line.substring(0, semicolon);
+        try {
+          remaining_ = Long.parseLong(size.trim(), 16);
+        } catch (NumberFormatException e) {
+          throw new IOException("bad chunk size: " + line);
+        }
+        state_ = (remaining_ == 0) ? TRAILER_LINE : CHUNK_DATA;
+        break;
+
+      case CHUNK_END:
+        state_ = CHUNK_SIZE;
+        break;
+
+      case TRAILER_LINE:
+        if (line.length() == 0) {
+          state_ = DONE;
+        }
+        break;
+
+      default:
+        throw new IllegalStateException();
+    }
+  }
+
+  private void header(String line) throws IOException {
+    int colon = line.indexOf(':');
+    if (colon <= 0) {
+      throw new IOException("bad header: " + line);
+    }
+    String name = line.substring(0, colon).trim();
+    String value = line.substring(colon + 1).trim();
+    if (name.equalsIgnoreCase("Content-Length")) {
+      try {
+        content_length_ = Long.parseLong(value);
+      } catch (NumberFormatException e) {
+        throw new IOException("bad header: " + line);
+      }
+    } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+      chunked_ = value.toLowerCase().endsWith("chunked");
+    } else if (name.equalsIgnoreCase("Connection")) {
+      String token = value.toLowerCase();
+      if (token.contains("close")) {
+        keep_alive_ = false;
+      } else if (token.contains("keep-alive")) {
+        keep_alive_ = true;
+      }
+    }
+  }
+
+  private void startBody() {
+    if (status_ >= 100 && status_ < 200) {
+      // an interim response; the real one follows
+      startHead();
+      return;
+    }
+    if (head_request_ || status_ == 204 || status_ == 304) {
+      state_ = DONE;
+    } else if (chunked_) {
+      state_ = CHUNK_SIZE;
+    } else if (content_length_ >= 0) {
+      remaining_ = content_length_;
+      state_ = (remaining_ == 0) ? DONE : BODY;
+    } else {
+      // the body runs to the end of the stream
+      keep_alive_ = false;
+      state_ = UNTIL_CLOSE;
+    }
+  }
+}
@@ -0,0 +1,325 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.opengse.performance;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeSet;
+
+/**
+ * A load test for the {@link OpenLoopSimulator}, read from a properties
+ * file: where to send requests, how many per second, for how long, and
+ * the workloads they are drawn from. For example:
+ *
+ * <pre>
+ * server = localhost
+ * port = 8080
+ * # requests per second across all workloads, and seconds to run for
+ * # after a warmup whose latencies are not recorded
+ * rate = 2000
+ * duration = 60
+ * warmup = 10
+ * workloads = pages, static, upload
+ *
+ * # browsers holding a connection open, one request at a time
+ * workload.pages.weight = 70
+ * workload.pages.connections = 200
+ * workload.pages.path = /performance/wait?time=5
+ *
+ * # a client pipelining up to 8 requests on each connection
+ * workload.static.weight = 25
+ * workload.static.mode = pipelined
+ * workload.static.depth = 8
+ * workload.static.connections = 10
+ * workload.static.path = /performance/wait?time=0
+ *
+ * # a new connection for every request
+ * workload.upload.weight = 5
+ * workload.upload.mode = close
+ * workload.upload.connections = 50
+ * workload.upload.method = POST
+ * workload.upload.path = /performance/echo
+ * workload.upload.body = 4096
+ * workload.upload.header.Content-Type = text/plain
+ * </pre>
+ *
+ * <p>The other settings are <code>drain</code>, the seconds to wait for
+ * outstanding responses at the end, and <code>histogram</code>, a file to
+ * write the whole distribution of response times to.
+ */
+public final class Scenario {
+
+  /** How a workload uses its connections. */
+  public enum Mode {
+    /** One request at a time on a persistent connection. */
+    KEEPALIVE,
+    /** Up to <code>depth</code> requests at a time on a connection. */
+    PIPELINED,
+    /** A new connection for each request. */
+    CLOSE
+  }
+
+  /** One kind of request, and the connections that send it. */
+  public static final class Workload {
+    private final String name_;
+    private final int weight_;
+    private final Mode mode_;
+    private final int depth_;
+    private final int connections_;
+    private final boolean head_;
+    private final byte[] request_;
+
+    Workload(String name, int weight, Mode mode, int depth, int connections,
+        boolean head, byte[] request) {
+      this.name_ = name;
+      this.weight_ = weight;
+      this.mode_ = mode;
+      this.depth_ = depth;
+      this.connections_ = connections;
+      this.head_ = head;
+      this.request_ = request;
+    }
+
+    public String getName() {
+      return name_;
+    }
+
+    /** Returns the share of the requests this workload gets. */
+    public int getWeight() {
+      return weight_;
+    }
+
+    public Mode getMode() {
+      return mode_;
+    }
+
+    /** Returns the most requests a connection may have outstanding. */
+    public int getDepth() {
+      return depth_;
+    }
+
+    /** Returns the number of connections, or of users, sending requests. */
+    public int getConnections() {
+      return connections_;
+    }
+
+    /** Whether the request is a HEAD, whose response has no body. */
+    public boolean isHead() {
+      return head_;
+    }
+
+    /** Returns the encoded request. The caller must not modify it. */
+    public byte[] getRequest() {
+      return request_;
+    }
+
+    @Override
+    public String toString() {
+      return name_ + " (" + mode_.name().toLowerCase()
+          + ((mode_ == Mode.PIPELINED) ? " x" + depth_ : "") + ", "
+          + connections_ + " connections, weight " + weight_ + ")";
+    }
+  }
+
+  private final String server_;
+  private final int port_;
+  private final double rate_;
+  private final int duration_;
+  private final int warmup_;
+  private final int drain_;
+  private final String histogram_;
+  private final List<Workload> workloads_;
+
+  private Scenario(Properties props) {
+    server_ = props.getProperty("server", Simulator.FLAG_server).trim();
+    port_ = getInt(props, "port", Simulator.FLAG_port, 1);
+    rate_ = getDouble(props, "rate");
+    duration_ = getInt(props, "duration", 60, 1);
+    warmup_ = getInt(props, "warmup", 10, 0);
+    drain_ = getInt(props, "drain", 5, 0);
+    String histogram = props.getProperty("histogram");
+    histogram_ = (histogram == null || histogram.trim().length() == 0)
+        ? null : histogram.trim();
+
+    String names = props.getProperty("workloads");
+    if (names == null) {
+      throw new IllegalArgumentException("no workloads");
+    }
+    List<Workload> workloads = new ArrayList<Workload>();
+    for (String name : names.split(",")) {
+      name = name.trim();
+      if (name.length() > 0) {
+        workloads.add(parseWorkload(props, name));
+      }
+    }
+    if (workloads.isEmpty()) {
+      throw new IllegalArgumentException("no workloads");
+    }
+    workloads_ = Collections.unmodifiableList(workloads);
+  }
+
+  /**
+   * Reads a scenario from a properties file.
+   *
+   * @throws IllegalArgumentException if a setting is missing or bad
+   */
+  public static Scenario load(File file) throws IOException {
+    InputStream in = new FileInputStream(file);
+    try {
+      return load(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Reads a scenario from a stream in the properties file format.
+   *
+   * @throws IllegalArgumentException if a setting is missing or bad
+   */
+  public static Scenario load(InputStream in) throws IOException {
+    Properties props = new Properties();
+    props.load(in);
+    return new Scenario(props);
+  }
+
+  private Workload parseWorkload(Properties props, String name) {
+    String prefix = "workload." + name + ".";
+    int weight = getInt(props, prefix + "weight", 1, 1);
+    String mode_name = props.getProperty(prefix + "mode", "keepalive").trim();
+    Mode mode;
+    try {
+      mode = Mode.valueOf(mode_name.toUpperCase());
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException(prefix + "mode must be keepalive,"
+          + " pipelined or close, not " + mode_name);
+    }
+    int depth = (mode == Mode.PIPELINED)
+        ? getInt(props, prefix + "depth", 4, 1) : 1;
+    int connections = getInt(props, prefix + "connections", 10, 1);
+    String method = props.getProperty(prefix + "method", "GET").trim();
+    String path = props.getProperty(prefix + "path");
+    if (path == null || path.trim().length() == 0) {
+      throw new IllegalArgumentException("no " + prefix + "path");
+    }
+    int body = getInt(props, prefix + "body", 0, 0);
+
+    StringBuilder head = new StringBuilder();
+    head.append(method).append(' ').append(path.trim()).append(" HTTP/1.1\r\n");
+    head.append("Host: ").append(server_).append(':').append(port_)
+        .append("\r\n");
+    if (mode == Mode.CLOSE) {
+      head.append("Connection: close\r\n");
+    }
+    String header_prefix = prefix + "header.";
+    for (String key : new TreeSet<String>(props.stringPropertyNames())) {
+      if (key.startsWith(header_prefix)) {
+        head.append(key.substring(header_prefix.length())).append(": ")
+            .append(props.getProperty(key).trim()).append("\r\n");
+      }
+    }
+    if (body > 0) {
+      head.append("Content-Length: ").append(body).append("\r\n");
+    }
+    head.append("\r\n");
+
+    byte[] bytes = new byte[head.length() + body];
+    for (int i = 0; i < head.length(); ++i) {
+      bytes[i] = (byte) head.charAt(i);
+    }
+    for (int i = 0; i < body; ++i) {
+      bytes[head.length() + i] = (byte) ('a' + i % 26);
+    }
+    return new Workload(name, weight, mode, depth, connections,
+        "HEAD".equalsIgnoreCase(method), bytes);
+  }
+
+  private static int getInt(Properties props, String key, int def, int min) {
+    String value = props.getProperty(key);
+    if (value == null) {
+      return def;
+    }
+    try {
+      int i = Integer.parseInt(value.trim());
+      if (i >= min) {
+        return i;
+      }
+    } catch (NumberFormatException e) {
+      // fall through
+    }
+    throw new IllegalArgumentException(key + " must be a whole number of at"
+        + " least " + min + ", not " + value);
+  }
+
+  private static double getDouble(Properties props, String key) {
+    String value = props.getProperty(key);
+    if (value == null) {
+      throw new IllegalArgumentException("no " + key);
+    }
+    try {
+      double d = Double.parseDouble(value.trim());
+      if (d > 0) {
+        return d;
+      }
+    } catch (NumberFormatException e) {
+      // fall through
+    }
+    throw new IllegalArgumentException(key + " must be a positive number,"
+        + " not " + value);
+  }
+
+  public String getServer() {
+    return server_;
+  }
+
+  public int getPort() {
+    return port_;
+  }
+
+  /** Returns the number of requests to send each second. */
+  public double getRate() {
+    return rate_;
+  }
+
+  /** Returns the seconds to send requests for, after the warmup. */
+  public int getDuration() {
+    return duration_;
+  }
+
+  /** Returns the seconds to send requests for before recording any. */
+  public int getWarmup() {
+    return warmup_;
+  }
+
+  /** Returns the seconds to wait for outstanding responses at the end. */
+  public int getDrain() {
+    return drain_;
+  }
+
+  /** Returns the file to write the distribution to, or <code>null</code>. */
+  public String getHistogramFile() {
+    return histogram_;
+  }
+
+  public List<Workload> getWorkloads() {
+    return workloads_;
+  }
+}
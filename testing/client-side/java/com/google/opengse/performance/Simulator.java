@@ -151,10 +151,12 @@ public abstract class Simulator {
     int successes = 0;
     int failures = 0;
     long wait = 0;
+    LatencyHistogram waits = new LatencyHistogram(3600L * 1000, 3);
     for (Client c : list_) {
       successes += c.successes_;
       failures += c.failures_;
       wait += c.wait_;
+      waits.add(c.waits_);
     }
 
     if ((successes + failures) == 0) {
@@ -177,6 +179,14 @@ public abstract class Simulator {
     nf.setMinimumFractionDigits(2);
     report(
         "Average wait:\t" + nf.format((double) wait / successes) + " ms");
+    // clients wait for each response before sending again, so these
+    // understate the tail; see OpenLoopSimulator for corrected figures
+    report("Wait percentiles (ms, closed loop, uncorrected):");
+    report("  p50 " + waits.getValueAtPercentile(50)
+        + "  p90 " + waits.getValueAtPercentile(90)
+        + "  p99 " + waits.getValueAtPercentile(99)
+        + "  p99.9 " + waits.getValueAtPercentile(99.9)
+        + "  max " + waits.getMaxValue());
     report(
         "Requests/sec:\t" + nf.format((double) successes / FLAG_simperiod));
   }
@@ -0,0 +1,65 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.opengse.performance;
+
+/**
+ * SlowRequestComparison: runs the {@link LoadSimulator} against several
+ * servers in turn with response latencies of a few seconds, so that
+ * nearly every client has a request in progress at once. This is how a
+ * thread per connection engine (the blocking transport's
+ * VirtualThreadServletEngineFactory) compares with one that hands
+ * requests to a fixed worker pool (the nio transport's ServletEngineImpl).
+ *
+ * <p>Start each server with the performance webapp, then run
+ * <code>java com.google.opengse.performance.SlowRequestComparison
+ * [port...]</code>. With a pool of N workers, a server completes at most
+ * N / (mean latency) requests per second, however many clients wait.
+ */
+public class SlowRequestComparison {
+
+  /**
+   * Mean response latency (ms)
+   */
+  public static int FLAG_latency = 2000;
+
+  /**
+   * Number of clients
+   */
+  public static int FLAG_numclients = 2000;
+
+  public static void main(String[] args) throws Exception {
+    LoadSimulator.FLAG_LATENCY_MEAN = FLAG_latency;
+    LoadSimulator.FLAG_LATENCY_STD_DEV = FLAG_latency / 4;
+    LoadSimulator.FLAG_SIZE_MEAN = 1;
+    LoadSimulator.FLAG_SIZE_STD_DEV = 0;
+    Simulator.FLAG_numclients = FLAG_numclients;
+    // each client sends its next request soon after the last response
+    Simulator.FLAG_timemean = 100;
+    Simulator.FLAG_timestddev = 50;
+    Simulator.FLAG_speedmean = 10000;
+    Simulator.FLAG_speedstddev = 0;
+    Simulator.FLAG_keepalive = true;
+    Simulator.FLAG_simperiod = 30;
+
+    String[] ports = (args.length > 0) ? args : new String[] { "8082" };
+    for (String port : ports) {
+      Simulator.FLAG_port = Integer.parseInt(port);
+      System.out.println("=== " + Simulator.FLAG_server + ":" + port);
+      new LoadSimulator().run();
+      System.out.println();
+    }
+    System.exit(0);
+  }
+}
@@ -14,26 +14,56 @@
 
 package com.google.opengse.blockingcore;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 /**
+ * Accepts connections and handles each one's requests until the handler
+ * or the client closes it, or it has been idle for the idle timeout.
+ *
  * @author jennings
  *         Date: Jul 22, 2008
  */
 public class AcceptSocketAndHandleRequest implements Runnable {
   private static final Logger LOG
       = Logger.getLogger(AcceptSocketAndHandleRequest.class.getName());
+  private static final int BUFFER_SIZE = 8192;
   private final SocketHandler handler;
   private final ServerSocket serverSocket;
+  private final int idleTimeout;
+  private final KeepAliveLimit keepAliveLimit;
 
   public AcceptSocketAndHandleRequest(SocketHandler handler, ServerSocket serverSocket) {
+    this(handler, serverSocket, 0);
+  }
+
+  /**
+   * @param idleTimeout how long, in milliseconds, a read on a connection
+   *        may wait before the connection is closed. Zero waits forever.
+   */
+  public AcceptSocketAndHandleRequest(SocketHandler handler,
+      ServerSocket serverSocket, int idleTimeout) {
+    this(handler, serverSocket, idleTimeout, null);
+  }
+
+  /**
+   * @param keepAliveLimit counts the connections accepted by this loop,
+   *        or <code>null</code>; it should be the one the handler checks
+   */
+  AcceptSocketAndHandleRequest(SocketHandler handler,
+      ServerSocket serverSocket, int idleTimeout,
+      KeepAliveLimit keepAliveLimit) {
     this.handler = handler;
     this.serverSocket = serverSocket;
+    this.idleTimeout = idleTimeout;
+    this.keepAliveLimit = keepAliveLimit;
   }
 
   public void run() {
@@ -47,19 +77,48 @@ public class AcceptSocketAndHandleRequest implements Runnable {
       acceptAndHandle();
     } catch (IOException e) {
       LOG.log(Level.FINEST, "", e);
+    } catch (RuntimeException e) {
+      // don't let one bad request take this accepting thread with it
+      LOG.log(Level.WARNING, "Error handling request", e);
     }
   }
 
   private void acceptAndHandle() throws IOException {
     Socket socket = serverSocket.accept();
+    if (keepAliveLimit != null) {
+      keepAliveLimit.connectionOpened();
+    }
     try {
       handleSocket(socket);
     } finally {
       socket.close();
+      if (keepAliveLimit != null) {
+        keepAliveLimit.connectionClosed();
+      }
+    }
+  }
+
+  /**
+   * Serves the requests on a socket which was accepted elsewhere, and then
+   * closes it. Nothing is thrown.
+   */
+  void handleConnection(Socket socket) {
+    try {
+      try {
+        handleSocket(socket);
+      } finally {
+        socket.close();
+      }
+    } catch (IOException e) {
+      LOG.log(Level.FINEST, "", e);
+    } catch (RuntimeException e) {
+      LOG.log(Level.WARNING, "Error handling request", e);
     }
   }
 
   private void handleSocket(Socket socket) throws IOException {
+    socket.setTcpNoDelay(true);
+    socket.setSoTimeout(idleTimeout);
     InputStream istr = null;
     try {
       istr = socket.getInputStream();
@@ -85,6 +144,16 @@ public class AcceptSocketAndHandleRequest implements Runnable {
 
   private void handleSocket(Socket socket, InputStream istr, OutputStream ostr)
       throws IOException {
-    handler.handleSocket(socket, istr, ostr);
+    istr = new BufferedInputStream(istr, BUFFER_SIZE);
+    ostr = new BufferedOutputStream(ostr, BUFFER_SIZE);
+    try {
+      while (handler.handleSocket(socket, istr, ostr)
+          && !serverSocket.isClosed()) {
+        // keep serving requests on this connection
+      }
+    } catch (SocketTimeoutException e) {
+      // the connection sat idle for too long
+      LOG.log(Level.FINEST, "", e);
+    }
   }
 }
@@ -41,21 +41,37 @@ final class BlockingServletEngine implements ServletEngine {
   BlockingServletEngine(FilterChain dispatcher, ServletEngineConfiguration config)
       throws InterruptedException, IOException {
     this.config = config;
-    if (config.isSecure()) {
-      SSLServerSocketFactory factory = (SSLServerSocketFactory)SSLServerSocketFactory.getDefault();
-      SSLServerSocket sslServerSocket = (SSLServerSocket)factory.createServerSocket(config.getPort());
-      sslServerSocket.setEnabledCipherSuites(config.getEnabledCipherSuites());
-      serverSocket = sslServerSocket;
-    } else {
-      serverSocket = new ServerSocket(config.getPort());
-    }
+    serverSocket = createServerSocket(config);
     int nthreads = config.getMaxThreads();
     queue = new DispatchQueueImpl(nthreads);
     handler = new HttpRequestHandlerAdapter(dispatcher);
-    socketHandler = new HttpSocketHandler(handler);
+    int idleTimeout = config.getKeepAliveTimeout();
+    // A thread waiting for the next request on a connection can't accept,
+    // so one is always left free for new connections.
+    KeepAliveLimit keepAliveLimit = new KeepAliveLimit(nthreads);
+    socketHandler = new HttpSocketHandler(handler, idleTimeout > 0,
+        keepAliveLimit);
     for (int i = 0; i < nthreads; ++i) {
-      queue.addRunnable(new AcceptSocketAndHandleRequest(socketHandler, serverSocket));
+      queue.addRunnable(new AcceptSocketAndHandleRequest(socketHandler,
+          serverSocket, Math.max(idleTimeout, 0), keepAliveLimit));
+    }
+  }
+
+  /**
+   * Creates the listening socket described by <code>config</code>, secure
+   * or not.
+   */
+  static ServerSocket createServerSocket(ServletEngineConfiguration config)
+      throws IOException {
+    // -1 asks for a free port, as it does for the nio transport
+    int port = Math.max(config.getPort(), 0);
+    if (config.isSecure()) {
+      SSLServerSocketFactory factory = (SSLServerSocketFactory)SSLServerSocketFactory.getDefault();
+      SSLServerSocket sslServerSocket = (SSLServerSocket)factory.createServerSocket(port);
+      sslServerSocket.setEnabledCipherSuites(config.getEnabledCipherSuites());
+      return sslServerSocket;
     }
+    return new ServerSocket(port);
   }
 
   public void awaitInitialization(long timeout) {
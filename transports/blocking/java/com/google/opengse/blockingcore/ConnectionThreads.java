@@ -0,0 +1,70 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.opengse.blockingcore;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Makes the threads which each serve one connection. These are virtual
+ * threads when the JVM has them (Java 21 and later), so that a connection
+ * blocked in a slow servlet costs a little heap rather than an operating
+ * system thread. The virtual thread API is looked up by reflection so that
+ * this still builds for older JVMs, which get ordinary daemon threads.
+ */
+final class ConnectionThreads {
+  private static final Logger LOG
+      = Logger.getLogger(ConnectionThreads.class.getName());
+
+  private ConnectionThreads() { /* Utility class: do not instantiate */ }
+
+  /**
+   * Returns a factory for virtual threads named <code>name</code> plus a
+   * number, or <code>null</code> if this JVM can't make them.
+   */
+  static ThreadFactory newVirtualThreadFactory(String name) {
+    try {
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      Method nameMethod
+          = builderClass.getMethod("name", String.class, long.class);
+      builder = nameMethod.invoke(builder, name, 0L);
+      return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+    } catch (Exception e) {
+      // NoSuchMethodException before Java 19, or an
+      // InvocationTargetException when the preview API isn't enabled
+      LOG.log(Level.FINEST, "No virtual threads", e);
+      return null;
+    }
+  }
+
+  /**
+   * Returns a factory for daemon platform threads named <code>name</code>
+   * plus a number, for JVMs without virtual threads.
+   */
+  static ThreadFactory newPlatformThreadFactory(final String name) {
+    final AtomicInteger count = new AtomicInteger();
+    return new ThreadFactory() {
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, name + count.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+}
@@ -13,9 +13,6 @@
 package com.google.opengse.blockingcore;
 
 import java.util.*;
-import java.io.PrintWriter;
-import java.io.BufferedReader;
-import java.io.IOException;
 
 /**
  * Represents HTTP headers for either a request or a response.
@@ -43,7 +40,11 @@ final class HttpHeaders {
     return ucase_headername_to_headername.values();
   }
 
-  void writeHeaders(PrintWriter out) {
+  /**
+   * Appends each header line, and then the blank line which ends the
+   * headers, to <code>out</code>.
+   */
+  void writeHeaders(StringBuilder out) {
     for (String ukey : ucase_headers.keySet()) {
       List<String> values = ucase_headers.get(ukey);
       if (values.isEmpty()) {
@@ -53,38 +54,14 @@ final class HttpHeaders {
       String key = ucase_headername_to_headername.get(ukey);
       // we know that values cannot be empty
       Iterator<String> iter = values.iterator();
-      out.print(key + ": " + iter.next());
+      out.append(key).append(": ").append(iter.next());
       while (iter.hasNext()) {
-        out.print("," + iter.next());
+        out.append(',').append(iter.next());
       }
-      out.print("\r\n");
+      out.append("\r\n");
     }
     // now we signal the end of headers by printing a blank line
-    out.print("\r\n");
-  }
-
-  void readHeaders(BufferedReader reader) throws IOException {
-    String line;
-    int colon;
-    while ((line = reader.readLine()) != null) {
-      if (line.length() == 0) {
-        break;
-      }
-      colon = line.indexOf(':');
-      if (colon == -1) {
-        throw new IOException("Unrecognized header line: '" + line + "'");
-      }
-      String key = line.substring(0, colon);
-      String comma_delimetered_values = line.substring(colon + 1);
-      List<String> values = getHeaderValues(key);
-      parseCommaDelimeteredValues(values, comma_delimetered_values);
-    }
-  }
-
-  private void parseCommaDelimeteredValues(List<String> values, String comma_delimetered_values) {
-    //TODO(jennings) deal properly with this
-    comma_delimetered_values = comma_delimetered_values.trim();
-    values.add(comma_delimetered_values);
+    out.append("\r\n");
   }
 
   /**
@@ -103,6 +80,34 @@ final class HttpHeaders {
     return values;
   }
 
+  /**
+   * Does any value of the given header contain <code>token</code>, such
+   * as "close" in "Connection: TE, close"? The comparison ignores case.
+   */
+  boolean headerHasToken(String name, String token) {
+    List<String> values = ucase_headers.get(name.toUpperCase());
+    if (values == null) {
+      return false;
+    }
+    for (String value : values) {
+      StringTokenizer st = new StringTokenizer(value, ",");
+      while (st.hasMoreTokens()) {
+        if (st.nextToken().trim().equalsIgnoreCase(token)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the first value of the given header, or <code>null</code>.
+   */
+  String getFirstValue(String name) {
+    List<String> values = ucase_headers.get(name.toUpperCase());
+    return (values == null || values.isEmpty()) ? null : values.get(0);
+  }
+
   boolean containsHeader(String name) {
     return ucase_headers.containsKey(name.toUpperCase());
   }
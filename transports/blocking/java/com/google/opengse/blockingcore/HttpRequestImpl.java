@@ -176,9 +176,7 @@ final class HttpRequestImpl implements HttpRequest {
   }
 
   public String getProtocol() {
-//    return "HTTP/" + requestContext.getMajorVersion() + "."
-//        + requestContext.getMinorVersion();
-    return "HTTP/1.0";
+    return requestMetaData.getType().getHttpVersion();
   }
 
   public String getScheme() {
@@ -189,4 +187,15 @@ final class HttpRequestImpl implements HttpRequest {
   public ConnectionInformation getConnectionInformation() {
     return requestMetaData;
   }
+
+  /**
+   * Returns null; each request is read on its own, so nothing is kept
+   * with the socket.
+   */
+  public Object getConnectionAttachment() {
+    return null;
+  }
+
+  public void setConnectionAttachment(Object attachment) {
+  }
 }
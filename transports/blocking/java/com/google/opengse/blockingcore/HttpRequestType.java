@@ -14,8 +14,6 @@
 
 package com.google.opengse.blockingcore;
 
-import java.io.IOException;
-
 /**
  * @author jennings
  *         Date: Jul 22, 2008
@@ -24,19 +22,14 @@ final class HttpRequestType {
   private static final String HTTP_1_0 = "HTTP/1.0";
   private String type, data, version;
 
-  HttpRequestType(String line) throws IOException {
-    type = getType(line);
-    data = getRequestData(line);
-    version = getHttpVersion(line);
-    if (data == null) {
-      throw new IOException("Cannot parse '" + line + "'");
-    }
-  }
-
+  /**
+   * @param version the HTTP version, or <code>null</code> for a request
+   *        line which had none; such requests are treated as HTTP/1.0
+   */
   HttpRequestType(String type, String data, String version) {
     this.type = type;
     this.data = data;
-    this.version = version;
+    this.version = (version == null) ? HTTP_1_0 : version;
   }
 
   HttpRequestType(String type, String data) {
@@ -47,53 +40,14 @@ final class HttpRequestType {
     return type;
   }
 
-  private static String getType(String line) {
-    if (line == null) {
-      return null;
-    }
-    int space = line.indexOf(' ');
-    if (space == -1) {
-      return null;
-    }
-    return line.substring(0, space).toUpperCase();
-  }
-
   String getRequestData() {
     return data;
   }
 
-  private static String getRequestData(String line) {
-    int space = line.indexOf(' ');
-    if (space == -1) {
-      return null;
-    }
-    String data = line.substring(space + 1);
-    space = data.indexOf(' ');
-    if (space == -1) {
-      return data;
-    } else {
-      return data.substring(0, space);
-    }
-  }
-
   String getHttpVersion() {
     return version;
   }
 
-  String getHttpVersion(String line) {
-    int space = line.indexOf(' ');
-    if (space == -1) {
-      return HTTP_1_0;
-    }
-    String data = line.substring(space + 1);
-    space = data.indexOf(' ');
-    if (space == -1) {
-      return HTTP_1_0;
-    } else {
-      return data.substring(space + 1);
-    }
-  }
-
   @Override public String toString() {
     return type + " " + data + " " + version;
   }
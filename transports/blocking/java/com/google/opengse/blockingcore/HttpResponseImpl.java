@@ -16,6 +16,7 @@ package com.google.opengse.blockingcore;
 
 import com.google.opengse.HttpResponse;
 import com.google.opengse.HeaderUtil;
+import com.google.opengse.httputil.HeaderBlock;
 
 import javax.servlet.ServletOutputStream;
 import java.io.IOException;
@@ -56,7 +57,7 @@ final class HttpResponseImpl implements HttpResponse {
     outputStream.resetBuffer();
     setContentType("text/html");
     outputStream.println(getErrorHtml(sc, msg));
-    outputStream.commit();
+    outputStream.finish();
   }
 
   private String getErrorHtml(int statusCode, String msg) {
@@ -95,6 +96,12 @@ final class HttpResponseImpl implements HttpResponse {
     addHeader(name, Integer.toString(value));
   }
 
+  public void setStaticHeaders(HeaderBlock block) {
+    for (int i = 0; i < block.size(); ++i) {
+      setHeader(block.getName(i), block.getValue(i));
+    }
+  }
+
   public void setStatus(int sc) {
     outputStream.setStatus(sc);
   }
@@ -150,7 +157,7 @@ final class HttpResponseImpl implements HttpResponse {
 
   public void flushBuffer() throws IOException {
     outputStream.flushPrintWriterIfItWasCreated();
-    outputStream.commit();
+    outputStream.flush();
   }
 
   public void resetBuffer() {
@@ -15,9 +15,7 @@
 package com.google.opengse.blockingcore;
 
 import com.google.opengse.HttpRequestHandler;
-import com.google.opengse.HttpResponse;
 
-import javax.servlet.ServletOutputStream;
 import java.net.Socket;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -28,27 +26,86 @@ import java.io.IOException;
  *         Date: Jul 22, 2008
  */
 public class HttpSocketHandler implements SocketHandler {
+  private static final String HTTP_1_1 = "HTTP/1.1";
+  private static final String CONNECTION_HEADER = "Connection";
+  /**
+   * The most request body a servlet may leave unread before we would
+   * rather close the connection than read and discard the rest.
+   */
+  private static final long MAX_SKIPPED_BODY = 64 * 1024;
   private final HttpRequestHandler handler;
+  private final boolean allowKeepAlive;
+  private final KeepAliveLimit keepAliveLimit;
 
   public HttpSocketHandler(HttpRequestHandler handler) {
+    this(handler, true);
+  }
+
+  /**
+   * @param allowKeepAlive false to close every connection after its first
+   *        request
+   */
+  public HttpSocketHandler(HttpRequestHandler handler, boolean allowKeepAlive) {
+    this(handler, allowKeepAlive, null);
+  }
+
+  /**
+   * @param keepAliveLimit the limit of the accept loops which call this
+   *        handler, or <code>null</code> if each connection has a thread
+   *        of its own
+   */
+  HttpSocketHandler(HttpRequestHandler handler, boolean allowKeepAlive,
+      KeepAliveLimit keepAliveLimit) {
     this.handler = handler;
+    this.allowKeepAlive = allowKeepAlive;
+    this.keepAliveLimit = keepAliveLimit;
   }
 
-  public void handleSocket(Socket socket, InputStream istr, OutputStream ostr) throws IOException {
+  public boolean handleSocket(Socket socket, InputStream istr, OutputStream ostr) throws IOException {
     RequestMetaData requestMetaData = RequestMetaDataFactory.extractMetaData(socket, istr);
+    if (requestMetaData == null) {
+      // the client closed the connection between requests
+      return false;
+    }
     ServletInputStreamImpl inputStream = new ServletInputStreamImpl(requestMetaData, istr);
     HttpRequestImpl req = new HttpRequestImpl(requestMetaData, inputStream);
-    if (req.getMethod().equalsIgnoreCase("HEAD")) {
-      ostr = new NoBodyOutputStream(ostr);
-    }
-    ServletOutputStreamImpl outputStream = new ServletOutputStreamImpl(ostr, 2048);
-    HttpResponse resp = null;
+    boolean http11 = HTTP_1_1.equalsIgnoreCase(
+        requestMetaData.getType().getHttpVersion());
+    ServletOutputStreamImpl outputStream = new ServletOutputStreamImpl(ostr,
+        2048, http11, canKeepAlive(requestMetaData, http11),
+        req.getMethod().equalsIgnoreCase("HEAD"));
     try {
-      resp = new HttpResponseImpl(req, outputStream);
-      handler.handleRequest(req, resp);
+      handler.handleRequest(req, new HttpResponseImpl(req, outputStream));
+      // The next request can't be read until the servlet's leftovers of
+      // this one have been.
+      if (outputStream.isKeepAlive()
+          && !inputStream.skipRemaining(MAX_SKIPPED_BODY)) {
+        outputStream.closeConnection();
+      }
     } finally {
       // ensure that any buffered bytes get committed. No byte left behind!
-      resp.flushBuffer();
+      outputStream.finish();
+    }
+    return outputStream.isKeepAlive() && inputStream.isFinished();
+  }
+
+  /**
+   * Does the request allow the connection to be kept open afterwards?
+   * HTTP/1.1 connections persist unless the client asks otherwise, while
+   * HTTP/1.0 ones only persist if the client asks for it.
+   */
+  private boolean canKeepAlive(RequestMetaData requestMetaData, boolean http11) {
+    if (!allowKeepAlive) {
+      return false;
+    }
+    if (keepAliveLimit != null && !keepAliveLimit.allowsKeepAlive()) {
+      // every accept loop holds a connection; free this one
+      return false;
+    }
+    HttpHeaders headers = requestMetaData.getHeaders();
+    if (http11) {
+      return !headers.headerHasToken(CONNECTION_HEADER, "close");
     }
+    return headers.headerHasToken(CONNECTION_HEADER, "keep-alive");
   }
 }
@@ -0,0 +1,56 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.opengse.blockingcore;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts the connections held by a fixed number of accept loops, so that
+ * a connection is only kept open after a response while another loop is
+ * left to accept new ones. A loop serves one connection at a time and
+ * waits for its next request in a blocking read; if every loop did that,
+ * new clients would wait for an idle one to time out.
+ *
+ * <p>The loop which takes the last free slot always sees the limit
+ * reached, so it closes its connection after the first response and goes
+ * back to accepting.
+ */
+final class KeepAliveLimit {
+  private final int loops;
+  private final AtomicInteger connections = new AtomicInteger();
+
+  /**
+   * @param loops the number of accept loops sharing the limit
+   */
+  KeepAliveLimit(int loops) {
+    this.loops = loops;
+  }
+
+  void connectionOpened() {
+    connections.incrementAndGet();
+  }
+
+  void connectionClosed() {
+    connections.decrementAndGet();
+  }
+
+  /**
+   * Returns <code>true</code> if a connection may be kept open to wait for
+   * another request, that is if some loop holds no connection.
+   */
+  boolean allowsKeepAlive() {
+    return connections.get() < loops;
+  }
+}
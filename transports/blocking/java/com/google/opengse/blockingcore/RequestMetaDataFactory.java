@@ -12,13 +12,14 @@
 
 package com.google.opengse.blockingcore;
 
-import java.io.InputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.BufferedReader;
-import java.io.StringReader;
+import com.google.opengse.httputil.HttpRequestParser;
+
+import java.io.EOFException;
 import java.io.IOException;
-import java.net.Socket;
+import java.io.InputStream;
 import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
 
 /**
  * A factory for RequestMetaData objects
@@ -27,47 +28,69 @@ import java.net.InetSocketAddress;
  */
 public class RequestMetaDataFactory {
   private static final int MAX_HEADERS_SIZE = 100000;
-  private static final int CR = '\r';
-  private static final int LF = '\n';
+  private static final int MAX_HEADER_LINES = 1000;
+  private static final int CHUNK_SIZE = 1024;
 
   private RequestMetaDataFactory() {
   }
 
+  /**
+   * Reads the request line and headers of the next request on a
+   * connection. If <code>istr</code> supports <code>mark</code>, as a
+   * <code>BufferedInputStream</code> does, the head is parsed from
+   * whatever has been buffered and the stream is then reset to just past
+   * it; otherwise it is read a byte at a time. Either way none of the
+   * request body, or of the request after this one, is consumed.
+   *
+   * @return the request's metadata, or <code>null</code> if the stream
+   *         ended cleanly before the request started, as it does when a
+   *         client closes an idle keep-alive connection
+   * @throws EOFException if the stream ends part way through the headers
+   */
   public static RequestMetaData extractMetaData(Socket socket, InputStream istr) throws IOException {
-    int thebyte;
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    int pattern = -1;
-
-    while (baos.size() < MAX_HEADERS_SIZE) {
-      thebyte = istr.read();
-      if (thebyte == -1) {
-        break;
+    HttpRequestParser parser = new HttpRequestParser(MAX_HEADERS_SIZE,
+        MAX_HEADERS_SIZE, MAX_HEADER_LINES);
+    boolean mark = istr.markSupported();
+    byte[] chunk = new byte[mark ? CHUNK_SIZE : 1];
+    ByteBuffer buf = ByteBuffer.wrap(chunk);
+    boolean done = false;
+    while (!done) {
+      if (mark) {
+        istr.mark(chunk.length);
       }
-      baos.write(thebyte);
-      if (thebyte == CR) {
-        if (pattern == -1 || pattern == 1) {
-          ++pattern;
-        } else {
-          pattern = -1;
-        }
-      } else if (thebyte == LF) {
-        if (pattern == 0 || pattern == 2) {
-          ++pattern;
-          if (pattern == 3) {
-            // this indicates that we have encountered 2 pairs of cr/lf bytes
-            break;
-          }
+      int length = istr.read(chunk);
+      if (length == -1) {
+        if (!parser.isStarted()) {
+          return null;
         }
-      } else {
-        pattern = -1;
+        throw new EOFException("Connection closed in the request headers");
+      }
+      buf.clear();
+      buf.limit(length);
+      done = parser.parse(buf);
+      if (buf.hasRemaining()) {
+        // give back what follows the headers
+        istr.reset();
+        skipFully(istr, buf.position());
       }
     }
-    String allHeaders = baos.toString();
-    BufferedReader reader = new BufferedReader(new StringReader(allHeaders));
-    HttpRequestType requestType = new HttpRequestType(reader.readLine());
+    HttpRequestType requestType = new HttpRequestType(parser.getMethod(),
+        parser.getTarget(), parser.getVersion());
     HttpHeaders headers = new HttpHeaders();
-    headers.readHeaders(reader);
+    for (int i = 0; i < parser.getHeaderCount(); ++i) {
+      headers.addHeader(parser.getHeaderName(i), parser.getHeaderValue(i));
+    }
     return new RequestMetaData((InetSocketAddress)socket.getLocalSocketAddress(),
         (InetSocketAddress)socket.getRemoteSocketAddress(), requestType, headers);
   }
+
+  private static void skipFully(InputStream istr, long n) throws IOException {
+    while (n > 0) {
+      long skipped = istr.skip(n);
+      if (skipped <= 0) {
+        throw new EOFException("Cannot skip past the request headers");
+      }
+      n -= skipped;
+    }
+  }
 }
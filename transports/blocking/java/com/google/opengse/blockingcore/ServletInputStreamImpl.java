@@ -16,55 +16,162 @@ package com.google.opengse.blockingcore;
 
 
 import javax.servlet.ServletInputStream;
-import java.io.InputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.StringReader;
-import java.io.BufferedReader;
+import java.io.InputStream;
 
 /**
+ * The body of one request on a connection. Reads never go past the end
+ * of the body, as given by its Content-Length or its chunked encoding, so
+ * that the next request on a keep-alive connection is left in the
+ * underlying stream. A request with neither has no body.
+ *
  * @author jennings
  *         Date: Jul 27, 2008
  */
 class ServletInputStreamImpl extends ServletInputStream {
-  private InputStream realStream;
-  private RequestMetaData requestMetaData;
-  private int contentLength;
-  private int bytesRead;
   private static final String CONTENT_LENGTH_HEADER = "Content-Length";
+  private static final String TRANSFER_ENCODING_HEADER = "Transfer-Encoding";
+  private static final int MAX_CHUNK_LINE = 4096;
+  private final InputStream realStream;
+  private final boolean chunked;
+  /**
+   * The bytes left in the body or, for a chunked body, in the current chunk.
+   */
+  private long remaining;
+  private boolean chunkSeen;
+  private boolean lastChunkSeen;
 
   ServletInputStreamImpl(RequestMetaData requestMetaData, InputStream realStream) throws IOException {
-    this.requestMetaData = requestMetaData;
-    this.realStream = new BufferedInputStream(realStream);
+    this.realStream = realStream;
     HttpHeaders headers = requestMetaData.getHeaders();
-    if (headers.containsHeader(CONTENT_LENGTH_HEADER)) {
-      String contentLengthAsString = headers.getHeaderValues(CONTENT_LENGTH_HEADER).iterator().next();
-      contentLength = Integer.parseInt(contentLengthAsString);
+    chunked = headers.headerHasToken(TRANSFER_ENCODING_HEADER, "chunked");
+    String contentLength = headers.getFirstValue(CONTENT_LENGTH_HEADER);
+    if (chunked || contentLength == null) {
+      remaining = 0;
     } else {
-      contentLength = -1; // unknown content length
+      try {
+        remaining = Long.parseLong(contentLength.trim());
+      } catch (NumberFormatException e) {
+        remaining = -1;
+      }
+      if (remaining < 0) {
+        throw new IOException("Invalid Content-Length: " + contentLength);
+      }
     }
-    bytesRead = 0;
   }
 
   public int read() throws IOException {
-    if (contentLength != -1 && bytesRead == contentLength) {
+    if (!hasRemaining()) {
       return -1;
     }
     int thebyte = realStream.read();
-    if (thebyte != -1) {
-      ++bytesRead;
+    if (thebyte == -1) {
+      throw new EOFException("Connection closed in the request body");
     }
+    --remaining;
     return thebyte;
   }
 
-
-/*
-  We comment this out so all reads are funnelled through the read() method above
   @Override
   public int read(byte b[], int off, int len) throws IOException {
-    return realStream.read(b, off, len);    
+    if (len == 0) {
+      return 0;
+    }
+    if (!hasRemaining()) {
+      return -1;
+    }
+    int n = realStream.read(b, off, (int) Math.min(len, remaining));
+    if (n == -1) {
+      throw new EOFException("Connection closed in the request body");
+    }
+    remaining -= n;
+    return n;
+  }
+
+  /**
+   * Has the whole body been read?
+   */
+  boolean isFinished() {
+    return remaining == 0 && (!chunked || lastChunkSeen);
+  }
+
+  /**
+   * Reads and discards whatever the servlet left of the body, as long as
+   * that is no more than <code>limit</code> bytes.
+   *
+   * @return <code>true</code> if the body has now been read to its end
+   */
+  boolean skipRemaining(long limit) throws IOException {
+    byte[] buf = null;
+    while (hasRemaining()) {
+      if (remaining > limit) {
+        return false;
+      }
+      if (buf == null) {
+        buf = new byte[(int) Math.min(remaining, 4096)];
+      }
+      limit -= read(buf, 0, buf.length);
+    }
+    return true;
+  }
+
+  /**
+   * Makes sure there are body bytes to read, moving on to the next chunk
+   * of a chunked body if need be.
+   *
+   * @return <code>false</code> at the end of the body
+   */
+  private boolean hasRemaining() throws IOException {
+    if (remaining > 0) {
+      return true;
+    }
+    if (!chunked || lastChunkSeen) {
+      return false;
+    }
+    if (chunkSeen && readChunkLine().length() != 0) {
+      throw new IOException("Missing CRLF after chunk data");
+    }
+    chunkSeen = true;
+    String sizeLine = readChunkLine();
+    int semicolon = sizeLine.indexOf(';');
+    if (semicolon != -1) {
+      sizeLine = sizeLine.substring(0, semicolon);
+    }
+    try {
+      remaining = Long.parseLong(sizeLine.trim(), 16);
+    } catch (NumberFormatException e) {
+      remaining = -1;
+    }
+    if (remaining < 0) {
+      throw new IOException("Invalid chunk size: " + sizeLine);
+    }
+    if (remaining == 0) {
+      // the last chunk, then any trailers up to a blank line
+      lastChunkSeen = true;
+      while (readChunkLine().length() != 0) {
+      }
+      return false;
+    }
+    return true;
+  }
+
+  private String readChunkLine() throws IOException {
+    StringBuilder line = new StringBuilder();
+    int thebyte;
+    while ((thebyte = realStream.read()) != '\n') {
+      if (thebyte == -1) {
+        throw new EOFException("Connection closed in the request body");
+      }
+      if (line.length() == MAX_CHUNK_LINE) {
+        throw new IOException("Chunk line is too long");
+      }
+      line.append((char) thebyte);
+    }
+    int length = line.length();
+    if (length > 0 && line.charAt(length - 1) == '\r') {
+      line.setLength(length - 1);
+    }
+    return line.toString();
   }
-*/
-  
 }
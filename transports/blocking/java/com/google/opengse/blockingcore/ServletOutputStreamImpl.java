@@ -18,29 +18,62 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.PrintWriter;
-import java.util.*;
 
 /**
+ * The body of one response on a connection. Output is buffered until the
+ * buffer overflows, the servlet flushes, or the response is finished, and
+ * the response is framed so that the connection can be kept alive: a
+ * response which is finished before it is committed gets a Content-Length,
+ * and one which is committed early is sent with chunked encoding. Only an
+ * HTTP/1.0 response committed early without a Content-Length has to close
+ * the connection to mark its end.
+ *
  * @author jennings
  *         Date: Jul 23, 2008
  */
 class ServletOutputStreamImpl extends ServletOutputStream {
-  private OutputStream realStream;
-  private ByteArrayOutputStream uncommittedOutputStream;
-  private OutputStream currentStream;
+  private static final byte[] CRLF = { '\r', '\n' };
+  private static final byte[] LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+  private static final String CONNECTION_HEADER = "Connection";
+  private static final String CONTENT_LENGTH_HEADER = "Content-Length";
+  private static final String TRANSFER_ENCODING_HEADER = "Transfer-Encoding";
+
+  private final OutputStream realStream;
+  private final ByteArrayOutputStream buffer;
+  private final boolean http11;
+  private final boolean noBody;
   private int precommitSize;
   private HttpHeaders headers;
 
   private PrintWriter printWriter;
   private int statusCode = 200;
   private String statusMessage = "OK";
+  private boolean keepAlive;
+  private boolean committed;
+  private boolean chunked;
+  private boolean finishing;
+  private boolean finished;
 
-  ServletOutputStreamImpl(OutputStream realStream, int precommitSize) {
+  /**
+   * @param realStream the connection's output stream, which should be
+   *        buffered: it is flushed when the response is flushed or finished
+   * @param precommitSize the initial buffer size
+   * @param http11 <code>true</code> if the request was HTTP/1.1, so that
+   *        the response may be chunked
+   * @param keepAlive <code>true</code> if the request allows the
+   *        connection to be kept alive
+   * @param noBody <code>true</code> for the response to a HEAD request,
+   *        whose body is never sent
+   */
+  ServletOutputStreamImpl(OutputStream realStream, int precommitSize,
+      boolean http11, boolean keepAlive, boolean noBody) {
     this.realStream = realStream;
     this.precommitSize = precommitSize;
+    this.http11 = http11;
+    this.keepAlive = keepAlive;
+    this.noBody = noBody;
     headers = new HttpHeaders();
-    uncommittedOutputStream = new ByteArrayOutputStream();
-    currentStream = uncommittedOutputStream;
+    buffer = new ByteArrayOutputStream();
   }
 
   HttpHeaders getHeaders() {
@@ -62,20 +95,99 @@ class ServletOutputStreamImpl extends ServletOutputStream {
   }
 
   boolean isCommitted() {
-    return (uncommittedOutputStream == null); // null buffer implies committed
+    return committed;
+  }
+
+  /**
+   * Can the connection be used for another request? This is only settled
+   * once the response has been finished.
+   */
+  boolean isKeepAlive() {
+    return keepAlive;
   }
 
+  /**
+   * Marks the connection to be closed after this response. The client is
+   * only told if the response has not been committed yet.
+   */
+  synchronized void closeConnection() {
+    keepAlive = false;
+  }
+
+  /**
+   * Sends the status line and headers, followed by whatever body has been
+   * buffered.
+   */
   synchronized void commit() throws IOException {
-    if (isCommitted()) {
+    commit(false);
+    writeBuffer();
+  }
+
+  /**
+   * Sends the status line and headers, after choosing how the end of the
+   * body will be marked.
+   *
+   * @param complete <code>true</code> if the buffer holds the whole body
+   */
+  private void commit(boolean complete) throws IOException {
+    if (committed) {
       return;
     }
-    PrintWriter out = new PrintWriter(realStream);
-    writeStatusLine(out);
-    writeHeaders(out);
-    out.flush();
-    writeUncommittedBuffer();
-    uncommittedOutputStream = null;
-    currentStream = realStream;
+    committed = true;
+    if (headers.headerHasToken(CONNECTION_HEADER, "close")) {
+      keepAlive = false;
+    }
+    if (!bodyAllowed() || headers.containsHeader(CONTENT_LENGTH_HEADER)) {
+      // the end of the body is already known
+    } else if (complete) {
+      headers.setHeader(CONTENT_LENGTH_HEADER, Integer.toString(buffer.size()));
+    } else if (http11 && !headers.containsHeader(TRANSFER_ENCODING_HEADER)) {
+      headers.setHeader(TRANSFER_ENCODING_HEADER, "chunked");
+      chunked = true;
+    } else {
+      // only closing the connection can mark the end of this body
+      keepAlive = false;
+    }
+    if (!keepAlive) {
+      headers.setHeader(CONNECTION_HEADER, "close");
+    } else if (!http11) {
+      headers.setHeader(CONNECTION_HEADER, "keep-alive");
+    }
+    StringBuilder head = new StringBuilder(256);
+    // "HTTP/1.1 200 OK" for example
+    head.append("HTTP/1.1 ").append(statusCode).append(' ')
+        .append(statusMessage).append("\r\n");
+    headers.writeHeaders(head);
+    realStream.write(head.toString().getBytes("ISO-8859-1"));
+  }
+
+  /**
+   * Does the status code allow a body? RFC 2616 section 4.3.
+   */
+  private boolean bodyAllowed() {
+    return statusCode >= 200 && statusCode != 204 && statusCode != 304;
+  }
+
+  /**
+   * Commits the response if that has not happened yet, sends the rest of
+   * the body, marks its end, and flushes the connection. Nothing written
+   * after this is sent.
+   */
+  synchronized void finish() throws IOException {
+    if (finished) {
+      return;
+    }
+    // Flushing the writer must not commit the response early: then it
+    // would be chunked even though we are about to learn its length.
+    finishing = true;
+    flushPrintWriterIfItWasCreated();
+    commit(true);
+    writeBuffer();
+    if (chunked && !noBody) {
+      realStream.write(LAST_CHUNK);
+    }
+    finished = true;
+    realStream.flush();
   }
 
   void flushPrintWriterIfItWasCreated() {
@@ -85,9 +197,12 @@ class ServletOutputStreamImpl extends ServletOutputStream {
   }
 
   @Override
-  public void flush() throws IOException {
+  public synchronized void flush() throws IOException {
+    if (finishing) {
+      return;
+    }
     commit();
-    super.flush();
+    realStream.flush();
   }
 
   /**
@@ -107,7 +222,7 @@ class ServletOutputStreamImpl extends ServletOutputStream {
     if (isCommitted()) {
       throw new IllegalStateException("Cannot reset buffer, already committed");
     }
-    uncommittedOutputStream.reset();
+    buffer.reset();
   }
 
   /**
@@ -127,7 +242,7 @@ class ServletOutputStreamImpl extends ServletOutputStream {
     if (isCommitted()) {
       throw new IllegalStateException("Cannot reset, already committed");
     }
-    uncommittedOutputStream.reset();
+    buffer.reset();
     headers.clear();
   }
 
@@ -151,48 +266,71 @@ class ServletOutputStreamImpl extends ServletOutputStream {
     return precommitSize;
   }
 
-
   /**
-   *
-   * Determines if we need to commit the stream before we write
-   * the given number of bytes.
-   * 
-   * @param bytesToWrite
-   * @return
+   * Sends the buffered body bytes, as a single chunk if the body is
+   * chunked.
    */
-  private boolean needToCommit(int bytesToWrite) {
-    if (isCommitted()) {
-      return false;
+  private void writeBuffer() throws IOException {
+    int size = buffer.size();
+    if (size == 0) {
+      return;
+    }
+    if (sendsBody()) {
+      if (chunked) {
+        writeChunkHeader(size);
+      }
+      buffer.writeTo(realStream);
+      if (chunked) {
+        realStream.write(CRLF);
+      }
     }
-    return ((uncommittedOutputStream.size() + bytesToWrite) > precommitSize);
+    buffer.reset();
   }
 
-  private void writeUncommittedBuffer() throws IOException {
-    realStream.write(uncommittedOutputStream.toByteArray());
+  private void writeBody(byte[] buf, int offset, int length) throws IOException {
+    if (!sendsBody()) {
+      return;
+    }
+    if (chunked) {
+      writeChunkHeader(length);
+    }
+    realStream.write(buf, offset, length);
+    if (chunked) {
+      realStream.write(CRLF);
+    }
   }
 
-  private void writeHeaders(PrintWriter out) {
-    headers.writeHeaders(out);
+  private boolean sendsBody() {
+    return !noBody && bodyAllowed();
   }
 
-  private void writeStatusLine(PrintWriter out) {
-    // "HTTP/1.1 200 OK" for example
-    out.print("HTTP/1.1 " + statusCode + " " + statusMessage + "\r\n");
+  private void writeChunkHeader(int size) throws IOException {
+    realStream.write(Integer.toHexString(size).getBytes("ISO-8859-1"));
+    realStream.write(CRLF);
   }
 
-
   synchronized public void write(int b) throws IOException {
-    if (needToCommit(1)) {
+    if (finished) {
+      return;
+    }
+    if (buffer.size() >= precommitSize) {
       commit();
     }
-    currentStream.write(b);
+    buffer.write(b);
   }
 
   synchronized public void write(byte[] buf, int offset, int length) throws IOException {
-    if (needToCommit(length)) {
+    if (finished) {
+      return;
+    }
+    if (buffer.size() + length > precommitSize) {
       commit();
+      if (length >= precommitSize) {
+        writeBody(buf, offset, length);
+        return;
+      }
     }
-    currentStream.write(buf, offset, length);
+    buffer.write(buf, offset, length);
   }
 
   PrintWriter getWriter() throws IOException {
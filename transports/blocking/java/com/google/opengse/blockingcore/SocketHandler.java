@@ -24,16 +24,18 @@ import java.net.Socket;
  */
 public interface SocketHandler {
   /**
-   * Handle this socket.
+   * Handle the next request on this socket.
    *
    * Implementors of this interface do not need to worry about closing the
    * input or output streams, or closing the socket.
    *
    * @param socket The socket to handle (in case remote address etc. are needed)
-   * @param istr The input stream of the socket
-   * @param ostr The output stream of the socket
+   * @param istr The buffered input stream of the socket
+   * @param ostr The buffered output stream of the socket, which must be
+   *        flushed before this method returns
+   * @return true if the connection should be kept open for another request
    * @throws IOException
    */
-  void handleSocket(Socket socket, InputStream istr, OutputStream ostr)
+  boolean handleSocket(Socket socket, InputStream istr, OutputStream ostr)
       throws IOException;
 }
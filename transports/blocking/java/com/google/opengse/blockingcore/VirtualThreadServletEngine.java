@@ -0,0 +1,176 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.opengse.blockingcore;
+
+import com.google.opengse.HttpRequestHandlerAdapter;
+import com.google.opengse.ServletEngine;
+import com.google.opengse.ServletEngineConfiguration;
+
+import javax.servlet.FilterChain;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A servlet engine which accepts connections on the thread that runs it
+ * and serves each connection on a thread of its own, through the same
+ * {@link HttpSocketHandler} as {@link BlockingServletEngine}. With virtual
+ * threads there is no fixed pool, and
+ * {@link ServletEngineConfiguration#getMaxThreads()} is not used: servlets
+ * which block for a long time can have tens of thousands of requests in
+ * progress at once.
+ *
+ * <p>A JVM without virtual threads gets platform threads instead, and then
+ * no more than {@link ServletEngineConfiguration#getMaxThreads()}
+ * connections are served at once; further clients wait in the listen
+ * backlog until a thread is free. As with {@link BlockingServletEngine},
+ * the connection which takes the last thread is not kept alive, so idle
+ * connections can't hold every thread.
+ *
+ * @see ConnectionThreads
+ */
+final class VirtualThreadServletEngine implements ServletEngine {
+  private static final Logger LOG
+      = Logger.getLogger(VirtualThreadServletEngine.class.getName());
+  private final ThreadFactory threadFactory;
+  private final AcceptSocketAndHandleRequest connectionHandler;
+  // free platform threads, or null for virtual threads
+  private final Semaphore freeThreads;
+  private final KeepAliveLimit keepAliveLimit;
+  private ServerSocket serverSocket;
+
+  VirtualThreadServletEngine(FilterChain dispatcher,
+      ServletEngineConfiguration config) throws IOException {
+    ThreadFactory virtualThreads
+        = ConnectionThreads.newVirtualThreadFactory("connection-");
+    if (virtualThreads != null) {
+      threadFactory = virtualThreads;
+      freeThreads = null;
+      keepAliveLimit = null;
+    } else {
+      int nthreads = config.getMaxThreads();
+      if (nthreads < 1) {
+        throw new IllegalArgumentException("need at least one thread");
+      }
+      LOG.info("Virtual threads are not available; serving at most "
+          + nthreads + " connections at once on platform threads");
+      threadFactory = ConnectionThreads.newPlatformThreadFactory("connection-");
+      freeThreads = new Semaphore(nthreads);
+      keepAliveLimit = new KeepAliveLimit(nthreads);
+    }
+    serverSocket = BlockingServletEngine.createServerSocket(config);
+    int idleTimeout = config.getKeepAliveTimeout();
+    HttpSocketHandler socketHandler = new HttpSocketHandler(
+        new HttpRequestHandlerAdapter(dispatcher), idleTimeout > 0,
+        keepAliveLimit);
+    connectionHandler = new AcceptSocketAndHandleRequest(socketHandler,
+        serverSocket, Math.max(idleTimeout, 0));
+  }
+  public void awaitInitialization(long timeout) {
+  }
+
+  public synchronized int getPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  public synchronized boolean quit(long timeout) throws IOException {
+    if (serverSocket != null) {
+      serverSocket.close();
+      serverSocket = null;
+      return true;
+    }
+    return false;
+  }
+
+  public synchronized boolean isAccepting() {
+    return (serverSocket != null);
+  }
+
+  /**
+   * Accepts connections until {@link #quit(long)} is called.
+   */
+  public void run() {
+    ServerSocket listener;
+    synchronized (this) {
+      listener = serverSocket;
+    }
+    while (listener != null && !listener.isClosed()) {
+      try {
+        if (freeThreads != null
+            && !freeThreads.tryAcquire(1, TimeUnit.SECONDS)) {
+          // every thread is busy; look again in case we were told to quit
+          continue;
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      Socket socket;
+      try {
+        socket = listener.accept();
+      } catch (IOException e) {
+        LOG.log(Level.FINEST, "", e);
+        threadDone();
+        continue;
+      }
+      serve(socket);
+    }
+  }
+
+  private void serve(final Socket socket) {
+    if (keepAliveLimit != null) {
+      keepAliveLimit.connectionOpened();
+    }
+    Thread thread = threadFactory.newThread(new Runnable() {
+      public void run() {
+        try {
+          connectionHandler.handleConnection(socket);
+        } finally {
+          connectionDone();
+        }
+      }
+    });
+    try {
+      thread.start();
+    } catch (OutOfMemoryError e) {
+      // only platform threads run out like this; shed the connection
+      LOG.log(Level.WARNING, "Unable to start a connection thread", e);
+      try {
+        socket.close();
+      } catch (IOException ignored) {
+        // we're dropping it anyway
+      }
+      connectionDone();
+    }
+  }
+
+  private void connectionDone() {
+    if (keepAliveLimit != null) {
+      keepAliveLimit.connectionClosed();
+    }
+    threadDone();
+  }
+
+  private void threadDone() {
+    if (freeThreads != null) {
+      freeThreads.release();
+    }
+  }
+}
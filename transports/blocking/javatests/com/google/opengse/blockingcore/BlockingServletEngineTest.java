@@ -0,0 +1,122 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.opengse.blockingcore;
+
+import com.google.opengse.ServletEngineConfigurationImpl;
+import com.google.opengse.testing.FilterChains;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Unit test for {@link BlockingServletEngine}.
+ */
+public class BlockingServletEngineTest extends TestCase {
+  private static final String MESSAGE = "hello";
+  private static final int MAX_THREADS = 3;
+  // well under the keep-alive timeout, so nothing times out on its own
+  private static final int WAIT_MILLIS = 5000;
+
+  private BlockingServletEngine engine_;
+  private final List<Socket> clients_ = new ArrayList<Socket>();
+
+  @Override
+  protected void setUp() throws Exception {
+    engine_ = new BlockingServletEngine(
+        FilterChains.withPlainMessage(MESSAGE),
+        ServletEngineConfigurationImpl.create(-1, MAX_THREADS));
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    for (Socket client : clients_) {
+      client.close();
+    }
+    engine_.quit(WAIT_MILLIS);
+  }
+
+  private Socket connect() throws IOException {
+    Socket client = new Socket("localhost", engine_.getPort());
+    client.setSoTimeout(WAIT_MILLIS);
+    clients_.add(client);
+    return client;
+  }
+
+  /**
+   * Sends a request and reads the response.
+   *
+   * @return the head of the response
+   */
+  private static String get(Socket client) throws IOException {
+    client.getOutputStream().write(
+        "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes("ISO-8859-1"));
+    InputStream in = client.getInputStream();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    while (!bytes.toString("ISO-8859-1").endsWith("\r\n\r\n")) {
+      int b = in.read();
+      assertTrue("connection closed", b >= 0);
+      bytes.write(b);
+    }
+    String head = bytes.toString("ISO-8859-1");
+    assertTrue(head, head.startsWith("HTTP/1.1 200"));
+    assertTrue(head, head.contains("Content-Length: " + MESSAGE.length()));
+    byte[] body = new byte[MESSAGE.length()];
+    for (int n = 0; n < body.length; ) {
+      int count = in.read(body, n, body.length - n);
+      assertTrue("connection closed", count >= 0);
+      n += count;
+    }
+    assertEquals(MESSAGE, new String(body, "ISO-8859-1"));
+    return head;
+  }
+
+  private static boolean isKeptAlive(String head) {
+    return !head.contains("Connection: close");
+  }
+
+  public void testKeepsConnectionAlive() throws Exception {
+    Socket client = connect();
+    assertTrue(isKeptAlive(get(client)));
+    assertTrue(isKeptAlive(get(client)));
+  }
+
+  public void testServesNewClientWhileIdleConnectionsWait() throws Exception {
+    // one idle keep-alive connection for every thread, or as near as the
+    // engine allows
+    List<String> heads = new ArrayList<String>();
+    for (int i = 0; i < MAX_THREADS; ++i) {
+      heads.add(get(connect()));
+    }
+    for (int i = 0; i < MAX_THREADS - 1; ++i) {
+      assertTrue(heads.get(i), isKeptAlive(heads.get(i)));
+    }
+    // the connection which took the last thread was let go
+    assertFalse(isKeptAlive(heads.get(MAX_THREADS - 1)));
+    assertEquals(-1, clients_.get(MAX_THREADS - 1).getInputStream().read());
+
+    // and so one more client is served without waiting for the others
+    get(connect());
+    get(connect());
+
+    // the connections kept alive still work
+    assertTrue(isKeptAlive(get(clients_.get(0))));
+  }
+}
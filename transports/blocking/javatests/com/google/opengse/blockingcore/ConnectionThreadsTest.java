@@ -0,0 +1,65 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.opengse.blockingcore;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit test for {@link ConnectionThreads}.
+ */
+public class ConnectionThreadsTest extends TestCase {
+
+  private static final Runnable NOTHING = new Runnable() {
+    public void run() {
+    }
+  };
+
+  /**
+   * Checks that <code>factory</code> numbers its threads, and that they
+   * run.
+   */
+  private static void runsOnNewThreads(ThreadFactory factory, String name)
+      throws Exception {
+    final CountDownLatch ran = new CountDownLatch(1);
+    Thread thread = factory.newThread(new Runnable() {
+      public void run() {
+        ran.countDown();
+      }
+    });
+    assertEquals(name + "0", thread.getName());
+    thread.start();
+    assertTrue(ran.await(5, TimeUnit.SECONDS));
+    assertEquals(name + "1", factory.newThread(NOTHING).getName());
+  }
+
+  public void testPlatformThreads() throws Exception {
+    ThreadFactory factory = ConnectionThreads.newPlatformThreadFactory("p-");
+    runsOnNewThreads(factory, "p-");
+    assertTrue(factory.newThread(NOTHING).isDaemon());
+  }
+
+  public void testVirtualThreadsIfAny() throws Exception {
+    ThreadFactory factory = ConnectionThreads.newVirtualThreadFactory("v-");
+    if (factory == null) {
+      // not before Java 21
+      return;
+    }
+    runsOnNewThreads(factory, "v-");
+  }
+}
@@ -0,0 +1,52 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.opengse.blockingcore;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for {@link KeepAliveLimit}.
+ */
+public class KeepAliveLimitTest extends TestCase {
+
+  public void testAllowsKeepAliveWhileALoopIsFree() {
+    KeepAliveLimit limit = new KeepAliveLimit(3);
+    assertTrue(limit.allowsKeepAlive());
+    limit.connectionOpened();
+    assertTrue(limit.allowsKeepAlive());
+    limit.connectionOpened();
+    assertTrue(limit.allowsKeepAlive());
+    // the last loop is taken
+    limit.connectionOpened();
+    assertFalse(limit.allowsKeepAlive());
+  }
+
+  public void testClosingFreesALoop() {
+    KeepAliveLimit limit = new KeepAliveLimit(2);
+    limit.connectionOpened();
+    limit.connectionOpened();
+    assertFalse(limit.allowsKeepAlive());
+    limit.connectionClosed();
+    assertTrue(limit.allowsKeepAlive());
+    limit.connectionClosed();
+    assertTrue(limit.allowsKeepAlive());
+  }
+
+  public void testSingleLoopNeverKeepsAlive() {
+    KeepAliveLimit limit = new KeepAliveLimit(1);
+    limit.connectionOpened();
+    assertFalse(limit.allowsKeepAlive());
+  }
+}
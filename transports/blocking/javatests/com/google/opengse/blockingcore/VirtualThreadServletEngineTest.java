@@ -0,0 +1,218 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.opengse.blockingcore;
+
+import com.google.opengse.ServletEngineConfigurationImpl;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+/**
+ * Unit test for {@link VirtualThreadServletEngine}.
+ */
+public class VirtualThreadServletEngineTest extends TestCase {
+  private static final String MESSAGE = "hello";
+  private static final int MAX_THREADS = 2;
+  private static final int WAIT_MILLIS = 5000;
+
+  private VirtualThreadServletEngine engine_;
+  private Thread thread_;
+  private final List<Socket> clients_ = new ArrayList<Socket>();
+
+  private final AtomicInteger running_ = new AtomicInteger();
+  private final AtomicInteger max_running_ = new AtomicInteger();
+  // the servlet waits for this before it answers
+  private final CountDownLatch gate_ = new CountDownLatch(1);
+
+  private class Chain implements FilterChain {
+    public void doFilter(ServletRequest request, ServletResponse response)
+        throws IOException {
+      int running = running_.incrementAndGet();
+      while (true) {
+        int max = max_running_.get();
+        if (running <= max || max_running_.compareAndSet(max, running)) {
+          break;
+        }
+      }
+      try {
+        gate_.await(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        running_.decrementAndGet();
+      }
+      response.setContentType("text/plain");
+      response.setContentLength(MESSAGE.length());
+      response.getOutputStream().write(MESSAGE.getBytes("ISO-8859-1"));
+    }
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    engine_ = new VirtualThreadServletEngine(new Chain(),
+        ServletEngineConfigurationImpl.create(-1, MAX_THREADS));
+    thread_ = new Thread(engine_, "VirtualThreadServletEngineTest acceptor");
+    thread_.setDaemon(true);
+    thread_.start();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    gate_.countDown();
+    for (Socket client : clients_) {
+      client.close();
+    }
+    engine_.quit(WAIT_MILLIS);
+    thread_.join(WAIT_MILLIS);
+  }
+
+  private static boolean hasVirtualThreads() {
+    return ConnectionThreads.newVirtualThreadFactory("test-") != null;
+  }
+
+  private Socket connect() throws IOException {
+    Socket client = new Socket("localhost", engine_.getPort());
+    client.setSoTimeout(WAIT_MILLIS);
+    clients_.add(client);
+    return client;
+  }
+
+  private static void send(Socket client) throws IOException {
+    client.getOutputStream().write(
+        "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes("ISO-8859-1"));
+  }
+
+  /**
+   * Reads a response and returns its head.
+   */
+  private static String read(Socket client) throws IOException {
+    InputStream in = client.getInputStream();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    while (!bytes.toString("ISO-8859-1").endsWith("\r\n\r\n")) {
+      int b = in.read();
+      assertTrue("connection closed", b >= 0);
+      bytes.write(b);
+    }
+    String head = bytes.toString("ISO-8859-1");
+    assertTrue(head, head.startsWith("HTTP/1.1 200"));
+    byte[] body = new byte[MESSAGE.length()];
+    for (int n = 0; n < body.length; ) {
+      int count = in.read(body, n, body.length - n);
+      assertTrue("connection closed", count >= 0);
+      n += count;
+    }
+    assertEquals(MESSAGE, new String(body, "ISO-8859-1"));
+    return head;
+  }
+
+  private void waitForRunning(int count) throws InterruptedException {
+    long end = System.currentTimeMillis() + WAIT_MILLIS;
+    while (running_.get() < count && System.currentTimeMillis() < end) {
+      Thread.sleep(10);
+    }
+  }
+
+  public void testServesRequests() throws Exception {
+    gate_.countDown();
+    Socket client = connect();
+    send(client);
+    read(client);
+    send(client);
+    read(client);
+  }
+
+  public void testServesConnectionsAtOnce() throws Exception {
+    List<Socket> clients = new ArrayList<Socket>();
+    for (int i = 0; i < MAX_THREADS; ++i) {
+      Socket client = connect();
+      send(client);
+      clients.add(client);
+    }
+    waitForRunning(MAX_THREADS);
+    assertEquals(MAX_THREADS, running_.get());
+    gate_.countDown();
+    for (Socket client : clients) {
+      read(client);
+    }
+  }
+
+  public void testPlatformThreadsAreBounded() throws Exception {
+    if (hasVirtualThreads()) {
+      return;
+    }
+    List<Socket> clients = new ArrayList<Socket>();
+    for (int i = 0; i < MAX_THREADS * 2; ++i) {
+      Socket client = connect();
+      send(client);
+      clients.add(client);
+    }
+    waitForRunning(MAX_THREADS);
+    // the others wait for a thread instead of getting one of their own
+    Thread.sleep(100);
+    assertEquals(MAX_THREADS, running_.get());
+
+    gate_.countDown();
+    for (Socket client : clients) {
+      read(client);
+    }
+    assertEquals(MAX_THREADS, max_running_.get());
+  }
+
+  public void testLastPlatformThreadIsNotKeptAlive() throws Exception {
+    if (hasVirtualThreads()) {
+      return;
+    }
+    gate_.countDown();
+    List<String> heads = new ArrayList<String>();
+    for (int i = 0; i < MAX_THREADS; ++i) {
+      Socket client = connect();
+      send(client);
+      heads.add(read(client));
+    }
+    assertFalse(heads.get(0), heads.get(0).contains("Connection: close"));
+    // the connection which took the last thread was let go
+    assertTrue(heads.get(MAX_THREADS - 1),
+        heads.get(MAX_THREADS - 1).contains("Connection: close"));
+
+    // and so one more client is served while the first waits
+    Socket client = connect();
+    send(client);
+    read(client);
+  }
+
+  public void testRefusesNoThreads() throws Exception {
+    if (hasVirtualThreads()) {
+      return;
+    }
+    try {
+      new VirtualThreadServletEngine(new Chain(),
+          ServletEngineConfigurationImpl.create(-1, 0));
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) { /* expected */ }
+  }
+}
@@ -0,0 +1,198 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.opengse.core;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The server-wide limit on the requests admitted to the worker queue and
+ * not yet finished. When admission control is enabled, the limit adapts
+ * to the load, AIMD style:
+ * <ul>
+ *   <li>a request which waited longer for a worker than the target wait,
+ *       or than the servlets have lately taken to run, if that is longer,
+ *       means the workers can't keep up, and the limit is cut by
+ *       {@link #BACKOFF}, at most once per such wait;</li>
+ *   <li>any other request, finished while the limit was at least half
+ *       used, raises the limit by one over the limit, which adds up to
+ *       one per limit's worth of requests.</li>
+ * </ul>
+ * A request over the limit is answered at once on the network thread
+ * with a 503, before any servlet, wrapper or session work is done for it.
+ * Turning the work away while it is cheap keeps the wait of the requests
+ * that are admitted close to the target, instead of letting every
+ * request's latency grow with the queue.
+ *
+ * <p>When admission control is disabled, requests are still counted but
+ * never refused.
+ *
+ * <p>This class is thread safe.
+ */
+public final class AdmissionControl {
+  /** the factor by which the limit is cut when requests wait too long */
+  public static final double BACKOFF = 0.9;
+  /** the default for {@link #getTargetWait()}, in milliseconds */
+  public static final int DEFAULT_TARGET_WAIT = 10;
+
+  private volatile boolean enabled_ = false;
+  private volatile int min_limit_ = 1;
+  private volatile int max_limit_ = Integer.MAX_VALUE;
+  private volatile long target_wait_nanos_ = DEFAULT_TARGET_WAIT * 1000000L;
+
+  /** The current limit; only changed while holding this object's lock. */
+  private volatile double limit_;
+
+  /**
+   * A moving average of the time the servlets took, in nanoseconds, and
+   * when the limit was last cut; guarded by this object's lock.
+   */
+  private long service_nanos_ = 0;
+  private long last_backoff_ = 0;
+  private boolean backed_off_ = false;
+
+  private final AtomicInteger in_flight_ = new AtomicInteger();
+  private final AtomicLong admitted_ = new AtomicLong();
+  private final AtomicLong refused_ = new AtomicLong();
+
+  public AdmissionControl() {
+    limit_ = max_limit_;
+  }
+
+  public boolean isEnabled() {
+    return enabled_;
+  }
+  public void setEnabled(boolean enabled) {
+    this.enabled_ = enabled;
+  }
+
+  /**
+   * Sets the range the limit adapts within, and starts it at the top.
+   */
+  public synchronized void setLimits(int min_limit, int max_limit) {
+    if (min_limit < 1 || max_limit < min_limit) {
+      throw new IllegalArgumentException(
+          "invalid admission limits: " + min_limit + "-" + max_limit);
+    }
+    this.min_limit_ = min_limit;
+    this.max_limit_ = max_limit;
+    this.limit_ = max_limit;
+  }
+
+  public int getMinLimit() {
+    return min_limit_;
+  }
+
+  public int getMaxLimit() {
+    return max_limit_;
+  }
+
+  /**
+   * Returns the longest a request should wait for a worker, in
+   * milliseconds, before the limit is cut.
+   */
+  public int getTargetWait() {
+    return (int) (target_wait_nanos_ / 1000000L);
+  }
+  public void setTargetWait(int target_wait) {
+    this.target_wait_nanos_ = target_wait * 1000000L;
+  }
+
+  /** Returns the current limit. */
+  public int getLimit() {
+    return (int) limit_;
+  }
+
+  /** Returns the number of requests admitted and not yet finished. */
+  public int getInFlight() {
+    return in_flight_.get();
+  }
+
+  /** Returns the number of requests admitted. */
+  public long getAdmittedCount() {
+    return admitted_.get();
+  }
+
+  /** Returns the number of requests refused. */
+  public long getRefusedCount() {
+    return refused_.get();
+  }
+
+  /**
+   * Admits a request if the limit allows. A request that is admitted must
+   * be matched by a call to {@link #release} or {@link #cancel}.
+   *
+   * @return <code>false</code> if the request should be refused
+   */
+  boolean tryAcquire() {
+    while (true) {
+      int n = in_flight_.get();
+      if (enabled_ && n >= (int) limit_) {
+        refused_.incrementAndGet();
+        return false;
+      }
+      if (in_flight_.compareAndSet(n, n + 1)) {
+        admitted_.incrementAndGet();
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Takes back the admission of a request which was never run.
+   */
+  void cancel() {
+    in_flight_.decrementAndGet();
+  }
+
+  /**
+   * Finishes an admitted request, and adapts the limit to how long it
+   * waited for a worker and how long its servlet took.
+   */
+  void release(long wait_nanos, long service_nanos) {
+    release(wait_nanos, service_nanos, System.nanoTime());
+  }
+
+  void release(long wait_nanos, long service_nanos, long now) {
+    int in_flight = in_flight_.getAndDecrement();
+    if (!enabled_) {
+      return;
+    }
+    synchronized (this) {
+      service_nanos_ = (service_nanos_ == 0) ? service_nanos
+          : service_nanos_ + (service_nanos - service_nanos_) / 8;
+      double limit = limit_;
+      if (wait_nanos > Math.max(target_wait_nanos_, service_nanos_)) {
+        // the requests admitted together with this one have seen the
+        // same queue, so one cut answers for all of them
+        if (!backed_off_ || now - last_backoff_ > wait_nanos) {
+          limit_ = Math.max(min_limit_, limit * BACKOFF);
+          last_backoff_ = now;
+          backed_off_ = true;
+        }
+      } else if (in_flight * 2 >= limit) {
+        limit_ = Math.min(max_limit_, limit + 1 / limit);
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "AdmissionControl: " + (enabled_ ? "enabled" : "disabled")
+        + ", limit=" + getLimit() + " (" + min_limit_ + "-" + max_limit_
+        + "), in flight=" + getInFlight() + ", admitted="
+        + getAdmittedCount() + ", refused=" + getRefusedCount();
+  }
+}
@@ -0,0 +1,204 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.opengse.core;
+
+import com.google.opengse.iobuffer.IOBuffer;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses one response body with the "gzip" or "deflate" content
+ * coding. The body is handed over an <code>IOBuffer</code> at a time and
+ * the compressed bytes are written straight into another; there is no
+ * stream wrapper and no intermediate buffer. The deflater comes from the
+ * {@link DeflaterPool} of a {@link ResponseCompression}, and goes back to
+ * it when the body is done or the encoder is {@link #release() released}.
+ *
+ * <p>One thread encodes the body, but any thread may release the encoder
+ * when the response is torn down, so the two are synchronized.
+ */
+final class ContentEncoder {
+  // magic, CM=deflate, no flags, no mtime, no XFL, OS=unknown
+  private static final byte[] GZIP_HEADER = {
+    (byte) 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff
+  };
+
+  private static final ThreadMXBean THREADS =
+      ManagementFactory.getThreadMXBean();
+  private static final boolean HAVE_CPU_TIME =
+      THREADS.isCurrentThreadCpuTimeSupported();
+
+  private final ResponseCompression compression_;
+  private final boolean gzip_;
+  private DeflaterPool.Entry entry_;
+  private boolean finished_ = false;
+  // released before the body was done; the rest of it is thrown away
+  private boolean abandoned_ = false;
+  private long bytes_in_ = 0;
+  private long bytes_out_ = 0;
+  private long cpu_nanos_ = 0;
+
+  /**
+   * @param compression where to get the deflater and record statistics
+   * @param coding "gzip" or "deflate"
+   */
+  ContentEncoder(ResponseCompression compression, String coding) {
+    if (!"gzip".equals(coding) && !"deflate".equals(coding)) {
+      throw new IllegalArgumentException("unknown content coding " + coding);
+    }
+    this.compression_ = compression;
+    this.gzip_ = "gzip".equals(coding);
+  }
+
+  /**
+   * Compresses all of the data in <code>src</code> and appends the
+   * result to <code>dst</code>. Unless this is the end of the body, the
+   * deflater is flushed so that the client can decode what it has so far.
+   * Once the encoder has been released, the data is discarded instead.
+   *
+   * @param done <code>true</code> if this is the last of the body
+   */
+  synchronized void encode(IOBuffer src, IOBuffer dst, boolean done)
+      throws IOException {
+    if (abandoned_) {
+      src.discard(src.availableBytes());
+      return;
+    }
+    if (finished_) {
+      throw new IllegalStateException("already finished");
+    }
+    long start = cpuTime();
+    if (entry_ == null) {
+      entry_ = compression_.getDeflaterPool().acquire(
+          compression_.getLevel(), gzip_);
+      if (gzip_) {
+        dst.writeBytes(GZIP_HEADER);
+        bytes_out_ += GZIP_HEADER.length;
+      }
+    }
+    ByteBuffer buf;
+    while ((buf = src.getReadBuffer()) != null) {
+      if (buf.hasArray()) {
+        deflate(buf.array(), buf.arrayOffset() + buf.position(),
+            buf.remaining(), dst);
+        buf.position(buf.limit());
+      } else {
+        // a pooled direct buffer
+        byte[] in = entry_.in_;
+        while (buf.hasRemaining()) {
+          int n = Math.min(in.length, buf.remaining());
+          buf.get(in, 0, n);
+          deflate(in, 0, n, dst);
+        }
+      }
+      src.releaseReadBuffer();
+    }
+
+    Deflater deflater = entry_.deflater_;
+    byte[] out = entry_.out_;
+    if (done) {
+      deflater.finish();
+      while (!deflater.finished()) {
+        write(out, deflater.deflate(out), dst);
+      }
+      if (gzip_) {
+        writeIntLE((int) entry_.crc_.getValue(), dst);
+        writeIntLE((int) bytes_in_, dst);
+        bytes_out_ += 8;
+      }
+    } else {
+      int n;
+      do {
+        n = deflater.deflate(out, 0, out.length, Deflater.SYNC_FLUSH);
+        write(out, n, dst);
+      } while (n == out.length);
+    }
+    cpu_nanos_ += cpuTime() - start;
+
+    if (done) {
+      finished_ = true;
+      release();
+      compression_.recordCompressed(bytes_in_, bytes_out_, cpu_nanos_);
+    }
+  }
+
+  private void deflate(byte[] buf, int offset, int length, IOBuffer dst)
+      throws IOException {
+    if (length == 0) {
+      return;
+    }
+    if (gzip_) {
+      entry_.crc_.update(buf, offset, length);
+    }
+    bytes_in_ += length;
+    Deflater deflater = entry_.deflater_;
+    byte[] out = entry_.out_;
+    deflater.setInput(buf, offset, length);
+    while (!deflater.needsInput()) {
+      write(out, deflater.deflate(out), dst);
+    }
+  }
+
+  private void write(byte[] out, int length, IOBuffer dst) throws IOException {
+    if (length > 0) {
+      dst.writeBytes(out, 0, length);
+      bytes_out_ += length;
+    }
+  }
+
+  private static void writeIntLE(int i, IOBuffer dst) throws IOException {
+    dst.writeByte(i);
+    dst.writeByte(i >> 8);
+    dst.writeByte(i >> 16);
+    dst.writeByte(i >> 24);
+  }
+
+  private static long cpuTime() {
+    return HAVE_CPU_TIME
+        ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+  }
+
+  /**
+   * Returns the deflater to its pool, if we still have it. Call this for
+   * a response that will not be finished; nothing more is encoded after.
+   */
+  synchronized void release() {
+    if (!finished_) {
+      finished_ = true;
+      abandoned_ = true;
+    }
+    if (entry_ != null) {
+      compression_.getDeflaterPool().release(entry_);
+      entry_ = null;
+    }
+  }
+
+  synchronized boolean isFinished() {
+    return finished_;
+  }
+
+  long getBytesIn() {
+    return bytes_in_;
+  }
+
+  long getBytesOut() {
+    return bytes_out_;
+  }
+}
@@ -0,0 +1,169 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.opengse.core;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A pool of {@link Deflater}s, kept apart by compression level and by
+ * whether they write a zlib wrapper. A <code>Deflater</code> holds a few
+ * hundred kilobytes of native memory, so allocating one for each
+ * compressed response, and leaving it to be freed whenever it is
+ * collected, costs more than the compression itself on small responses.
+ *
+ * <p>Each pooled deflater comes with the checksum and scratch buffers
+ * that a response needs to encode with it. At most <code>maxIdle</code>
+ * deflaters of each kind are kept; the rest are ended when released.
+ *
+ * <p>This class is thread safe.
+ *
+ * @see ContentEncoder
+ */
+public final class DeflaterPool {
+  /** the default number of idle deflaters kept of each kind */
+  public static final int DEFAULT_MAX_IDLE = 64;
+  /** the size of each scratch buffer that comes with a deflater */
+  static final int SCRATCH_SIZE = 8 * 1024;
+
+  /**
+   * A deflater and the state that goes with it.
+   */
+  static final class Entry {
+    final Deflater deflater_;
+    final int level_;
+    final boolean nowrap_;
+    final CRC32 crc_ = new CRC32();
+    /** for copying input out of direct buffers */
+    final byte[] in_ = new byte[SCRATCH_SIZE];
+    /** for the deflater's output */
+    final byte[] out_ = new byte[SCRATCH_SIZE];
+
+    Entry(int level, boolean nowrap) {
+      this.deflater_ = new Deflater(level, nowrap);
+      this.level_ = level;
+      this.nowrap_ = nowrap;
+    }
+  }
+
+  private final int max_idle_;
+  // indexed by kindOf(level, nowrap)
+  private final ConcurrentLinkedQueue<Entry>[] idle_;
+  private final AtomicInteger[] idle_counts_;
+  private final AtomicLong created_ = new AtomicLong();
+  private final AtomicLong reused_ = new AtomicLong();
+
+  public DeflaterPool() {
+    this(DEFAULT_MAX_IDLE);
+  }
+
+  /**
+   * @param max_idle the most idle deflaters to keep of each kind
+   */
+  @SuppressWarnings("unchecked")
+  public DeflaterPool(int max_idle) {
+    this.max_idle_ = max_idle;
+    int kinds = 2 * (Deflater.BEST_COMPRESSION + 1);
+    this.idle_ = new ConcurrentLinkedQueue[kinds];
+    this.idle_counts_ = new AtomicInteger[kinds];
+    for (int i = 0; i < kinds; ++i) {
+      idle_[i] = new ConcurrentLinkedQueue<Entry>();
+      idle_counts_[i] = new AtomicInteger();
+    }
+  }
+
+  /**
+   * Maps {@link Deflater#DEFAULT_COMPRESSION} to the level zlib uses for
+   * it, and checks the range of the others.
+   */
+  static int normalizeLevel(int level) {
+    if (level == Deflater.DEFAULT_COMPRESSION) {
+      return 6;
+    }
+    if (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+      throw new IllegalArgumentException("bad compression level " + level);
+    }
+    return level;
+  }
+
+  private static int kindOf(int level, boolean nowrap) {
+    return 2 * level + (nowrap ? 1 : 0);
+  }
+
+  /**
+   * Returns a deflater ready for a new stream.
+   *
+   * @param level the compression level, 0-9 or
+   *        {@link Deflater#DEFAULT_COMPRESSION}
+   * @param nowrap <code>true</code> for raw deflate data, as gzip wants,
+   *        <code>false</code> for a zlib stream
+   */
+  Entry acquire(int level, boolean nowrap) {
+    level = normalizeLevel(level);
+    int kind = kindOf(level, nowrap);
+    Entry entry = idle_[kind].poll();
+    if (entry != null) {
+      idle_counts_[kind].decrementAndGet();
+      reused_.incrementAndGet();
+      return entry;
+    }
+    created_.incrementAndGet();
+    return new Entry(level, nowrap);
+  }
+
+  /**
+   * Takes back a deflater. The caller must not use it afterwards.
+   */
+  void release(Entry entry) {
+    int kind = kindOf(entry.level_, entry.nowrap_);
+    if (idle_counts_[kind].incrementAndGet() > max_idle_) {
+      idle_counts_[kind].decrementAndGet();
+      entry.deflater_.end();
+      return;
+    }
+    entry.deflater_.reset();
+    entry.crc_.reset();
+    idle_[kind].offer(entry);
+  }
+
+  /** Returns the number of deflaters created. */
+  public long getCreated() {
+    return created_.get();
+  }
+
+  /** Returns the number of times an idle deflater was reused. */
+  public long getReused() {
+    return reused_.get();
+  }
+
+  /** Returns the number of idle deflaters in the pool. */
+  public int getIdle() {
+    int n = 0;
+    for (AtomicInteger count : idle_counts_) {
+      n += count.get();
+    }
+    return n;
+  }
+
+  @Override
+  public String toString() {
+    return "DeflaterPool: created=" + getCreated() + ", reused="
+        + getReused() + ", idle=" + getIdle();
+  }
+}
@@ -122,6 +122,15 @@ public class DispatchQueueImpl2 implements DispatchQueue {
     notify(); // Any worker will do, so only need to wake one.
   }
 
+  /**
+   * Enqueues the provided connection. The backlog is unbounded, so this
+   * always succeeds.
+   */
+  public boolean offerRunnable(Runnable conn) {
+    addRunnable(conn);
+    return true;
+  }
+
   /**
    * Returns the number of available worker threads
    *
@@ -20,6 +20,8 @@ import com.google.opengse.HttpRequestHandler;
 import com.google.opengse.HttpRequest;
 import com.google.opengse.RequestUtils;
 import com.google.opengse.ServletEngineConfiguration;
+import com.google.opengse.httputil.CachedDateHeader;
+import com.google.opengse.httputil.HeaderName;
 import com.google.opengse.iobuffer.IOBuffer;
 import com.google.opengse.util.string.StringUtil;
 
@@ -28,7 +30,9 @@ import javax.servlet.http.HttpServletResponse;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
+import java.util.LinkedList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -84,6 +88,28 @@ final class HttpConnection
    */
   public static int gzippedRequestsCompleted = 0;
 
+  /**
+   * Exported variable counting requests answered with a 503 because the
+   * worker queue was full or the admission limit was reached.
+   */
+  public static int shedRequests = 0;
+
+  /**
+   * The 503 sent to shed a request, encoded once, around its "Date" line.
+   */
+  private static final byte[] SHED_STATUS_LINE =
+      encodeAscii("HTTP/1.1 503 Service Unavailable\r\n");
+  private static final byte[] SHED_HEADERS = concat(
+      HeaderName.RETRY_AFTER.getLine("1"),
+      HeaderName.CONNECTION.getLine("close"),
+      encodeAscii("Content-Length: 0\r\n\r\n"));
+
+  /**
+   * Exported variable counting pipelined requests that were dispatched
+   * while an earlier request on the same connection was being processed.
+   */
+  public static int pipelinedRequests = 0;
+
   /**
    * The HttpServer object that owns this connection. This variable is protected
    * to allow access within the package to avoid the raft of accessors that
@@ -99,8 +125,8 @@ final class HttpConnection
   private NetConnection conn_;
 
   /**
-   * The servlet which is handling the current request. The HttpConnection has
-   * no support for pipelining and executing multiple requests in parallel.
+   * The servlet which is handling the current request. Pipelined requests
+   * which are processed alongside it are {@link PipelinedRequest}s.
    */
   private HttpRequestHandler dispatcher;
 
@@ -125,9 +151,58 @@ final class HttpConnection
   private HttpResponseImpl resp_;
 
   /**
-   * A temporary buffer used for parsing incoming requests.
+   * What the dispatcher keeps with the connection between requests, such
+   * as the servlet request and response views it recycles. It is handed to
+   * the server while the connection is idle.
    */
-  private final ByteArrayOutputStream line_buf_ = new ByteArrayOutputStream();
+  private Object attachment_;
+
+  /**
+   * The requests read after the current one and already dispatched, in
+   * the order they arrived. Their responses are sent in that order once
+   * the current response has been sent. Guarded by this connection.
+   */
+  private final LinkedList<PipelinedRequest> pipelined_ =
+      new LinkedList<PipelinedRequest>();
+
+  /**
+   * A request read after the current one, and the pipelined requests,
+   * which can't be processed alongside them: it is processed in its turn.
+   * If <code>parked_bad_</code> is set, it couldn't be parsed.
+   */
+  private HttpRequestImpl parked_ = null;
+  private boolean parked_bad_ = false;
+  private long parked_bytes_ = 0;
+
+  /**
+   * A request after the current one whose headers have not all arrived.
+   */
+  private HttpRequestImpl ahead_ = null;
+  private long ahead_bytes_ = 0;
+
+  /**
+   * A temporary buffer used for parsing incoming requests, allocated by
+   * {@link #getLineBuffer()} when it is first needed for a request.
+   */
+  private ByteArrayOutputStream line_buf_ = null;
+
+  /**
+   * The body of the current request when it is streamed to the servlet,
+   * which is dispatched as soon as the headers have been parsed.
+   */
+  private RequestBodyStream body_stream_ = null;
+
+  /**
+   * The number of bytes of a streamed body still to be received, or -1
+   * if the body is chunked.
+   */
+  private long body_remaining_ = 0;
+
+  /**
+   * The file that a request body too large to keep in memory is being
+   * written to. It is handed to the request once the body is complete.
+   */
+  private RequestBodyFile body_file_ = null;
 
   /**
    * The current stage of processing requests.
@@ -156,6 +231,14 @@ final class HttpConnection
    */
   private long processing_start_ = 0;
 
+  /**
+   * Whether the current request was admitted by the server's
+   * {@link AdmissionControl}, and when it was queued for a worker (from
+   * {@link System#nanoTime}).
+   */
+  private boolean admitted_ = false;
+  private long queued_nanos_ = 0;
+
   /**
    * A monitor used to synchronize communication between the I/O thread and a
    * worker thread blocking on a call to write().
@@ -210,7 +293,20 @@ final class HttpConnection
       final HttpServer server,
       final SocketChannel channel,
       final HttpRequestHandler dispatcher) throws IOException {
-    this.conn_ = new NetConnection(this, server.getSelector(), channel);
+    this(server, server.getSelector(), channel, dispatcher);
+  }
+
+  /**
+   * Constructor for an {@link HttpConnection} whose I/O is handled by
+   * <code>selector</code>. Must be called on that selector's network
+   * thread.
+   */
+  HttpConnection(
+      final HttpServer server,
+      final NetSelector selector,
+      final SocketChannel channel,
+      final HttpRequestHandler dispatcher) throws IOException {
+    this.conn_ = new NetConnection(this, selector, channel);
     this.server_ = server;
     this.dispatcher = dispatcher;
     this.webappDispatcher = this.dispatcher;
@@ -271,6 +367,16 @@ final class HttpConnection
     conn_.setOutputBuffer(buf);
   }
 
+  /**
+   * Queues a region of a file to be written after the output buffer by
+   * the next {@link #write}.
+   *
+   * @see NetConnection#setFileRegion
+   */
+  public void setFileRegion(FileChannel file, long position, long length) {
+    conn_.setFileRegion(file, position, length);
+  }
+
   public long getNumRequestBytes() {
     return num_request_bytes_;
   }
@@ -320,6 +426,21 @@ final class HttpConnection
     }
   }
 
+  /**
+   * Returns the object the dispatcher attached to this connection, or
+   * <code>null</code>.
+   */
+  Object getAttachment() {
+    if (attachment_ == null) {
+      attachment_ = server_.acquireAttachment();
+    }
+    return attachment_;
+  }
+
+  void setAttachment(Object attachment) {
+    attachment_ = attachment;
+  }
+
   /**
    * Reattaches the thread to this {@link HttpConnection}. This is used to
    * complete the request asynchronously after calling {@link #detachThread}.
@@ -447,6 +568,12 @@ final class HttpConnection
       throw new IllegalStateException();
     }
 
+    // once the servlet has finished, the connection may already be taking
+    // the next request, so this one's admission is noted beforehand
+    boolean admitted = admitted_;
+    long queued = queued_nanos_;
+    admitted_ = false;
+    long start = System.nanoTime();
     try {
       status_ = Status.PROCESSING;
       runServlet();
@@ -459,6 +586,11 @@ final class HttpConnection
     } catch (Throwable t) {
       LOGGER.log(Level.SEVERE, "caught a throwable", t);
       conn_.close();
+    } finally {
+      if (admitted) {
+        server_.getAdmission().release(start - queued,
+            System.nanoTime() - start);
+      }
     }
   }
 
@@ -500,9 +632,17 @@ final class HttpConnection
               dispatcher.getClass().getName() + " servlet");
           LOGGER.log(Level.FINE,  req_.getRequestURI());
 
-            dispatcher.handleRequest(req_, resp_);
-            synchronized (this) {
-              thread_detached_ = false;
+            boolean handled = false;
+            try {
+              dispatcher.handleRequest(req_, resp_);
+              handled = true;
+            } finally {
+              // if the servlet throws an exception, the detach is cancelled
+              if (!handled) {
+                synchronized (this) {
+                  thread_detached_ = false;
+                }
+              }
             }
             // If the servlet closes the output stream or output writer, the
             // final flush is sent asynchronously. We wait here if necessary
@@ -515,6 +655,9 @@ final class HttpConnection
             synchronized (this) {
               if (thread_detached_) {
                 processing_thread_ = null;
+                // the servlet still holds the views of this request, so
+                // the next request can't have them
+                attachment_ = null;
               }
             }
         }
@@ -551,6 +694,67 @@ final class HttpConnection
     }
   }
 
+  /**
+   * Runs the servlet of a pipelined request on a worker thread. The
+   * response is finished as in {@link #runServlet}, but is only written
+   * to the client if the request has been promoted to the current request
+   * in the meantime; otherwise it is written when that happens.
+   */
+  void runPipelined(PipelinedRequest r) {
+    HttpRequestImpl req = r.getRequest();
+    long start = System.nanoTime();
+    synchronized (this) {
+      r.setStarted(Thread.currentThread(), System.currentTimeMillis());
+      // if it was promoted before a worker picked it up, the network
+      // thread must know it is being processed
+      if (r.isPromoted()) {
+        processing_thread_ = r.getThread();
+        processing_start_ = r.getStart();
+      }
+    }
+    try {
+      try {
+        LOGGER.log(Level.FINE, "servicing pipelined request via " +
+            webappDispatcher.getClass().getName() + " servlet");
+        webappDispatcher.handleRequest(req, r.getResponse());
+      } catch (Exception e) {
+        LOGGER.log(Level.WARNING, "caught an exception: " + req, e);
+      } catch (Error e) {
+        if (config.exitOnError()) {
+          exitApplication(e);
+        } else {
+          LOGGER.log(Level.SEVERE, "caught an error: " + req, e);
+        }
+      } catch (Throwable t) {
+        LOGGER.log(Level.SEVERE, "caught a throwable: " + req, t);
+      }
+      // Once promoted, the servlet may have written to the client like
+      // any current request; wait for that write before finishing.
+      if (r.isPromoted()) {
+        waitForWriteInFlightToComplete();
+      }
+      r.getResponse().finish(server_.getKeepaliveTimeout() > 0);
+      r.hold();
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "unable to hold pipelined response", e);
+    } finally {
+      server_.getAdmission().release(start - r.getQueued(),
+          System.nanoTime() - start);
+      boolean promoted;
+      synchronized (this) {
+        r.setDone();
+        promoted = r.isPromoted() && !r.isAborted();
+        if (r.isAborted()) {
+          r.release();
+        }
+      }
+      if (promoted) {
+        finishRunServlet1();
+        finishRunServlet3();
+      }
+    }
+  }
+
   /**
    * Causes the currently running application to exit.
    */
@@ -689,8 +893,11 @@ final class HttpConnection
    * (servlet_ == null). The request must be fully read before calling this
    * function. If the request contains a content- length header, the request
    * body will have been read.
+   *
+   * @return <code>false</code> if the worker queue was full and the request
+   *         was answered with a 503 instead
    */
-  private void processRequest() throws IOException {
+  private boolean processRequest() throws IOException {
     conn_.stopTimer();
     conn_.interestRead();
 
@@ -716,9 +923,60 @@ final class HttpConnection
       t.start();
     } else {
       LOGGER.log(Level.FINE, "enqueueing request");
+      AdmissionControl admission = server_.getAdmission();
+      if (!admission.tryAcquire()) {
+        shedRequest();
+        return false;
+      }
       status_ = Status.QUEUED;
-      server_.enqueue(this);
+      admitted_ = true;
+      queued_nanos_ = System.nanoTime();
+      if (!server_.enqueue(this)) {
+        admitted_ = false;
+        admission.cancel();
+        shedRequest();
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Answers a request which the admission limit or the worker queue has no
+   * room for with a 503 from the network thread, and closes the connection
+   * afterwards. The response is written as it was encoded beforehand;
+   * nothing is done for the request beyond parsing its head.
+   */
+  private void shedRequest() throws IOException {
+    LOGGER.log(Level.FINE, "overloaded; shedding request");
+    ++shedRequests;
+    dispatcher = null;
+    // nobody will read a body that was to be streamed to the servlet
+    releaseRequestBody();
+    // without a response, the connection is closed once this is sent
+    resp_ = null;
+    IOBuffer out = conn_.getOutputBuffer();
+    out.writeBytes(SHED_STATUS_LINE);
+    out.writeBytes(CachedDateHeader.getLine(System.currentTimeMillis()));
+    out.writeBytes(SHED_HEADERS);
+    out.flush();
+    status_ = Status.IO_WRITE;
+    conn_.startTimer(server_.getWriteTimeout());
+    conn_.interestReadWrite();
+  }
+
+  private static byte[] encodeAscii(String s) {
+    byte[] bytes = new byte[s.length()];
+    HeaderName.encode(s, bytes, 0);
+    return bytes;
+  }
+
+  private static byte[] concat(byte[]... arrays) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (byte[] array : arrays) {
+      out.write(array, 0, array.length);
     }
+    return out.toByteArray();
   }
 
   /**
@@ -729,8 +987,10 @@ final class HttpConnection
   private boolean verifyRequest() throws IOException {
     int status = HttpServletResponse.SC_OK;
 
-    // check if the request content length exceeds limit set in server
-    if (getContentLength(req_) > server_.getMaxPostSize()) {
+    // check if the request content length exceeds limit set in server,
+    // unless the body is streamed instead of held in memory
+    if (getContentLength(req_) > server_.getMaxPostSize()
+        && !shouldStreamBody()) {
       LOGGER.warning("request content length: " +
           getContentLength(req_) + " exceeds " +
           "server limit of " +
@@ -825,12 +1085,7 @@ final class HttpConnection
     // worker queue.
     if (server_.getBadRequestHandler() == null
         || RequestUtils.getURI(req_) == null) {
-      resp_.sendError(error);
-      resp_.finish(false);
-      status_ = Status.IO_WRITE;
-      conn_.startTimer(server_.getWriteTimeout());
-      conn_.interestReadWrite();
-      LOGGER.log(Level.FINE, "error response", resp_);
+      sendErrorResponse(error);
     } else {
       resp_.setStatus(error);
       status_ = Status.PROCESSING;
@@ -838,10 +1093,25 @@ final class HttpConnection
       LOGGER.log(Level.FINE,
           "enqueueing bad request on HttpServer.badRequestHandler");
       status_ = Status.QUEUED;
-      server_.enqueue(this);
+      if (!server_.enqueue(this)) {
+        dispatcher = null;
+        sendErrorResponse(error);
+      }
     }
   }
 
+  /**
+   * Writes an error response directly from the network thread.
+   */
+  private void sendErrorResponse(int error) throws IOException {
+    resp_.sendError(error);
+    resp_.finish(false);
+    status_ = Status.IO_WRITE;
+    conn_.startTimer(server_.getWriteTimeout());
+    conn_.interestReadWrite();
+    LOGGER.log(Level.FINE, "error response", resp_);
+  }
+
   /**
    * Finish a request. The response has been fully written to the client when
    * this function is called. If the response was a keep alive response and keep
@@ -849,9 +1119,18 @@ final class HttpConnection
    * connection.
    */
   protected void finishRequest() throws IOException {
+    // The response has been sent, so nothing reads the request body again.
+    if (req_ != null) {
+      req_._discardPostBody();
+    }
+    // The part of a streamed body that the servlet never read is still on
+    // its way, so the next request can not be read from this connection.
+    boolean body_pending = body_stream_ != null && !body_stream_.isComplete();
     if (resp_ != null &&
         resp_.isKeepAlive() == true &&
-        server_.getKeepaliveTimeout() > 0) {
+        server_.getKeepaliveTimeout() > 0 &&
+        !body_pending) {
+      releaseRequestBody();
       thread_detached_ = false;
       dispatcher = null;
       req_ = null;
@@ -861,16 +1140,115 @@ final class HttpConnection
       conn_.interestRead();
       status_ = Status.IO_READ;
 
+      // Requests read ahead of their turn come first, in order.
+      PipelinedRequest next;
+      synchronized (this) {
+        next = pipelined_.poll();
+      }
+      if (next != null) {
+        promote(next);
+      } else if (parked_ != null) {
+        req_ = parked_;
+        num_request_bytes_ = parked_bytes_;
+        num_reqs_ += 1;
+        line_buf_ = null;
+        parked_ = null;
+        if (parked_bad_) {
+          badRequest(HttpServletResponse.SC_BAD_REQUEST);
+          return;
+        }
+        startRequest();
+        return;
+      } else if (ahead_ != null) {
+        req_ = ahead_;
+        num_request_bytes_ = ahead_bytes_;
+        num_reqs_ += 1;
+        line_buf_ = null;
+        ahead_ = null;
+      }
+
       // If pipelined requests were sent, the next request might
       // already be in our input buffer.
       if (conn_.getInputBuffer().isEmpty() == false) {
         readRequest();
+      } else if (req_ == null) {
+        becomeIdle();
       }
     } else {
       conn_.close();
     }
   }
 
+  /**
+   * Gives up what is only needed while there is a request, as the
+   * connection waits for its next one. The input buffers go back to the
+   * pool, to be taken again when bytes arrive, and the attachment goes to
+   * the server for the requests of other connections; the next request
+   * of this one takes whichever attachment is free. Called with no
+   * request in progress, so nothing else is using either.
+   */
+  private void becomeIdle() {
+    conn_.getInputBuffer().clear();
+    if (attachment_ != null) {
+      server_.releaseAttachment(attachment_);
+      attachment_ = null;
+    }
+  }
+
+  /**
+   * Returns <code>true</code> if the connection is waiting for its next
+   * request and holds nothing that is only needed while there is one.
+   */
+  synchronized boolean isIdle() {
+    return req_ == null && resp_ == null && parked_ == null
+        && ahead_ == null && attachment_ == null && line_buf_ == null
+        && body_stream_ == null && body_file_ == null
+        && conn_.getPooledBytes() == 0;
+  }
+
+  /**
+   * Returns the buffer for the lines of a chunked request body.
+   */
+  private ByteArrayOutputStream getLineBuffer() {
+    if (line_buf_ == null) {
+      line_buf_ = new ByteArrayOutputStream();
+    }
+    return line_buf_;
+  }
+
+  /**
+   * Makes a pipelined request the current request, now that the response
+   * before it has been sent. If it is complete, its response is written;
+   * otherwise the servlet writes the rest of it as any current request
+   * would.
+   */
+  private void promote(PipelinedRequest next) throws IOException {
+    boolean done;
+    synchronized (this) {
+      req_ = next.getRequest();
+      resp_ = next.getResponse();
+      dispatcher = webappDispatcher;
+      num_request_bytes_ = next.getNumRequestBytes();
+      num_reqs_ += 1;
+      conn_.setOutputBuffer(next.getHeldOutput());
+      done = next.isDone();
+      if (done) {
+        status_ = Status.IO_WRITE;
+      } else {
+        status_ = Status.PROCESSING;
+        processing_thread_ = next.getThread();
+        processing_start_ = next.getStart();
+      }
+      next.setPromoted();
+    }
+    if (done) {
+      conn_.startTimer(server_.getWriteTimeout());
+      conn_.interestReadWrite();
+    } else {
+      conn_.stopTimer();
+    }
+  }
+
   /**
    * Signals the I/O thread to write the available contents of the NetConnection
    * to the network. If done is false, the calling thread blocks until the I/O
@@ -945,6 +1323,14 @@ final class HttpConnection
         }
         reset_timer = true;
 
+        if (body_stream_ != null && !body_stream_.isComplete()) {
+          // the servlet is already running; hand it more of the body
+          if (feedRequestBody()) {
+            return;
+          }
+          continue;
+        }
+
         if (readRequest()) {
           return;
         }
@@ -977,7 +1363,10 @@ final class HttpConnection
       // processing a request. This can occur if the client sends a
       // pipelined request in a separate packet. The buffered data
       // will eventually be processed when we're done with the current
-      // request. See the readRequest() call in finishRequest().
+      // request. See the readRequest() call in finishRequest(). Up to
+      // the pipeline depth, requests that can be processed alongside
+      // the current one are dispatched now instead.
+      readAhead();
       return false;
     }
 
@@ -986,7 +1375,7 @@ final class HttpConnection
         req_ = server_.createRequestSubsetImpl(this);
         num_request_bytes_ = 0;
         num_reqs_ += 1;
-        line_buf_.reset();
+        line_buf_ = null;
       }
 
       // still reading the request header
@@ -995,7 +1384,7 @@ final class HttpConnection
         conn_.getInputBuffer().flush();
         int avail = conn_.getInputBuffer().availableBytes();
         try {
-          if (!req_.parse(line_buf_, conn_.getInputBuffer())) {
+          if (!req_.parse(conn_.getInputBuffer())) {
             return false;
           }
         } finally {
@@ -1009,35 +1398,287 @@ final class HttpConnection
         badRequest(HttpServletResponse.SC_BAD_REQUEST);
         return true;
       }
+      boolean started = startRequest();
+      // the requests behind it may have arrived in the same read
+      readAhead();
+      return started;
+    }
 
-      resp_ = new HttpResponseImpl(this, req_);
-      resp_.setVersion(req_._getMajorVersion(),
-          req_._getMinorVersion());
-      line_buf_.reset();
-
-      // check request content length against limit, content encoding
-      // against supported media types, etc. If the verification
-      // fails, we're done (return true)
-      if (verifyRequest() == false) {
-        return true;
-      }
+    // reading the request body
+    return readRequestBody();
+  }
 
-      // check to see if we should read the request body
-      if (req_.getMethod() != GSEConstants.POST &&
-          req_.getMethod() != GSEConstants.PUT &&
-          getContentLength(req_) == -1 &&
-          !isChunkedRequest(req_)) {
-        LOGGER.log(Level.FINE, "request parsed and ready to process");
-        LOGGER.log(Level.FINEST, "request", req_);
-        processRequest();
+  /**
+   * Starts processing the current request once its headers have been
+   * parsed: dispatches it, or starts reading its body.
+   *
+   * @return true if nothing more should be read for now
+   */
+  private boolean startRequest() throws IOException {
+    resp_ = new HttpResponseImpl(this, req_);
+    resp_.setVersion(req_._getMajorVersion(),
+        req_._getMinorVersion());
+    line_buf_ = null;
+
+    // check request content length against limit, content encoding
+    // against supported media types, etc. If the verification
+    // fails, we're done (return true)
+    if (verifyRequest() == false) {
+      return true;
+    }
+
+    // check to see if we should read the request body
+    if (req_.getMethod() != GSEConstants.POST &&
+        req_.getMethod() != GSEConstants.PUT &&
+        getContentLength(req_) == -1 &&
+        !isChunkedRequest(req_)) {
+      LOGGER.log(Level.FINE, "request parsed and ready to process");
+      LOGGER.log(Level.FINEST, "request", req_);
+      processRequest();
+      return true;
+    }
+
+    // dispatch now and stream the body to the servlet as it arrives
+    if (shouldStreamBody()) {
+      body_remaining_ =
+          isChunkedRequest(req_) ? -1 : getContentLength(req_);
+      body_stream_ = new RequestBodyStream(conn_,
+          server_.getRequestBodyWindow(), server_.getReadTimeout());
+      req_._setBodyStream(body_stream_);
+      LOGGER.log(Level.FINE, "request parsed; streaming body to servlet");
+      LOGGER.log(Level.FINEST, "request", req_);
+      if (!processRequest()) {
         return true;
       }
+      return feedRequestBody();
     }
 
     // reading the request body
     return readRequestBody();
   }
 
+  /**
+   * Reads the requests that follow the current one from the input buffer
+   * and dispatches them, up to the pipeline depth, while the current
+   * request is processed. Following RFC 2616, section 8.1.2.2, this is
+   * only done while the current request and all of those that follow are
+   * GET or HEAD requests without a body; the first that isn't is parked,
+   * to be processed in its turn.
+   */
+  private void readAhead() throws IOException {
+    if (server_.getPipelineDepth() <= 1 || conn_ == null
+        || dispatcher == null || dispatcher != webappDispatcher
+        || conn_.isDebugPort() || !canRunAhead(req_)) {
+      return;
+    }
+    if (status_ != Status.QUEUED && status_ != Status.PROCESSING
+        && status_ != Status.IO_WRITE) {
+      return;
+    }
+    IOBuffer in = conn_.getInputBuffer();
+    while (parked_ == null) {
+      synchronized (this) {
+        if (pipelined_.size() + 1 >= server_.getPipelineDepth()) {
+          return;
+        }
+      }
+      in.flush();
+      if (in.isEmpty()) {
+        return;
+      }
+      if (ahead_ == null) {
+        ahead_ = server_.createRequestSubsetImpl(this);
+        ahead_bytes_ = 0;
+      }
+      int avail = in.availableBytes();
+      boolean parsed;
+      try {
+        parsed = ahead_.parse(in);
+      } catch (IOException ioe) {
+        // it is answered with a 400 in its turn
+        LOGGER.warning(ioe.getMessage());
+        park(true);
+        return;
+      } finally {
+        ahead_bytes_ += (avail - in.availableBytes());
+      }
+      if (!parsed) {
+        return;
+      }
+      // one that can't run ahead, or that the server has no room for now,
+      // waits for its turn; it may be shed then
+      if (!canRunAhead(ahead_) || !server_.getAdmission().tryAcquire()) {
+        park(false);
+        return;
+      }
+      PipelinedRequest r = new PipelinedRequest(this, ahead_, ahead_bytes_);
+      synchronized (this) {
+        pipelined_.addLast(r);
+      }
+      if (!server_.enqueue(r)) {
+        server_.getAdmission().cancel();
+        synchronized (this) {
+          pipelined_.removeLast();
+        }
+        park(false);
+        return;
+      }
+      ahead_ = null;
+      ++pipelinedRequests;
+      LOGGER.log(Level.FINE, "pipelined request dispatched");
+    }
+  }
+
+  /**
+   * Parks the request read ahead, to be processed in its turn.
+   */
+  private void park(boolean bad) {
+    parked_ = ahead_;
+    parked_bad_ = bad;
+    parked_bytes_ = ahead_bytes_;
+    ahead_ = null;
+  }
+
+  /**
+   * Can a request be processed alongside the requests before and after it
+   * on its connection? This is the case for persistent HTTP/1.1 GET and
+   * HEAD requests without a body, and with nothing {@link #verifyRequest}
+   * might reject.
+   */
+  private boolean canRunAhead(HttpRequestImpl req) {
+    if (req == null || req._getMajorVersion() != 1
+        || req._getMinorVersion() < 1) {
+      return false;
+    }
+    String method = req.getMethod();
+    if (!GSEConstants.GET.equals(method) && !GSEConstants.HEAD.equals(method)) {
+      return false;
+    }
+    if (getContentLength(req) != -1 || req.getHeader("Transfer-Encoding") != null
+        || req.getHeader("Content-Encoding") != null
+        || req.getHeader("Content-Range") != null
+        || "close".equalsIgnoreCase(req.getHeader("Connection"))) {
+      return false;
+    }
+    // a request for an absolute URI has its Host checked
+    return RequestUtils.getURI(req) != null
+        && RequestUtils.getURI(req).getHost() == null;
+  }
+
+  /**
+   * Should the body of the current request be streamed to the servlet
+   * rather than read in full before dispatch?
+   */
+  private boolean shouldStreamBody() {
+    if (!server_.getStreamRequestBodies() || webappDispatcher == null) {
+      return false;
+    }
+    if (!isChunkedRequest(req_) && getContentLength(req_) <= 0) {
+      return false;
+    }
+    return req_._canStreamBody();
+  }
+
+  /**
+   * Moves whatever has arrived of a streamed request body from the input
+   * buffer into the body stream. The read timeout keeps running while
+   * more of the body is expected, so a client that stalls is dropped.
+   *
+   * @return true if nothing more should be read for now: the body is
+   *         complete, reads have been paused because the servlet has
+   *         fallen behind, or the connection has been closed
+   */
+  private boolean feedRequestBody() throws IOException {
+    IOBuffer in = conn_.getInputBuffer();
+    in.flush();
+    int avail = in.availableBytes();
+    boolean complete;
+    try {
+      if (body_remaining_ < 0) {
+        complete = req_._streamChunkedBody(getLineBuffer(), in, body_stream_);
+      } else {
+        int count = (int) Math.min(avail, body_remaining_);
+        body_stream_.receive(in, count);
+        body_remaining_ -= count;
+        complete = (body_remaining_ == 0);
+      }
+    } catch (IOException ioe) {
+      // error parsing a chunked body; the servlet is already running, so
+      // all we can do is fail its reads and drop the connection
+      LOGGER.warning(ioe.getMessage());
+      body_stream_.fail(ioe);
+      conn_.close();
+      return true;
+    } finally {
+      num_request_bytes_ += (avail - in.availableBytes());
+    }
+
+    if (complete) {
+      if (body_remaining_ < 0) {
+        ++chunkedRequestsCompleted;
+      }
+      body_stream_.complete();
+      conn_.stopTimer();
+      LOGGER.log(Level.FINE, "streamed request body complete");
+      return true;
+    }
+    if (body_stream_.isPaused()) {
+      // waiting on the servlet, not the client
+      conn_.stopTimer();
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Writes the body of a request which is too large to keep in memory to a
+   * temporary file as it arrives, and dispatches the request once the body
+   * is complete.
+   *
+   * @return true if the request has been dispatched
+   */
+  private boolean spillRequestBody(int length) throws IOException {
+    IOBuffer in = conn_.getInputBuffer();
+    try {
+      if (body_file_ == null) {
+        body_file_ = new RequestBodyFile(server_.getTempdir());
+      }
+      int count = (int) Math.min(in.availableBytes(),
+          length - body_file_.length());
+      body_file_.receive(in, count);
+      num_request_bytes_ += count;
+    } catch (IOException ioe) {
+      LOGGER.log(Level.WARNING, "unable to spill request body to disk", ioe);
+      releaseRequestBody();
+      badRequest(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+      return true;
+    }
+    if (body_file_.length() < length) {
+      return false;
+    }
+    req_._setPostBody(body_file_);
+    body_file_ = null;
+    LOGGER.log(Level.FINE, "request body spilled to disk and ready to process");
+    LOGGER.log(Level.FINEST, "request", req_);
+    processRequest();
+    return true;
+  }
+
+  /**
+   * Releases the body of the current request: a streamed body's buffers
+   * and any file the body was written to.
+   */
+  private void releaseRequestBody() {
+    if (req_ != null) {
+      req_._releasePostBody();
+    }
+    if (body_file_ != null) {
+      body_file_.delete();
+      body_file_ = null;
+    }
+    body_stream_ = null;
+  }
+
   private boolean isChunkedRequest(HttpServletRequest request) {
     return GSEConstants.TRANSFER_ENCODING_CHUNKED.equals(
         request.getHeader("Transfer-Encoding"));
@@ -1069,7 +1710,7 @@ final class HttpConnection
             "header; ignoring...", req_);
       }
       try {
-        if (req_._parseChunkedBody(line_buf_, conn_.getInputBuffer())) {
+        if (req_._parseChunkedBody(getLineBuffer(), conn_.getInputBuffer())) {
           num_request_bytes_ +=
               (avail - conn_.getInputBuffer().availableBytes());
           ++chunkedRequestsCompleted;
@@ -1093,6 +1734,10 @@ final class HttpConnection
         processRequest();
         return true;
       }
+      int threshold = server_.getRequestBodySpillThreshold();
+      if (threshold > 0 && getContentLength(req_) > threshold) {
+        return spillRequestBody(getContentLength(req_));
+      }
       if (conn_.getInputBuffer().totalBytes() >= getContentLength(req_)) {
         // copy the indicated number of bytes to the request body
         req_._setPostBody(conn_.getInputBuffer(), getContentLength(req_));
@@ -1124,13 +1769,14 @@ final class HttpConnection
   /**
    * Writes more of the response to the underlying {@link NetConnection}.
    * The bulk of the work is done by {@link NetConnection#doWrite} which writes
-   * data from the output buffer that the response was written in to. If we have
+   * data from the output buffer that the response was written in to, followed
+   * by any file region queued with {@link #setFileRegion}. If we have
    * no more data to write, the request is finished. Otherwise, we reset the
    * WRITE timeout if we made some progress.
    */
   public void handleWrite(NetConnection conn) throws IOException {
     int nbytes = conn_.doWrite();
-    if (conn_.getOutputBuffer().availableBytes() == 0) {
+    if (!conn_.hasPendingOutput()) {
       // if we're processing the request still, it means data is just being
       // flushed to the network and the worker thread should be notified
       boolean stillProcessing;
@@ -1159,6 +1805,27 @@ final class HttpConnection
   public void handleClose(NetConnection conn) {
     status_ = Status.CLOSED;
 
+    // the responses to pipelined requests will never be sent
+    synchronized (this) {
+      for (PipelinedRequest r : pipelined_) {
+        r.setAborted();
+        if (r.isDone()) {
+          r.release();
+        }
+      }
+      pipelined_.clear();
+    }
+    // nor will the rest of a compressed response
+    HttpResponseImpl resp = resp_;
+    if (resp != null) {
+      resp.releaseEncoder();
+    }
+
+    if (body_stream_ != null) {
+      body_stream_.fail(new IOException("connection closed by client"));
+    }
+    releaseRequestBody();
+
     synchronized (wait_lock_) {
       is_closed_ = true;
       notifyWriteInFlightComplete();
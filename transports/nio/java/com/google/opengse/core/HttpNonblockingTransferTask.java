@@ -19,12 +19,17 @@ import com.google.opengse.iobuffer.IOBuffer;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 
 /**
  * Contains logic for managing a non-blocking transfer from a file to an
  * HttpConnection without needing to tie up a dedicated thread while blocking on
  * socket write operations.
+ * <p>
+ * A transfer either reads a channel into the connection's output buffer,
+ * or, for a file region, hands the region to the connection to be sent
+ * with {@link FileChannel#transferTo} after the response headers.
  *
  * @author Mathew Mills
  *
@@ -75,6 +80,21 @@ public class HttpNonblockingTransferTask
    */
   private ReadableByteChannel channel_;
 
+  /**
+   * The file holding the region to send, or null when reading channel_.
+   */
+  private FileChannel file_;
+
+  /**
+   * The offset in file_ of the first byte of the region.
+   */
+  private long filePosition_;
+
+  /**
+   * The length of the region of file_.
+   */
+  private long fileLength_;
+
   /**
    * How many bytes we attempt to read from the file at a time.
    */
@@ -130,6 +150,23 @@ public class HttpNonblockingTransferTask
     setupCallback();
   }
 
+  /**
+   * @param response The response to complete.
+   * @param connection connection to which to send the content
+   * @param file file holding the content
+   * @param position offset in the file of the first byte to send
+   * @param length number of bytes to send
+   * @param cb callback to be invoked when transfer is complete
+   */
+  public HttpNonblockingTransferTask(HttpResponseImpl response,
+      HttpConnection connection, FileChannel file, long position, long length,
+      TransferCompleteCallback cb) {
+    this(response, connection, (ReadableByteChannel) null, cb);
+    file_ = file;
+    filePosition_ = position;
+    fileLength_ = length;
+  }
+
   /**
    * A constructed HttpNonblockingTransferTask is ready to go after
    * construction. We just need to tell it to start its work with this method.
@@ -156,6 +193,15 @@ public class HttpNonblockingTransferTask
 
     // Synchronized against the workerThreadCallback created in setupCallback().
     synchronized (this) {
+      if (file_ != null && !doneReading_) {
+        // The whole region is queued at once; the IO-thread writes it as
+        // the socket drains and calls us back when it is all sent.
+        doneReading_ = true;
+        if (response_.flushFileRegion(file_, filePosition_, fileLength_)) {
+          conn_.detachThread();
+          return;
+        }
+      }
       while (!doneReading_) {
         // Read from the channel and stuff into output buffer.
         doneReading_ = readFromChannel();
@@ -286,7 +332,8 @@ public class HttpNonblockingTransferTask
       Runnable workerThreadCallback_ = workerThreadCallback;
       HttpServer server = conn_.server_;
       public void run() {
-        server.enqueue(workerThreadCallback_);
+        // a response already in progress must not be shed
+        server.getQueue().addRunnable(workerThreadCallback_);
       }
     };
 
@@ -36,6 +36,7 @@ import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
@@ -112,11 +113,20 @@ final class HttpRequestImpl implements HttpRequest, ConnectionInformation {
   private List<AcceptHeader> codings_ = null;
   private List<AcceptHeader> charsets_ = null;
   private ChunkHeader chunk_header_ = null;
+  private int chunk_remaining_ = 0;
   private IOBuffer post_body_ = null;
-  private IOBufferInputStream input_stream_ = null;
+  private RequestBodyFile post_body_file_ = null;
+  private RequestBodyStream body_stream_ = null;
+  private ServletInputStream input_stream_ = null;
   private BufferedReader input_reader_ = null;
   private final ServletEngineConfiguration config;
 
+  /**
+   * Whether the request is dispatched alongside an earlier request on its
+   * connection, in which case it doesn't share the connection attachment.
+   */
+  private volatile boolean pipelined_ = false;
+
   /**
    * Constructor for normal usage.
    *
@@ -134,9 +144,8 @@ final class HttpRequestImpl implements HttpRequest, ConnectionInformation {
   /**
    * Parse an HTTP request.
    */
-  boolean parse(final ByteArrayOutputStream baos, final IOBuffer buf)
-      throws IOException {
-    return RequestContextFactory.parse(requestContext, baos, buf);
+  boolean parse(final IOBuffer buf) throws IOException {
+    return RequestContextFactory.parse(requestContext, buf);
   }
 
   void setURI(String uri) {
@@ -212,10 +221,18 @@ final class HttpRequestImpl implements HttpRequest, ConnectionInformation {
       return false;
     }
 
+    // The rest of a streamed body which the servlet did not read is still
+    // on its way, and the next request can't be read until it is skipped.
+    if (body_stream_ != null && !body_stream_.isComplete()) {
+      return false;
+    }
+
     if (requestContext.getMethod() == GSEConstants.POST ||
         requestContext.getMethod() == GSEConstants.PUT) {
-      // We need a valid content length for POST & PUT keep-alives
-      if (getHeader("Content-Length") == null) {
+      // We need a valid content length for POST & PUT keep-alives, or a
+      // streamed body which has been received to the end
+      if (getHeader("Content-Length") == null
+          && (body_stream_ == null || !body_stream_.isComplete())) {
         return false;
       }
     } else if ((requestContext.getMethod() != GSEConstants.OPTIONS)
@@ -305,6 +322,24 @@ final class HttpRequestImpl implements HttpRequest, ConnectionInformation {
     return content_type_;
   }
 
+  /**
+   * Returns a stream over the post body, however it was received.
+   */
+  private ServletInputStream openPostBody() {
+    if (body_stream_ != null) {
+      return body_stream_;
+    }
+    if (post_body_file_ != null) {
+      try {
+        return post_body_file_.openStream();
+      } catch (IOException e) {
+        LOGGER.log(Level.WARNING, "unable to read request body from "
+            + post_body_file_.getFile(), e);
+      }
+    }
+    return new IOBufferInputStream(getPostBody());
+  }
+
   /**
    * Returns a copy of the i/o buffer containing the post body.
    */
@@ -330,6 +365,10 @@ final class HttpRequestImpl implements HttpRequest, ConnectionInformation {
    * are requested from this object.
    */
   void _setPostBody(final IOBuffer buf, final int length) throws IOException {
+    if (post_body_file_ != null) {
+      post_body_file_.delete();
+      post_body_file_ = null;
+    }
     post_body_ = new IOBuffer();
     buf.flush();
     post_body_.transfer(buf, length);
@@ -337,11 +376,74 @@ final class HttpRequestImpl implements HttpRequest, ConnectionInformation {
     parsed_params_ = null;  // Reparse the parameters when needed.
   }
 
+  /**
+   * Sets the post body to a body which was written to a file as it was
+   * read. The file is removed by {@link #_releasePostBody()}.
+   */
+  void _setPostBody(final RequestBodyFile file) {
+    post_body_ = null;
+    post_body_file_ = file;
+    parsed_params_ = null;  // Reparse the parameters when needed.
+  }
+
+  /**
+   * Sets the stream through which the body is handed to the servlet while
+   * it is still being received.
+   */
+  void _setBodyStream(final RequestBodyStream stream) {
+    body_stream_ = stream;
+  }
+
+  /**
+   * Returns the stream the body is being received into, or null if the
+   * body was read in full before dispatch.
+   */
+  RequestBodyStream _getBodyStream() {
+    return body_stream_;
+  }
+
+  /**
+   * Can the body of this request be streamed to the servlet? Form posts
+   * are parsed into parameters and gzipped bodies are inflated, both of
+   * which need the whole body up front.
+   */
+  boolean _canStreamBody() {
+    return !"application/x-www-form-urlencoded".equals(getContentType())
+        && !_isGzippedRequest();
+  }
+
+  /**
+   * Releases the resources held by the body: the file of a body that was
+   * written to disk and the buffers of a streamed body.
+   */
+  void _releasePostBody() {
+    if (post_body_file_ != null) {
+      post_body_file_.delete();
+    }
+    if (body_stream_ != null) {
+      body_stream_.close();
+    }
+  }
+
+  /**
+   * Lets go of a body that was read into memory, once nothing can read it
+   * any more. The body shares its memory with the connection's input
+   * buffer, so this lets that memory be reused without waiting for the
+   * request to be garbage collected. Streams of the body handed out
+   * before keep what they have not read.
+   */
+  void _discardPostBody() {
+    if (post_body_ != null) {
+      post_body_.clear();
+    }
+  }
+
   /**
    * Parses (or continues parsing) a chunked transfer-encoded request body
    * according to RFC 2616, section 3.6.1. This method should be called
    * repeatedly, as new data is available in buf, until it returns
-   * <code>true</code>.
+   * <code>true</code>. Once the body has grown beyond the server's spill
+   * threshold, it is moved to a file.
    *
    * @param line_buf a buffer to hold the contents of a chunk header between
    *                 calls to this method, for cases where the available bytes
@@ -353,47 +455,94 @@ final class HttpRequestImpl implements HttpRequest, ConnectionInformation {
   boolean _parseChunkedBody(
       final ByteArrayOutputStream line_buf, final IOBuffer buf)
       throws IOException {
+    if (post_body_ == null && post_body_file_ == null) {
+      post_body_ = new IOBuffer();
+    }
+    RequestBodySink sink = new RequestBodySink() {
+      public void receive(IOBuffer src, int nbytes) throws IOException {
+        if (post_body_file_ != null) {
+          post_body_file_.receive(src, nbytes);
+          return;
+        }
+        post_body_.transfer(src, nbytes);
+        int threshold = (server_ == null)
+            ? 0 : server_.getRequestBodySpillThreshold();
+        if (threshold > 0 && post_body_.totalBytes() > threshold) {
+          post_body_.flush();
+          post_body_file_ = new RequestBodyFile(server_.getTempdir());
+          post_body_file_.receive(post_body_, post_body_.availableBytes());
+          post_body_ = null;
+        }
+      }
+    };
+    if (!_streamChunkedBody(line_buf, buf, sink)) {
+      return false;
+    }
+
+    // Set the content length header so request forwarding will work.
+    long length;
+    if (post_body_file_ != null) {
+      length = post_body_file_.length();
+    } else {
+      post_body_.flush();
+      length = post_body_.availableBytes();
+    }
+    requestContext.getHeaders().removeHeader("Transfer-Encoding");
+    requestContext.getHeaders().setHeader("Content-Length",
+        Long.toString(length));
+    parsed_params_ = null;  // Reparse the parameters when needed.
+    return true;
+  }
 
+  /**
+   * Decodes (or continues decoding) a chunked transfer-encoded request
+   * body according to RFC 2616, section 3.6.1, handing the chunk data to
+   * <code>body</code> as it arrives, even partway through a chunk. This
+   * method should be called repeatedly, as new data is available in buf,
+   * until it returns <code>true</code>.
+   *
+   * @param line_buf a buffer to hold the contents of a chunk header between
+   *                 calls to this method, for cases where the available bytes
+   *                 in buf are not sufficient to hold the entire line.
+   * @param buf      iobuffer containing bytes to parse.
+   * @param body     where the chunk data goes.
+   * @return <code>true</code> if the last chunk has been decoded.
+   * @throws java.io.IOException in case of badly formed input.
+   */
+  boolean _streamChunkedBody(final ByteArrayOutputStream line_buf,
+      final IOBuffer buf, final RequestBodySink body) throws IOException {
+    buf.flush();
     while (true) {
-      // If a chunk header has been parsed, attempt to read chunk data.
       if (chunk_header_ != null) {
-        final int chunkSize = chunk_header_.getChunkSize();
-        // We check that we have sufficient bytes in the input buffer to
-        // satisfy the size reported with the chunk header plus the trailing
-        // CRLF.
-        if (buf.availableBytes() >= chunkSize + 2) {
-          // As long as this isn't the last chunk (0 length), transfer bytes.
-          if (chunkSize > 0) {
-            if (post_body_ == null) {
-              post_body_ = new IOBuffer();
-            }
-            post_body_.transfer(buf, chunkSize);
-          }
-          // Pull off trailing CRLF.
-          if (!buf.readLine(line_buf, READLINE_LIMIT)) {
-            throw new IOException("chunk-data not succeeded by CRLF");
-          } else if (line_buf.size() > 2) {
-            throw new IOException("extra characters found in data chunk: " +
-                line_buf.toString());
-          }
-          chunk_header_ = null;
-          // We're done if this was the last chunk (chunk_size == 0).
-          if (chunkSize == 0) {
-            // Set the content length header so request forwarding will work.
-            requestContext.getHeaders().removeHeader("Transfer-Encoding");
-            requestContext.getHeaders().setHeader("Content-Length",
-                    Integer.toString(post_body_.availableBytes()));
-
-            post_body_.flush();
-            return true;
+        // Move as much of the chunk data as has arrived.
+        if (chunk_remaining_ > 0) {
+          int count = Math.min(buf.availableBytes(), chunk_remaining_);
+          if (count == 0) {
+            return false;
           }
-        } else {
+          body.receive(buf, count);
+          chunk_remaining_ -= count;
+          continue;
+        }
+        // Pull off trailing CRLF.
+        if (!buf.readLine(line_buf, READLINE_LIMIT)) {
           return false;
+        } else if (line_buf.size() > 2) {
+          throw new IOException("extra characters found in data chunk: " +
+              line_buf.toString());
+        }
+        line_buf.reset();
+        boolean last = chunk_header_.getChunkSize() == 0;
+        chunk_header_ = null;
+        // We're done if this was the last chunk (chunk_size == 0).
+        if (last) {
+          return true;
         }
       } else if (buf.readLine(line_buf, READLINE_LIMIT)) {
         // We've managed to read the next chunk header; parse it.
         chunk_header_ =
             ChunkHeader.parse(line_buf.toString("ISO-8859-1").trim());
+        chunk_remaining_ = chunk_header_.getChunkSize();
         line_buf.reset();
       } else {
         return false;
@@ -430,9 +579,8 @@ final class HttpRequestImpl implements HttpRequest, ConnectionInformation {
     }
 
     // wrap post body in an inflator stream
-    post_body_.flush();
     InputStream inflator_input_stream =
-        new GZIPInputStream(new IOBufferInputStream(post_body_), 1024);
+        new GZIPInputStream(openPostBody(), 1024);
 
     // decompress by writing to a new IO buffer, update body
     IOBuffer inflatedBodyBuffer = new IOBuffer();
@@ -465,7 +613,7 @@ final class HttpRequestImpl implements HttpRequest, ConnectionInformation {
       throw new IllegalStateException("getReader() called previously");
     }
     if (input_stream_ == null) {
-      input_stream_ = new IOBufferInputStream(getPostBody());
+      input_stream_ = openPostBody();
     }
     return input_stream_;
   }
@@ -639,6 +787,27 @@ final class HttpRequestImpl implements HttpRequest, ConnectionInformation {
 
         FormUrlDecoder.parse(sb.toString(), map, encoding);
       }
+    } else if (post_body_file_ != null
+        && "application/x-www-form-urlencoded".equals(getContentType())) {
+      // the character encoding on the post body is guaranteed to be US-ASCII
+      StringBuilder sb = new StringBuilder();
+      try {
+        InputStreamReader reader = new InputStreamReader(
+            post_body_file_.openStream(), "US-ASCII");
+        try {
+          char[] char_buf = new char[1024];
+          int res;
+          while ((res = reader.read(char_buf)) > 0) {
+            sb.append(char_buf, 0, res);
+          }
+        } finally {
+          reader.close();
+        }
+      } catch (IOException e) {
+        LOGGER.log(Level.WARNING, "unable to read request parameters from "
+            + post_body_file_.getFile(), e);
+      }
+      FormUrlDecoder.parse(sb.toString(), map, encoding);
     }
     return map;
   }
@@ -653,9 +822,18 @@ final class HttpRequestImpl implements HttpRequest, ConnectionInformation {
       throw new IllegalStateException("getInputStream() called previously");
     }
     if (input_reader_ == null) {
-      IOBuffer body = getPostBody();
-      body.setCharacterEncoding(getInternalCharacterEncoding());
-      input_reader_ = new BufferedReader(new IOBufferReader(body));
+      if (body_stream_ != null || post_body_file_ != null) {
+        try {
+          input_reader_ = new BufferedReader(new InputStreamReader(
+              openPostBody(), getInternalCharacterEncoding()));
+        } catch (UnsupportedEncodingException e) {
+          throw new IllegalStateException(e);
+        }
+      } else {
+        IOBuffer body = getPostBody();
+        body.setCharacterEncoding(getInternalCharacterEncoding());
+        input_reader_ = new BufferedReader(new IOBufferReader(body));
+      }
     }
     return input_reader_;
   }
@@ -664,6 +842,25 @@ final class HttpRequestImpl implements HttpRequest, ConnectionInformation {
     return this;
   }
 
+  public Object getConnectionAttachment() {
+    return (conn_ == null || pipelined_) ? null : conn_.getAttachment();
+  }
+
+  public void setConnectionAttachment(Object attachment) {
+    if (conn_ != null && !pipelined_) {
+      conn_.setAttachment(attachment);
+    }
+  }
+
+  /**
+   * Marks the request as dispatched while an earlier request on its
+   * connection is still being processed. The attachment of the connection
+   * belongs to that request, so this one neither sees nor replaces it.
+   */
+  void setPipelined() {
+    pipelined_ = true;
+  }
+
   public int getLocalPort() {
     Socket socket = conn_.getSocket();
     // can socket ever be null?
@@ -767,7 +964,7 @@ final class HttpRequestImpl implements HttpRequest, ConnectionInformation {
   }
 
   public String getScheme() {
-    String scheme = requestContext.getURI().getScheme();
+    String scheme = requestContext.getScheme();
     if (scheme == null) {
       if (isSecure()) {
         scheme = "https";
@@ -850,21 +1047,20 @@ final class HttpRequestImpl implements HttpRequest, ConnectionInformation {
   }
 
   public String getQueryString() {
-    return requestContext.getURI().getRawQuery();
+    return requestContext.getRawQuery();
   }
 
   public String getRequestURI() {
     // According to the javadoc 1.4 api, the web container does not decode
     // this string, so we return the raw path.
-    final URI uri = requestContext.getURI();
-    return (uri == null) ? null : uri.getRawPath();
+    return requestContext.getRawPath();
   }
 
   public StringBuffer getRequestURL() {
     final StringBuffer buf = getRequestURLPrefix();
 
     // append the raw path
-    buf.append(requestContext.getURI().getRawPath());
+    buf.append(requestContext.getRawPath());
     return buf;
   }
 
@@ -20,6 +20,7 @@ import java.io.PrintWriter;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.IllegalCharsetNameException;
@@ -31,15 +32,16 @@ import java.util.Locale;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.zip.DeflaterOutputStream;
-import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletResponse;
 
 import com.google.opengse.httputil.AcceptHeader;
+import com.google.opengse.httputil.CachedDateHeader;
 import com.google.opengse.httputil.ContentType;
+import com.google.opengse.httputil.HeaderBlock;
+import com.google.opengse.httputil.HeaderName;
 import com.google.opengse.httputil.HttpUtil;
 import com.google.opengse.httputil.Range;
 import com.google.opengse.iobuffer.ConsumeCallback;
@@ -75,7 +77,7 @@ import com.google.opengse.ServletEngineConfiguration;
  * @author Peter Mattis
  * @author Spencer Kimball
  */
-final class HttpResponseImpl
+class HttpResponseImpl
     extends MimeHeaders implements HttpResponse, ConsumeCallback {
 
   private static final String HTTPS = "https";
@@ -89,13 +91,23 @@ final class HttpResponseImpl
 
   private static final int NUM_BOUNDARY_BYTES = 24;
 
+  /** the encoded status lines of HTTP/1.1 responses, from status 100 */
+  private static final byte[][] STATUS_LINES_11 = new byte[500][];
+
+  /** the encoded status lines of HTTP/1.0 responses, from status 100 */
+  private static final byte[][] STATUS_LINES_10 = new byte[500][];
+
+  /** the compression policy of responses without a connection (tests) */
+  private static final ResponseCompression NO_SERVER_COMPRESSION =
+      new ResponseCompression();
+
   protected HttpConnection conn;
   private final HttpRequestImpl req;
   private int status = 0;
   private int major = 0;
   private int minor = 9;
-  private int contentLength = 0;
-  private int discardedBytes = 0;
+  private long contentLength = 0;
+  private long discardedBytes = 0;
   private boolean committed = false;
   private boolean finished = false;
   private boolean canChunkEncode = false;
@@ -114,8 +126,8 @@ final class HttpResponseImpl
   private IOBuffer output_buf = null;
   private IOBufferOutputStream output_stream = null;
   private PrintWriter output_writer = null;
-  private DeflaterOutputStream deflater_output_stream = null;
-  private IOBuffer deflater_output_buf = null;
+  private volatile ContentEncoder content_encoder = null;
+  private IOBuffer compressed_buf = null;
   private boolean compress_response = false;
   private boolean compress_response_set = false;
   private String content_encoding = null;
@@ -131,7 +143,22 @@ final class HttpResponseImpl
 
   public HttpResponseImpl(
       HttpConnection conn, HttpRequestImpl req) {
-    config = conn.getConfiguration();
+    this(conn, conn.getConfiguration(), req);
+  }
+
+  /**
+   * Creates a response that isn't bound to a connection or a request. It
+   * can be given a status and headers and write its head with
+   * {@link #writeIOBuffer}, but can't be sent; the benchmarks use it to
+   * measure header encoding on its own.
+   */
+  HttpResponseImpl(ServletEngineConfiguration config) {
+    this(null, config, null);
+  }
+
+  private HttpResponseImpl(HttpConnection conn,
+      ServletEngineConfiguration config, HttpRequestImpl req) {
+    this.config = config;
     if (isUnsupportedCharset(config.defaultResponseCharacterEncoding())) {
       throw new IllegalStateException(config.defaultResponseCharacterEncoding()
           + " is an unsupported encoding.");
@@ -244,10 +271,11 @@ final class HttpResponseImpl
 
     // Check for a mismatch between manually set content length and actual
     // number of bytes being sent.
-    if (getContentLength() != contentLength && getContentLength() != -1) {
+    long manualContentLength = getContentLengthLong();
+    if (manualContentLength != contentLength && manualContentLength != -1) {
       if (!head_request) {
         LOGGER.warning("manually set content length header, "
-            + getContentLength() + ", does not match actual content length "
+            + manualContentLength + ", does not match actual content length "
             + contentLength);
       }
     }
@@ -256,7 +284,7 @@ final class HttpResponseImpl
     // content length, or we must have used the "chunked" transfer
     // encoding. The one exception is status codes that don't require any
     // content.
-    if (getContentLength() == contentLength || isChunkEncoded()
+    if (manualContentLength == contentLength || isChunkEncoded()
         || !statusAllowsContent(status)) {
       return true;
     } else {
@@ -277,14 +305,46 @@ final class HttpResponseImpl
 
   @Override
   public void writeIOBuffer(IOBuffer buf) throws IOException {
-    buf
-        .writeBytes(("HTTP/" + major + "." + minor + " " + status + " "
-            + reason + "\r\n").getBytes());
-    if (major >= 1) {
+    byte[] statusLine = getStatusLine();
+    int length = (major >= 1) ? encodedLength() : 0;
+    if (length < 0) {
+      buf.writeBytes(statusLine);
       super.writeIOBuffer(buf);
-    } else {
-      buf.writeBytes("\r\n".getBytes());
+      return;
     }
+    // the status line and headers go out as one copy
+    byte[] bytes = new byte[statusLine.length + length + 2];
+    System.arraycopy(statusLine, 0, bytes, 0, statusLine.length);
+    int end = (major >= 1)
+        ? encodeHeaders(bytes, statusLine.length) : statusLine.length;
+    bytes[end] = '\r';
+    bytes[end + 1] = '\n';
+    buf.writeBytes(bytes);
+  }
+
+  /**
+   * Returns the encoded status line. The lines of HTTP/1.0 and HTTP/1.1
+   * responses with the usual reasons are encoded once and shared.
+   */
+  private byte[] getStatusLine() {
+    if (major == 1 && (minor == 0 || minor == 1)
+        && status >= 100 && status < 100 + STATUS_LINES_11.length
+        && reason == findReason(status)) {
+      byte[][] lines = (minor == 1) ? STATUS_LINES_11 : STATUS_LINES_10;
+      byte[] line = lines[status - 100];
+      if (line == null) {
+        // racy, but any thread encodes the same line
+        line = encodeStatusLine();
+        lines[status - 100] = line;
+      }
+      return line;
+    }
+    return encodeStatusLine();
+  }
+
+  private byte[] encodeStatusLine() {
+    return ("HTTP/" + major + "." + minor + " " + status + " " + reason
+        + "\r\n").getBytes();
   }
 
   /**
@@ -342,13 +402,15 @@ final class HttpResponseImpl
     output_buf.setConsumeCallback(null);
 
     try {
+      // flush first, so that preCommit sees the whole body
+      output_buf.flush();
+
       // pre commit if necessary
       if (isCommitted() == false) {
         preCommit(true);
       }
 
-      // flush and encode data
-      output_buf.flush();
+      // encode data
       encodeData(output_buf, true);
 
       // prepend response headers if they haven't already been committed
@@ -408,7 +470,8 @@ final class HttpResponseImpl
       throw new IllegalStateException("getWriter() called previously");
     }
     if (transfer_task_ != null) {
-      throw new IllegalStateException("sendStream() called previously");
+      throw new IllegalStateException(
+          "sendStream() or sendFile() called previously");
     }
     if (output_stream == null) {
       output_stream = new IOBufferOutputStream(getOutputBuffer());
@@ -421,7 +484,8 @@ final class HttpResponseImpl
       throw new IllegalStateException("getOutputStream() called previously");
     }
     if (transfer_task_ != null) {
-      throw new IllegalStateException("sendStream() called previously");
+      throw new IllegalStateException(
+          "sendStream() or sendFile() called previously");
     }
     if (output_writer == null) {
       output_writer = new PrintWriter(new IOBufferWriter(getOutputBuffer()));
@@ -456,8 +520,29 @@ final class HttpResponseImpl
     setIntHeader("Content-Length", len);
   }
 
+  /**
+   * Returns the Content-Length header, or -1 if it is not set or is too
+   * large for an int; see {@link #getContentLengthLong}.
+   */
   public int getContentLength() {
-    return getIntHeader("Content-Length");
+    long len = getContentLengthLong();
+    return (len > Integer.MAX_VALUE) ? -1 : (int) len;
+  }
+
+  /**
+   * Sets the Content-Length header to a length which may not fit in an
+   * int, such as that of a large file sent with {@link #sendFile}.
+   */
+  public void setContentLengthLong(long len) {
+    setHeader("Content-Length", Long.toString(len));
+  }
+
+  /**
+   * Returns the Content-Length header, or -1 if it is not set.
+   */
+  public long getContentLengthLong() {
+    String len = getHeader("Content-Length");
+    return (len == null) ? -1 : Long.parseLong(len);
   }
 
   /**
@@ -468,8 +553,8 @@ final class HttpResponseImpl
    * length will be 0. This value is used for statistics and
    * request logging.
    */
-  public int getActualContentLength() {
-    int bytes = contentLength - discardedBytes;
+  public long getActualContentLength() {
+    long bytes = contentLength - discardedBytes;
     return (head_request || bytes < 0) ? 0 : bytes;
   }
 
@@ -598,6 +683,20 @@ final class HttpResponseImpl
     super.addHeader(name, value);
   }
 
+  /**
+   * Sets headers the webapp adds to every response, which are written
+   * without being encoded again unless the servlet looks at or changes one
+   * of them.
+   */
+  public void setStaticHeaders(HeaderBlock block) {
+    if (isCommitted()) {
+      LOGGER.warning("headers " + block + " will be ignored; "
+          + "response already committed");
+      return;
+    }
+    setHeaders(block);
+  }
+
   private boolean isRedirected() {
     return status == HttpServletResponse.SC_MOVED_TEMPORARILY;
   }
@@ -747,7 +846,7 @@ final class HttpResponseImpl
           + output_buf.availableBytes() + " bytes)", output_buf);
       // write all available data to connection
       try {
-        conn.write(done);
+        sendOutput(done);
         writeInitiated = true;
       } catch (IOException e) {
         LOGGER.log(Level.FINE, "unable to send data ("
@@ -772,6 +871,17 @@ final class HttpResponseImpl
     return writeInitiated;
   }
 
+  /**
+   * Sends the contents of the output buffer to the client. A response
+   * which has to wait for earlier responses on its connection to be sent
+   * overrides this to hold on to its output instead.
+   *
+   * @param done true if this is the last of the content to send.
+   */
+  void sendOutput(boolean done) throws IOException {
+    conn.write(done);
+  }
+
   /**
    * Encode the content in the output buffer as appropriate for this HTTP
    * request, adding headers and trailers as needed.
@@ -822,11 +932,9 @@ final class HttpResponseImpl
       return;
     }
 
-    // if gzip content coding is enabled, compress iobuffer
-    if ("gzip".equals(content_encoding) == true) {
-      gzipEncodeData(iobuffer, done);
-    } else if ("deflate".equals(content_encoding) == true) {
-      deflateEncodeData(iobuffer, done);
+    // if gzip or deflate content coding is enabled, compress iobuffer
+    if (content_encoding != null) {
+      compressEncodeData(iobuffer, done);
     }
 
     // if the response is partial content, verify no compression or chunking
@@ -893,76 +1001,6 @@ final class HttpResponseImpl
     closeConnection = true;
   }
 
-  /**
-   * Gzips iobuffer data.
-   */
-  private void gzipEncodeData(IOBuffer iobuffer, boolean done) {
-    try {
-      if (deflater_output_buf == null) {
-        deflater_output_buf = new IOBuffer();
-        deflater_output_stream = new ThriftyGZIPOutputStream(
-            new IOBufferOutputStream(deflater_output_buf));
-      }
-      compressEncodeData(iobuffer, done);
-    } catch (IOException e) {
-      LOGGER.warning("unable to create deflater");
-    }
-  }
-
-  /**
-   * Helper class that immediately frees deflater resource on close
-   */
-  private class ThriftyGZIPOutputStream extends GZIPOutputStream {
-    public ThriftyGZIPOutputStream(OutputStream os) throws IOException {
-      super(os);
-    }
-
-    @Override
-    public void finish() throws IOException {
-      super.finish();
-      def.end();
-    }
-
-    @Override
-    public void close() throws IOException {
-      super.finish();
-      def.end();
-    }
-  }
-
-  /**
-   * Deflates iobuffer data.
-   */
-  private void deflateEncodeData(IOBuffer iobuffer, boolean done) {
-    if (deflater_output_buf == null) {
-      deflater_output_buf = new IOBuffer();
-      deflater_output_stream = new ThriftyDeflaterOutputStream(
-          new IOBufferOutputStream(deflater_output_buf));
-    }
-    compressEncodeData(iobuffer, done);
-  }
-
-  /**
-   * Helper class that immediately frees deflater resource on close
-   */
-  private class ThriftyDeflaterOutputStream extends DeflaterOutputStream {
-    public ThriftyDeflaterOutputStream(OutputStream os) {
-      super(os);
-    }
-
-    @Override
-    public void finish() throws IOException {
-      super.finish();
-      def.end();
-    }
-
-    @Override
-    public void close() throws IOException {
-      super.finish();
-      def.end();
-    }
-  }
-
   /**
    * Compresses iobuffer data in place using either 'gzip' or
    * 'deflate'. The name 'compress' does not imply the LZW format
@@ -974,36 +1012,57 @@ final class HttpResponseImpl
    */
   private void compressEncodeData(IOBuffer iobuffer, boolean done) {
     try {
-      // compress iobuffer by writing read buffer contents to deflater stream
-      ByteBuffer byteBuffer;
-      while ((byteBuffer = iobuffer.getReadBuffer()) != null) {
-        byte[] buf = byteBuffer.array();
-        int o = byteBuffer.arrayOffset();
-        int s = byteBuffer.position();
-        int e = byteBuffer.limit();
-        deflater_output_stream.write(buf, o + s, (e - s));
-        byteBuffer.position(e);
-        iobuffer.releaseReadBuffer();
+      if (content_encoder == null) {
+        content_encoder = new ContentEncoder(getCompression(), content_encoding);
+        compressed_buf = (conn == null)
+            ? new IOBuffer() : new IOBuffer(
+                conn.getNetConnection().getSelector().getBufferPool());
       }
-
-      // if this is the last bit of data, finish all deflating by closing
-      if (done == true) {
-        deflater_output_stream.close();
-      } else {
-        deflater_output_stream.flush();
+      if (content_encoder.isFinished()) {
+        iobuffer.discard(iobuffer.availableBytes());
+        return;
+      }
+      boolean encoded = false;
+      try {
+        content_encoder.encode(iobuffer, compressed_buf, done);
+        encoded = true;
+      } finally {
+        if (!encoded) {
+          // the body can't be finished now; give the deflater back
+          content_encoder.release();
+        }
       }
 
       // transfer the compressed data back by prepending it to the iobuffer
-      if (deflater_output_buf.isEmpty() == false) {
-        iobuffer.prepend(deflater_output_buf);
-        // clear deflater_output_buf of contents
-        deflater_output_buf.clear();
+      if (compressed_buf.isEmpty() == false) {
+        iobuffer.prepend(compressed_buf);
+        // clear compressed_buf of contents
+        compressed_buf.clear();
       }
     } catch (IOException e) {
       LOGGER.log(Level.SEVERE, "error encoding buffer", e);
     }
   }
 
+  /**
+   * Gives back the deflater of a compressed response which will not be
+   * finished, because the connection went away. Any thread may call this.
+   */
+  void releaseEncoder() {
+    ContentEncoder encoder = content_encoder;
+    if (encoder != null) {
+      encoder.release();
+    }
+  }
+
+  /**
+   * Returns the compression policy of our server.
+   */
+  private ResponseCompression getCompression() {
+    return (conn == null) ? NO_SERVER_COMPRESSION
+        : conn.server_.getCompression();
+  }
+
   /**
    * Encodes data as a partial content response. If there is a single range,
    * the data before and after the range is skipped. If there are multiple
@@ -1096,6 +1155,8 @@ final class HttpResponseImpl
       }
       if (newIOBuffer.isEmpty() == false) {
         iobuffer.prepend(newIOBuffer);
+        // let go of the memory the two now share
+        newIOBuffer.clear();
       }
     } catch (IOException e) {
       // should never reach this statement. IOException in IOBuffers only are
@@ -1143,6 +1204,8 @@ final class HttpResponseImpl
       // prepend new iobuffer
       if (!tmpBuffer.isEmpty()) {
         iobuffer.prepend(tmpBuffer);
+        // let go of the memory the two now share
+        tmpBuffer.clear();
       }
     } catch (IOException e) {
       // should never reach this statement. IOException in IOBuffers only are
@@ -1214,13 +1277,8 @@ final class HttpResponseImpl
       return false;
     }
 
-    // othewise, compress all text/ content types and
-    // several application types that we allow to be compressed.
-    return type.startsWith("text/")
-        || (type.startsWith("application/") && (type.endsWith("/x-javascript")
-        || type.endsWith("+xml")
-        || type.endsWith("/csv")
-        || type.endsWith("/json")));
+    // othewise, compress the content types on the server's allowlist
+    return getCompression().isCompressibleType(type);
   }
 
   private static final Comparator<AcceptHeader> ACCEPT_HEADER_COMPARATOR
@@ -1281,7 +1339,7 @@ final class HttpResponseImpl
       return false;
     }
     // if the content length has been manually set, don't chunk
-    if (getContentLength() != -1) {
+    if (getContentLengthLong() != -1) {
       return false;
     }
     // if less than HTTP/1.1 response, accept-encoding
@@ -1324,6 +1382,12 @@ final class HttpResponseImpl
     if ((range = req._getRange()) == null) {
       return false;
     }
+    if (getContentLengthLong() > Integer.MAX_VALUE) {
+      // Ranges are counted in ints; the whole entity is sent instead,
+      // which a server may always do.
+      range = null;
+      return false;
+    }
     rangeContentLength = getContentLength();
     rangeContentType = getContentType();
     if (rangeContentLength == -1) {
@@ -1411,6 +1475,11 @@ final class HttpResponseImpl
     if (compress_response && !output_buf.isEmpty()) {
       // figure out the preferred compression ordering
       content_encoding = getCompressEncodingForClient();
+      if (content_encoding != null
+          && isTooSmallToCompress(done ? output_buf.totalBytes()
+                                       : getContentLengthLong())) {
+        content_encoding = null;
+      }
       if (content_encoding != null) {
         setHeader("Content-Encoding", content_encoding);
         // we have to remove any manually specified content length
@@ -1426,6 +1495,21 @@ final class HttpResponseImpl
     }
   }
 
+  /**
+   * Returns true, and counts the response as skipped, if a body of
+   * <code>length</code> bytes is too small to be worth compressing.
+   *
+   * @param length the length of the body, or -1 if not known yet
+   */
+  private boolean isTooSmallToCompress(long length) {
+    ResponseCompression compression = getCompression();
+    if (length >= 0 && length < compression.getMinSize()) {
+      compression.recordSkipped();
+      return true;
+    }
+    return false;
+  }
+
   /**
    * Adds appropriate "Content-Length", "Connection" and "Keep-Alive" headers.
    * In the case of a partial content response, appropriate "Content-Range"
@@ -1443,8 +1527,10 @@ final class HttpResponseImpl
    * @return the HTTP status and headers as an IOBuffer
    */
   private IOBuffer prepareHeaders(boolean keepAlive, boolean done) {
-    // Add the Date header
-    setDateHeader("Date", System.currentTimeMillis());
+    // Add the Date header, which is only formatted once a second
+    long now = System.currentTimeMillis();
+    setHeader(HeaderName.DATE, CachedDateHeader.getValue(now),
+        CachedDateHeader.getLine(now));
 
     // Some network caches handle cache control headers incorrectly, so
     // we can't send things out with cache-control: public and a set-cookie
@@ -1462,14 +1548,16 @@ final class HttpResponseImpl
       // Appropriately set default headers for responses that have content
 
       // Set the caching policy, unless the servlet set one explicitly
-      if (conn != null && !containsHeader("Cache-control")) {
-        setHeader("Cache-control", conn.server_.getDefaultCachePolicy());
+      if (conn != null && getHeader(HeaderName.CACHE_CONTROL) == null) {
+        setHeader(HeaderName.CACHE_CONTROL,
+            conn.server_.getDefaultCachePolicy(),
+            conn.server_.getDefaultCacheLine());
       }
 
       // If all data is written, the content length is known; set it.
       if (done == true) {
-        int manualContentLength = getContentLength();
-        setContentLength(contentLength);
+        long manualContentLength = getContentLengthLong();
+        setContentLengthLong(contentLength);
 
         if (manualContentLength != -1
             && manualContentLength != contentLength) {
@@ -1477,7 +1565,7 @@ final class HttpResponseImpl
             // By default, HEAD requests write no data and manually set the
             // Content-Length header, in which case the manual content length is
             // authoritative.
-            setContentLength(manualContentLength);
+            setContentLengthLong(manualContentLength);
           } else {
             LOGGER.warning("content length mismatch: manually set "
                 + manualContentLength + " does not match actual "
@@ -1543,11 +1631,11 @@ final class HttpResponseImpl
     if (req != null) {
       // Add keepalive headers...or not
       if (keepAlive && req._canKeepAlive() && canKeepAlive()) {
-        setHeader("Connection", "keep-alive");
-        setHeader("Keep-Alive",
-            "timeout=" + (conn.server_.getKeepaliveTimeout() / 1000));
+        setHeader(HeaderName.CONNECTION, "keep-alive", null);
+        setHeader(HeaderName.KEEP_ALIVE, conn.server_.getKeepAliveHeader(),
+            null);
       } else {
-        setHeader("Connection", "close");
+        setHeader(HeaderName.CONNECTION, "close", null);
       }
     }
 
@@ -1974,4 +2062,155 @@ final class HttpResponseImpl
     transfer_task_ = new HttpNonblockingTransferTask(this, conn, channel, cb);
     transfer_task_.startTransfer();
   }
+
+  /**
+   * Sends <code>length</code> bytes of <code>file</code>, starting at
+   * <code>position</code>, to the HttpConnection without blocking on
+   * writes. The Content-Length header is set to <code>length</code>.
+   * <p/>
+   * When no content coding, range or chunking applies to the response,
+   * the headers are written and the region then goes straight from the
+   * file to the socket with {@link FileChannel#transferTo}, as the socket
+   * becomes writable; none of the file passes through the heap. Otherwise
+   * the region is sent as by {@link #sendStream}. The file is not closed.
+   * As with {@link #sendStream}, the caller must return after invoking
+   * this method and can perform no more modifications to the HttpResponse.
+   *
+   * @param file     the file from which to send data
+   * @param position the offset in the file of the first byte to send
+   * @param length   the number of bytes to send
+   * @param cb       the callback invoked when transfer completes or fails
+   */
+  public void sendFile(FileChannel file, long position, long length,
+      HttpNonblockingTransferTask.TransferCompleteCallback cb) {
+    if (output_writer != null) {
+      throw new IllegalStateException("getWriter() called previously");
+    }
+    if (output_stream != null) {
+      throw new IllegalStateException("getOutputStream() called previously");
+    }
+    if (position < 0 || length < 0) {
+      throw new IllegalArgumentException(
+          "invalid file region: " + position + "+" + length);
+    }
+
+    boolean compress = willCompress(length);
+    if (!compress) {
+      // a compressed body has an unknown length, and is chunked instead
+      setContentLengthLong(length);
+    }
+    if (!compress && canSendFileRegion(length)) {
+      transfer_task_ = new HttpNonblockingTransferTask(
+          this, conn, file, position, length, cb);
+    } else {
+      transfer_task_ = new HttpNonblockingTransferTask(
+          this, conn, new FileRegionChannel(file, position, length), cb);
+    }
+    transfer_task_.startTransfer();
+  }
+
+  /**
+   * Will a body of <code>length</code> bytes for this response be
+   * compressed? This mirrors the decision made in {@link #preCommit}.
+   */
+  private boolean willCompress(long length) {
+    if (isCommitted() || req == null) {
+      return content_encoding != null;
+    }
+    boolean compress = compress_response_set
+        ? compress_response : conn.server_.getCompressResponses();
+    return compress && length >= getCompression().getMinSize()
+        && getCompressEncodingForClient() != null;
+  }
+
+  /**
+   * Can the <code>length</code> byte body of this uncompressed response be
+   * written as a raw file region? This is the case when nothing has been
+   * committed or buffered, the status is OK and the response is not
+   * partial content.
+   */
+  private boolean canSendFileRegion(long length) {
+    if (isCommitted() || (output_buf != null && !output_buf.isEmpty())) {
+      return false;
+    }
+    // an error status would get a default error page as its body
+    if (status != 0 && status != HttpServletResponse.SC_OK) {
+      return false;
+    }
+    // see isRangeRequest() for why a body this large is never partial
+    return req == null || req._getRange() == null
+        || length > Integer.MAX_VALUE;
+  }
+
+  /**
+   * Writes the response headers and queues <code>length</code> bytes of
+   * <code>file</code> to follow them. This completes the response; it is
+   * the file region counterpart of {@link #flushAsync flushAsync(true)}.
+   *
+   * @return true if a write was initiated, false if there was nothing to write.
+   * @throws java.io.IOException
+   */
+  boolean flushFileRegion(FileChannel file, long position, long length)
+      throws IOException {
+    assert (conn.isNonBlocking());
+
+    // The body does not go through output_buf, so account for it here;
+    // encodeData() adds nothing for the empty buffer.
+    getOutputBuffer();
+    contentLength = length;
+    prepareOutputBuffer(true);
+
+    // as with buffered output, a HEAD response counts the body it omits
+    if (!head_request && statusAllowsContent(status)) {
+      conn.setFileRegion(file, position, length);
+    }
+    return sendBuffer(true);
+  }
+
+  /**
+   * A ReadableByteChannel over a region of a file, for sending a region
+   * through the buffered path when it cannot be sent as is.
+   */
+  static class FileRegionChannel implements ReadableByteChannel {
+    private final FileChannel file_;
+    private long position_;
+    private long remaining_;
+
+    FileRegionChannel(FileChannel file, long position, long length) {
+      file_ = file;
+      position_ = position;
+      remaining_ = length;
+    }
+
+    public int read(ByteBuffer dst) throws IOException {
+      if (remaining_ == 0) {
+        return -1;
+      }
+      int limit = dst.limit();
+      if (dst.remaining() > remaining_) {
+        dst.limit(dst.position() + (int) remaining_);
+      }
+      int nbytes;
+      try {
+        nbytes = file_.read(dst, position_);
+      } finally {
+        dst.limit(limit);
+      }
+      if (nbytes == -1) {
+        throw new IOException("file truncated; " + remaining_
+            + " bytes of the region are missing");
+      }
+      position_ += nbytes;
+      remaining_ -= nbytes;
+      return nbytes;
+    }
+
+    public boolean isOpen() {
+      return file_.isOpen();
+    }
+
+    public void close() {
+      // the file belongs to the caller of sendFile()
+    }
+  }
 }
\ No newline at end of file
@@ -18,6 +18,7 @@ package com.google.opengse.core;
 import com.google.opengse.ServletEngineConfiguration;
 import com.google.opengse.HttpRequest;
 import com.google.opengse.HttpRequestHandler;
+import com.google.opengse.httputil.HeaderName;
 import com.google.opengse.util.DispatchQueue;
 
 import java.io.File;
@@ -25,6 +26,9 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.servlet.http.HttpServletRequest;
@@ -58,6 +62,8 @@ final class HttpServer  implements AcceptCallback, QuitCallback {
   private   static final int     DEFAULT_READ_TIMEOUT = 10 * 1000;
   private   static final int     DEFAULT_WRITE_TIMEOUT = 10 * 1000;
   private   static final int     DEFAULT_BUFFER_SIZE = 16 * 1024;
+  private   static final int     DEFAULT_REQUEST_BODY_WINDOW = 64 * 1024;
+  private   static final int     DEFAULT_IDLE_ATTACHMENTS = 64;
   private   static final boolean DEFAULT_COMPRESS_RESPONSES = false;
   private   static final boolean DEFAULT_CLOSE_ON_ERRORS = false;
   public    static final int     NO_FLUSH_INTERVAL = 0;
@@ -77,6 +83,7 @@ final class HttpServer  implements AcceptCallback, QuitCallback {
   }
 
   private final NetSelector selector_;
+  private final NetSelectorGroup selectors_;
   private final DispatchQueue queue_;
   private boolean is_exiting_ = false;
 
@@ -88,13 +95,28 @@ final class HttpServer  implements AcceptCallback, QuitCallback {
   private String session_cookie_domain_ = null;
   private int session_cookie_maxage_ = -1;
   private String default_cache_policy_ = "private";
+  private byte[] default_cache_line_ =
+      HeaderName.CACHE_CONTROL.getLine(default_cache_policy_);
   private int maxpostsize_ = DEFAULT_MAX_POSTSIZE;
+  private boolean stream_request_bodies_ = false;
+  private int request_body_window_ = DEFAULT_REQUEST_BODY_WINDOW;
+  private int request_body_spill_threshold_ = 0;
   private int keepalive_timeout_ = DEFAULT_KEEPALIVE_TIMEOUT;
+  private int pipeline_depth_ = 1;
+  private String keepalive_header_ = keepAliveHeader(keepalive_timeout_);
   private int startup_timeout_ = DEFAULT_STARTUP_TIMEOUT;
   private int read_timeout_ = DEFAULT_READ_TIMEOUT;
   private int write_timeout_ = DEFAULT_WRITE_TIMEOUT;
   private int response_buffer_size_ = DEFAULT_BUFFER_SIZE;
   private boolean compress_responses_ = DEFAULT_COMPRESS_RESPONSES;
+  private final ResponseCompression compression_ = new ResponseCompression();
+  private final AdmissionControl admission_ = new AdmissionControl();
+  // the attachments that idle keep-alive connections gave up, for the next
+  // request of any connection
+  private final ConcurrentLinkedQueue<Object> idle_attachments_ =
+      new ConcurrentLinkedQueue<Object>();
+  private final AtomicInteger idle_attachment_count_ = new AtomicInteger();
+  private int max_idle_attachments_ = DEFAULT_IDLE_ATTACHMENTS;
   private boolean health_logging_ = true;
   private boolean close_on_errors_ = DEFAULT_CLOSE_ON_ERRORS;
   private String tempdir_ = null;
@@ -113,15 +135,31 @@ final class HttpServer  implements AcceptCallback, QuitCallback {
    * @param queue
    */
   HttpServer(NetSelector selector,
+             DispatchQueue queue,
+             HttpRequestHandler dispatcher,
+             ServletEngineConfiguration config) throws IOException {
+    this(new NetSelectorGroup(selector), queue, dispatcher, config);
+  }
+
+  /**
+   * Constructs an HttpServer instance which accepts connections on the
+   * acceptor of <code>selectors</code> and hands each of them to one of
+   * its reactors.
+   *
+   * @param selectors
+   * @param queue
+   */
+  HttpServer(NetSelectorGroup selectors,
              DispatchQueue queue,
              HttpRequestHandler dispatcher,
              ServletEngineConfiguration config) {
     this.dispatcher = dispatcher;
     this.config = config;
-    if (selector == null) {
+    if (selectors == null) {
       throw new NullPointerException();
     }
-    this.selector_ = selector;
+    this.selectors_ = selectors;
+    this.selector_ = selectors.getAcceptor();
     this.queue_ = queue;
     setServerType(config.getServerType());
   }
@@ -139,6 +177,13 @@ final class HttpServer  implements AcceptCallback, QuitCallback {
     return selector_;
   }
 
+  /**
+   * Accessor function to retrieve the acceptor and reactors.
+   */
+  public NetSelectorGroup getSelectorGroup() {
+    return selectors_;
+  }
+
   /**
    * Accessor function to retrieve the <code>DispatchQueue</code>.
    *
@@ -148,8 +193,14 @@ final class HttpServer  implements AcceptCallback, QuitCallback {
     return queue_;
   }
 
-  void enqueue(Runnable r) {
-    queue_.addRunnable(r);
+  /**
+   * Hands a request to the worker queue.
+   *
+   * @return <code>false</code> if the queue's backlog is full, in which
+   *         case the caller should shed the request
+   */
+  boolean enqueue(Runnable r) {
+    return queue_.offerRunnable(r);
   }
 
   HttpRequestImpl createRequestSubsetImpl(HttpConnection conn) {
@@ -298,6 +349,14 @@ final class HttpServer  implements AcceptCallback, QuitCallback {
 
   public void setDefaultCachePolicy(String policy) {
     this.default_cache_policy_ = policy;
+    this.default_cache_line_ = HeaderName.CACHE_CONTROL.getLine(policy);
+  }
+
+  /**
+   * Returns the encoded "Cache-Control" line of the default cache policy.
+   */
+  byte[] getDefaultCacheLine() {
+    return default_cache_line_;
   }
 
 
@@ -321,6 +380,67 @@ final class HttpServer  implements AcceptCallback, QuitCallback {
     this.compress_responses_ = compressResponses;
   }
 
+  /**
+   * Returns the level, size threshold and content types used to compress
+   * responses, and the statistics of the responses compressed so far.
+   */
+  public ResponseCompression getCompression() {
+    return compression_;
+  }
+
+  /**
+   * Returns the limit on the requests admitted to the worker queue, and
+   * the statistics of the requests admitted and refused so far.
+   */
+  public AdmissionControl getAdmission() {
+    return admission_;
+  }
+
+  /**
+   * Accessor function to retrieve the most attachments kept for reuse
+   * once their connections have gone idle. Only as many as there are
+   * worker threads can be in use at once.
+   */
+  public int getMaxIdleAttachments() {
+    return max_idle_attachments_;
+  }
+  public void setMaxIdleAttachments(int maxIdleAttachments) {
+    this.max_idle_attachments_ = maxIdleAttachments;
+  }
+
+  /**
+   * Returns the number of attachments kept for reuse.
+   */
+  public int getIdleAttachments() {
+    return idle_attachment_count_.get();
+  }
+
+  /**
+   * Takes back the attachment of a keep-alive connection which is waiting
+   * for its next request, so that the requests of other connections can
+   * reuse it in the meantime. It is dropped if enough are kept already.
+   * The attachment must not be used by anything else afterwards.
+   */
+  void releaseAttachment(Object attachment) {
+    if (idle_attachment_count_.incrementAndGet() > max_idle_attachments_) {
+      idle_attachment_count_.decrementAndGet();
+      return;
+    }
+    idle_attachments_.offer(attachment);
+  }
+
+  /**
+   * Returns an attachment given up by an idle connection, or
+   * <code>null</code> if there is none.
+   */
+  Object acquireAttachment() {
+    Object attachment = idle_attachments_.poll();
+    if (attachment != null) {
+      idle_attachment_count_.decrementAndGet();
+    }
+    return attachment;
+  }
+
   /**
    * Accessor function to retrieve the maximum post size. Used by
    * {@link HttpConnection} to refuse requests with excessive POST
@@ -333,6 +453,44 @@ final class HttpServer  implements AcceptCallback, QuitCallback {
     this.maxpostsize_ = maxPostSize;
   }
 
+  /**
+   * Returns true if request bodies are streamed to servlets as they
+   * arrive, rather than read in full before the servlet is dispatched.
+   * A streamed body is never held in memory as a whole, so it is not
+   * subject to the maximum post size.
+   */
+  public boolean getStreamRequestBodies() {
+    return stream_request_bodies_;
+  }
+  public void setStreamRequestBodies(boolean streamRequestBodies) {
+    this.stream_request_bodies_ = streamRequestBodies;
+  }
+
+  /**
+   * Accessor function to retrieve the number of bytes of a streamed
+   * request body which may be buffered ahead of the servlet. Used by
+   * {@link HttpConnection} to stop reading from a client when the servlet
+   * falls behind.
+   */
+  public int getRequestBodyWindow() {
+    return request_body_window_;
+  }
+  public void setRequestBodyWindow(int requestBodyWindow) {
+    this.request_body_window_ = requestBodyWindow;
+  }
+
+  /**
+   * Accessor function to retrieve the size above which a request body
+   * that is read in full is written to a file in the temporary directory
+   * instead of being kept in memory. Zero or less disables spilling.
+   */
+  public int getRequestBodySpillThreshold() {
+    return request_body_spill_threshold_;
+  }
+  public void setRequestBodySpillThreshold(int spillThreshold) {
+    this.request_body_spill_threshold_ = spillThreshold;
+  }
+
   /**
    * Accessor function to retrieve the keepalive timeout. Used by
    * {@link HttpConnection} to close connections marked keep-alive
@@ -347,6 +505,32 @@ final class HttpServer  implements AcceptCallback, QuitCallback {
   }
   public void setKeepaliveTimeout(int keepAliveTimeout) {
     this.keepalive_timeout_ = keepAliveTimeout;
+    this.keepalive_header_ = keepAliveHeader(keepAliveTimeout);
+  }
+
+  /**
+   * Returns the value of the "Keep-Alive" response header, which tells
+   * the client the {@link #getKeepaliveTimeout keepalive timeout}.
+   */
+  String getKeepAliveHeader() {
+    return is_exiting_ ? keepAliveHeader(0) : keepalive_header_;
+  }
+
+  /**
+   * Accessor function to retrieve the number of pipelined requests of a
+   * connection which may be processed at once. Used by
+   * {@link HttpConnection} to dispatch GET and HEAD requests which arrive
+   * behind the one being processed. One or less disables this.
+   */
+  public int getPipelineDepth() {
+    return pipeline_depth_;
+  }
+  public void setPipelineDepth(int pipelineDepth) {
+    this.pipeline_depth_ = pipelineDepth;
+  }
+
+  private static String keepAliveHeader(int keepAliveTimeout) {
+    return "timeout=" + (keepAliveTimeout / 1000);
   }
 
   /**
@@ -485,9 +669,36 @@ final class HttpServer  implements AcceptCallback, QuitCallback {
    * @param channel the new socket channel
    * @param bytesAlreadyRead the bytes already read from channel
    */
-  public void handleNewConnection(SocketChannel channel,
+  public void handleNewConnection(final SocketChannel channel,
+      final byte[] bytesAlreadyRead) throws IOException {
+    // a reactor listening with SO_REUSEPORT keeps what it accepts
+    final NetSelector reactor = selectors_.nextForAccepted();
+    if (reactor == selector_ || reactor.isRunningOnCurrentThread()) {
+      createConnection(reactor, channel, bytesAlreadyRead);
+      return;
+    }
+    // The connection must be registered by the thread running the
+    // reactor's select loop, so hand it over.
+    reactor.invokeLater(new NetTimerCallback() {
+        public void handleTimerFired() {
+          try {
+            createConnection(reactor, channel, bytesAlreadyRead);
+          } catch (IOException e) {
+            LOGGER.log(Level.FINE, "unable to register connection", e);
+            try {
+              channel.close();
+            } catch (IOException ignored) {
+              // nothing more we can do
+            }
+          }
+        }
+      });
+  }
+
+  private void createConnection(NetSelector reactor, SocketChannel channel,
       byte[] bytesAlreadyRead) throws IOException {
-    HttpConnection conn = new HttpConnection(this, channel, dispatcher);
+    HttpConnection conn =
+        new HttpConnection(this, reactor, channel, dispatcher);
     if (bytesAlreadyRead.length > 0) {
       // Pretends that some bytes have just been read from the socket into conn
       conn.getInputBuffer().writeBytes(bytesAlreadyRead);
@@ -518,7 +729,7 @@ final class HttpServer  implements AcceptCallback, QuitCallback {
     // disallow Keep-Alive connections
     drain();
     // stop accepting new connections
-    selector_.drain();
+    selectors_.drain();
 
     // Compute remaining timeout and wait for all requests to complete, except
     // maybe this request.
@@ -529,8 +740,8 @@ final class HttpServer  implements AcceptCallback, QuitCallback {
     timeout = Math.max(end - System.currentTimeMillis(), 0);
     boolean success = queue_.quit(timeout);
 
-    // Close the selector and all open connections.
-    selector_.quit(success);
+    // Close the selectors and all open connections.
+    selectors_.quit(success);
     return success;
   }
 
@@ -14,19 +14,22 @@
 
 package com.google.opengse.core;
 
+import com.google.opengse.httputil.HeaderBlock;
+import com.google.opengse.httputil.HeaderName;
 import com.google.opengse.iobuffer.IOBuffer;
 import com.google.opengse.util.string.StringUtil;
 import com.google.opengse.util.IteratorEnumeration;
 import com.google.opengse.util.EmptyEnumeration;
 import com.google.opengse.HeaderUtil;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 /**
@@ -34,6 +37,11 @@ import java.util.NoSuchElementException;
  * HttpRequest and HttpResponse to implement the appropriate portions
  * of the HttpServletRequest and HttpServletResponse APIs.
  *
+ * <p>Headers with a {@link HeaderName well-known name} are indexed by it,
+ * so finding one costs a hash of the name rather than a comparison with
+ * every header; other headers are searched for. Headers are kept in the
+ * order they were first added.
+ *
  * @author Peter Mattis
  */
 public class MimeHeaders {
@@ -46,16 +54,32 @@ public class MimeHeaders {
    */
   protected static final int HEADER_LIMIT = 32;
 
+  private static final String LATIN_1 = "ISO-8859-1";
+
+  private static final byte[] COLON_SPACE = { ':', ' ' };
+
+  private static final byte[] CRLF = { '\r', '\n' };
+
+  /**
+   * The list of MIME headers, in the order they were added
+   */
+  private final ArrayList<Header> headers_ = new ArrayList<Header>();
+
+  /**
+   * The headers with well-known names, by the ordinal of the name
+   */
+  private final Header[] known_ = new Header[HeaderName.values().length];
 
   /**
-   * The list of MIME headers (String objects)
+   * Headers set all at once, which are kept encoded until one of them is
+   * looked at or changed
    */
-  private ArrayList<Header> headers_ = new ArrayList<Header>();
+  private HeaderBlock block_;
 
   /**
    * The character encoding (defaults to "ISO-8859-1")
    */
-  private String charsetName_ = "ISO-8859-1";
+  private String charsetName_ = LATIN_1;
 
   public MimeHeaders() {
   }
@@ -64,121 +88,82 @@ public class MimeHeaders {
     this.charsetName_ = charsetName;
   }
 
-  public boolean parse(ByteArrayOutputStream lineBuffer, IOBuffer buf)
-    throws IOException {
-    while (buf.readLine(lineBuffer, HEADER_LENGTH_LIMIT)) {
-      if (headers_.size() >= HEADER_LIMIT) {
-        throw new IOException("header count exceeds limit of " +
-                              HEADER_LIMIT);
-      }
-      boolean res = parseLine(lineBuffer.toString(charsetName_));
-      lineBuffer.reset();
-      if (res) {
-        return true;
-      }
-    }
-    return false;
-  }
-
-  private boolean parseLine(CharSequence seq)
-    throws IOException {
-    int pos = 0;
-
-    if (seq.charAt(pos) == '\r') {
-      pos += 1;
-    }
-    if (seq.charAt(pos) == '\n') {
-      // an empty line indicates the end of the mime headers
-      return true;
-    }
-
-    int len = seq.length();
-    if ((len > 0) && (seq.charAt(len - 1) == '\n')) {
-      len -= 1;
-      if ((len > 0) && (seq.charAt(len - 1) == '\r')) {
-        len -= 1;
-      }
-    }
-
-    if (Character.isWhitespace(seq.charAt(pos))) {
-      // continuation header
-      if (headers_.isEmpty()) {
-        throw new IOException("malformed mime headers: " + seq);
-      }
-      Header hdr = headers_.get(headers_.size() - 1);
-
-      String value = seq.subSequence(pos, len).toString();
-      String oldValue = hdr.values_.get(hdr.values_.size() - 1);
-      String newValue = oldValue + value;
-      hdr.values_.set(hdr.values_.size() - 1, newValue);
-      return false;
-    }
-
-    // search for the ':'
-    int start = pos;
-    while ((pos < len) && (seq.charAt(pos) != ':')) {
-      pos += 1;
-    }
-
-    String name = seq.subSequence(start, pos).toString();
-    Header hdr = findHeader(name, true, true);
-
-    if (pos < len) {
-      // Strip off any whitespace at the start of the value
-      pos += 1;
-      while ((pos < len) && Character.isWhitespace(seq.charAt(pos))) {
-        pos += 1;
-      }
-      String value = seq.subSequence(pos, len).toString();
-      processHeadValue(hdr, value);
-    }
-
-    return false;
-  }
-
   /**
-   * We need understand/process multi-value head and parse the value
-   * according to RFC-2616.
+   * Adds a header as the client sent it, after any continuation lines
+   * have been joined to it. Values of multi-value headers are split at
+   * the commas.
+   *
+   * @param id the well-known name of the header, or <code>null</code>
+   * @throws IOException if there are already {@link #HEADER_LIMIT}
+   *         different headers
    */
-  private void processHeadValue(Header hdr, String value) {
-    if (hdr.name_.startsWith("Accept")) {
-      addMultiValueHeader(hdr, value);
+  void addParsedHeader(HeaderName id, String name, String value)
+      throws IOException {
+    Header hdr = (id != null) ? known_[id.ordinal()] : findCustomHeader(name);
+    if (hdr == null && headers_.size() >= HEADER_LIMIT) {
+      throw new IOException("header count exceeds limit of " +
+                            HEADER_LIMIT);
+    }
+    /*
+     * We need understand/process multi-value head and parse the value
+     * according to RFC-2616.
+     */
+    if (name.startsWith("Accept")) {
+      for (String singleValue : value.split(",")) {
+        hdr = addValue(hdr, id, name, singleValue.trim());
+      }
       /*
        * hack for the watchdog: we can't simply default to multi-value
        * (for safety and performance)
        */
-    } else if (hdr.name_.endsWith("Header")) {
-      addMultiValueHeader(hdr, value);
+    } else if (name.endsWith("Header")) {
+      for (String singleValue : value.split(",")) {
+        hdr = addValue(hdr, id, name, singleValue.trim());
+      }
     } else {
-      addSingleValueHeader(hdr, value);
+      addValue(hdr, id, name, value);
     }
   }
 
-  private void addSingleValueHeader(Header hdr, String value) {
-    hdr.values_.add(value);
+  public void addHeader(String name, String value) {
+    HeaderName id = HeaderName.lookup(name);
+    addValue(findHeader(id, name), id, name, stripLineBreaks(value));
   }
 
-  private void addMultiValueHeader(Header hdr, String value) {
-    for (String singleValue : value.split(",")) {
-      hdr.values_.add(singleValue.trim());
+  /**
+   * Adds a value to a header, creating the header if it's
+   * <code>null</code>.
+   *
+   * @return the header
+   */
+  private Header addValue(Header hdr, HeaderName id, String name,
+      String value) {
+    if (hdr == null) {
+      hdr = new Header(id, name, value);
+      headers_.add(hdr);
+      if (id != null) {
+        known_[id.ordinal()] = hdr;
+      }
+    } else {
+      hdr.add(value);
     }
+    return hdr;
   }
 
-  public void addHeader(String name, String value) {
-    Header hdr = findHeader(name, true, false);
-
-    /*
-     * Remove all instances of the header delimiter (CR or LF).
-     *
-     * Uncareful code may directly use client specified data as the value of an
-     * HTTP header. A malicious client can take advantage of this by placing a
-     * header delimiter in the data and appending arbitrary headers to it. This
-     * removal prevents such header injection.
-     */
-    if (value != null) {
-       value = StringUtil.collapse(value, "\r\n", "");
+  /*
+   * Remove all instances of the header delimiter (CR or LF).
+   *
+   * Uncareful code may directly use client specified data as the value of an
+   * HTTP header. A malicious client can take advantage of this by placing a
+   * header delimiter in the data and appending arbitrary headers to it. This
+   * removal prevents such header injection.
+   */
+  private static String stripLineBreaks(String value) {
+    if (value != null
+        && (value.indexOf('\r') >= 0 || value.indexOf('\n') >= 0)) {
+      value = StringUtil.collapse(value, "\r\n", "");
     }
-    hdr.values_.add(value);
+    return value;
   }
 
   public void addDateHeader(String name, long value) {
@@ -190,24 +175,63 @@ public class MimeHeaders {
   }
 
   public boolean containsHeader(String name) {
-    return (findHeader(name, false, false) != null);
+    return (findHeader(name) != null);
   }
 
   public void setHeader(String name, String value) {
-    Header hdr = findHeader(name, true, false);
-    hdr.values_.clear();
-    /*
-     * Remove all instances of the header delimiter (CR or LF).
-     *
-     * Uncareful code may directly use client specified data as the value of an
-     * HTTP header. A malicious client can take advantage of this by placing a
-     * header delimiter in the data and appending arbitrary headers to it. This
-     * removal prevents such header injection.
-     */
-    if (value != null) {
-      value = StringUtil.collapse(value, "\r\n", "");
+    value = stripLineBreaks(value);
+    HeaderName id = HeaderName.lookup(name);
+    Header hdr = findHeader(id, name);
+    if (hdr == null) {
+      addValue(null, id, name, value);
+    } else {
+      hdr.set(value, null);
+    }
+  }
+
+  /**
+   * Sets a header the engine itself adds, whose value can't hold line
+   * breaks. The header keeps the name it had, if it was set before;
+   * otherwise it gets the usual spelling of the well-known name.
+   *
+   * @param line the encoded header line, if the caller has one, or
+   *        <code>null</code>
+   */
+  void setHeader(HeaderName id, String value, byte[] line) {
+    Header hdr = findHeader(id, id.getName());
+    if (hdr == null) {
+      addValue(null, id, id.getName(), value).line_ = line;
+    } else {
+      hdr.set(value, line);
+    }
+  }
+
+  /**
+   * Sets a block of headers, as though each of them were set in turn.
+   */
+  public void setHeaders(HeaderBlock block) {
+    if (block_ != null) {
+      explodeBlock();
+    }
+    for (int i = 0; i < block.size(); ++i) {
+      removeHeader(block.getName(i));
+    }
+    block_ = block;
+  }
+
+  /**
+   * Adds the headers of the block as headers of their own, so that they
+   * may be looked at or changed.
+   */
+  private void explodeBlock() {
+    HeaderBlock block = block_;
+    block_ = null;
+    for (int i = 0; i < block.size(); ++i) {
+      HeaderName id = block.getId(i);
+      Header hdr = (id != null) ? known_[id.ordinal()]
+          : findCustomHeader(block.getName(i));
+      addValue(hdr, id, block.getName(i), block.getValue(i));
     }
-    hdr.values_.add(value);
   }
 
   public void setDateHeader(String name, long value) {
@@ -219,34 +243,51 @@ public class MimeHeaders {
   }
 
   public String getHeader(String name) {
-    Header hdr = findHeader(name, false, false);
+    Header hdr = findHeader(name);
     if (hdr != null) {
-      return hdr.values_.get(0);
+      return hdr.value_;
     }
     return null;
   }
 
+  /**
+   * Returns the first value of a header with a well-known name, or
+   * <code>null</code>.
+   */
+  String getHeader(HeaderName id) {
+    Header hdr = findHeader(id, id.getName());
+    return (hdr != null) ? hdr.value_ : null;
+  }
+
   public Enumeration<String> getHeaders(String name) {
-    Header hdr = findHeader(name, false, false);
+    Header hdr = findHeader(name);
     if (hdr != null) {
       // do NOT replace the following line with Iterators.asEnumeration()
-      return new IteratorEnumeration<String>(hdr.values_.iterator());
+      return new IteratorEnumeration<String>(hdr.values().iterator());
     }
     return EmptyEnumeration.please();
   }
 
   public Enumeration<String> getHeaderNames() {
+    if (block_ != null) {
+      explodeBlock();
+    }
     return new HeaderEnumerator(headers_);
   }
 
   public boolean headerHasValue(String name, String value) {
-    Header hdr = findHeader(name, false, false);
+    Header hdr = findHeader(name);
     if (hdr == null) {
       return false;
     }
-    for (String aValue : hdr.values_) {
-      if (value.equalsIgnoreCase(aValue)) {
-        return true;
+    if (value.equalsIgnoreCase(hdr.value_)) {
+      return true;
+    }
+    if (hdr.more_ != null) {
+      for (String aValue : hdr.more_) {
+        if (value.equalsIgnoreCase(aValue)) {
+          return true;
+        }
       }
     }
     return false;
@@ -261,62 +302,144 @@ public class MimeHeaders {
   }
 
   public void removeHeader(String name) {
-    Header hdr = findHeader(name, false, false);
+    Header hdr = findHeader(name);
     if (hdr != null) {
-      headers_.remove(headers_.indexOf(hdr));
+      headers_.remove(hdr);
+      if (hdr.id_ != null) {
+        known_[hdr.id_.ordinal()] = null;
+      }
     }
   }
 
   public void clearHeaders() {
+    for (Header hdr : headers_) {
+      if (hdr.id_ != null) {
+        known_[hdr.id_.ordinal()] = null;
+      }
+    }
     headers_.clear();
+    block_ = null;
   }
 
-  private Header findHeader(String name, boolean create,
-                            boolean moveToBack) {
+  private Header findHeader(String name) {
+    return findHeader(HeaderName.lookup(name), name);
+  }
+
+  /**
+   * Finds a header by its well-known name, if it has one, or else by its
+   * name.
+   */
+  private Header findHeader(HeaderName id, String name) {
+    if (block_ != null && block_.indexOf(name) >= 0) {
+      explodeBlock();
+    }
+    if (id != null) {
+      return known_[id.ordinal()];
+    }
+    return findCustomHeader(name);
+  }
+
+  private Header findCustomHeader(String name) {
     for (int i = 0; i < headers_.size(); i++) {
       Header hdr = headers_.get(i);
-      if (hdr.name_.equalsIgnoreCase(name)) {
-        if (moveToBack) {
-          headers_.remove(i);
-          headers_.add(hdr);
-        }
+      if (hdr.id_ == null && hdr.name_.equalsIgnoreCase(name)) {
         return hdr;
       }
     }
-
-    if (create) {
-      Header hdr = new Header(name);
-      headers_.add(hdr);
-      return hdr;
-    }
-
     return null;
   }
 
   public void print(PrintWriter writer) {
     for (Header hdr : headers_) {
-      for (String value : hdr.values_) {
+      for (String value : hdr.values()) {
         writer.print(hdr.name_ + ": " + value + "\r\n");
       }
     }
+    if (block_ != null) {
+      writer.print(block_);
+    }
     writer.print("\r\n");
   }
 
+  /**
+   * Returns the number of bytes {@link #encodeHeaders} writes, or -1 if
+   * the headers aren't written a byte per character.
+   */
+  int encodedLength() {
+    if (charsetName_ != LATIN_1 && !LATIN_1.equalsIgnoreCase(charsetName_)) {
+      return -1;
+    }
+    int length = (block_ != null) ? block_.getBytes().length : 0;
+    for (int i = 0; i < headers_.size(); i++) {
+      Header hdr = headers_.get(i);
+      if (hdr.value_ != null) {
+        length += hdr.name_.length() + hdr.value_.length() + 4;
+      }
+      if (hdr.more_ != null) {
+        for (String value : hdr.more_) {
+          if (value != null) {
+            length += hdr.name_.length() + value.length() + 4;
+          }
+        }
+      }
+    }
+    return length;
+  }
+
+  /**
+   * Encodes the header lines, each ending in CRLF, but not the empty line
+   * that ends the headers. The bytes must have room for the
+   * {@link #encodedLength} of the headers.
+   *
+   * @return the offset after the headers
+   */
+  int encodeHeaders(byte[] dst, int offset) {
+    for (int i = 0; i < headers_.size(); i++) {
+      Header hdr = headers_.get(i);
+      if (hdr.value_ != null) {
+        offset = hdr.encode(hdr.value_, hdr.line_, dst, offset);
+      }
+      if (hdr.more_ != null) {
+        for (String value : hdr.more_) {
+          if (value != null) {
+            offset = hdr.encode(value, null, dst, offset);
+          }
+        }
+      }
+    }
+    if (block_ != null) {
+      byte[] block = block_.getBytes();
+      System.arraycopy(block, 0, dst, offset, block.length);
+      offset += block.length;
+    }
+    return offset;
+  }
+
   public void writeIOBuffer(IOBuffer buf) throws IOException {
-    byte[] colonSpace = ": ".getBytes();
-    byte[] crlf = "\r\n".getBytes();
+    int length = encodedLength();
+    if (length >= 0) {
+      byte[] bytes = new byte[length + 2];
+      int end = encodeHeaders(bytes, 0);
+      bytes[end] = '\r';
+      bytes[end + 1] = '\n';
+      buf.writeBytes(bytes);
+      return;
+    }
 
     for (Header hdr : headers_) {
-      for (String value : hdr.values_) {
+      for (String value : hdr.values()) {
         if (value != null) {
-          buf.writeBytes(hdr.name_.getBytes()); // ok, should be in latin-1
-          buf.writeBytes(colonSpace);
+          buf.writeBytes(hdr.name_.getBytes(LATIN_1));
+          buf.writeBytes(COLON_SPACE);
           buf.writeBytes(value.getBytes(charsetName_));
-          buf.writeBytes(crlf);
+          buf.writeBytes(CRLF);
         }
       }
     }
-    buf.writeBytes(crlf);
+    if (block_ != null) {
+      buf.writeBytes(block_.getBytes());
+    }
+    buf.writeBytes(CRLF);
   }
 
   @Override
@@ -327,11 +450,73 @@ public class MimeHeaders {
   }
 
   private static class Header {
-    String name_;
-    ArrayList<String> values_ = new ArrayList<String>();
-
-    Header(String name) {
+    final HeaderName id_;
+    final String name_;
+    /** whether the name is spelled as the well-known name usually is */
+    final boolean usual_name_;
+    /** the first value */
+    String value_;
+    /** the encoded line of the first value, if it is known */
+    byte[] line_;
+    /** any further values */
+    ArrayList<String> more_;
+
+    Header(HeaderName id, String name, String value) {
+      this.id_ = id;
       this.name_ = name;
+      this.usual_name_ = id != null && id.getName().equals(name);
+      this.value_ = value;
+    }
+
+    void add(String value) {
+      if (more_ == null) {
+        more_ = new ArrayList<String>(2);
+      }
+      more_.add(value);
+    }
+
+    void set(String value, byte[] line) {
+      value_ = value;
+      line_ = usual_name_ ? line : null;
+      more_ = null;
+    }
+
+    List<String> values() {
+      if (more_ == null) {
+        return Collections.singletonList(value_);
+      }
+      ArrayList<String> values = new ArrayList<String>(1 + more_.size());
+      values.add(value_);
+      values.addAll(more_);
+      return values;
+    }
+
+    /**
+     * Encodes a line of this header.
+     *
+     * @param line the encoded line, if it is known, or <code>null</code>
+     */
+    int encode(String value, byte[] line, byte[] dst, int offset) {
+      if (line == null && usual_name_) {
+        line = id_.getLine(value);
+      }
+      if (line != null) {
+        System.arraycopy(line, 0, dst, offset, line.length);
+        return offset + line.length;
+      }
+      if (usual_name_) {
+        byte[] prefix = id_.getPrefix();
+        System.arraycopy(prefix, 0, dst, offset, prefix.length);
+        offset += prefix.length;
+      } else {
+        offset = HeaderName.encode(name_, dst, offset);
+        dst[offset++] = ':';
+        dst[offset++] = ' ';
+      }
+      offset = HeaderName.encode(value, dst, offset);
+      dst[offset++] = '\r';
+      dst[offset++] = '\n';
+      return offset;
     }
   }
 
@@ -352,4 +537,4 @@ public class MimeHeaders {
       return hdr.name_;
     }
   }
-}
\ No newline at end of file
+}
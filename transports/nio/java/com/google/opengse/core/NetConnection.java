@@ -20,8 +20,10 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.Arrays;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -49,18 +51,50 @@ public class NetConnection
       }
     };
 
+  // The most buffers passed to a single gathering write.
+  private static final int MAX_GATHER = 16;
+
+  // ThreadLocal arrays for passing buffers to a gathering write.
+  private static ThreadLocal<ByteBuffer[]> gatherBuffers =
+    new ThreadLocal<ByteBuffer[]>() {
+      @Override
+      protected synchronized ByteBuffer[] initialValue() {
+        return new ByteBuffer[MAX_GATHER];
+      }
+    };
+
   private NetConnectionCallback cb_;
   private NetSelector selector_;
   private SocketChannel channel_;
   private SelectionKey key_ = null;
   private Object timer_ = null;
-  private IOBuffer input_buf_ = new IOBuffer();
-  private IOBuffer output_buf_ = new IOBuffer();
+  private IOBuffer input_buf_;
+  private IOBuffer output_buf_;
   private long start_;
   private long bytes_read_ = 0;
   private long bytes_written_ = 0;
   private Exception cause_ = null;
   private Listener listener_ = null;
+  private volatile FileRegion file_region_ = null;
+  private final Object interest_lock_ = new Object();
+  private int interest_ops_ = 0;
+  private boolean read_paused_ = false;
+
+  /**
+   * A region of a file that is written to the channel, with
+   * {@link FileChannel#transferTo}, once the output buffer is drained.
+   */
+  private static final class FileRegion {
+    final FileChannel file_;
+    long position_;
+    long remaining_;
+
+    FileRegion(FileChannel file, long position, long length) {
+      this.file_ = file;
+      this.position_ = position;
+      this.remaining_ = length;
+    }
+  }
 
   /**
    * The Listener allows a client to listen to data passed between
@@ -70,7 +104,11 @@ public class NetConnection
     /** called when data is read from the connection */
     void readData(ByteBuffer data);
 
-    /** called when data is written out to the connection */
+    /**
+     * called when data is written out to the connection. The buffer is
+     * only valid for the duration of the call. Bytes sent from a file
+     * region are not reported.
+     */
     void writeData(ByteBuffer data);
 
     /** called when the connection is closed */
@@ -84,6 +122,8 @@ public class NetConnection
     this.selector_ = selector;
     this.channel_ = channel;
     this.start_ = System.currentTimeMillis();
+    this.input_buf_ = new IOBuffer(selector.getBufferPool());
+    this.output_buf_ = new IOBuffer(selector.getBufferPool());
     selector_.addConnection(this);
     LOGGER.log(Level.FINE, "new connection", this);
   }
@@ -100,6 +140,9 @@ public class NetConnection
   public void setCallback(NetConnectionCallback cb) {
     this.cb_ = cb;
   }
+  public NetConnectionCallback getCallback() {
+    return cb_;
+  }
 
   /**
    * Sets a listener on the connection.
@@ -135,6 +178,13 @@ public class NetConnection
     if (buf == null) { throw new NullPointerException(); }
     output_buf_ = buf;
   }
+  /**
+   * Returns the number of bytes of pooled buffer memory held by the
+   * input and output buffers of this connection.
+   */
+  public int getPooledBytes() {
+    return input_buf_.getPooledBytes() + output_buf_.getPooledBytes();
+  }
   public Exception getCauseException() {
     return cause_;
   }
@@ -149,6 +199,13 @@ public class NetConnection
     selector_.removeConnection(this);
 
     stopTimer();
+    file_region_ = null;
+
+    // Nothing more will be read; give the input buffers back to the
+    // pool. The output buffer may still be in the hands of a servlet
+    // thread, so it returns its buffers as they are written out, or
+    // when it is garbage collected.
+    releaseInputBuffers();
 
     try {
       channel_.close();
@@ -167,6 +224,24 @@ public class NetConnection
     }
   }
 
+  /**
+   * Gives the input buffers back to the pool on the network thread, which
+   * may still be reading into or parsing them when a servlet thread
+   * closes the connection. If the selector has stopped by then, the
+   * buffers are left for the pool to find as garbage.
+   */
+  private void releaseInputBuffers() {
+    if (selector_.isNetworkThread()) {
+      input_buf_.clear();
+    } else {
+      selector_.invokeLater(new NetTimerCallback() {
+          public void handleTimerFired() {
+            input_buf_.clear();
+          }
+        });
+    }
+  }
+
   public void wakeup() {
     key_.selector().wakeup();
   }
@@ -201,21 +276,85 @@ public class NetConnection
          */
         throw new IllegalArgumentException("ops == 0 is invalid");
       }
+      IOException failure;
+      synchronized (interest_lock_) {
+        interest_ops_ = ops;
+        failure = updateInterestOps();
+      }
+      if (failure != null) {
+        handleInterestOpsFailure(failure);
+      }
+    }
+  }
 
-      try {
-        if (key_ == null) {
-          key_ = selector_.register(channel_, ops, this);
-        } else {
-          selector_.interestOps(key_, ops);
+  /**
+   * Stops or resumes reading from the connection, whatever interest ops
+   * are later requested. This is how a reader that has fallen behind
+   * pushes back on the client. It can be called from any thread.
+   *
+   * <p>While reads are paused the connection may be left with no
+   * interest ops at all, so a client that closes the connection is only
+   * noticed once reading resumes; it is up to the caller to resume it or
+   * close the connection.
+   */
+  public void setReadPaused(boolean paused) throws IOException {
+    if (selector_.isOpen()) {
+      IOException failure = null;
+      synchronized (interest_lock_) {
+        if (read_paused_ != paused) {
+          read_paused_ = paused;
+          if (interest_ops_ != 0) {
+            failure = updateInterestOps();
+          }
         }
-      } catch (IOException e) {
-        LOGGER.log(Level.FINEST, "IO exception on interestOps", e);
-        close();
-        cause_ = e;
       }
+      if (failure != null) {
+        handleInterestOpsFailure(failure);
+      }
+    }
+  }
+
+  public boolean isReadPaused() {
+    synchronized (interest_lock_) {
+      return read_paused_;
+    }
+  }
+
+  /**
+   * Hands the requested interest ops, less OP_READ if reads are paused,
+   * to the selector. Must be called with interest_lock_ held, so that
+   * changes reach the selector in the order they were made.
+   *
+   * @return the exception if the selector refused the change, else null
+   */
+  private IOException updateInterestOps() {
+    int ops = interest_ops_;
+    if (read_paused_) {
+      ops &= ~SelectionKey.OP_READ;
+    }
+    try {
+      if (key_ == null) {
+        key_ = selector_.register(channel_, ops, this);
+      } else {
+        selector_.interestOps(key_, ops);
+      }
+      return null;
+    } catch (IOException e) {
+      return e;
     }
   }
 
+  /**
+   * Closes the connection after the selector refused an interest ops
+   * change. Called without interest_lock_ held, as closing calls back
+   * into the owner of the connection.
+   */
+  private void handleInterestOpsFailure(IOException e) {
+    LOGGER.log(Level.FINEST, "IO exception on interestOps", e);
+    close();
+    cause_ = e;
+  }
+
   public void interestRead() throws IOException {
     interestOps(SelectionKey.OP_READ);
   }
@@ -267,9 +406,36 @@ public class NetConnection
     cause_ = new IOException("I/O timeout; connection terminated");
   }
 
+  /**
+   * Reads what has arrived on the connection into the input buffer. A
+   * write buffer which nothing was read into is given back, so that a
+   * connection waiting for its next request holds no buffer until bytes
+   * arrive.
+   *
+   * @return the number of bytes read, or -1 at the end of the stream
+   */
   public int doRead() throws IOException {
-    // This is more complicated than it should be. IOBuffers use
-    // non-direct byte buffers so that we can get access to the
+    ByteBuffer buf = input_buf_.getWriteBuffer();
+    if (buf.isDirect()) {
+      // A pooled buffer: read straight into it.
+      int start = buf.position();
+      int count = channel_.read(buf);
+      if (count > 0) {
+        bytes_read_ += count;
+        if (listener_ != null) {
+          ByteBuffer data = buf.asReadOnlyBuffer();
+          data.limit(data.position());
+          data.position(start);
+          listener_.readData(data);
+        }
+      } else {
+        input_buf_.releaseWriteBuffer();
+      }
+      return count;
+    }
+
+    // This is more complicated than it should be. IOBuffers without a
+    // BufferPool use non-direct byte buffers so that we can get access to the
     // underlying array using ByteBuffer.array(). But it looks like
     // SocketChannel.read() internally always needs to read into a
     // direct byte buffer and in jdk1.4.2 it has a bug and is
@@ -283,7 +449,6 @@ public class NetConnection
     // for more information on the jdk1.4.2 bug.
 
     ByteBuffer tmpBuf = tmpBuffers.get();
-    ByteBuffer buf = input_buf_.getWriteBuffer();
 
     tmpBuf.clear();
     if (tmpBuf.limit() > buf.remaining()) {
@@ -300,79 +465,149 @@ public class NetConnection
       }
 
       buf.put(tmpBuf);
+    } else {
+      input_buf_.releaseWriteBuffer();
     }
 
     return count;
   }
 
+  /**
+   * Arranges for <code>length</code> bytes of <code>file</code>, starting
+   * at <code>position</code>, to be written to the connection after
+   * everything currently in the output buffer. The bytes go from the file
+   * to the socket with {@link FileChannel#transferTo}, never passing
+   * through the heap. The file is not closed by the connection.
+   *
+   * <p>Only one region can be pending at a time, and nothing may be added
+   * to the output buffer until it has been written.
+   */
+  public void setFileRegion(FileChannel file, long position, long length) {
+    if (file_region_ != null) {
+      throw new IllegalStateException("file region already pending");
+    }
+    if (position < 0 || length < 0) {
+      throw new IllegalArgumentException();
+    }
+    if (length > 0) {
+      file_region_ = new FileRegion(file, position, length);
+    }
+  }
+
+  /**
+   * Returns <code>true</code> if a file region is still waiting to be
+   * written.
+   */
+  public boolean hasFileRegion() {
+    return file_region_ != null;
+  }
+
+  /**
+   * Returns <code>true</code> if either the output buffer or a file
+   * region still has data to write.
+   */
+  public boolean hasPendingOutput() {
+    return file_region_ != null || output_buf_.availableBytes() > 0;
+  }
+
+  /**
+   * Writes as much of the output buffer as the channel will take. All of
+   * the readable buffers (typically the response headers, some body
+   * buffers and any chunk framing) are handed to the channel in a single
+   * gathering write, so a response normally costs one system call. Once
+   * the output buffer is empty, any pending file region follows.
+   *
+   * @return the number of bytes written
+   */
   public int doWrite() throws IOException {
-    ByteBuffer tmpBuffer = tmpBuffers.get();
+    ByteBuffer[] bufs = gatherBuffers.get();
     int count = 0;
 
-    for (;;) {
-      ByteBuffer buf = output_buf_.getReadBuffer();
-      if (buf == null || !buf.hasRemaining()) {
-        break;
-      }
+    try {
+      for (;;) {
+        int nbufs = output_buf_.getReadBuffers(bufs);
+        if (nbufs == 0) {
+          break;
+        }
 
-      /* This is ugly. As described above in doRead() we need to use a
-       * temporary direct byte buffer. But we have the added
-       * complication that we might not be able to write out all the
-       * data and therefore have to "back up".
-       */
-      tmpBuffer.clear();
+        // The buffers are views: the output buffer is only advanced
+        // below, by however much the channel actually took.
+        long ntodo = 0;
+        int[] starts = (listener_ != null) ? new int[nbufs] : null;
+        for (int i = 0; i < nbufs; ++i) {
+          ntodo += bufs[i].remaining();
+          if (starts != null) {
+            starts[i] = bufs[i].position();
+          }
+        }
 
-      int ntodo = buf.remaining();
-      if (ntodo > tmpBuffer.limit()) {
-        ntodo = tmpBuffer.limit();
-      }
+        long nbytes = channel_.write(bufs, 0, nbufs);
+        if (nbytes <= 0) {
+          break;
+        }
 
-      /* Save away the original position and limit because a) we're
-       * going to change the limit to account for how much we can copy
-       * into the temporary buffer and b) we're going to change the
-       * position in doing the copy. We're going to use these saved
-       * values to correctly adjust the position based on how much we
-       * write out to the socket.
-       */
-      int origPos = buf.position();
-      int origLimit = buf.limit();
-      buf.limit(origPos + ntodo);
-      tmpBuffer.put(buf);
-      tmpBuffer.flip();
-
-      /* Make a read-only copy of buffer for the listener, if necessary,
-       * before writing out to the channel.
-       */
-      ByteBuffer listenerCopy = null;
-      if (listener_ != null) {
-        listenerCopy = tmpBuffer.asReadOnlyBuffer();
-      }
+        if (listener_ != null) {
+          for (int i = 0; i < nbufs && bufs[i].position() > starts[i]; ++i) {
+            ByteBuffer listenerCopy = bufs[i].asReadOnlyBuffer();
+            listenerCopy.limit(bufs[i].position());
+            listenerCopy.position(starts[i]);
+            listener_.writeData(listenerCopy);
+          }
+        }
 
-      int nbytes = channel_.write(tmpBuffer);
-      int ndone = nbytes > 0 ? nbytes : 0;
+        // Consume what was written, releasing the buffers that were
+        // written out in full.
+        output_buf_.skipBytes(nbytes);
+        count += (int) nbytes;
 
-      if (listener_ != null) {
-        listenerCopy.limit(listenerCopy.position() + ndone);
-        listener_.writeData(listenerCopy);
+        if (nbytes < ntodo) {
+          // the socket send buffer is full
+          break;
+        }
       }
+    } finally {
+      // don't hold on to the output buffer's memory
+      Arrays.fill(bufs, null);
+    }
 
-      // Reset the original limit the buffer had
-      buf.limit(origLimit);
-      // Set the position based on how much we actually wrote out to
-      // the socket.
-      buf.position(origPos + ndone);
+    if (file_region_ != null && output_buf_.availableBytes() == 0) {
+      count += writeFileRegion();
+    }
 
-      // Release the read buffer if there is no more data in it.
-      output_buf_.releaseReadBuffer();
+    bytes_written_ += count;
+    return count;
+  }
 
-      if (nbytes < ntodo) {
+  /**
+   * Transfers as much of the pending file region as the socket will take,
+   * up to <code>Integer.MAX_VALUE</code> bytes per call; a larger region
+   * is finished on later calls.
+   *
+   * @return the number of bytes written
+   */
+  private int writeFileRegion() throws IOException {
+    FileRegion region = file_region_;
+    long count = 0;
+    while (region.remaining_ > 0 && count < Integer.MAX_VALUE) {
+      long todo = Math.min(region.remaining_, Integer.MAX_VALUE - count);
+      long nbytes = region.file_.transferTo(region.position_, todo, channel_);
+      if (nbytes <= 0) {
+        if (region.position_ >= region.file_.size()) {
+          // transferTo() keeps returning 0 at the end of the file
+          throw new IOException("file truncated; " + region.remaining_
+                                + " bytes of the region are missing");
+        }
+        // the socket send buffer is full
         break;
       }
+      region.position_ += nbytes;
+      region.remaining_ -= nbytes;
       count += nbytes;
     }
-
-    bytes_written_ += count;
-    return count;
+    if (region.remaining_ == 0) {
+      file_region_ = null;
+    }
+    return (int) count;
   }
 
   @Override
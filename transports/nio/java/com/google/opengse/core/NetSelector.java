@@ -14,16 +14,22 @@
 
 package com.google.opengse.core;
 
+import com.google.opengse.iobuffer.BufferPool;
+
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.SocketException;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
 import java.nio.channels.ClosedSelectorException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -32,7 +38,7 @@ import java.util.logging.Logger;
  * over the <code>java.nio.channels.Selector</code>
  * class. Specifically, a callback based system is created on top of
  * the NIO select system. Additionally, support for timers is provided
- * via the <code>java.util.Timer</code> class.
+ * via a <code>NetTimerQueue</code>, by default a hashed timing wheel.
  *
  * @author Peter Mattis
  */
@@ -44,15 +50,22 @@ public class NetSelector {
   private static final int DEFAULT_MAX_NULL_LOOPS = 100000;
   private static final String ADDRESS_ALREADY_IN_USE = "Address already in use";
 
+  /**
+   * SO_REUSEPORT, or <code>null</code> if this JDK doesn't know it. It is
+   * looked up by name since it only appeared in Java 9.
+   */
+  private static final SocketOption<Boolean> SO_REUSEPORT = findReusePort();
+  private static Boolean reuse_port_supported_ = null;
+
   private final Selector selector_;
-  private final SortedSet<NetTimer> timers_;
+  private final NetTimerQueue timers_;
   private final List<ServerSocketChannel> server_channels_;
-  private final Map<SelectionKey, Integer> key_ops_;
+  private final Queue<InterestOpsChange> pending_ops_;
+  private final AtomicBoolean wakeup_pending_;
   private final Set<NetConnection> connections_;
   private final Set<Integer> secure_ports_;
   private int first_port_;
   private NetSelectionCallback callback_;
-  private long next_timer_id_ = 0;
   private boolean accepting_ = true;
   private boolean quit_ = false;
   private int max_requests_ = DEFAULT_MAX_REQUESTS;
@@ -60,6 +73,9 @@ public class NetSelector {
   private boolean log_status_ = false;
   private boolean debug_port_enabled_ = false;
   private int debug_port_;
+  private boolean exit_when_idle_ = true;
+  private NetSelectorGroup group_ = null;
+  private BufferPool buffer_pool_ = BufferPool.getDefault();
 
   /**
    * This variable identifies the "network" thread. That is, the
@@ -81,11 +97,18 @@ public class NetSelector {
   }
 
   public NetSelector(int max_requests) throws IOException {
+    this(max_requests, new NetTimerWheel());
+  }
+
+  /**
+   * Creates a selector which keeps its timers in <code>timers</code>.
+   */
+  NetSelector(int max_requests, NetTimerQueue timers) throws IOException {
     this.selector_ = Selector.open();
     this.max_requests_ = max_requests;
-    this.timers_ = Collections.synchronizedSortedSet(new TreeSet<NetTimer>());
-    this.key_ops_ = Collections.synchronizedMap(
-        new HashMap<SelectionKey, Integer>());
+    this.timers_ = timers;
+    this.pending_ops_ = new ConcurrentLinkedQueue<InterestOpsChange>();
+    this.wakeup_pending_ = new AtomicBoolean(false);
     // do NOT change the following line to Lists.newArrayList()
     this.server_channels_ = new ArrayList<ServerSocketChannel>();
     this.connections_ = Collections.synchronizedSet(
@@ -104,6 +127,33 @@ public class NetSelector {
     return network_thread_ == null || Thread.currentThread() == network_thread_;
   }
 
+  /**
+   * Returns <code>true</code> if the current thread is running this
+   * selector's loop. Unlike {@link #isNetworkThread()}, this is false for
+   * every thread before the loop has started.
+   */
+  boolean isRunningOnCurrentThread() {
+    return Thread.currentThread() == network_thread_;
+  }
+
+  /**
+   * Returns the pool of direct buffers used by the connections of this
+   * selector, or <code>null</code> if they use heap buffers.
+   */
+  public BufferPool getBufferPool() {
+    return buffer_pool_;
+  }
+
+  /**
+   * Sets the pool of direct buffers for connections created from now on.
+   * By default all selectors share {@link BufferPool#getDefault()}.
+   *
+   * @param buffer_pool the pool, or <code>null</code> for heap buffers
+   */
+  public void setBufferPool(BufferPool buffer_pool) {
+    this.buffer_pool_ = buffer_pool;
+  }
+
   /**
    * Sets the maximum number of requests to entertain concurrently
    * before ignoring incoming requests.
@@ -114,6 +164,36 @@ public class NetSelector {
     this.max_requests_ = max_requests;
   }
 
+  /**
+   * Sets whether {@link #run()} returns once there are no timers and no
+   * registered keys. Reactors in a {@link NetSelectorGroup} have no
+   * listening socket of their own, so they keep selecting until
+   * {@link #quit(boolean)} is called.
+   *
+   * @param exit_when_idle <code>false</code> to keep selecting when idle
+   */
+  public void setExitWhenIdle(boolean exit_when_idle) {
+    this.exit_when_idle_ = exit_when_idle;
+  }
+
+  /**
+   * Makes this selector a member of <code>group</code>. Reactors take
+   * their secure and debug port configuration from the group's acceptor,
+   * and the acceptor throttles accepting on the connection count of the
+   * whole group.
+   */
+  void setGroup(NetSelectorGroup group) {
+    this.group_ = group;
+  }
+
+  /**
+   * Returns the acceptor of this selector's group, or this selector if it
+   * is not a reactor.
+   */
+  private NetSelector getAcceptor() {
+    return (group_ == null) ? this : group_.getAcceptor();
+  }
+
   /**
    * Sets the maximum number of null loops in a row that are allowed
    * to occur before we think an error occurred and exit.
@@ -150,6 +230,10 @@ public class NetSelector {
    *         debug port
    */
   public boolean isDebugPort(int port) {
+    NetSelector acceptor = getAcceptor();
+    if (acceptor != this) {
+      return acceptor.isDebugPort(port);
+    }
     return (port == debug_port_);
   }
 
@@ -238,9 +322,31 @@ public class NetSelector {
    */
   public void listen(int port, NetSelectionCallback callback, boolean secure)
     throws IOException {
+    listen(port, callback, secure, false);
+  }
+
+  /**
+   * Creates a socket which will listen on <code>port</code> for new
+   * connections, as {@link #listen(int, NetSelectionCallback, boolean)}
+   * does. If <code>reuse_port</code> is set, the socket is bound with
+   * SO_REUSEPORT, so that other selectors can listen on the same port and
+   * the kernel spreads the new connections across all of them.
+   *
+   * @return the port bound to
+   * @see #isReusePortSupported()
+   */
+  public int listen(int port, NetSelectionCallback callback, boolean secure,
+      boolean reuse_port) throws IOException {
     ServerSocketChannel ssc = ServerSocketChannel.open();
     ssc.configureBlocking(false);
     ssc.socket().setReuseAddress(true);
+    if (reuse_port) {
+      if (SO_REUSEPORT == null) {
+        ssc.close();
+        throw new UnsupportedOperationException("SO_REUSEPORT");
+      }
+      ssc.setOption(SO_REUSEPORT, Boolean.TRUE);
+    }
     port = verboseBind(ssc, port);
     ssc.register(selector_, SelectionKey.OP_ACCEPT, callback);
     server_channels_.add(ssc);
@@ -252,7 +358,45 @@ public class NetSelector {
       callback_ = callback;
     }
     logger_.info("listening on " + port +
-                 (secure ? " (secure)" : ""));
+                 (secure ? " (secure)" : "") +
+                 (reuse_port ? " (shared)" : ""));
+    return port;
+  }
+
+  /**
+   * Returns <code>true</code> if listening sockets can be bound with
+   * SO_REUSEPORT on this JDK and platform.
+   */
+  public static synchronized boolean isReusePortSupported() {
+    if (reuse_port_supported_ == null) {
+      boolean supported = false;
+      if (SO_REUSEPORT != null) {
+        try {
+          ServerSocketChannel ssc = ServerSocketChannel.open();
+          try {
+            supported = ssc.supportedOptions().contains(SO_REUSEPORT);
+          } finally {
+            ssc.close();
+          }
+        } catch (IOException e) {
+          logger_.log(Level.FINE, "unable to check for SO_REUSEPORT", e);
+        }
+      }
+      reuse_port_supported_ = Boolean.valueOf(supported);
+    }
+    return reuse_port_supported_.booleanValue();
+  }
+
+  @SuppressWarnings("unchecked")
+  private static SocketOption<Boolean> findReusePort() {
+    try {
+      return (SocketOption<Boolean>)
+          StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+    } catch (NoSuchFieldException e) {
+      return null;
+    } catch (IllegalAccessException e) {
+      return null;
+    }
   }
 
   private int verboseBind(ServerSocketChannel ssc, int port)
@@ -375,14 +519,7 @@ public class NetSelector {
    * @param delay
    */
   public Object schedule(NetTimerCallback callback, long delay) {
-    NetTimer t = new NetTimer(callback, delay + System.currentTimeMillis(),
-                              getNextTimerId());
-    timers_.add(t);
-    return t;
-  }
-
-  private synchronized long getNextTimerId() {
-    return next_timer_id_++;
+    return timers_.schedule(callback, delay + System.currentTimeMillis());
   }
 
   /**
@@ -415,28 +552,45 @@ public class NetSelector {
     if (!(callback_ instanceof AcceptServer)) {
       return false;
     }
-    schedule(new NetTimerCallback() {
+    invokeLater(new NetTimerCallback() {
         public void handleTimerFired() {
           ((AcceptServer) callback_).handleNewConnectionWithBytesRead(
               channel, bytesAlreadyRead);
         }
-      }, 0);
-    selector_.wakeup();
+      });
     return true;
   }
 
+  /**
+   * Runs <code>callback</code> on the network thread during the next
+   * iteration of the select loop. This is how work, such as registering
+   * a newly accepted channel, is handed to another selector's thread.
+   *
+   * <p>Any thread can call this method.
+   *
+   * @param callback the callback to run on the network thread
+   */
+  public void invokeLater(NetTimerCallback callback) {
+    schedule(callback, 0);
+    selector_.wakeup();
+  }
+
   /**
    * Sets the provided selection key's interest ops to be updated
    * by the network thread. This method can be safely called from
    * any thread, including the network thread and will not block.
-   * It adds the key and specified ops to a map and invokes
-   * the selector's wakeup() method. The network thread, in the
-   * main select loop, processes the contents of this map.
-   * This is necessary to avoid blocking calls to interestOps().
+   * It adds the key and specified ops to a lock-free queue which the
+   * network thread drains at the top of the select loop. This is
+   * necessary to avoid blocking calls to interestOps().
+   *
+   * The selector is woken up only if no wakeup is already pending, so
+   * a burst of changes made while the network thread is busy or about
+   * to select costs a single wakeup between them.
    *
    * If the calling thread is the network thread, the selection
    * key's interest ops are updated immediately instead of being
-   * added to the key_ops_ map.
+   * queued. Changes already queued are applied first, so that an older
+   * queued change can not override this one.
    *
    * @param key the selection key
    * @param ops the desired operation bitmask
@@ -444,18 +598,39 @@ public class NetSelector {
    */
   public void interestOps(SelectionKey key, int ops) throws IOException {
     if (isNetworkThread()) {
-      key_ops_.remove(key);
+      applyInterestOps();
       if (!key.isValid()) {
         throw new IOException("selection key invalid; cannot set interest ops");
       } else {
         key.interestOps(ops);
       }
     } else {
-      key_ops_.put(key, Integer.valueOf(ops));
-      selector_.wakeup();
+      pending_ops_.offer(new InterestOpsChange(key, ops));
+      if (wakeup_pending_.compareAndSet(false, true)) {
+        selector_.wakeup();
+      }
     }
   }
 
+  /**
+   * Applies, in order, the interest op changes queued by other threads.
+   * Changes to keys which have since become invalid are dropped. Must
+   * only be called on the network thread.
+   *
+   * @return the number of changes taken off the queue
+   */
+  private int applyInterestOps() {
+    int count = 0;
+    InterestOpsChange change;
+    while ((change = pending_ops_.poll()) != null) {
+      count += 1;
+      if (change.key_.isValid()) {
+        change.key_.interestOps(change.ops_);
+      }
+    }
+    return count;
+  }
+
   /**
    * Cancel an existing timer object as returned from
    * <code>NetSelector.schedule</code>. Multiple cancels of a timer
@@ -464,9 +639,7 @@ public class NetSelector {
    * @param timer
    */
   public void cancel(Object timer) {
-    NetTimer t = (NetTimer) timer;
-    timers_.remove(t);
-    t.callback_ = null;
+    timers_.cancel((NetTimer) timer);
   }
 
   /**
@@ -478,6 +651,10 @@ public class NetSelector {
    *         as secure.
    */
   public boolean isSecure(SocketChannel channel) {
+    NetSelector acceptor = getAcceptor();
+    if (acceptor != this) {
+      return acceptor.isSecure(channel);
+    }
     int port = channel.socket().getLocalPort();
     return secure_ports_.contains(Integer.valueOf(port));
   }
@@ -602,6 +779,7 @@ public class NetSelector {
             append((ready & SelectionKey.OP_CONNECT) != 0).
             append(":").
             append((interest & SelectionKey.OP_CONNECT) != 0).
+            append(", pooled bytes: ").append(conn.getPooledBytes()).
             append("\n");
       } else {
         buf.append("  key for server socket").
@@ -613,6 +791,9 @@ public class NetSelector {
             append("\n");
       }
     }
+    if (buffer_pool_ != null) {
+      buf.append(buffer_pool_).append("\n");
+    }
 
     return buf.toString();
   }
@@ -637,20 +818,7 @@ public class NetSelector {
       }
 
       // Handle any keys which need updated interest ops
-      int async_ops_count = 0;
-      int async_ops_valid = 0;
-      synchronized (key_ops_) {
-        for (SelectionKey key : key_ops_.keySet()) {
-          async_ops_count += 1;
-
-          if (key.isValid()) {
-            int ops = key_ops_.get(key).intValue();
-            key.interestOps(ops);
-            async_ops_valid += 1;
-          }
-        }
-        key_ops_.clear();
-      }
+      int async_ops_count = applyInterestOps();
 
       // If a debug port is specified, but not enabled, enable it
       if (debug_port_ != 0 && !debug_port_enabled_) {
@@ -691,54 +859,28 @@ public class NetSelector {
       }
 
       // Determine whether to stop accepting connections (max capacity)
-      // or to start re-accepting connections
-      if (accepting_ && getNumConns() >= max_requests_) {
-        stopAccepting();
-      } else if (!accepting_ && getNumConns() < (max_requests_ / 2)) {
-        startAccepting();
+      // or to start re-accepting connections. Every selector with a
+      // listening channel, whether the acceptor or a reactor listening
+      // with SO_REUSEPORT, counts the connections of its whole group.
+      if (!server_channels_.isEmpty()) {
+        int num_conns = (group_ == null) ? getNumConns() : group_.getNumConns();
+        if (accepting_ && num_conns >= max_requests_) {
+          stopAccepting();
+        } else if (!accepting_ && num_conns < (max_requests_ / 2)) {
+          startAccepting();
+        }
       }
 
       // Handle any timers that have expired, and determine when the
-      // next timer will fire.
-      long delay = 0;
+      // next timer will fire. The callbacks are run without holding any
+      // lock of the timer queue.
       long now = System.currentTimeMillis();
-      int timers_fired = 0;
-
-      // Scoped to ensure the removedTimers isn't used outside this block
-      {
-        // do NOT change the following line to Lists.newLinkedList()
-        LinkedList<NetTimer> removedTimers = new LinkedList<NetTimer>();
-        synchronized (timers_) {
-          for (Iterator<NetTimer> i = timers_.iterator(); i.hasNext(); ) {
-            final NetTimer t = i.next();
-            if (now < t.timeout_) {
-              delay = t.timeout_ - now;
-              break;
-            }
-            i.remove();
-            removedTimers.offer(t);
-            timers_fired += 1;
-          }
-        }
-
-        /*
-         * Originally used:
-         * t.callback_.handleTimerFired(); within the loop.
-         * This meant that the callback ran in the main thread while
-         * the timers_ was locked. Under some extreme situations this
-         * could result in a deadlock.
-         *
-         * This is now changed where each of the timers is removed from the
-         * timers_ and then the callback fired outside the synchronized
-         * block. This will avoid the deadlock.
-         */
-        for (NetTimer t : removedTimers) {
-          t.callback_.handleTimerFired();
-        }
-      }
+      int timers_fired = timers_.fireExpired(now);
+      long delay = timers_.getDelay(now);
 
       // if there are no timers and no keys, exit the loop
-      if (timers_.isEmpty() && selector_.keys().isEmpty()) {
+      if (timers_.isEmpty() && selector_.keys().isEmpty()
+          && (exit_when_idle_ || quit_)) {
         break;
       }
 
@@ -798,7 +940,15 @@ public class NetSelector {
       //int count = selector_.select(delay);
       //long elapsed = System.currentTimeMillis() - now;
 
-      selector_.select(delay);
+      // Let the next interest op change wake us up again. A change
+      // queued before the flag was cleared did not wake us, so don't
+      // block if one is waiting.
+      wakeup_pending_.set(false);
+      if (pending_ops_.isEmpty()) {
+        selector_.select(delay);
+      } else {
+        selector_.selectNow();
+      }
 
       // Check if the network thread has been interrupted; if so, clear
       if (Thread.interrupted()) {
@@ -815,8 +965,8 @@ public class NetSelector {
 //      logger_.log(Level.FINE, "select loop" +
 //          ": count=" + count +
 //          ", open=" + selector_.isOpen() +
-//          ", async_ops=" + key_ops_.size() +
-//          " (" + async_ops_count + "," + async_ops_valid +
+//          ", async_ops=" + pending_ops_.size() +
+//          " (" + async_ops_count +
 //          "), sel_keys=" + selector_.selectedKeys().size() +
 //          " (" + sel_keys_count + "," + sel_keys_valid + ","
 //          + sel_keys_ready +
@@ -852,4 +1002,18 @@ public class NetSelector {
       close();
     }
   }
-}
\ No newline at end of file
+
+  /**
+   * An interest op change queued by a thread other than the network
+   * thread.
+   */
+  private static final class InterestOpsChange {
+    final SelectionKey key_;
+    final int ops_;
+
+    InterestOpsChange(SelectionKey key, int ops) {
+      this.key_ = key;
+      this.ops_ = ops;
+    }
+  }
+}
@@ -0,0 +1,265 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.opengse.core;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A <code>NetSelectorGroup</code> is one acceptor <code>NetSelector</code>
+ * plus zero or more reactor <code>NetSelector</code>s. The acceptor owns
+ * the listening sockets; every accepted connection is handed to one of the
+ * reactors, which then does all of that connection's reads, writes and
+ * timers on its own thread. Each reactor keeps its own timers, interest op
+ * changes and connection set, so the select loops share nothing.
+ *
+ * <p>A group with no reactors behaves exactly like a single
+ * <code>NetSelector</code>: {@link #next()} always returns the acceptor.
+ *
+ * <p>Where SO_REUSEPORT is supported, some of the reactors can listen on
+ * the port as well; see {@link #listen}. The kernel then spreads new
+ * connections across the listening sockets, and a reactor keeps the
+ * connections it accepts itself, so a storm of short-lived connections
+ * isn't funnelled through the acceptor's thread.
+ *
+ * @see NetSelector
+ */
+public class NetSelectorGroup {
+  private static final Logger LOGGER =
+    Logger.getLogger(NetSelectorGroup.class.getName());
+
+  /**
+   * The policies for choosing the reactor of a new connection.
+   */
+  public enum Balancing {
+    /** Hand connections to the reactors in turn. */
+    ROUND_ROBIN,
+    /** Hand each connection to the reactor with the fewest connections. */
+    LEAST_CONNECTIONS;
+
+    /**
+     * Returns the policy named by <code>name</code>, such as
+     * "round-robin" or "least-connections".
+     */
+    public static Balancing parse(String name) {
+      return valueOf(name.trim().replace('-', '_').toUpperCase());
+    }
+  }
+
+  private final NetSelector acceptor_;
+  private final NetSelector[] reactors_;
+  private final Thread[] threads_;
+  private final Balancing balancing_;
+  private final AtomicInteger next_ = new AtomicInteger();
+  private int num_acceptors_ = 1;
+
+  /**
+   * Creates a group in which <code>acceptor</code> does all the work.
+   */
+  public NetSelectorGroup(NetSelector acceptor) throws IOException {
+    this(acceptor, 0, Balancing.ROUND_ROBIN);
+  }
+
+  /**
+   * Creates a group with <code>num_reactors</code> reactors. A value of
+   * one or less means the acceptor handles its own connections.
+   *
+   * @param acceptor the selector that owns the listening sockets
+   * @param num_reactors the number of reactor selectors to create
+   * @param balancing how to choose the reactor for a new connection
+   */
+  public NetSelectorGroup(NetSelector acceptor, int num_reactors,
+                          Balancing balancing) throws IOException {
+    if (acceptor == null || balancing == null) {
+      throw new NullPointerException();
+    }
+    if (num_reactors <= 1) {
+      num_reactors = 0;
+    }
+    this.acceptor_ = acceptor;
+    this.balancing_ = balancing;
+    this.reactors_ = new NetSelector[num_reactors];
+    this.threads_ = new Thread[num_reactors];
+    acceptor_.setGroup(this);
+    for (int i = 0; i < num_reactors; ++i) {
+      reactors_[i] = new NetSelector(acceptor.getMaxConns());
+      reactors_[i].setGroup(this);
+      reactors_[i].setExitWhenIdle(false);
+    }
+  }
+
+  /**
+   * Returns the selector that owns the listening sockets.
+   */
+  public NetSelector getAcceptor() {
+    return acceptor_;
+  }
+
+  /**
+   * Returns the number of reactors, zero if the acceptor does all the work.
+   */
+  public int getReactorCount() {
+    return reactors_.length;
+  }
+
+  /**
+   * Returns the reactor at <code>index</code>.
+   */
+  public NetSelector getReactor(int index) {
+    return reactors_[index];
+  }
+
+  public Balancing getBalancing() {
+    return balancing_;
+  }
+
+  /**
+   * Listens on <code>port</code> with <code>num_acceptors</code>
+   * selectors: the acceptor and up to <code>num_acceptors - 1</code>
+   * reactors, each with a socket of its own bound with SO_REUSEPORT. If
+   * there are no reactors, or SO_REUSEPORT isn't supported, the acceptor
+   * listens alone, as {@link NetSelector#listen} would.
+   *
+   * @param port port to bind to, -1 for GSE to pick a free port for you
+   * @return the port bound to
+   */
+  public int listen(int port, NetSelectionCallback callback, boolean secure,
+                    int num_acceptors) throws IOException {
+    num_acceptors = Math.min(num_acceptors, reactors_.length + 1);
+    if (num_acceptors > 1 && !NetSelector.isReusePortSupported()) {
+      LOGGER.warning("SO_REUSEPORT is not supported; accepting on port "
+          + port + " with one selector");
+      num_acceptors = 1;
+    }
+    if (num_acceptors <= 1) {
+      return acceptor_.listen(port, callback, secure, false);
+    }
+    port = acceptor_.listen(port, callback, secure, true);
+    for (int i = 0; i < num_acceptors - 1; ++i) {
+      reactors_[i].listen(port, callback, secure, true);
+    }
+    num_acceptors_ = num_acceptors;
+    return port;
+  }
+
+  /**
+   * Returns the number of selectors listening, one unless SO_REUSEPORT is
+   * in use.
+   */
+  public int getAcceptorCount() {
+    return num_acceptors_;
+  }
+
+  /**
+   * Returns the selector that should handle a connection accepted on the
+   * current thread: the reactor running the thread, if it accepted the
+   * connection itself, or else the reactor chosen by {@link #next()}.
+   */
+  public NetSelector nextForAccepted() {
+    for (int i = 0; i < num_acceptors_ - 1; ++i) {
+      if (reactors_[i].isRunningOnCurrentThread()) {
+        return reactors_[i];
+      }
+    }
+    return next();
+  }
+
+  /**
+   * Returns the selector that should handle the next accepted connection.
+   * This method can be safely called from any thread.
+   */
+  public NetSelector next() {
+    if (reactors_.length == 0) {
+      return acceptor_;
+    }
+    if (balancing_ == Balancing.LEAST_CONNECTIONS) {
+      NetSelector best = reactors_[0];
+      int best_conns = best.getNumConns();
+      for (int i = 1; i < reactors_.length && best_conns > 0; ++i) {
+        int conns = reactors_[i].getNumConns();
+        if (conns < best_conns) {
+          best = reactors_[i];
+          best_conns = conns;
+        }
+      }
+      return best;
+    }
+    int i = next_.getAndIncrement() % reactors_.length;
+    return reactors_[i < 0 ? i + reactors_.length : i];
+  }
+
+  /**
+   * Returns the number of connections open across the whole group.
+   */
+  public int getNumConns() {
+    int n = acceptor_.getNumConns();
+    for (NetSelector reactor : reactors_) {
+      n += reactor.getNumConns();
+    }
+    return n;
+  }
+
+  /**
+   * Starts one thread per reactor. The acceptor is still run by the
+   * caller, typically via {@link NetSelector#runForever()}.
+   */
+  public synchronized void start() {
+    for (int i = 0; i < reactors_.length; ++i) {
+      if (threads_[i] != null) {
+        continue;
+      }
+      final NetSelector reactor = reactors_[i];
+      threads_[i] = new Thread("NetSelector reactor #" + i) {
+        @Override
+        public void run() {
+          reactor.runForever();
+        }
+      };
+      threads_[i].start();
+    }
+  }
+
+  /**
+   * Closes the listening sockets of the acceptor and of the reactors.
+   *
+   * @see NetSelector#drain()
+   */
+  public void drain() throws IOException {
+    acceptor_.drain();
+    for (NetSelector reactor : reactors_) {
+      reactor.drain();
+    }
+  }
+
+  /**
+   * Quits the reactors and then the acceptor.
+   *
+   * @param wait <code>true</code> to let each select loop finish its
+   *        registered connections before exiting
+   * @see NetSelector#quit(boolean)
+   */
+  public void quit(boolean wait) throws IOException {
+    for (NetSelector reactor : reactors_) {
+      try {
+        reactor.quit(wait);
+      } catch (IOException e) {
+        LOGGER.log(Level.WARNING, "unable to quit reactor", e);
+      }
+    }
+    acceptor_.quit(wait);
+  }
+}
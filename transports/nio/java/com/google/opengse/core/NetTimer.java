@@ -19,17 +19,24 @@ import java.util.Arrays;
 /**
  * An <code>NetTimer</code> object encapsulates a single timeout. The
  * timers are stored inside a single <code>NetSelector</code> in a
- * <code>SortedSet</code>. Note that the only way to construct a
+ * <code>NetTimerQueue</code>. Note that the only way to construct a
  * <code>NetTimer</code> is using <code>NetSelector.schedule</code>.
  *
  * @see com.google.opengse.core.NetSelector
+ * @see com.google.opengse.core.NetTimerQueue
  * @author Peter Mattis
  */
 class NetTimer implements Comparable<NetTimer> {
-  NetTimerCallback callback_;
+  volatile NetTimerCallback callback_;
   long timeout_;
   long id_;
 
+  // Links used by NetTimerWheel. A timer is in at most one bucket, and
+  // next_ is reused to chain expired timers once they leave their bucket.
+  volatile NetTimerWheel.Bucket bucket_;
+  NetTimer prev_;
+  NetTimer next_;
+
   /**
    * Class constructor.
    *
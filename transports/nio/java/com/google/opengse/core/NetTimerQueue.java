@@ -0,0 +1,56 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.opengse.core;
+
+/**
+ * The set of pending timers of a <code>NetSelector</code>. Timers may be
+ * scheduled and cancelled from any thread; expired timers are fired by
+ * the network thread.
+ *
+ * @see NetTimerWheel
+ * @see NetTimerSet
+ */
+interface NetTimerQueue {
+  /**
+   * Adds a timer which fires <code>callback</code> once the time reaches
+   * <code>timeout</code> (in milliseconds since the epoch).
+   */
+  NetTimer schedule(NetTimerCallback callback, long timeout);
+
+  /**
+   * Removes a timer. Cancelling a timer which has already fired or been
+   * cancelled does nothing.
+   */
+  void cancel(NetTimer timer);
+
+  /**
+   * Fires every timer whose timeout is at or before <code>now</code>. The
+   * callbacks are run by the calling thread without holding any lock
+   * of the queue.
+   *
+   * @return the number of timers fired
+   */
+  int fireExpired(long now);
+
+  /**
+   * Returns the number of milliseconds the network thread may sleep before
+   * calling {@link #fireExpired} again, or 0 if there are no timers.
+   */
+  long getDelay(long now);
+
+  boolean isEmpty();
+
+  int size();
+}
@@ -0,0 +1,97 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.opengse.core;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A <code>NetTimerQueue</code> which keeps the timers in a synchronized
+ * <code>TreeSet</code> ordered by timeout. Timers fire exactly on time, but
+ * scheduling and cancelling cost O(log n) under a single lock. This was
+ * the only timer queue before {@link NetTimerWheel}.
+ */
+class NetTimerSet implements NetTimerQueue {
+  private final SortedSet<NetTimer> timers_ =
+      Collections.synchronizedSortedSet(new TreeSet<NetTimer>());
+  private final AtomicLong next_timer_id_ = new AtomicLong();
+
+  public NetTimer schedule(NetTimerCallback callback, long timeout) {
+    NetTimer t = new NetTimer(callback, timeout,
+                              next_timer_id_.getAndIncrement());
+    timers_.add(t);
+    return t;
+  }
+
+  public void cancel(NetTimer timer) {
+    timers_.remove(timer);
+    timer.callback_ = null;
+  }
+
+  public int fireExpired(long now) {
+    // do NOT change the following line to Lists.newLinkedList()
+    LinkedList<NetTimer> removedTimers = new LinkedList<NetTimer>();
+    synchronized (timers_) {
+      for (Iterator<NetTimer> i = timers_.iterator(); i.hasNext(); ) {
+        final NetTimer t = i.next();
+        if (now < t.timeout_) {
+          break;
+        }
+        i.remove();
+        removedTimers.offer(t);
+      }
+    }
+
+    /*
+     * Originally used:
+     * t.callback_.handleTimerFired(); within the loop.
+     * This meant that the callback ran in the main thread while
+     * the timers_ was locked. Under some extreme situations this
+     * could result in a deadlock.
+     *
+     * This is now changed where each of the timers is removed from the
+     * timers_ and then the callback fired outside the synchronized
+     * block. This will avoid the deadlock.
+     */
+    for (NetTimer t : removedTimers) {
+      NetTimerCallback callback = t.callback_;
+      if (callback != null) {
+        callback.handleTimerFired();
+      }
+    }
+    return removedTimers.size();
+  }
+
+  public long getDelay(long now) {
+    synchronized (timers_) {
+      if (timers_.isEmpty()) {
+        return 0;
+      }
+      return Math.max(timers_.first().timeout_ - now, 1);
+    }
+  }
+
+  public boolean isEmpty() {
+    return timers_.isEmpty();
+  }
+
+  public int size() {
+    return timers_.size();
+  }
+}
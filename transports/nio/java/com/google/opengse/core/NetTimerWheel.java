@@ -0,0 +1,291 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.opengse.core;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A hashed timing wheel. Time is cut into ticks of
+ * <code>tick_millis</code> and a timer is stored in the bucket of the tick
+ * containing its timeout, modulo the number of buckets. Each bucket is an
+ * intrusive doubly-linked list guarded by its own monitor, so scheduling
+ * and cancelling are O(1) and threads only contend when they touch the
+ * same bucket.
+ *
+ * <p>Timers are fired at most one tick late and never early. Firing
+ * allocates nothing: expired timers are unlinked from their bucket and
+ * chained through their own <code>next_</code> field.
+ *
+ * <p>A bucket may also hold timers for later turns of the wheel; those
+ * are skipped until their timeout arrives, so the wheel should span the
+ * common timeouts (read, write and keep-alive) in a single turn.
+ *
+ * <p>A bitmap with one bit per bucket records which buckets hold timers,
+ * so that {@link #getDelay}, called on every turn of the selector loop,
+ * finds the next occupied bucket a word at a time without taking any
+ * bucket's monitor.
+ */
+class NetTimerWheel implements NetTimerQueue {
+  static final long DEFAULT_TICK_MILLIS = 10;
+  static final int DEFAULT_NUM_BUCKETS = 4096;
+
+  /**
+   * A bucket of the wheel.
+   */
+  static final class Bucket {
+    private final int index_;
+    private NetTimer head_;
+
+    Bucket(int index) {
+      this.index_ = index;
+    }
+  }
+
+  private final Bucket[] buckets_;
+  private final int mask_;
+  private final long tick_millis_;
+  private final AtomicInteger size_ = new AtomicInteger();
+
+  /**
+   * Bit <code>i</code> is set while bucket <code>i</code> is not empty.
+   * The bit of a bucket only changes under the bucket's monitor.
+   */
+  private final AtomicLongArray occupied_;
+
+  /**
+   * The tick up to which {@link #fireExpired} has scanned, or is scanning.
+   * The next scan starts again at this tick. A timer must not be left in
+   * the bucket of an earlier tick, or it would not be seen until the wheel
+   * comes around again.
+   */
+  private volatile long horizon_ = -1;
+
+  NetTimerWheel() {
+    this(DEFAULT_TICK_MILLIS, DEFAULT_NUM_BUCKETS);
+  }
+
+  /**
+   * @param tick_millis the resolution of the wheel in milliseconds
+   * @param num_buckets the number of buckets, rounded up to a power of two
+   */
+  NetTimerWheel(long tick_millis, int num_buckets) {
+    if (tick_millis <= 0 || num_buckets <= 0) {
+      throw new IllegalArgumentException();
+    }
+    int n = Integer.highestOneBit(num_buckets);
+    if (n < num_buckets) {
+      n <<= 1;
+    }
+    this.tick_millis_ = tick_millis;
+    this.mask_ = n - 1;
+    this.buckets_ = new Bucket[n];
+    for (int i = 0; i < n; ++i) {
+      buckets_[i] = new Bucket(i);
+    }
+    this.occupied_ = new AtomicLongArray((n + 63) >>> 6);
+  }
+
+  private Bucket bucketFor(long tick) {
+    return buckets_[(int) (tick & mask_)];
+  }
+
+  public NetTimer schedule(NetTimerCallback callback, long timeout) {
+    NetTimer t = new NetTimer(callback, timeout, 0);
+    long tick = Math.max(timeout / tick_millis_, horizon_);
+    link(bucketFor(tick), t);
+    size_.incrementAndGet();
+
+    // If the network thread scanned past our tick while we were linking
+    // the timer, move it up to the horizon so that the next scan sees it.
+    for (;;) {
+      long horizon = horizon_;
+      if (horizon <= tick) {
+        break;
+      }
+      Bucket bucket = bucketFor(tick);
+      synchronized (bucket) {
+        if (t.bucket_ != bucket) {
+          break; // already fired or cancelled
+        }
+        unlink(bucket, t);
+      }
+      tick = horizon;
+      link(bucketFor(tick), t);
+    }
+    return t;
+  }
+
+  public void cancel(NetTimer timer) {
+    timer.callback_ = null;
+    for (;;) {
+      Bucket bucket = timer.bucket_;
+      if (bucket == null) {
+        return; // already fired or cancelled
+      }
+      synchronized (bucket) {
+        // The timer may have expired or moved while we were waiting for
+        // the lock.
+        if (timer.bucket_ == bucket) {
+          unlink(bucket, timer);
+          size_.decrementAndGet();
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Adds <code>t</code> to the front of <code>bucket</code>.
+   */
+  private void link(Bucket bucket, NetTimer t) {
+    synchronized (bucket) {
+      t.prev_ = null;
+      t.next_ = bucket.head_;
+      if (bucket.head_ != null) {
+        bucket.head_.prev_ = t;
+      } else {
+        setOccupied(bucket.index_, true);
+      }
+      bucket.head_ = t;
+      t.bucket_ = bucket;
+    }
+  }
+
+  /**
+   * Removes <code>t</code> from <code>bucket</code>. The caller must hold
+   * the bucket's monitor.
+   */
+  private void unlink(Bucket bucket, NetTimer t) {
+    if (t.prev_ == null) {
+      bucket.head_ = t.next_;
+      if (bucket.head_ == null) {
+        setOccupied(bucket.index_, false);
+      }
+    } else {
+      t.prev_.next_ = t.next_;
+    }
+    if (t.next_ != null) {
+      t.next_.prev_ = t.prev_;
+    }
+    t.bucket_ = null;
+    t.prev_ = null;
+    t.next_ = null;
+  }
+
+  /**
+   * Sets or clears the bit of a bucket. The caller must hold the bucket's
+   * monitor; other bits in the same word may change concurrently.
+   */
+  private void setOccupied(int index, boolean occupied) {
+    int word = index >>> 6;
+    long bit = 1L << (index & 63);
+    for (;;) {
+      long old = occupied_.get(word);
+      long value = occupied ? (old | bit) : (old & ~bit);
+      if (occupied_.compareAndSet(word, old, value)) {
+        return;
+      }
+    }
+  }
+
+  public int fireExpired(long now) {
+    long tick = now / tick_millis_;
+    long from = horizon_;
+    if (from < 0 || tick - from > mask_) {
+      // first call, or we have been away for a whole turn of the wheel
+      from = tick - mask_;
+    } else if (from > tick) {
+      // the clock went backwards
+      from = tick;
+    }
+    if (tick > horizon_) {
+      horizon_ = tick;
+    }
+
+    // Unlink the expired timers of every tick since the last call. The
+    // current tick is visited again next time since it may still hold
+    // timers which are due later within the tick.
+    NetTimer expired = null;
+    int count = 0;
+    for (long t = from; t <= tick; ++t) {
+      Bucket bucket = bucketFor(t);
+      synchronized (bucket) {
+        NetTimer timer = bucket.head_;
+        while (timer != null) {
+          NetTimer next = timer.next_;
+          if (timer.timeout_ <= now) {
+            unlink(bucket, timer);
+            timer.next_ = expired;
+            expired = timer;
+            ++count;
+          }
+          timer = next;
+        }
+      }
+    }
+    if (count > 0) {
+      size_.addAndGet(-count);
+    }
+
+    // Fire outside of the bucket monitors so that callbacks may schedule
+    // and cancel timers freely.
+    while (expired != null) {
+      NetTimer next = expired.next_;
+      expired.next_ = null;
+      NetTimerCallback callback = expired.callback_;
+      if (callback != null) {
+        callback.handleTimerFired();
+      }
+      expired = next;
+    }
+    return count;
+  }
+
+  public long getDelay(long now) {
+    if (size_.get() == 0) {
+      return 0;
+    }
+    // Sleep until the end of the first tick which has a timer in its
+    // bucket. That timer might belong to a later turn of the wheel, in
+    // which case we simply wake up early.
+    long tick = now / tick_millis_;
+    int num_buckets = mask_ + 1;
+    int start = (int) (tick & mask_);
+    int distance = 0;
+    while (distance < num_buckets) {
+      int i = (start + distance) & mask_;
+      // the bits of bucket i and the buckets after it in the same word
+      long bits = occupied_.get(i >>> 6) >>> (i & 63);
+      if (bits != 0) {
+        distance += Long.numberOfTrailingZeros(bits);
+        if (distance >= num_buckets) {
+          break; // past a whole turn; set since we looked at it
+        }
+        return Math.max((tick + distance + 1) * tick_millis_ - now, 1);
+      }
+      distance += Math.min(64 - (i & 63), num_buckets - i);
+    }
+    return num_buckets * tick_millis_;
+  }
+
+  public boolean isEmpty() {
+    return size_.get() == 0;
+  }
+
+  public int size() {
+    return size_.get();
+  }
+}
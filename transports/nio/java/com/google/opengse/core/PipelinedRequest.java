@@ -0,0 +1,241 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.opengse.core;
+
+import com.google.opengse.iobuffer.BufferPool;
+import com.google.opengse.iobuffer.IOBuffer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * A request which was read from a connection while an earlier request on
+ * it was still being processed, and dispatched to a worker thread of its
+ * own. Its response is written into a buffer and held there until every
+ * earlier response on the connection has been sent; then the connection
+ * takes it on as its current request, sends what was held and lets the
+ * rest be written as for any other request.
+ *
+ * <p>A servlet handling a request dispatched this way can't detach its
+ * thread; {@link HttpResponseImpl#sendStream} and
+ * {@link HttpResponseImpl#sendFile} copy the data into the response
+ * instead of transferring it without blocking.
+ *
+ * @see HttpConnection#readRequest
+ */
+final class PipelinedRequest implements Runnable {
+
+  /** The size of the reads made by a transfer. */
+  private static final int TRANSFER_SIZE = 16 * 1024;
+
+  private final HttpConnection conn_;
+  private final HttpRequestImpl req_;
+  private final Response resp_;
+  private final long num_request_bytes_;
+
+  /** When the request was queued for a worker, from System.nanoTime. */
+  private final long queued_;
+
+  /**
+   * The encoded response, as far as the servlet has written it. Once the
+   * request is promoted this is the output buffer of the connection.
+   */
+  private final IOBuffer held_;
+
+  /**
+   * Set by the network thread when every earlier response has been sent
+   * and this request has become the current request of the connection.
+   */
+  private volatile boolean promoted_ = false;
+
+  /** Whether the response is complete; guarded by the connection. */
+  private boolean done_ = false;
+
+  /** Whether the connection has been closed; guarded by the connection. */
+  private boolean aborted_ = false;
+
+  /** The worker thread and when it started; guarded by the connection. */
+  private Thread thread_ = null;
+  private long start_ = 0;
+
+  PipelinedRequest(HttpConnection conn, HttpRequestImpl req,
+      long numRequestBytes) {
+    BufferPool pool = conn.getNetConnection().getSelector().getBufferPool();
+    this.conn_ = conn;
+    this.req_ = req;
+    this.num_request_bytes_ = numRequestBytes;
+    req.setPipelined();
+    this.queued_ = System.nanoTime();
+    this.held_ = new IOBuffer(pool);
+    this.resp_ = new Response(conn, req, new IOBuffer(pool));
+    resp_.setVersion(req._getMajorVersion(), req._getMinorVersion());
+  }
+
+  /**
+   * Runs the servlet on a worker thread.
+   */
+  public void run() {
+    conn_.runPipelined(this);
+  }
+
+  HttpRequestImpl getRequest() {
+    return req_;
+  }
+
+  HttpResponseImpl getResponse() {
+    return resp_;
+  }
+
+  long getNumRequestBytes() {
+    return num_request_bytes_;
+  }
+
+  long getQueued() {
+    return queued_;
+  }
+
+  IOBuffer getHeldOutput() {
+    return held_;
+  }
+
+  /**
+   * Returns the worker thread running the servlet, or <code>null</code>
+   * if it hasn't started yet.
+   */
+  Thread getThread() {
+    return thread_;
+  }
+
+  /** Returns when the servlet started, or 0 if it hasn't yet. */
+  long getStart() {
+    return start_;
+  }
+
+  void setStarted(Thread thread, long start) {
+    thread_ = thread;
+    start_ = start;
+  }
+
+  boolean isPromoted() {
+    return promoted_;
+  }
+
+  void setPromoted() {
+    promoted_ = true;
+  }
+
+  boolean isDone() {
+    return done_;
+  }
+
+  void setDone() {
+    done_ = true;
+  }
+
+  boolean isAborted() {
+    return aborted_;
+  }
+
+  void setAborted() {
+    aborted_ = true;
+  }
+
+  /**
+   * Moves what the servlet has written and the response has encoded into
+   * the held output. Only the worker thread calls this, and never while
+   * the network thread is writing the held output to the client.
+   */
+  void hold() throws IOException {
+    IOBuffer out = resp_.getOutputBuffer();
+    out.flush();
+    if (!out.isEmpty()) {
+      held_.append(out);
+      out.clear();
+    }
+  }
+
+  /** Releases the buffers of a response which will never be sent. */
+  void release() {
+    resp_.releaseEncoder();
+    resp_.getOutputBuffer().clear();
+    held_.clear();
+  }
+
+  /**
+   * The response to a pipelined request. Its output goes into a buffer of
+   * its own, which is moved to the held output whenever the response is
+   * flushed, and only written to the client once the request has been
+   * promoted.
+   */
+  private final class Response extends HttpResponseImpl {
+    private final IOBuffer output_;
+
+    Response(HttpConnection conn, HttpRequestImpl req, IOBuffer output) {
+      super(conn, req);
+      this.output_ = output;
+    }
+
+    @Override
+    protected IOBuffer getConnectionOutputBuffer() {
+      return output_;
+    }
+
+    @Override
+    void sendOutput(boolean done) throws IOException {
+      hold();
+      if (promoted_) {
+        conn.write(done);
+      }
+    }
+
+    /**
+     * Copies the contents of a channel into the response. A transfer that
+     * doesn't block needs to detach the thread, which a request dispatched
+     * ahead of its turn can't do.
+     */
+    @Override
+    public void sendStream(ReadableByteChannel channel,
+        HttpNonblockingTransferTask.TransferCompleteCallback cb) {
+      Exception failure = null;
+      try {
+        OutputStream out = getOutputStream();
+        ByteBuffer buf = ByteBuffer.allocate(TRANSFER_SIZE);
+        while (channel.read(buf) >= 0) {
+          out.write(buf.array(), 0, buf.position());
+          buf.clear();
+        }
+        out.close();
+      } catch (IOException e) {
+        failure = e;
+      }
+      if (cb != null) {
+        cb.handleTransferComplete(failure);
+      }
+    }
+
+    @Override
+    public void sendFile(FileChannel file, long position, long length,
+        HttpNonblockingTransferTask.TransferCompleteCallback cb) {
+      if (position < 0 || length < 0) {
+        throw new IllegalArgumentException(
+            "invalid file region: " + position + "+" + length);
+      }
+      sendStream(new FileRegionChannel(file, position, length), cb);
+    }
+  }
+}
@@ -0,0 +1,163 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.opengse.core;
+
+import com.google.opengse.iobuffer.IOBuffer;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import javax.servlet.ServletInputStream;
+
+/**
+ * A request body which is written to a temporary file as it is read,
+ * rather than kept in memory. Used for bodies which must be read in full
+ * before the servlet is dispatched but are larger than the server's
+ * spill threshold.
+ *
+ * @see HttpServer#getRequestBodySpillThreshold()
+ */
+final class RequestBodyFile implements RequestBodySink {
+
+  // The most buffers passed to a single gathering write.
+  private static final int MAX_GATHER = 16;
+
+  private final File file_;
+  private final RandomAccessFile raf_;
+  private final FileChannel channel_;
+  private final ByteBuffer[] bufs_ = new ByteBuffer[MAX_GATHER];
+  private long length_ = 0;
+
+  /**
+   * Creates an empty body in <code>tempdir</code>, or in the default
+   * temporary directory if <code>tempdir</code> is null.
+   */
+  RequestBodyFile(String tempdir) throws IOException {
+    file_ = File.createTempFile("gse_body", null,
+        (tempdir == null) ? null : new File(tempdir));
+    try {
+      raf_ = new RandomAccessFile(file_, "rw");
+    } catch (IOException e) {
+      file_.delete();
+      throw e;
+    }
+    channel_ = raf_.getChannel();
+  }
+
+  /**
+   * Appends <code>nbytes</code> bytes from the front of <code>src</code>
+   * to the file.
+   */
+  public void receive(IOBuffer src, int nbytes) throws IOException {
+    src.flush();
+    try {
+      while (nbytes > 0) {
+        int nbufs = src.getReadBuffers(bufs_);
+        if (nbufs == 0) {
+          throw new IllegalArgumentException(
+              "Not enough bytes left: " + nbytes + " requested");
+        }
+        // write no more than was asked for
+        long todo = 0;
+        for (int i = 0; i < nbufs; ++i) {
+          ByteBuffer buf = bufs_[i];
+          if (todo + buf.remaining() >= nbytes) {
+            buf.limit(buf.position() + (int) (nbytes - todo));
+            nbufs = i + 1;
+            break;
+          }
+          todo += buf.remaining();
+        }
+        long count = channel_.write(bufs_, 0, nbufs);
+        src.skipBytes(count);
+        length_ += count;
+        nbytes -= (int) count;
+      }
+    } finally {
+      Arrays.fill(bufs_, null);
+    }
+  }
+
+  /**
+   * Returns the number of bytes in the body.
+   */
+  long length() {
+    return length_;
+  }
+
+  File getFile() {
+    return file_;
+  }
+
+  /**
+   * Returns a new stream over the whole body.
+   */
+  ServletInputStream openStream() throws IOException {
+    return new FileBodyInputStream(
+        new BufferedInputStream(new FileInputStream(file_)));
+  }
+
+  /**
+   * Closes and removes the file. Streams already open can still be read
+   * on platforms which allow reading unlinked files.
+   */
+  void delete() {
+    try {
+      raf_.close();
+    } catch (IOException e) {
+      /* ignored */
+    }
+    file_.delete();
+  }
+
+  /**
+   * Adapts a plain InputStream over the file to a ServletInputStream.
+   */
+  private static class FileBodyInputStream extends ServletInputStream {
+    private final InputStream in_;
+
+    FileBodyInputStream(InputStream in) {
+      in_ = in;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return in_.available();
+    }
+    @Override
+    public void close() throws IOException {
+      in_.close();
+    }
+    @Override
+    public int read() throws IOException {
+      return in_.read();
+    }
+    @Override
+    public int read(byte[] b, int offset, int count) throws IOException {
+      return in_.read(b, offset, count);
+    }
+    @Override
+    public long skip(long n) throws IOException {
+      return in_.skip(n);
+    }
+  }
+}
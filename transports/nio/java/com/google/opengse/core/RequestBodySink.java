@@ -14,30 +14,23 @@
 
 package com.google.opengse.core;
 
-import static org.junit.Assert.fail;
+import com.google.opengse.iobuffer.IOBuffer;
 
-import com.google.opengse.UtilityClassTestCase;
-
-import org.junit.Ignore;
-import org.junit.Test;
+import java.io.IOException;
 
 /**
- * Unit test for {@link ParserFactory}.
+ * Something the body of a request is moved into as it is read off the
+ * connection, after any transfer coding has been removed.
+ *
+ * @see HttpRequestImpl#_streamChunkedBody
  */
-public class ParserFactoryTest extends UtilityClassTestCase {
-
-  @Override
-  protected Class<?> getClassUnderTest() {
-    return ParserFactory.class;
-  }
-
-  @Ignore @Test
-  public void testIsStandardMethod() {
-    fail("Not yet implemented");
-  }
-
-  @Ignore @Test
-  public void testGetParser() {
-    fail("Not yet implemented");
-  }
+interface RequestBodySink {
+
+  /**
+   * Moves <code>nbytes</code> bytes from the front of <code>src</code>
+   * into the body.
+   *
+   * @throws IOException if the bytes could not be stored
+   */
+  void receive(IOBuffer src, int nbytes) throws IOException;
 }
@@ -0,0 +1,245 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.opengse.core;
+
+import com.google.opengse.iobuffer.IOBuffer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletInputStream;
+
+/**
+ * A request body which is handed to the servlet while it is still being
+ * received. The network thread moves body bytes into the stream as they
+ * are read off the connection; the servlet thread blocks in
+ * {@link #read} until bytes arrive or the body ends.
+ * <p/>
+ * Once more than the window of bytes is buffered ahead of the servlet,
+ * reads from the connection are paused. They are resumed once the servlet
+ * has consumed half of the window.
+ * <p/>
+ * Closing the stream discards whatever is buffered and whatever arrives
+ * later, so the rest of the body can be drained from the connection.
+ */
+final class RequestBodyStream extends ServletInputStream
+    implements RequestBodySink {
+  private static final Logger LOGGER =
+      Logger.getLogger(RequestBodyStream.class.getName());
+
+  private final NetConnection conn_;
+  private final IOBuffer buf_;
+  private final int window_;
+  private final long timeout_;
+  private long received_ = 0;
+  private boolean paused_ = false;
+  private boolean complete_ = false;
+  private boolean closed_ = false;
+  private IOException failure_ = null;
+
+  /**
+   * @param conn the connection the body is read from
+   * @param window the number of bytes to buffer before pausing reads
+   * @param timeout how long, in milliseconds, {@link #read} waits for
+   *        the client to send more of the body
+   */
+  RequestBodyStream(NetConnection conn, int window, long timeout) {
+    this.conn_ = conn;
+    this.buf_ = new IOBuffer(conn.getSelector().getBufferPool());
+    this.window_ = Math.max(window, 1);
+    this.timeout_ = timeout;
+  }
+
+  /**
+   * Moves body bytes from the connection's input buffer into the stream.
+   * Called on the network thread.
+   */
+  public synchronized void receive(IOBuffer src, int nbytes)
+      throws IOException {
+    received_ += nbytes;
+    if (closed_) {
+      src.skipBytes(nbytes);
+      return;
+    }
+    buf_.transfer(src, nbytes);
+    buf_.flush();
+    notifyAll();
+    if (!paused_ && buf_.availableBytes() >= window_) {
+      setPaused(true);
+    }
+  }
+
+  /**
+   * Marks the end of the body. Called on the network thread.
+   */
+  synchronized void complete() {
+    complete_ = true;
+    if (paused_) {
+      setPaused(false);
+    }
+    notifyAll();
+  }
+
+  /**
+   * Fails any read still waiting for the body. Called when the connection
+   * is closed or the body cannot be decoded.
+   */
+  synchronized void fail(IOException e) {
+    if (!complete_ && failure_ == null) {
+      failure_ = e;
+    }
+    notifyAll();
+  }
+
+  /**
+   * Returns true once the whole body has been received.
+   */
+  synchronized boolean isComplete() {
+    return complete_;
+  }
+
+  /**
+   * Returns true while reads from the connection are paused because the
+   * servlet has fallen behind.
+   */
+  synchronized boolean isPaused() {
+    return paused_;
+  }
+
+  /**
+   * Returns the number of body bytes received so far.
+   */
+  synchronized long getReceivedBytes() {
+    return received_;
+  }
+
+  /**
+   * Must be called with the lock held, so that pausing and resuming
+   * reach the connection in the order they were decided.
+   */
+  private void setPaused(boolean paused) {
+    paused_ = paused;
+    try {
+      conn_.setReadPaused(paused);
+    } catch (IOException e) {
+      LOGGER.log(Level.FINE, "unable to " + (paused ? "pause" : "resume")
+          + " reading the request body", e);
+      fail(e);
+    }
+  }
+
+  /**
+   * Waits until bytes are buffered or the body has ended.
+   *
+   * @return false at the end of the body
+   */
+  private boolean awaitBytes() throws IOException {
+    if (closed_) {
+      throw new IOException("stream closed");
+    }
+    long deadline = 0;
+    while (buf_.availableBytes() == 0) {
+      if (failure_ != null) {
+        IOException e = new IOException(failure_.getMessage());
+        e.initCause(failure_);
+        throw e;
+      }
+      if (complete_) {
+        return false;
+      }
+      long now = System.currentTimeMillis();
+      if (deadline == 0) {
+        deadline = now + timeout_;
+      } else if (now >= deadline) {
+        throw new SocketTimeoutException(
+            "timed out waiting for the request body");
+      }
+      try {
+        wait(deadline - now);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Resumes reads once the servlet has caught up.
+   */
+  private void consumed() {
+    if (paused_ && buf_.availableBytes() <= window_ / 2) {
+      setPaused(false);
+    }
+  }
+
+  @Override
+  public synchronized int available() {
+    return closed_ ? 0 : buf_.availableBytes();
+  }
+
+  @Override
+  public synchronized void close() {
+    if (!closed_) {
+      closed_ = true;
+      buf_.clear();
+      if (paused_) {
+        setPaused(false);
+      }
+    }
+  }
+
+  @Override
+  public synchronized int read() throws IOException {
+    if (!awaitBytes()) {
+      return -1;
+    }
+    int b = buf_.readByte();
+    consumed();
+    return b;
+  }
+
+  @Override
+  public int read(byte[] b) throws IOException {
+    return read(b, 0, b.length);
+  }
+
+  @Override
+  public synchronized int read(byte[] b, int offset, int count)
+      throws IOException {
+    if (count == 0) {
+      return 0;
+    }
+    if (!awaitBytes()) {
+      return -1;
+    }
+    int nread = buf_.readBytes(b, offset, count);
+    consumed();
+    return nread;
+  }
+
+  @Override
+  public synchronized long skip(long n) throws IOException {
+    if (n <= 0 || !awaitBytes()) {
+      return 0;
+    }
+    long nskipped = buf_.skipBytes(Math.min(n, buf_.availableBytes()));
+    consumed();
+    return nskipped;
+  }
+}
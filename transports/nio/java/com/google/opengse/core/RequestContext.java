@@ -14,16 +14,13 @@
 
 package com.google.opengse.core;
 
-import com.google.opengse.io.LineReader;
+import com.google.opengse.httputil.HttpRequestParser;
 import com.google.opengse.iobuffer.IOBuffer;
-import com.google.opengse.iobuffer.IOBufferLineReader;
-import com.google.opengse.parser.Parser;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.logging.Level;
+import java.nio.ByteBuffer;
 import java.util.logging.Logger;
 
 /**
@@ -35,16 +32,24 @@ class RequestContext {
   private static final int DEFAULT_MAJOR_VERSION = 0;
   private static final int DEFAULT_MINOR_VERSION = 9;
   private static final int READLINE_LIMIT = 8192;
+  private static final int HEAD_LIMIT = 64 * 1024;
+  private static final int HEADER_LINE_LIMIT = 4 * MimeHeaders.HEADER_LIMIT;
 
   private static final Logger LOGGER =
       Logger.getLogger(RequestContext.class.getName());
 
   private String requestMethod;
+  private String rawUri;
   private URI requestUri;
+  private boolean uriSplit;
+  private String scheme;
+  private String rawPath;
+  private String rawQuery;
   private int httpMajorVersion;
   private int httpMinorVersion;
   private final MimeHeaders headers = new MimeHeaders();
-  private boolean parsing_http_ = true;
+  private HttpRequestParser parser_ =
+      new HttpRequestParser(READLINE_LIMIT, HEAD_LIMIT, HEADER_LINE_LIMIT);
 
   public RequestContext() {
     this(DEFAULT_MAJOR_VERSION, DEFAULT_MINOR_VERSION);
@@ -55,35 +60,12 @@ class RequestContext {
     this.httpMinorVersion = httpMinorVersion;
   }
 
-  void setMethod(String method) {
-    if (method == null) {
-      requestMethod = null;
-      return;
-    }
-    if (ParserFactory.isStandardMethod(method)) {
-      requestMethod = method.intern();
-    } else {
-      String upper = method.toUpperCase();
-      if (!upper.equals(method)) {
-        LOGGER.log(Level.WARNING,
-            "Received incorrect-cased HTTP method " + method);
-      }
-      requestMethod = ParserFactory.isStandardMethod(upper)
-          ? upper.intern() : method.intern();
-    }
-  }
-
   public String getMethod() {
     return requestMethod;
   }
 
   void setURI(String uri) {
-    if (uri == null) {
-      this.requestUri = null;
-      return;
-    }
-
-    try {
+    if (uri != null && (uri.indexOf('{') != -1 || uri.indexOf('}') != -1)) {
       /* Hack: when Firefox extensions checks for update,
        * it sends an URL with unecnoded bracees '{' and '}', e.g.
        *
@@ -96,28 +78,122 @@ class RequestContext {
        *
        * To get around this, we patch up the URI by encoding the braces first.
        */
-      String patchedUri = uri.replaceAll("\\{", "%7B").replaceAll("\\}", "%7D");
-      this.requestUri = new URI(patchedUri);
-    } catch (URISyntaxException e) {
-      LOGGER.info(e.getMessage());
-      this.requestUri = null;
+      StringBuilder patched = new StringBuilder(uri.length() + 8);
+      for (int i = 0; i < uri.length(); ++i) {
+        char c = uri.charAt(i);
+        if (c == '{') {
+          patched.append("%7B");
+        } else if (c == '}') {
+          patched.append("%7D");
+        } else {
+          patched.append(c);
+        }
+      }
+      uri = patched.toString();
     }
+    this.rawUri = uri;
+    this.requestUri = null;
+    this.uriSplit = false;
+  }
+
+  /**
+   * Returns the request URI as the client sent it, except for the braces
+   * patched up by {@link #setURI}.
+   */
+  String getRawURI() {
+    return rawUri;
   }
 
+  /**
+   * Returns the request URI as a <code>java.net.URI</code>, which is only
+   * built when it is first asked for, or <code>null</code> if it isn't one.
+   */
   URI getURI() {
+    if (requestUri == null && rawUri != null) {
+      try {
+        requestUri = new URI(rawUri);
+      } catch (URISyntaxException e) {
+        LOGGER.info(e.getMessage());
+      }
+    }
     return requestUri;
   }
 
-  void setMajorVersion(int major) {
-    this.httpMajorVersion = major;
+  /**
+   * Returns the scheme of an absolute request URI, or <code>null</code>.
+   */
+  String getScheme() {
+    splitURI();
+    return scheme;
   }
 
-  int getMajorVersion() {
-    return httpMajorVersion;
+  /**
+   * Returns the path of the request URI without decoding it, as
+   * <code>URI.getRawPath()</code> would, or <code>null</code> if it has
+   * none.
+   */
+  String getRawPath() {
+    splitURI();
+    return rawPath;
   }
 
-  void setMinorVersion(int minor) {
-    this.httpMinorVersion = minor;
+  /**
+   * Returns the query string of the request URI without decoding it, or
+   * <code>null</code> if it has none.
+   */
+  String getRawQuery() {
+    splitURI();
+    return rawQuery;
+  }
+
+  /**
+   * Finds the scheme, path and query of the request URI the way
+   * <code>java.net.URI</code> would, without the cost of building one on
+   * every request. A request URI is nearly always just a path and query.
+   */
+  private void splitURI() {
+    if (uriSplit) {
+      return;
+    }
+    uriSplit = true;
+    scheme = null;
+    rawPath = null;
+    rawQuery = null;
+    String uri = rawUri;
+    if (uri == null) {
+      return;
+    }
+    int end = uri.indexOf('#');
+    if (end == -1) {
+      end = uri.length();
+    }
+    int start = 0;
+    if (!uri.startsWith("/")) {
+      int colon = uri.indexOf(':');
+      int slash = uri.indexOf('/');
+      if (colon > 0 && colon < end && (slash == -1 || colon < slash)) {
+        scheme = uri.substring(0, colon);
+        if (!uri.startsWith("//", colon + 1)) {
+          // an opaque URI, such as the host:port of a CONNECT
+          return;
+        }
+        start = colon + 3;
+        while (start < end && uri.charAt(start) != '/'
+            && uri.charAt(start) != '?') {
+          ++start;
+        }
+      }
+    }
+    int query = uri.indexOf('?', start);
+    if (query != -1 && query < end) {
+      rawQuery = uri.substring(query + 1, end);
+      end = query;
+    }
+    rawPath = uri.substring(start, end);
+  }
+
+  int getMajorVersion() {
+    return httpMajorVersion;
   }
 
   int getMinorVersion() {
@@ -129,60 +205,40 @@ class RequestContext {
   }
 
   /**
-   * Parse an HTTP request.
-   */
-  /**
-   * Parse an HTTP request.
+   * Parses as much of the request line and headers as <code>buf</code>
+   * holds, leaving any bytes after them in <code>buf</code>. Call it
+   * again as more data arrives.
    *
-   * @param parser the thing that knows how to poke values into a
-   * RequestContext
-   * @param baos stupid, redundant, reused buffer
    * @param buf the source of the bytes
-   * @return
-   * @throws IOException
+   * @return <code>true</code> once the request line and headers have all
+   *         been parsed
+   * @throws IOException if the request is malformed
    */
-  boolean parse(Parser<RequestContext> parser, ByteArrayOutputStream baos,
-      IOBuffer buf)
-      throws IOException {
-    if (parsing_http_) {
-      LineReader reader = new IOBufferLineReader(buf, baos, READLINE_LIMIT);
-      String line;
-      while ((line = reader.readLine()) != null) {
-        parser.parse(line, this);
-        if (requestMethod == null) {
-          // if no method was specified on the request line, check to
-          // see if the line is entirely whitespace, in which case we
-          // just ignore it.
-          for (int i = 0; i < line.length(); i++) {
-            if (!Character.isWhitespace(line.charAt(i))) {
-              throw new IOException("no method specified: " + line +
-                  ", buf: " + buf);
-            }
-          }
-          continue;
-        }
-        if (requestUri == null) {
-          // this could be caused by some dangling header line(s);
-          // instead of throwing IOException, we ignore the line and continue;
-          LOGGER.warning("Unable to handle request line: " + line);
-          requestMethod = null;
-          continue;
-
-          // TODO: we can't really convert any exceptions thrown from this class
-          // to a valid "HttpConnection#badRequest", due to the "null" request
-          // context.
-          // Note: unless we are certain it's malformed http message, any
-          // resulting "badRequest" will screw up the existing response.
-        }
-        parsing_http_ = false;
-        break;
-      }
-      if (parsing_http_) {
-        return false;
-      }
+  boolean parse(IOBuffer buf) throws IOException {
+    if (parser_ == null) {
+      return true;
+    }
+    ByteBuffer bytes;
+    boolean done = false;
+    while (!done && (bytes = buf.getReadBuffer()) != null) {
+      done = parser_.parse(bytes);
+      buf.releaseReadBuffer();
+    }
+    if (!done) {
+      return false;
+    }
+    HttpRequestParser parser = parser_;
+    parser_ = null;
+    requestMethod = parser.getMethod();
+    setURI(parser.getTarget());
+    if (parser.getVersion() != null) {
+      httpMajorVersion = parser.getMajorVersion();
+      httpMinorVersion = parser.getMinorVersion();
     }
-    return headers.parse(baos, buf);
+    for (int i = 0; i < parser.getHeaderCount(); ++i) {
+      headers.addParsedHeader(parser.getHeaderId(i), parser.getHeaderName(i),
+          parser.getHeaderValue(i));
+    }
+    return true;
   }
-
-
 }
@@ -2,10 +2,8 @@
 
 package com.google.opengse.core;
 
-import com.google.opengse.parser.Parser;
 import com.google.opengse.iobuffer.IOBuffer;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 
 /**
@@ -16,11 +14,8 @@ import java.io.IOException;
 public final class RequestContextFactory {
   private RequestContextFactory() { throw new AssertionError(); }
 
-  private static final Parser<RequestContext> PARSER
-      = ParserFactory.getParser();
-
-  public static boolean parse(RequestContext context,
-      ByteArrayOutputStream line_buf, IOBuffer buf) throws IOException {
-    return context.parse(PARSER, line_buf, buf);
+  public static boolean parse(RequestContext context, IOBuffer buf)
+      throws IOException {
+    return context.parse(buf);
   }
 }
@@ -0,0 +1,194 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.opengse.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+/**
+ * The server-wide policy and statistics for compressing responses. A
+ * response is compressed only if
+ * <ul>
+ *   <li>its content type is on the allowlist,</li>
+ *   <li>its body is at least <code>min_size</code> bytes (when the size
+ *       is known before the headers are written), and</li>
+ *   <li>the client can take it; see
+ *       {@link HttpResponseImpl#canCompressForClient(String)}.</li>
+ * </ul>
+ * Compressing a 200 byte reply saves next to nothing on the wire but
+ * still costs a deflater and a few microseconds of CPU, so small bodies
+ * are sent as they are.
+ *
+ * <p>The allowlist is a list of content types, each of which may contain
+ * one <code>*</code> standing for any run of characters, as in
+ * <code>text/*</code> or <code>application/*+xml</code>.
+ *
+ * <p>The statistics cover the responses that were compressed: bytes in,
+ * bytes out and the CPU time spent in the deflater.
+ *
+ * <p>This class is thread safe.
+ */
+public final class ResponseCompression {
+  /** the default for {@link #getMinSize()} */
+  public static final int DEFAULT_MIN_SIZE = 1024;
+  /** the default allowlist of content types */
+  public static final String DEFAULT_TYPES = "text/*, application/json, "
+      + "application/x-javascript, application/*+xml, application/csv";
+
+  private final DeflaterPool pool_ = new DeflaterPool();
+  private volatile int level_ = Deflater.DEFAULT_COMPRESSION;
+  private volatile int min_size_ = DEFAULT_MIN_SIZE;
+  private volatile String[] types_;
+
+  private final AtomicLong compressed_ = new AtomicLong();
+  private final AtomicLong skipped_ = new AtomicLong();
+  private final AtomicLong bytes_in_ = new AtomicLong();
+  private final AtomicLong bytes_out_ = new AtomicLong();
+  private final AtomicLong cpu_nanos_ = new AtomicLong();
+
+  public ResponseCompression() {
+    setTypes(DEFAULT_TYPES);
+  }
+
+  public DeflaterPool getDeflaterPool() {
+    return pool_;
+  }
+
+  /**
+   * Returns the deflate level, 0-9 or
+   * {@link Deflater#DEFAULT_COMPRESSION}.
+   */
+  public int getLevel() {
+    return level_;
+  }
+  public void setLevel(int level) {
+    DeflaterPool.normalizeLevel(level);
+    this.level_ = level;
+  }
+
+  /**
+   * Returns the size of the smallest body worth compressing.
+   */
+  public int getMinSize() {
+    return min_size_;
+  }
+  public void setMinSize(int min_size) {
+    this.min_size_ = min_size;
+  }
+
+  /**
+   * Sets the allowlist from a comma-separated list of content types.
+   */
+  public void setTypes(String types) {
+    List<String> list = new ArrayList<String>();
+    for (String type : types.split(",")) {
+      type = type.trim().toLowerCase();
+      if (type.length() > 0) {
+        list.add(type);
+      }
+    }
+    this.types_ = list.toArray(new String[list.size()]);
+  }
+
+  /**
+   * Returns true if <code>type</code>, a content type without parameters,
+   * is on the allowlist.
+   */
+  public boolean isCompressibleType(String type) {
+    type = type.toLowerCase();
+    for (String pattern : types_) {
+      int star = pattern.indexOf('*');
+      if (star == -1) {
+        if (type.equals(pattern)) {
+          return true;
+        }
+      } else {
+        int suffix = pattern.length() - star - 1;
+        if (type.length() >= star + suffix
+            && type.regionMatches(0, pattern, 0, star)
+            && type.regionMatches(type.length() - suffix, pattern, star + 1,
+                                  suffix)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Records a response which could have been compressed but was too
+   * small.
+   */
+  void recordSkipped() {
+    skipped_.incrementAndGet();
+  }
+
+  /**
+   * Records the work done for one compressed response.
+   */
+  void recordCompressed(long bytes_in, long bytes_out, long cpu_nanos) {
+    compressed_.incrementAndGet();
+    bytes_in_.addAndGet(bytes_in);
+    bytes_out_.addAndGet(bytes_out);
+    cpu_nanos_.addAndGet(cpu_nanos);
+  }
+
+  /** Returns the number of responses compressed. */
+  public long getCompressedCount() {
+    return compressed_.get();
+  }
+
+  /** Returns the number of responses too small to be compressed. */
+  public long getSkippedCount() {
+    return skipped_.get();
+  }
+
+  /** Returns the number of bytes handed to the deflaters. */
+  public long getBytesIn() {
+    return bytes_in_.get();
+  }
+
+  /** Returns the number of compressed bytes produced. */
+  public long getBytesOut() {
+    return bytes_out_.get();
+  }
+
+  /** Returns the CPU time spent compressing, in nanoseconds. */
+  public long getCpuNanos() {
+    return cpu_nanos_.get();
+  }
+
+  /**
+   * Returns compressed bytes over uncompressed bytes, or 1 if nothing has
+   * been compressed yet.
+   */
+  public double getCompressionRatio() {
+    long in = getBytesIn();
+    return (in == 0) ? 1.0 : (double) getBytesOut() / in;
+  }
+
+  @Override
+  public String toString() {
+    long compressed = getCompressedCount();
+    return "ResponseCompression: compressed=" + compressed + ", skipped="
+        + getSkippedCount() + ", ratio="
+        + String.format("%.3f", getCompressionRatio()) + ", cpu/response="
+        + ((compressed == 0) ? 0 : getCpuNanos() / compressed / 1000)
+        + "us, " + pool_;
+  }
+}
@@ -20,7 +20,7 @@ import com.google.opengse.ServletEngine;
 import com.google.opengse.ServletEngineConfiguration;
 import com.google.opengse.ServletEngineConfigurationImpl;
 import com.google.opengse.util.DispatchQueue;
-import com.google.opengse.util.DispatchQueueImpl;
+import com.google.opengse.util.WorkStealingDispatchQueue;
 
 import java.io.IOException;
 import java.util.concurrent.CountDownLatch;
@@ -90,20 +90,51 @@ public class ServletEngineImpl implements ServletEngine {
    */
   ServletEngineImpl(FilterChain dispatcher, ServletEngineConfiguration config)
       throws IOException, InterruptedException {
-    NetSelector selector = new NetSelector();
-    DispatchQueue queue = new DispatchQueueImpl(config.getMaxThreads());
-    HttpRequestHandler handler = new HttpRequestHandlerAdapter(dispatcher);
-    server_ = new HttpServer(selector, queue, handler, config);
-    server_.getSelector().listen(config.getPort(), server_, false);
+    this(new HttpRequestHandlerAdapter(dispatcher), config);
   }
 
   ServletEngineImpl(
       HttpRequestHandler handler, ServletEngineConfiguration config)
       throws IOException, InterruptedException {
-    NetSelector selector = new NetSelector();
-    DispatchQueue queue = new DispatchQueueImpl(config.getMaxThreads());
-    server_ = new HttpServer(selector, queue, handler, config);
-    server_.getSelector().listen(config.getPort(), server_, false);
+    NetSelectorGroup selectors = createSelectorGroup(config);
+    DispatchQueue queue = new WorkStealingDispatchQueue(config.getMaxThreads(),
+        config.getMaxQueueBacklog(), config.isWorkStealing());
+    server_ = new HttpServer(selectors, queue, handler, config);
+    server_.setMaxPostSize(config.getMaxPostSize());
+    server_.setStreamRequestBodies(config.streamRequestBodies());
+    server_.setRequestBodySpillThreshold(
+        config.getRequestBodySpillThreshold());
+    server_.setKeepaliveTimeout(config.getKeepAliveTimeout());
+    server_.setPipelineDepth(config.getPipelineDepth());
+    server_.setMaxIdleAttachments(config.getMaxThreads());
+    server_.getAdmission().setEnabled(config.admissionControl());
+    server_.getAdmission().setLimits(config.getAdmissionMinLimit(),
+        config.getAdmissionMaxLimit());
+    server_.getAdmission().setTargetWait(config.getAdmissionTargetWait());
+    server_.setCompressResponses(config.compressResponses());
+    server_.getCompression().setLevel(config.getCompressionLevel());
+    server_.getCompression().setMinSize(config.getCompressionMinSize());
+    server_.getCompression().setTypes(config.getCompressibleTypes());
+    server_.getSelectorGroup().listen(config.getPort(),
+        new AcceptServer(server_), false, config.getAcceptorThreads());
+  }
+
+  /**
+   * Creates the acceptor and reactors as specified by
+   * {@link ServletEngineConfiguration#getSelectorThreads()}.
+   */
+  private static NetSelectorGroup createSelectorGroup(
+      ServletEngineConfiguration config) throws IOException {
+    NetSelectorGroup.Balancing balancing;
+    try {
+      balancing = NetSelectorGroup.Balancing.parse(
+          config.getSelectorBalancing());
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("Unknown selector balancing '"
+          + config.getSelectorBalancing() + "'", e);
+    }
+    return new NetSelectorGroup(
+        new NetSelector(), config.getSelectorThreads(), balancing);
   }
 
   public static ServletEngine create(
@@ -151,6 +182,7 @@ public class ServletEngineImpl implements ServletEngine {
 
 
   public void run() {
+    server_.getSelectorGroup().start();
     server_.getSelector().schedule(new StartupCallback(), 0);
     server_.getSelector().runForever();
   }
@@ -0,0 +1,261 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.opengse.iobuffer;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of direct {@link ByteBuffer}s. The pool has a number of size
+ * classes, each twice as large as the one before. The buffers of a size
+ * class are carved out of large direct "slabs", so that the (expensive)
+ * direct allocations are few and the buffers never move.
+ *
+ * <p>Each buffer handed out is wrapped in a {@link PooledBuffer}, which
+ * is reference counted; the buffer goes back to its size class when the
+ * count drops to zero. A <code>PooledBuffer</code> which becomes garbage
+ * without having been released, say because its connection was closed
+ * while a servlet was still writing to it, is noticed on a later
+ * {@link #acquire} and its memory is reused as well.
+ *
+ * <p>The pool keeps statistics on hits (buffers served from a free
+ * list), misses (requests that needed a new slab or were too large for
+ * any size class) and outstanding buffers.
+ *
+ * <p>This class is thread safe.
+ *
+ * @see IOBuffer#IOBuffer(BufferPool)
+ */
+public class BufferPool {
+  public static final int DEFAULT_MIN_SIZE = 1024;
+  public static final int DEFAULT_MAX_SIZE = 64 * 1024;
+  public static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+
+  private static final BufferPool DEFAULT_POOL = new BufferPool(
+      DEFAULT_MIN_SIZE, DEFAULT_MAX_SIZE, IOBuffer.ALLOC_EXTRA,
+      DEFAULT_SLAB_SIZE);
+
+  private final SizeClass[] classes_;
+  private final int slab_size_;
+  private final ReferenceQueue<PooledBuffer> abandoned_ =
+      new ReferenceQueue<PooledBuffer>();
+  private final Set<Tracker> trackers_ = Collections.newSetFromMap(
+      new ConcurrentHashMap<Tracker, Boolean>());
+  private final AtomicLong hits_ = new AtomicLong();
+  private final AtomicLong misses_ = new AtomicLong();
+  private final AtomicLong outstanding_ = new AtomicLong();
+  private final AtomicLong abandoned_count_ = new AtomicLong();
+  private final AtomicLong slab_bytes_ = new AtomicLong();
+
+  /**
+   * Returns the pool shared by all connections which have not been
+   * given a pool of their own. Its size classes match the buffer sizes
+   * chosen by {@link IOBuffer}.
+   */
+  public static BufferPool getDefault() {
+    return DEFAULT_POOL;
+  }
+
+  /**
+   * Creates a pool.
+   *
+   * @param min_size the size of the smallest size class
+   * @param max_size no size class is larger than this (plus padding)
+   * @param padding bytes added to every size class, so that a class
+   *        holds exactly what an IOBuffer asks for
+   * @param slab_size the number of bytes allocated at once for a size
+   *        class which has run out of buffers
+   */
+  public BufferPool(int min_size, int max_size, int padding, int slab_size) {
+    if (min_size <= 0 || max_size < min_size || padding < 0) {
+      throw new IllegalArgumentException("Bad size classes: " + min_size
+          + " to " + max_size + " (+" + padding + ")");
+    }
+    int count = 0;
+    for (long size = min_size; size <= max_size; size <<= 1) {
+      count += 1;
+    }
+    this.classes_ = new SizeClass[count];
+    for (int i = 0; i < count; ++i) {
+      classes_[i] = new SizeClass((min_size << i) + padding);
+    }
+    this.slab_size_ = slab_size;
+  }
+
+  /**
+   * Returns the size of the largest buffer the pool can hand out.
+   */
+  public int getMaxSize() {
+    return classes_[classes_.length - 1].size_;
+  }
+
+  /**
+   * Returns a buffer with a capacity of exactly <code>size</code> bytes
+   * and a reference count of one, or <code>null</code> if
+   * <code>size</code> is larger than {@link #getMaxSize()}.
+   */
+  public PooledBuffer acquire(int size) {
+    reclaimAbandoned();
+    SizeClass size_class = null;
+    for (SizeClass c : classes_) {
+      if (c.size_ >= size) {
+        size_class = c;
+        break;
+      }
+    }
+    if (size_class == null) {
+      misses_.incrementAndGet();
+      return null;
+    }
+
+    ByteBuffer slot = size_class.take();
+    if (slot == null) {
+      misses_.incrementAndGet();
+      slot = size_class.grow(slab_size_);
+      slab_bytes_.addAndGet(
+          (long) Math.max(1, slab_size_ / size_class.size_) * size_class.size_);
+    } else {
+      hits_.incrementAndGet();
+    }
+    outstanding_.incrementAndGet();
+
+    ByteBuffer view = slot.duplicate();
+    view.limit(size);
+    PooledBuffer buf = new PooledBuffer(this, view.slice());
+    Tracker tracker = new Tracker(buf, size_class, slot, abandoned_);
+    trackers_.add(tracker);
+    buf.setTracker(tracker);
+    return buf;
+  }
+
+  /**
+   * Returns the memory of a buffer whose reference count dropped to zero
+   * to its size class.
+   */
+  void recycle(PooledBuffer buf) {
+    Tracker tracker = buf.getTracker();
+    tracker.clear();
+    if (trackers_.remove(tracker)) {
+      tracker.size_class_.put(tracker.slot_);
+      outstanding_.decrementAndGet();
+    }
+  }
+
+  /**
+   * Returns the memory of buffers which were garbage collected without
+   * having been released.
+   */
+  private void reclaimAbandoned() {
+    Tracker tracker;
+    while ((tracker = (Tracker) abandoned_.poll()) != null) {
+      if (trackers_.remove(tracker)) {
+        tracker.size_class_.put(tracker.slot_);
+        outstanding_.decrementAndGet();
+        abandoned_count_.incrementAndGet();
+      }
+    }
+  }
+
+  /** Returns the number of buffers served from a free list. */
+  public long getHits() {
+    return hits_.get();
+  }
+
+  /** Returns the number of requests that needed new memory. */
+  public long getMisses() {
+    return misses_.get();
+  }
+
+  /** Returns the number of buffers currently handed out. */
+  public long getOutstanding() {
+    return outstanding_.get();
+  }
+
+  /** Returns the number of buffers reclaimed after being abandoned. */
+  public long getAbandoned() {
+    return abandoned_count_.get();
+  }
+
+  /** Returns the number of direct bytes allocated for slabs. */
+  public long getSlabBytes() {
+    return slab_bytes_.get();
+  }
+
+  @Override
+  public String toString() {
+    return "BufferPool: hits=" + getHits() + ", misses=" + getMisses()
+        + ", outstanding=" + getOutstanding() + ", abandoned="
+        + getAbandoned() + ", slab bytes=" + getSlabBytes();
+  }
+
+  /**
+   * The free buffers of one size.
+   */
+  private static final class SizeClass {
+    final int size_;
+    private final ArrayDeque<ByteBuffer> free_ = new ArrayDeque<ByteBuffer>();
+
+    SizeClass(int size) {
+      this.size_ = size;
+    }
+
+    synchronized ByteBuffer take() {
+      return free_.pollFirst();
+    }
+
+    synchronized void put(ByteBuffer slot) {
+      free_.addFirst(slot);
+    }
+
+    /**
+     * Allocates a new slab, keeps all but one of its buffers and
+     * returns that one.
+     */
+    synchronized ByteBuffer grow(int slab_size) {
+      int count = Math.max(1, slab_size / size_);
+      ByteBuffer slab = ByteBuffer.allocateDirect(count * size_);
+      for (int i = 1; i < count; ++i) {
+        slab.limit((i + 1) * size_);
+        slab.position(i * size_);
+        free_.addLast(slab.slice());
+      }
+      slab.limit(size_);
+      slab.position(0);
+      return slab.slice();
+    }
+  }
+
+  /**
+   * Remembers where the memory of a <code>PooledBuffer</code> came from,
+   * without keeping the <code>PooledBuffer</code> itself alive.
+   */
+  static final class Tracker extends WeakReference<PooledBuffer> {
+    final SizeClass size_class_;
+    final ByteBuffer slot_;
+
+    Tracker(PooledBuffer buf, SizeClass size_class, ByteBuffer slot,
+            ReferenceQueue<PooledBuffer> queue) {
+      super(buf, queue);
+      this.size_class_ = size_class;
+      this.slot_ = slot;
+    }
+  }
+}
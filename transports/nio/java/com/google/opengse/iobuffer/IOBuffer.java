@@ -25,7 +25,10 @@ import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CharsetEncoder;
 import java.nio.charset.CoderResult;
 import java.nio.charset.CodingErrorAction;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
+import java.util.ListIterator;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -82,6 +85,22 @@ import java.util.logging.Logger;
  * size limit is set to -1, which allows the IOBuffer to grow without
  * bound.
  *
+ * An IOBuffer created with a {@link BufferPool} takes its byte buffers
+ * from the pool. They are direct buffers, so they can be handed to a
+ * channel without an extra copy. Each one goes back to the pool as soon
+ * as its contents have been read, or when the IOBuffer is cleared.
+ *
+ * Data moved into another IOBuffer (by transfer, append, prepend or the
+ * copy constructor) is not copied. The IOBuffers share views of the
+ * same memory. Views of pooled memory are read-only, and the memory is
+ * reference counted, so it goes back to the pool once every IOBuffer
+ * which holds it has read or cleared it. This holds for IOBuffers with
+ * and without a pool alike.
+ * A transfer which takes all that is left of a buffer moves the buffer,
+ * and the reference with it, to the destination. A shared buffer is
+ * never written to again: an IOBuffer whose current write buffer is
+ * shared writes to a new buffer instead.
+ *
  * @see com.google.opengse.iobuffer.IOBufferInputStream
  * @see com.google.opengse.iobuffer.IOBufferOutputStream
  * @see com.google.opengse.iobuffer.IOBufferReader
@@ -125,6 +144,11 @@ public class IOBuffer {
   private ByteBuffer underflow_buf_ = null;
   private CharBuffer underflow_char_buf_ = null;
   private int min_reader_size_ = 0;
+  private BufferPool pool_ = null;
+  // the pooled buffers (and views of them) held by this IOBuffer, created
+  // with the pool or when pooled memory is first shared with an IOBuffer
+  // without one; guarded by bufs_
+  private Map<ByteBuffer, PooledBuffer> pooled_ = null;
 
 
   /**
@@ -133,11 +157,25 @@ public class IOBuffer {
   public IOBuffer() {
   }
 
+  /**
+   * Creates an IOBuffer whose byte buffers come from <code>pool</code>.
+   *
+   * @param pool the pool of direct buffers, or <code>null</code> to
+   *        allocate heap buffers as usual
+   */
+  public IOBuffer(BufferPool pool) {
+    if (pool != null) {
+      this.pool_ = pool;
+      this.pooled_ = new IdentityHashMap<ByteBuffer, PooledBuffer>();
+    }
+  }
+
   /**
    * Copy constructor. The new IOBuffer will share the memory for
    * the byte buffer contents with the source, though their states
-   * (position, limit, etc.) will be independent.
-   * The size limit and consume callback are not copied.
+   * (position, limit, etc.) will be independent. Neither writes to
+   * the memory they share.
+   * The size limit, consume callback and buffer pool are not copied.
    *
    * @param src is the source i/o buffer
    */
@@ -146,17 +184,22 @@ public class IOBuffer {
     synchronized (src.bufs_) {
       for (ByteBuffer byte_buf : src.bufs_) {
         // don't need to synchronize on bufs as this is the constructor
-        this.bufs_.addLast(byte_buf.duplicate());
+        this.bufs_.addLast(adopt(byte_buf.duplicate(),
+                                 src.retainOwner(byte_buf)));
       }
     }
     if (src.read_buf_ != null) {
-      this.read_buf_ = src.read_buf_.duplicate();
+      this.read_buf_ = adopt(src.read_buf_.duplicate(),
+                             src.retainOwner(src.read_buf_));
     }
     if (src.read_char_buf_ != null) {
       this.read_char_buf_ = src.read_char_buf_.duplicate();
     }
     if (src.write_buf_ != null) {
-      this.write_buf_ = src.write_buf_.duplicate();
+      // the source goes on writing to its write buffer, so the copy
+      // gets a read-only view of what has been written so far
+      this.write_buf_ = adopt(src.write_buf_.asReadOnlyBuffer(),
+                              src.retainOwner(src.write_buf_));
     }
     if (src.write_char_buf_ != null) {
       this.write_char_buf_ = src.write_char_buf_.duplicate();
@@ -261,6 +304,7 @@ public class IOBuffer {
     // drop pending write buffer if it is empty and too small
     if (write_buf_ != null && write_buf_.position() == 0
         && write_buf_.capacity() < min_buffer_size_) {
+      release(write_buf_);
       write_buf_ = null;
     }
   }
@@ -362,6 +406,7 @@ public class IOBuffer {
    * Safe for reader and writer.
    */
   public void clear() {
+    releaseAll();
     bufs_.clear();
     read_buf_ = null;
     read_char_buf_ = null;
@@ -436,8 +481,23 @@ public class IOBuffer {
 
     int todo = length;
     while (todo > 0) {
-      todo -= transfer(src.getReadBuffer(), todo);
+      ByteBuffer src_buf = src.getReadBuffer();
+      int count = Math.min(src_buf.remaining(), todo);
+      ByteBuffer dest = src_buf.slice();
+      dest.limit(count);
+      dest.position(count);
+      src_buf.position(src_buf.position() + count);
+      PooledBuffer owner;
+      if (src_buf.hasRemaining()) {
+        // the source still has the rest to read, so the buffer is shared
+        owner = src.retainOwner(src_buf);
+      } else {
+        // all that was left of the buffer: it changes hands
+        owner = src.disownBuffer(src_buf);
+      }
+      appendBuffer(adopt(dest, owner));
       src.releaseReadBuffer();
+      todo -= count;
     }
     return length - todo;
   }
@@ -496,6 +556,8 @@ public class IOBuffer {
 
     // do NOT change the following line to Lists.newLinkedList()
     LinkedList<ByteBuffer> tmp_bufs = new LinkedList<ByteBuffer>();
+    // do NOT change the following line to Lists.newLinkedList()
+    LinkedList<PooledBuffer> tmp_owners = new LinkedList<PooledBuffer>();
 
     // add any current src read buffer to the list
     if (src.read_buf_ != null) {
@@ -503,13 +565,16 @@ public class IOBuffer {
       ByteBuffer sliceOfReadBuffer = src.read_buf_.slice();
       sliceOfReadBuffer.position(sliceOfReadBuffer.limit());
       tmp_bufs.addLast(sliceOfReadBuffer);
+      tmp_owners.addLast(src.retainOwner(src.read_buf_));
     }
     // append all write bufs from source to dest
     synchronized (src.bufs_) {
       for (ByteBuffer writeBuffer : src.bufs_) {
         tmp_bufs.addLast(writeBuffer.duplicate());
+        tmp_owners.addLast(src.retainOwner(writeBuffer));
       }
     }
+    adoptAll(tmp_bufs, tmp_owners);
     synchronized (bufs_) {
       bufs_.addAll(tmp_bufs);
     }
@@ -543,22 +608,34 @@ public class IOBuffer {
       ByteBuffer sliceOfReadBuffer = read_buf_.slice();
       sliceOfReadBuffer.position(sliceOfReadBuffer.limit());
       synchronized (bufs_) {
+        if (pooled_ != null) {
+          // the slice now stands for the pooled read buffer
+          PooledBuffer owner = pooled_.remove(read_buf_);
+          if (owner != null) {
+            pooled_.put(sliceOfReadBuffer, owner);
+          }
+        }
         bufs_.addFirst(sliceOfReadBuffer);
       }
       read_buf_ = null;
     }
     // replace the read buffer
     if (src.read_buf_ != null) {
-      read_buf_ = src.read_buf_.duplicate();
+      read_buf_ = adopt(src.read_buf_.duplicate(),
+                        src.retainOwner(src.read_buf_));
     }
     // prepend all write bufs to a temp list
     // do NOT change the following line to Lists.newLinkedList()
     LinkedList<ByteBuffer> tmp_bufs = new LinkedList<ByteBuffer>();
+    // do NOT change the following line to Lists.newLinkedList()
+    LinkedList<PooledBuffer> tmp_owners = new LinkedList<PooledBuffer>();
     synchronized (src.bufs_) {
       for (ByteBuffer byte_buf : src.bufs_) {
         tmp_bufs.addLast(byte_buf.duplicate());
+        tmp_owners.addLast(src.retainOwner(byte_buf));
       }
     }
+    adoptAll(tmp_bufs, tmp_owners);
     // prepend the temp list to the internal buffer list
     synchronized (bufs_) {
       bufs_.addAll(0, tmp_bufs);
@@ -602,13 +679,11 @@ public class IOBuffer {
         return false;
       }
 
-      byte[] buf = byte_buf.array();
-      int o = byte_buf.arrayOffset();
       int s = byte_buf.position();
       int e = byte_buf.limit();
 
       while (s < e) {
-        byte b = buf[s + o];
+        byte b = byte_buf.get(s);
         s += 1;
         baos.write(b);
 
@@ -647,8 +722,6 @@ public class IOBuffer {
         return nread;
       }
 
-      byte[] buf = byte_buf.array();
-      int o = byte_buf.arrayOffset();
       int s = byte_buf.position();
       int e = byte_buf.limit();
 
@@ -658,7 +731,7 @@ public class IOBuffer {
           return nread;
         }
 
-        byte b = buf[s + o];
+        byte b = byte_buf.get(s);
         inbuf[off++] = b;
         s += 1;
         nread += 1;
@@ -1129,17 +1202,14 @@ public class IOBuffer {
       }
       // append read buffer
       if (read_buf_ != null) {
-        int offset = read_buf_.arrayOffset() + read_buf_.position();
-        int length = read_buf_.limit() - read_buf_.position();
-        result += new String(read_buf_.array(), offset, length, encoding);
+        result += toString(read_buf_, read_buf_.position(), read_buf_.limit(),
+                           encoding);
       }
 
       // append all write buffers
       synchronized (bufs_) {
         for (ByteBuffer byte_buf : bufs_) {
-          int offset = byte_buf.arrayOffset();
-          int length = byte_buf.position();
-          result += new String(byte_buf.array(), offset, length, encoding);
+          result += toString(byte_buf, 0, byte_buf.position(), encoding);
         }
       }
 
@@ -1151,9 +1221,7 @@ public class IOBuffer {
       }
       // append current write buffer
       if (write_buf_ != null) {
-        int offset = write_buf_.arrayOffset();
-        int length = write_buf_.position();
-        result += new String(write_buf_.array(), offset, length, encoding);
+        result += toString(write_buf_, 0, write_buf_.position(), encoding);
       }
     } catch (UnsupportedEncodingException e) {
       return "unable to convert IOBuffer to string: " + e.getMessage();
@@ -1161,6 +1229,25 @@ public class IOBuffer {
     return result;
   }
 
+  /**
+   * Decodes the bytes from <code>start</code> to <code>end</code> of a
+   * heap or direct buffer.
+   */
+  private static String toString(ByteBuffer buf, int start, int end,
+                                 String encoding)
+    throws UnsupportedEncodingException {
+    if (buf.hasArray()) {
+      return new String(buf.array(), buf.arrayOffset() + start, end - start,
+                        encoding);
+    }
+    byte[] bytes = new byte[end - start];
+    ByteBuffer dup = buf.duplicate();
+    dup.limit(end);
+    dup.position(start);
+    dup.get(bytes);
+    return new String(bytes, encoding);
+  }
+
   /**
    * Returns the current write buffer. This buffer is used to store
    * bytes on invocations of the write methods.
@@ -1170,8 +1257,9 @@ public class IOBuffer {
    * @exception IOException
    */
   public ByteBuffer getWriteBuffer() throws IOException {
-    // return the current write buffer
-    if ((write_buf_ != null) && write_buf_.hasRemaining()) {
+    // return the current write buffer, unless its memory is shared
+    if ((write_buf_ != null) && write_buf_.hasRemaining()
+        && !write_buf_.isReadOnly()) {
       return write_buf_;
     } else if (write_buf_ != null) {
       flushWriteBuffer();
@@ -1199,6 +1287,7 @@ public class IOBuffer {
       ensureMinReaderSize();
       return read_buf_;
     } else if (read_buf_ != null) {
+      release(read_buf_);
       read_buf_ = null;
     }
 
@@ -1213,6 +1302,46 @@ public class IOBuffer {
     return read_buf_;
   }
 
+  /**
+   * Fills <code>dsts</code> with views of the buffers that hold the next
+   * bytes to read, in order, starting with the current read buffer.
+   * Nothing is consumed: the views have positions and limits of their
+   * own, and the caller consumes whatever it used of them with
+   * {@link #skipBytes(long)}. This lets the whole buffer be handed to a
+   * {@link java.nio.channels.GatheringByteChannel} at once. Empty
+   * buffers are left out. As with {@link #getReadBuffer()}, only data
+   * which has been flushed is included.
+   * If using separate read/write threads, call by reader.
+   *
+   * @param dsts the array to fill
+   * @return the number of views stored in <code>dsts</code>, zero if
+   *         there is nothing to read
+   */
+  public int getReadBuffers(ByteBuffer[] dsts) {
+    ByteBuffer first = getReadBuffer();
+    if (first == null) {
+      return 0;
+    }
+    int count = 0;
+    if (first.hasRemaining()) {
+      dsts[count++] = first.duplicate();
+    }
+    synchronized (bufs_) {
+      for (ByteBuffer byte_buf : bufs_) {
+        if (count == dsts.length) {
+          break;
+        }
+        // the listed buffers are in write mode
+        if (byte_buf.position() > 0) {
+          ByteBuffer view = byte_buf.duplicate();
+          view.flip();
+          dsts[count++] = view;
+        }
+      }
+    }
+    return count;
+  }
+
   /**
    * Releases the read buffer if it has no data left to read. After
    * the buffer returned from getReadBuffer() has been modified, a
@@ -1222,10 +1351,133 @@ public class IOBuffer {
    */
   public void releaseReadBuffer() {
     if ((read_buf_ != null) && !read_buf_.hasRemaining()) {
+      release(read_buf_);
       read_buf_ = null;
     }
   }
 
+  /**
+   * Releases the write buffer if nothing has been written to it since
+   * it was handed out, so that an IOBuffer which is waiting for data
+   * holds no memory until the data arrives.
+   * If using separate read/write threads, call by writer.
+   */
+  public void releaseWriteBuffer() {
+    if ((write_buf_ != null) && (write_buf_.position() == 0)) {
+      release(write_buf_);
+      write_buf_ = null;
+    }
+  }
+
+  /**
+   * Returns the number of bytes of pooled memory held by this IOBuffer.
+   * Safe for reader and writer.
+   */
+  public int getPooledBytes() {
+    int bytes = 0;
+    synchronized (bufs_) {
+      if (pooled_ == null) {
+        return 0;
+      }
+      for (ByteBuffer byte_buf : pooled_.keySet()) {
+        bytes += byte_buf.capacity();
+      }
+    }
+    return bytes;
+  }
+
+  /**
+   * Returns the pooled buffer behind <code>buf</code>, with an extra
+   * reference which the caller must release, or <code>null</code> if
+   * <code>buf</code> is not one of this IOBuffer's pooled buffers.
+   */
+  private PooledBuffer retainOwner(ByteBuffer buf) {
+    if (buf == null) {
+      return null;
+    }
+    synchronized (bufs_) {
+      PooledBuffer owner = (pooled_ == null) ? null : pooled_.get(buf);
+      return (owner == null) ? null : owner.retain();
+    }
+  }
+
+  /**
+   * Returns the pooled buffer behind <code>buf</code>, with the reference
+   * this IOBuffer held, which now belongs to the caller, or
+   * <code>null</code> if <code>buf</code> is not one of this IOBuffer's
+   * pooled buffers. This IOBuffer must not use <code>buf</code> again.
+   */
+  private PooledBuffer disownBuffer(ByteBuffer buf) {
+    synchronized (bufs_) {
+      return (pooled_ == null) ? null : pooled_.remove(buf);
+    }
+  }
+
+  /**
+   * Takes over <code>view</code>, a view of another IOBuffer's buffer.
+   * If <code>owner</code> is not <code>null</code> the view is of pooled
+   * memory, and <code>owner</code> carries a reference for us, which is
+   * kept until we are done with the view. The view is made read-only,
+   * as the memory may be shared.
+   *
+   * @return the buffer to use in place of <code>view</code>
+   */
+  private ByteBuffer adopt(ByteBuffer view, PooledBuffer owner) {
+    if (owner == null) {
+      return view;
+    }
+    ByteBuffer shared = view.isReadOnly() ? view : view.asReadOnlyBuffer();
+    synchronized (bufs_) {
+      if (pooled_ == null) {
+        pooled_ = new IdentityHashMap<ByteBuffer, PooledBuffer>();
+      }
+      pooled_.put(shared, owner);
+    }
+    return shared;
+  }
+
+  /**
+   * Adopts each (write mode) buffer of <code>views</code> with the
+   * matching owner of <code>owners</code>.
+   */
+  private void adoptAll(LinkedList<ByteBuffer> views,
+                        LinkedList<PooledBuffer> owners) {
+    ListIterator<PooledBuffer> o = owners.listIterator();
+    for (ListIterator<ByteBuffer> v = views.listIterator(); v.hasNext(); ) {
+      v.set(adopt(v.next(), o.next()));
+    }
+  }
+
+  /**
+   * Returns <code>buf</code> to the pool if it is pooled.
+   */
+  private void release(ByteBuffer buf) {
+    synchronized (bufs_) {
+      if (pooled_ == null) {
+        return;
+      }
+      PooledBuffer owner = pooled_.remove(buf);
+      if (owner != null) {
+        owner.release();
+      }
+    }
+  }
+
+  /**
+   * Returns all pooled buffers to the pool.
+   */
+  private void releaseAll() {
+    synchronized (bufs_) {
+      if (pooled_ == null) {
+        return;
+      }
+      for (PooledBuffer owner : pooled_.values()) {
+        owner.release();
+      }
+      pooled_.clear();
+    }
+  }
+
   private void ensureMinReaderSize() {
     if (min_reader_size_ == 0 || read_buf_ == null ||
         read_buf_.capacity() >= min_reader_size_)
@@ -1234,6 +1486,7 @@ public class IOBuffer {
     read_buf_ = ByteBuffer.allocate(min_reader_size_);
     read_buf_.put(oldbuf);
     read_buf_.flip();
+    release(oldbuf);
   }
 
   /**
@@ -1331,6 +1584,11 @@ public class IOBuffer {
       buffer_size_ = size_limit_;
     }
 
+    // stay within the size classes of the pool, if any
+    if (pool_ != null && buffer_size_ + ALLOC_EXTRA > pool_.getMaxSize()) {
+      buffer_size_ = pool_.getMaxSize() - ALLOC_EXTRA;
+    }
+
     if (min_buffer_size_ != 0 && minSize > buffer_size_) {
       buffer_size_ = minSize;
     }
@@ -1339,7 +1597,16 @@ public class IOBuffer {
     // efficiently handle writers that repeatedly write 2^k bytes at a
     // time, flushing in between each write.
 
-    buf = ByteBuffer.allocate(buffer_size_ + ALLOC_EXTRA);
+    PooledBuffer pooled = (pool_ == null) ? null
+        : pool_.acquire(buffer_size_ + ALLOC_EXTRA);
+    if (pooled != null) {
+      buf = pooled.getBuffer();
+      synchronized (bufs_) {
+        pooled_.put(buf, pooled);
+      }
+    } else {
+      buf = ByteBuffer.allocate(buffer_size_ + ALLOC_EXTRA);
+    }
 
     // log and update stat
     if (logger_.isLoggable(Level.FINEST)) {
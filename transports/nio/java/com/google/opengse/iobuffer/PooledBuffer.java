@@ -0,0 +1,96 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.opengse.iobuffer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference counted direct {@link ByteBuffer} from a
+ * {@link BufferPool}. The buffer starts out with a count of one; every
+ * additional owner calls {@link #retain()} and every owner calls
+ * {@link #release()} exactly once when it is done with the buffer. The
+ * memory is reused as soon as the count reaches zero, so no owner may
+ * touch the buffer, or any view of it, after releasing it.
+ */
+public final class PooledBuffer {
+  private final BufferPool pool_;
+  private final ByteBuffer buffer_;
+  private final AtomicInteger refs_ = new AtomicInteger(1);
+  private BufferPool.Tracker tracker_;
+
+  PooledBuffer(BufferPool pool, ByteBuffer buffer) {
+    this.pool_ = pool;
+    this.buffer_ = buffer;
+  }
+
+  void setTracker(BufferPool.Tracker tracker) {
+    this.tracker_ = tracker;
+  }
+
+  BufferPool.Tracker getTracker() {
+    return tracker_;
+  }
+
+  /**
+   * Returns the buffer. It is cleared when it comes out of the pool.
+   */
+  public ByteBuffer getBuffer() {
+    return buffer_;
+  }
+
+  /**
+   * Returns the current reference count.
+   */
+  public int getRefCount() {
+    return refs_.get();
+  }
+
+  /**
+   * Adds an owner.
+   *
+   * @return this buffer
+   * @exception IllegalStateException if the buffer was already released
+   */
+  public PooledBuffer retain() {
+    for (;;) {
+      int refs = refs_.get();
+      if (refs <= 0) {
+        throw new IllegalStateException("buffer already released");
+      }
+      if (refs_.compareAndSet(refs, refs + 1)) {
+        return this;
+      }
+    }
+  }
+
+  /**
+   * Drops an owner, returning the buffer to its pool if it was the last.
+   *
+   * @return <code>true</code> if the buffer went back to the pool
+   * @exception IllegalStateException if the buffer was already released
+   */
+  public boolean release() {
+    int refs = refs_.decrementAndGet();
+    if (refs < 0) {
+      throw new IllegalStateException("buffer already released");
+    }
+    if (refs == 0) {
+      pool_.recycle(this);
+      return true;
+    }
+    return false;
+  }
+}
@@ -0,0 +1,135 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.opengse.core;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for {@link AdmissionControl}.
+ */
+public class AdmissionControlTest extends TestCase {
+  private static final long MS = 1000000L;
+
+  public void testDisabledNeverRefuses() {
+    AdmissionControl admission = new AdmissionControl();
+    admission.setLimits(1, 2);
+    for (int i = 0; i < 10; ++i) {
+      assertTrue(admission.tryAcquire());
+    }
+    assertEquals(10, admission.getInFlight());
+    admission.release(1000 * MS, MS);
+    admission.cancel();
+    assertEquals(8, admission.getInFlight());
+    assertEquals(2, admission.getLimit());
+    assertEquals(0, admission.getRefusedCount());
+  }
+
+  public void testRefusesOverLimit() {
+    AdmissionControl admission = newAdmission(2, 4);
+    for (int i = 0; i < 4; ++i) {
+      assertTrue(admission.tryAcquire());
+    }
+    assertFalse(admission.tryAcquire());
+    assertEquals(4, admission.getAdmittedCount());
+    assertEquals(1, admission.getRefusedCount());
+    admission.cancel();
+    assertTrue(admission.tryAcquire());
+  }
+
+  public void testBacksOffOncePerWait() {
+    AdmissionControl admission = newAdmission(10, 100);
+    acquire(admission, 50);
+    long now = 1000 * MS;
+    admission.release(50 * MS, MS, now);
+    assertEquals(90, admission.getLimit());
+    // admitted alongside the first; the queue has already been answered for
+    admission.release(50 * MS, MS, now + 10 * MS);
+    assertEquals(90, admission.getLimit());
+    admission.release(50 * MS, MS, now + 60 * MS);
+    assertEquals(81, admission.getLimit());
+  }
+
+  public void testNeverBelowMinimum() {
+    AdmissionControl admission = newAdmission(10, 20);
+    acquire(admission, 20);
+    for (int i = 0; i < 20; ++i) {
+      admission.release(50 * MS, MS, i * 100 * MS);
+    }
+    assertEquals(10, admission.getLimit());
+    assertEquals(0, admission.getInFlight());
+  }
+
+  public void testWaitShorterThanServiceTimeIsNotCongestion() {
+    AdmissionControl admission = newAdmission(10, 100);
+    acquire(admission, 2);
+    // slow servlets: a wait shorter than one of them is to be expected
+    admission.release(0, 200 * MS, 0);
+    admission.release(50 * MS, 200 * MS, 1000 * MS);
+    assertEquals(100, admission.getLimit());
+  }
+
+  public void testGrowsWhenBusy() {
+    AdmissionControl admission = newAdmission(10, 100);
+    acquire(admission, 50);
+    admission.release(50 * MS, MS, 0);
+    assertEquals(90, admission.getLimit());
+    // a limit's worth of requests finished with half of it in use adds one
+    for (int i = 0; i < 92; ++i) {
+      admission.tryAcquire();
+      admission.release(0, MS, 0);
+    }
+    assertEquals(91, admission.getLimit());
+    // an idle server doesn't learn anything about its capacity
+    AdmissionControl idle = newAdmission(10, 100);
+    acquire(idle, 50);
+    idle.release(50 * MS, MS, 0);
+    for (int i = 0; i < 49; ++i) {
+      idle.release(0, MS, 0);
+    }
+    for (int i = 0; i < 100; ++i) {
+      idle.tryAcquire();
+      idle.release(0, MS, 0);
+    }
+    assertEquals(90, idle.getLimit());
+  }
+
+  public void testInvalidLimits() {
+    AdmissionControl admission = new AdmissionControl();
+    try {
+      admission.setLimits(0, 10);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      admission.setLimits(10, 9);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  private static AdmissionControl newAdmission(int min, int max) {
+    AdmissionControl admission = new AdmissionControl();
+    admission.setEnabled(true);
+    admission.setLimits(min, max);
+    admission.setTargetWait(10);
+    return admission;
+  }
+
+  private static void acquire(AdmissionControl admission, int count) {
+    for (int i = 0; i < count; ++i) {
+      assertTrue(admission.tryAcquire());
+    }
+  }
+}
@@ -0,0 +1,196 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.opengse.core;
+
+import com.google.opengse.iobuffer.BufferPool;
+import com.google.opengse.iobuffer.IOBuffer;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Unit test for {@link ContentEncoder}.
+ */
+public class ContentEncoderTest extends TestCase {
+
+  private ResponseCompression compression;
+
+  @Override
+  protected void setUp() {
+    compression = new ResponseCompression();
+  }
+
+  private static byte[] body(int length) {
+    byte[] data = new byte[length];
+    Random random = new Random(length);
+    for (int i = 0; i < length; ++i) {
+      // compressible but not trivially so
+      data[i] = (byte) ('a' + random.nextInt(8));
+    }
+    return data;
+  }
+
+  private static byte[] drain(IOBuffer buf) throws Exception {
+    buf.flush();
+    byte[] data = new byte[buf.availableBytes()];
+    buf.readBytes(data);
+    return data;
+  }
+
+  private static byte[] readFully(InputStream in) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buf = new byte[4096];
+    int n;
+    while ((n = in.read(buf)) > 0) {
+      out.write(buf, 0, n);
+    }
+    return out.toByteArray();
+  }
+
+  private byte[] encode(String coding, IOBuffer src, byte[] data, int chunks)
+      throws Exception {
+    ContentEncoder encoder = new ContentEncoder(compression, coding);
+    IOBuffer dst = new IOBuffer();
+    int chunk = data.length / chunks;
+    for (int i = 0; i < chunks; ++i) {
+      int end = (i == chunks - 1) ? data.length : (i + 1) * chunk;
+      src.writeBytes(data, i * chunk, end - i * chunk);
+      src.flush();
+      encoder.encode(src, dst, i == chunks - 1);
+      assertTrue(src.isEmpty());
+    }
+    assertTrue(encoder.isFinished());
+    assertEquals(data.length, encoder.getBytesIn());
+    assertEquals(dst.totalBytes(), encoder.getBytesOut());
+    return drain(dst);
+  }
+
+  public void testGzip() throws Exception {
+    byte[] data = body(100000);
+    byte[] encoded = encode("gzip", new IOBuffer(), data, 1);
+    assertTrue(encoded.length < data.length / 2);
+    byte[] decoded = readFully(
+        new GZIPInputStream(new ByteArrayInputStream(encoded)));
+    assertTrue(Arrays.equals(data, decoded));
+  }
+
+  public void testDeflate() throws Exception {
+    byte[] data = body(30000);
+    byte[] encoded = encode("deflate", new IOBuffer(), data, 1);
+    byte[] decoded = readFully(
+        new InflaterInputStream(new ByteArrayInputStream(encoded)));
+    assertTrue(Arrays.equals(data, decoded));
+  }
+
+  public void testChunksAreFlushedAsTheyGo() throws Exception {
+    byte[] data = body(50000);
+    ContentEncoder encoder = new ContentEncoder(compression, "gzip");
+    IOBuffer src = new IOBuffer();
+    IOBuffer dst = new IOBuffer();
+    src.writeBytes(data, 0, 1000);
+    src.flush();
+    encoder.encode(src, dst, false);
+    // everything so far can be decoded without the end of the stream
+    GZIPInputStream in = new GZIPInputStream(
+        new ByteArrayInputStream(drain(dst)));
+    byte[] start = new byte[1000];
+    int n = 0;
+    while (n < start.length) {
+      n += in.read(start, n, start.length - n);
+    }
+    for (int i = 0; i < start.length; ++i) {
+      assertEquals(data[i], start[i]);
+    }
+    encoder.release();
+  }
+
+  public void testMultipleChunksFromPooledBuffers() throws Exception {
+    byte[] data = body(200000);
+    IOBuffer src = new IOBuffer(new BufferPool(1024, 16 * 1024, 0, 64 * 1024));
+    byte[] encoded = encode("gzip", src, data, 7);
+    byte[] decoded = readFully(
+        new GZIPInputStream(new ByteArrayInputStream(encoded)));
+    assertTrue(Arrays.equals(data, decoded));
+  }
+
+  public void testDeflaterGoesBackToThePool() throws Exception {
+    encode("gzip", new IOBuffer(), body(5000), 1);
+    encode("gzip", new IOBuffer(), body(5000), 2);
+    DeflaterPool pool = compression.getDeflaterPool();
+    assertEquals(1, pool.getCreated());
+    assertEquals(1, pool.getReused());
+    assertEquals(1, pool.getIdle());
+    assertEquals(2, compression.getCompressedCount());
+    assertEquals(10000, compression.getBytesIn());
+  }
+
+  public void testReleaseAbandonsTheBody() throws Exception {
+    ContentEncoder encoder = new ContentEncoder(compression, "gzip");
+    IOBuffer src = new IOBuffer();
+    IOBuffer dst = new IOBuffer();
+    src.writeBytes(body(1000));
+    src.flush();
+    encoder.encode(src, dst, false);
+    long out = encoder.getBytesOut();
+
+    // torn down halfway through the body
+    encoder.release();
+    DeflaterPool pool = compression.getDeflaterPool();
+    assertEquals(1, pool.getIdle());
+    assertTrue(encoder.isFinished());
+
+    // whatever the servlet still writes is thrown away
+    src.writeBytes(body(1000));
+    src.flush();
+    encoder.encode(src, dst, true);
+    assertTrue(src.isEmpty());
+    assertEquals(out, encoder.getBytesOut());
+    assertEquals(1, pool.getIdle());
+    assertEquals(0, compression.getCompressedCount());
+  }
+
+  public void testReleaseAfterTheBodyIsDone() throws Exception {
+    IOBuffer src = new IOBuffer();
+    src.writeBytes(body(1000));
+    src.flush();
+    ContentEncoder encoder = new ContentEncoder(compression, "deflate");
+    encoder.encode(src, new IOBuffer(), true);
+    encoder.release();
+    assertEquals(1, compression.getDeflaterPool().getIdle());
+    assertEquals(1, compression.getCompressedCount());
+  }
+
+  public void testEmptyBody() throws Exception {
+    byte[] encoded = encode("gzip", new IOBuffer(), new byte[0], 1);
+    assertEquals(0, readFully(
+        new GZIPInputStream(new ByteArrayInputStream(encoded))).length);
+  }
+
+  public void testUnknownCoding() {
+    try {
+      new ContentEncoder(compression, "br");
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+}
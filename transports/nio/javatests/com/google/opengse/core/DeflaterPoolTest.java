@@ -0,0 +1,84 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.opengse.core;
+
+import junit.framework.TestCase;
+
+import java.util.zip.Deflater;
+
+/**
+ * Unit test for {@link DeflaterPool}.
+ */
+public class DeflaterPoolTest extends TestCase {
+
+  public void testReleasedDeflaterIsReusedForTheSameKind() {
+    DeflaterPool pool = new DeflaterPool();
+    DeflaterPool.Entry entry = pool.acquire(6, true);
+    pool.release(entry);
+    assertEquals(1, pool.getIdle());
+    assertSame(entry, pool.acquire(Deflater.DEFAULT_COMPRESSION, true));
+    assertEquals(1, pool.getCreated());
+    assertEquals(1, pool.getReused());
+    assertEquals(0, pool.getIdle());
+  }
+
+  public void testDifferentKindsAreNotMixed() {
+    DeflaterPool pool = new DeflaterPool();
+    DeflaterPool.Entry gzip = pool.acquire(1, true);
+    pool.release(gzip);
+    assertNotSame(gzip, pool.acquire(1, false));
+    assertNotSame(gzip, pool.acquire(9, true));
+    assertEquals(3, pool.getCreated());
+    assertEquals(0, pool.getReused());
+  }
+
+  public void testReleasedDeflaterStartsANewStream() {
+    DeflaterPool pool = new DeflaterPool();
+    DeflaterPool.Entry entry = pool.acquire(6, false);
+    entry.deflater_.setInput(new byte[100]);
+    entry.deflater_.finish();
+    while (!entry.deflater_.finished()) {
+      entry.deflater_.deflate(entry.out_);
+    }
+    pool.release(entry);
+    entry = pool.acquire(6, false);
+    assertFalse(entry.deflater_.finished());
+    assertEquals(0, entry.deflater_.getBytesRead());
+  }
+
+  public void testDeflatersOverMaxIdleAreEnded() {
+    DeflaterPool pool = new DeflaterPool(1);
+    DeflaterPool.Entry first = pool.acquire(6, true);
+    DeflaterPool.Entry second = pool.acquire(6, true);
+    pool.release(first);
+    pool.release(second);
+    assertEquals(1, pool.getIdle());
+    try {
+      second.deflater_.setInput(new byte[1]);
+      second.deflater_.deflate(second.out_);
+      fail("expected an ended deflater");
+    } catch (NullPointerException expected) {
+    }
+  }
+
+  public void testBadLevel() {
+    try {
+      new DeflaterPool().acquire(10, true);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+}
@@ -0,0 +1,125 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.opengse.core;
+
+import com.google.opengse.util.DispatchQueue;
+import com.google.opengse.util.DispatchQueueImpl;
+import com.google.opengse.util.WorkStealingDispatchQueue;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares the {@link DispatchQueue} implementations on the hand-off from
+ * the select loop to a worker: several producer threads queue short
+ * runnables, each of which records how long it waited for a worker. Each
+ * producer keeps at most <code>window</code> runnables in flight, like a
+ * select loop with that many requests outstanding, so the latency is the
+ * hand-off itself rather than the time spent behind a backlog. Reports
+ * throughput and the mean and 99th percentile hand-off latency.
+ *
+ * <p>Run with
+ * <code>java com.google.opengse.core.DispatchQueueBenchmark [runnables]
+ * [producers] [window] [workers...]</code>.
+ */
+public final class DispatchQueueBenchmark {
+
+  private DispatchQueueBenchmark() { /* Launcher class: do not instantiate. */ }
+
+  public static void main(String[] args) throws Exception {
+    int runnables = (args.length > 0) ? Integer.parseInt(args[0]) : 500000;
+    int producers = (args.length > 1) ? Integer.parseInt(args[1]) : 4;
+    int window = (args.length > 2) ? Integer.parseInt(args[2]) : 16;
+    int[] workers = { 64, 128 };
+    if (args.length > 3) {
+      workers = new int[args.length - 3];
+      for (int i = 3; i < args.length; ++i) {
+        workers[i - 3] = Integer.parseInt(args[i]);
+      }
+    }
+
+    // Run each one twice so the second figures are from a warm JIT.
+    for (int round = 0; round < 2; ++round) {
+      for (int n : workers) {
+        run("DispatchQueueImpl", new DispatchQueueImpl(n), n, runnables,
+            producers, window);
+        run("DispatchQueueImpl2", new DispatchQueueImpl2(n), n, runnables,
+            producers, window);
+        run("WorkStealingDispatchQueue", new WorkStealingDispatchQueue(n), n,
+            runnables, producers, window);
+      }
+    }
+    System.exit(0);
+  }
+
+  /**
+   * Has <code>producers</code> threads queue <code>runnables</code>
+   * runnables in total on <code>queue</code>, each with no more than
+   * <code>window</code> in flight, then prints the figures and shuts the
+   * queue down.
+   */
+  private static void run(String name, final DispatchQueue queue, int workers,
+      int runnables, int producers, final int window)
+      throws InterruptedException {
+    final long[] latencies = new long[runnables];
+    final AtomicInteger slot = new AtomicInteger();
+    final CountDownLatch done = new CountDownLatch(runnables);
+    final int perProducer = runnables / producers;
+
+    long start = System.nanoTime();
+    Thread[] threads = new Thread[producers];
+    for (int p = 0; p < producers; ++p) {
+      final int count = (p == producers - 1)
+          ? runnables - perProducer * (producers - 1) : perProducer;
+      threads[p] = new Thread() {
+        @Override
+        public void run() {
+          final Semaphore inFlight = new Semaphore(window);
+          for (int i = 0; i < count; ++i) {
+            inFlight.acquireUninterruptibly();
+            final long queued = System.nanoTime();
+            queue.addRunnable(new Runnable() {
+              public void run() {
+                latencies[slot.getAndIncrement()] = System.nanoTime() - queued;
+                inFlight.release();
+                done.countDown();
+              }
+            });
+          }
+        }
+      };
+      threads[p].start();
+    }
+    done.await();
+    long elapsed = System.nanoTime() - start;
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    queue.quit(10000);
+
+    Arrays.sort(latencies);
+    long total = 0;
+    for (long latency : latencies) {
+      total += latency;
+    }
+    System.out.println(name + " (" + workers + " workers): "
+        + (runnables * 1000000000L / elapsed) + " runnables/sec, mean "
+        + (total / runnables / 1000) + "us, p99 "
+        + (latencies[(int) (runnables * 0.99)] / 1000) + "us");
+  }
+}
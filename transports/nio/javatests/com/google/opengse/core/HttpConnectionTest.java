@@ -14,10 +14,210 @@
 
 package com.google.opengse.core;
 
-import com.google.opengse.UnwrittenTestCase;
+import com.google.opengse.DispatchView;
+import com.google.opengse.HttpRequestHandlerAdapter;
+import com.google.opengse.HttpServletRequestAdapter;
+import com.google.opengse.ServletEngineConfigurationImpl;
+import com.google.opengse.util.WorkStealingDispatchQueue;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
 
 /**
  * Unit test for {@link HttpConnection}.
  */
-public class HttpConnectionTest extends UnwrittenTestCase {
+public class HttpConnectionTest extends TestCase {
+  private static final byte[] BODY = { 'h', 'e', 'l', 'l', 'o' };
+  private static final long WAIT_MILLIS = 5000;
+  // fewer than the connections a server allows by default
+  private static final int CONNECTIONS = 200;
+
+  private NetSelector selector_;
+  private HttpServer server_;
+  private Thread thread_;
+  private int port_;
+  private final List<Socket> clients_ = new ArrayList<Socket>();
+  // the view each request was dispatched with
+  private final List<DispatchView> views_ =
+      Collections.synchronizedList(new ArrayList<DispatchView>());
+
+  /**
+   * Answers every request with BODY.
+   */
+  private class Chain implements FilterChain {
+    public void doFilter(ServletRequest request, ServletResponse response)
+        throws IOException {
+      views_.add(((HttpServletRequestAdapter) request).getDispatchView());
+      response.setContentLength(BODY.length);
+      response.getOutputStream().write(BODY);
+    }
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    selector_ = new NetSelector();
+    server_ = new HttpServer(selector_, new WorkStealingDispatchQueue(2),
+        new HttpRequestHandlerAdapter(new Chain()),
+        ServletEngineConfigurationImpl.create(-1, 2));
+    port_ = selector_.listen(-1, new AcceptServer(server_), false, false);
+    thread_ = new Thread("HttpConnectionTest selector") {
+      @Override
+      public void run() {
+        selector_.runForever();
+      }
+    };
+    thread_.start();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    for (Socket client : clients_) {
+      client.close();
+    }
+    server_.quit(WAIT_MILLIS);
+    thread_.join(WAIT_MILLIS);
+  }
+
+  private Socket connect() throws IOException {
+    Socket client = new Socket("localhost", port_);
+    client.setSoTimeout((int) WAIT_MILLIS);
+    clients_.add(client);
+    return client;
+  }
+
+  /**
+   * Sends a request on a keep-alive connection and reads the response.
+   */
+  private static void get(Socket client) throws IOException {
+    client.getOutputStream().write(
+        "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes("ISO-8859-1"));
+    InputStream in = client.getInputStream();
+    ByteArrayOutputStream head = new ByteArrayOutputStream();
+    while (!head.toString("ISO-8859-1").endsWith("\r\n\r\n")) {
+      int b = in.read();
+      assertTrue("connection closed", b >= 0);
+      head.write(b);
+    }
+    assertTrue(head.toString("ISO-8859-1"),
+        head.toString("ISO-8859-1").startsWith("HTTP/1.1 200"));
+    byte[] body = new byte[BODY.length];
+    for (int n = 0; n < body.length; ) {
+      int count = in.read(body, n, body.length - n);
+      assertTrue("connection closed", count >= 0);
+      n += count;
+    }
+    assertTrue(Arrays.equals(BODY, body));
+  }
+
+  /**
+   * Returns the pooled bytes held by the server's connections, once it
+   * has dropped to zero or the wait is over.
+   */
+  private int waitForPooledBytes() throws InterruptedException {
+    long end = System.currentTimeMillis() + WAIT_MILLIS;
+    while (true) {
+      int bytes = 0;
+      for (NetConnection conn : selector_.getConnections().toArray(
+          new NetConnection[0])) {
+        bytes += conn.getPooledBytes();
+      }
+      if (bytes == 0 || System.currentTimeMillis() > end) {
+        return bytes;
+      }
+      Thread.sleep(10);
+    }
+  }
+
+  private void waitForIdleAttachments(int count) throws InterruptedException {
+    long end = System.currentTimeMillis() + WAIT_MILLIS;
+    while (server_.getIdleAttachments() != count
+        && System.currentTimeMillis() < end) {
+      Thread.sleep(10);
+    }
+    assertEquals(count, server_.getIdleAttachments());
+  }
+
+  private void waitForConnections(int count) throws InterruptedException {
+    long end = System.currentTimeMillis() + WAIT_MILLIS;
+    while (selector_.getNumConns() != count
+        && System.currentTimeMillis() < end) {
+      Thread.sleep(10);
+    }
+    assertEquals(count, selector_.getNumConns());
+  }
+
+  /**
+   * Returns the number of the server's connections which are not idle,
+   * once it has dropped to zero or the wait is over.
+   */
+  private int waitForBusyConnections() throws InterruptedException {
+    long end = System.currentTimeMillis() + WAIT_MILLIS;
+    while (true) {
+      int busy = 0;
+      for (NetConnection conn : selector_.getConnections().toArray(
+          new NetConnection[0])) {
+        if (!((HttpConnection) conn.getCallback()).isIdle()) {
+          ++busy;
+        }
+      }
+      if (busy == 0 || System.currentTimeMillis() > end) {
+        return busy;
+      }
+      Thread.sleep(10);
+    }
+  }
+
+  public void testIdleConnectionsHoldNoBuffers() throws Exception {
+    for (int i = 0; i < 10; ++i) {
+      get(connect());
+    }
+    assertEquals(0, waitForPooledBytes());
+    assertEquals(10, selector_.getNumConns());
+  }
+
+  public void testIdleConnectionsKeepNoRequestState() throws Exception {
+    for (int i = 0; i < CONNECTIONS; ++i) {
+      connect();
+    }
+    waitForConnections(CONNECTIONS);
+    for (Socket client : clients_) {
+      get(client);
+    }
+    // no request, response, line buffer or attachment per connection;
+    // the one attachment that was needed is kept by the server
+    assertEquals(0, waitForBusyConnections());
+    assertEquals(0, waitForPooledBytes());
+    waitForIdleAttachments(1);
+  }
+
+  public void testIdleConnectionServesNextRequest() throws Exception {
+    Socket client = connect();
+    get(client);
+    assertEquals(0, waitForPooledBytes());
+    get(client);
+    get(client);
+    assertEquals(0, waitForPooledBytes());
+    assertEquals(1, selector_.getNumConns());
+  }
+
+  public void testIdleConnectionGivesUpItsView() throws Exception {
+    get(connect());
+    waitForIdleAttachments(1);
+    get(connect());
+    waitForIdleAttachments(1);
+    assertEquals(2, views_.size());
+    assertSame(views_.get(0), views_.get(1));
+  }
 }
@@ -14,11 +14,18 @@
 
 package com.google.opengse.core;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
 
+import com.google.opengse.ServletEngineConfigurationImpl;
+import com.google.opengse.httputil.HeaderBlock;
+import com.google.opengse.iobuffer.IOBuffer;
+
 import org.junit.Ignore;
 import org.junit.Test;
 
+import java.util.Properties;
+
 /**
  * Unit test for {@link HttpResponseImpl}.
  *
@@ -36,9 +43,25 @@ public class HttpResponseImplTest {
     fail("Not yet implemented");
   }
 
-  @Ignore @Test
-  public void testWriteIOBuffer() {
-    fail("Not yet implemented");
+  @Test
+  public void testWriteIOBuffer() throws Exception {
+    Properties props = new Properties();
+    props.setProperty(ServletEngineConfigurationImpl.KEY_PORT, "-1");
+    HttpResponseImpl response = new HttpResponseImpl(
+        new ServletEngineConfigurationImpl(props));
+    response.setVersion(1, 1);
+    response.setStatus(404);
+    response.setContentType("text/plain");
+    response.setContentLength(5);
+    response.setStaticHeaders(new HeaderBlock("X-Powered-By", "opengse"));
+    IOBuffer buf = new IOBuffer();
+    response.writeIOBuffer(buf);
+    buf.flush();
+    assertEquals("HTTP/1.1 404 Not Found\r\n"
+        + "Content-Type: text/plain\r\n"
+        + "Content-Length: 5\r\n"
+        + "X-Powered-By: opengse\r\n"
+        + "\r\n", buf.toString());
   }
 
   @Ignore @Test
@@ -151,9 +174,23 @@ public class HttpResponseImplTest {
     fail("Not yet implemented");
   }
 
-  @Ignore @Test
-  public void testGetContentLength() {
-    fail("Not yet implemented");
+  @Test
+  public void testGetContentLength() throws Exception {
+    Properties props = new Properties();
+    props.setProperty(ServletEngineConfigurationImpl.KEY_PORT, "-1");
+    HttpResponseImpl response = new HttpResponseImpl(
+        new ServletEngineConfigurationImpl(props));
+    assertEquals(-1, response.getContentLength());
+    assertEquals(-1, response.getContentLengthLong());
+    response.setContentLength(5);
+    assertEquals(5, response.getContentLength());
+    assertEquals(5, response.getContentLengthLong());
+
+    // a file region of 3GB
+    response.setContentLengthLong(3L << 30);
+    assertEquals(-1, response.getContentLength());
+    assertEquals(3L << 30, response.getContentLengthLong());
+    assertEquals("3221225472", response.getHeader("Content-Length"));
   }
 
   @Ignore @Test
@@ -14,10 +14,178 @@
 
 package com.google.opengse.core;
 
-import com.google.opengse.UnwrittenTestCase;
+import com.google.opengse.httputil.HeaderBlock;
+import com.google.opengse.httputil.HeaderName;
+import com.google.opengse.iobuffer.IOBuffer;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Unit test for {@link MimeHeaders}.
  */
-public class MimeHeadersTest extends UnwrittenTestCase {
+public class MimeHeadersTest extends TestCase {
+
+  private static String write(MimeHeaders headers) throws IOException {
+    IOBuffer buf = new IOBuffer();
+    headers.writeIOBuffer(buf);
+    buf.flush();
+    byte[] bytes = new byte[buf.availableBytes()];
+    buf.readBytes(bytes);
+    return new String(bytes, "ISO-8859-1");
+  }
+
+  private static List<String> names(MimeHeaders headers) {
+    return Collections.list(headers.getHeaderNames());
+  }
+
+  public void testLookupIgnoresCase() {
+    MimeHeaders headers = new MimeHeaders();
+    headers.setHeader("content-type", "text/plain");
+    headers.setHeader("X-Custom", "a");
+    assertEquals("text/plain", headers.getHeader("Content-Type"));
+    assertEquals("text/plain", headers.getHeader(HeaderName.CONTENT_TYPE));
+    assertEquals("a", headers.getHeader("x-custom"));
+    assertTrue(headers.containsHeader("CONTENT-TYPE"));
+    assertFalse(headers.containsHeader("Content-Length"));
+    assertFalse(headers.containsHeader("X-Other"));
+  }
+
+  public void testOrderIsKept() {
+    MimeHeaders headers = new MimeHeaders();
+    headers.addHeader("X-B", "1");
+    headers.addHeader("Content-Type", "text/html");
+    headers.addHeader("X-A", "2");
+    headers.addHeader("X-B", "3");
+    headers.setHeader("Content-Type", "text/plain");
+    List<String> expected = new ArrayList<String>();
+    Collections.addAll(expected, "X-B", "Content-Type", "X-A");
+    assertEquals(expected, names(headers));
+  }
+
+  public void testSetAddAndRemove() {
+    MimeHeaders headers = new MimeHeaders();
+    headers.addHeader("Vary", "Accept");
+    headers.addHeader("vary", "Cookie");
+    assertEquals(Collections.list(headers.getHeaders("VARY")),
+        Arrays.asList("Accept", "Cookie"));
+    assertTrue(headers.headerHasValue("Vary", "cookie"));
+    headers.setHeader("Vary", "Host");
+    assertEquals(Collections.list(headers.getHeaders("Vary")),
+        Collections.singletonList("Host"));
+    assertFalse(headers.headerHasValue("Vary", "cookie"));
+    headers.removeHeader("VARY");
+    assertNull(headers.getHeader("Vary"));
+    assertFalse(headers.getHeaders("Vary").hasMoreElements());
+    headers.addHeader("Vary", "Accept");
+    headers.clearHeaders();
+    assertNull(headers.getHeader("Vary"));
+    assertTrue(names(headers).isEmpty());
+  }
+
+  public void testLineBreaksAreRemoved() {
+    MimeHeaders headers = new MimeHeaders();
+    headers.setHeader("Location", "/a\r\nSet-Cookie: x=y");
+    assertEquals("/aSet-Cookie: x=y", headers.getHeader("Location"));
+  }
+
+  public void testParsedHeaders() throws IOException {
+    MimeHeaders headers = new MimeHeaders();
+    headers.addParsedHeader(HeaderName.ACCEPT, "Accept", "text/html, */*");
+    headers.addParsedHeader(HeaderName.HOST, "host", "example.com");
+    headers.addParsedHeader(null, "X-Custom", "a, b");
+    headers.addParsedHeader(null, "x-custom", "c");
+    assertEquals(Collections.list(headers.getHeaders("accept")),
+        Arrays.asList("text/html", "*/*"));
+    assertEquals("example.com", headers.getHeader("Host"));
+    assertEquals(Collections.list(headers.getHeaders("X-Custom")),
+        Arrays.asList("a, b", "c"));
+    List<String> expected = new ArrayList<String>();
+    Collections.addAll(expected, "Accept", "host", "X-Custom");
+    assertEquals(expected, names(headers));
+  }
+
+  public void testParsedHeaderLimit() throws IOException {
+    MimeHeaders headers = new MimeHeaders();
+    for (int i = 0; i < MimeHeaders.HEADER_LIMIT; ++i) {
+      headers.addParsedHeader(null, "X-Header-" + i, "v");
+    }
+    // another value of a header already there is allowed
+    headers.addParsedHeader(null, "X-Header-0", "w");
+    try {
+      headers.addParsedHeader(HeaderName.HOST, "Host", "example.com");
+      fail("too many headers");
+    } catch (IOException expected) {
+    }
+  }
+
+  public void testWrite() throws IOException {
+    MimeHeaders headers = new MimeHeaders();
+    headers.setHeader("Content-Type", "text/html");
+    headers.setHeader("content-length", "42");
+    headers.addHeader("Set-Cookie", "a=1");
+    headers.addHeader("Set-Cookie", "b=2");
+    headers.setHeader("X-Custom", "caf\u00e9");
+    headers.setHeader("X-Null", null);
+    assertEquals("Content-Type: text/html\r\n"
+        + "content-length: 42\r\n"
+        + "Set-Cookie: a=1\r\n"
+        + "Set-Cookie: b=2\r\n"
+        + "X-Custom: caf\u00e9\r\n"
+        + "\r\n", write(headers));
+  }
+
+  public void testWriteEncodedLine() throws IOException {
+    MimeHeaders headers = new MimeHeaders();
+    headers.setHeader(HeaderName.DATE, "now",
+        "Date: now\r\n".getBytes("ISO-8859-1"));
+    assertEquals("Date: now\r\n\r\n", write(headers));
+    headers.setHeader("Date", "later");
+    assertEquals("Date: later\r\n\r\n", write(headers));
+  }
+
+  public void testBlockIsWrittenWhole() throws IOException {
+    MimeHeaders headers = new MimeHeaders();
+    headers.setHeader("X-Powered-By", "old");
+    headers.setHeader("Content-Type", "text/html");
+    headers.setHeaders(new HeaderBlock("X-Powered-By", "new", "X-A", "1"));
+    assertEquals("Content-Type: text/html\r\n"
+        + "X-Powered-By: new\r\nX-A: 1\r\n\r\n", write(headers));
+    // headers the block doesn't have leave it alone
+    assertNull(headers.getHeader("X-B"));
+    assertEquals("Content-Type: text/html\r\n"
+        + "X-Powered-By: new\r\nX-A: 1\r\n\r\n", write(headers));
+  }
+
+  public void testBlockIsExplodedWhenTouched() throws IOException {
+    MimeHeaders headers = new MimeHeaders();
+    headers.setHeaders(new HeaderBlock("X-Powered-By", "new", "X-A", "1"));
+    assertEquals("new", headers.getHeader("x-powered-by"));
+    headers.addHeader("X-A", "2");
+    assertEquals(Collections.list(headers.getHeaders("X-A")),
+        Arrays.asList("1", "2"));
+    assertEquals("X-Powered-By: new\r\nX-A: 1\r\nX-A: 2\r\n\r\n",
+        write(headers));
+    headers.setHeaders(new HeaderBlock("X-A", "3"));
+    headers.removeHeader("X-A");
+    assertEquals("X-Powered-By: new\r\n\r\n", write(headers));
+    headers.setHeaders(new HeaderBlock("X-A", "3"));
+    List<String> expected = new ArrayList<String>();
+    Collections.addAll(expected, "X-Powered-By", "X-A");
+    assertEquals(expected, names(headers));
+  }
+
+  public void testOtherCharset() throws IOException {
+    MimeHeaders headers = new MimeHeaders("UTF-8");
+    headers.setHeader("X-Custom", "caf\u00e9");
+    headers.setHeaders(new HeaderBlock("X-A", "1"));
+    assertEquals(-1, headers.encodedLength());
+    assertEquals("X-Custom: caf\u00c3\u00a9\r\nX-A: 1\r\n\r\n",
+        write(headers));
+  }
 }
@@ -14,10 +14,306 @@
 
 package com.google.opengse.core;
 
-import com.google.opengse.UnwrittenTestCase;
+import com.google.opengse.iobuffer.IOBuffer;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Unit test for {@link NetConnection}.
  */
-public class NetConnectionTest extends UnwrittenTestCase {
+public class NetConnectionTest extends TestCase {
+
+  private SocketChannel client_;
+  private SocketChannel server_;
+  private NetConnection conn_;
+
+  @Override
+  protected void setUp() throws Exception {
+    ServerSocketChannel listener = ServerSocketChannel.open();
+    listener.socket().bind(
+        new InetSocketAddress(InetAddress.getByName("localhost"), 0));
+    client_ = SocketChannel.open(listener.socket().getLocalSocketAddress());
+    server_ = listener.accept();
+    listener.close();
+    server_.configureBlocking(false);
+    conn_ = new NetConnection(null, new NetSelector(), server_);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    conn_.close();
+    client_.close();
+  }
+
+  /**
+   * Records everything passed to it.
+   */
+  private static class RecordingListener implements NetConnection.Listener {
+    final ByteArrayOutputStream read_ = new ByteArrayOutputStream();
+    final ByteArrayOutputStream written_ = new ByteArrayOutputStream();
+
+    public void readData(ByteBuffer data) {
+      copy(data, read_);
+    }
+
+    public void writeData(ByteBuffer data) {
+      copy(data, written_);
+    }
+
+    public void close() {
+    }
+
+    private static void copy(ByteBuffer data, ByteArrayOutputStream out) {
+      byte[] bytes = new byte[data.remaining()];
+      data.get(bytes);
+      out.write(bytes, 0, bytes.length);
+    }
+  }
+
+  private static byte[] bytes(int length, int seed) {
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; ++i) {
+      bytes[i] = (byte) (i * 31 + seed);
+    }
+    return bytes;
+  }
+
+  private byte[] readFromClient(int length) throws Exception {
+    ByteBuffer in = ByteBuffer.allocate(length);
+    while (in.hasRemaining()) {
+      if (client_.read(in) < 0) {
+        break;
+      }
+    }
+    return in.array();
+  }
+
+  public void testWritesHeadersAndBodyTogether() throws Exception {
+    RecordingListener listener = new RecordingListener();
+    conn_.setListener(listener);
+
+    // pooled body buffers with heap headers in front, as
+    // HttpResponseImpl does it
+    IOBuffer out = conn_.getOutputBuffer();
+    byte[] body = bytes(20000, 1);
+    out.writeBytes(body);
+    IOBuffer headers = new IOBuffer();
+    byte[] head = "HTTP/1.1 200 OK\r\n\r\n".getBytes("US-ASCII");
+    headers.writeBytes(head);
+    out.prepend(headers);
+    out.flush();
+
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    expected.write(head);
+    expected.write(body);
+
+    assertEquals(expected.size(), conn_.doWrite());
+    assertEquals(0, out.availableBytes());
+    assertEquals(0, out.getPooledBytes());
+    assertTrue(Arrays.equals(expected.toByteArray(),
+        readFromClient(expected.size())));
+    assertTrue(Arrays.equals(expected.toByteArray(),
+        listener.written_.toByteArray()));
+  }
+
+  public void testPartialWritesAreAccountedFor() throws Exception {
+    RecordingListener listener = new RecordingListener();
+    conn_.setListener(listener);
+    IOBuffer out = conn_.getOutputBuffer();
+    byte[] body = bytes(8 << 20, 7);
+    out.writeBytes(body);
+    out.flush();
+
+    // The client doesn't read, so the socket fills up long before
+    // everything is written.
+    int written = conn_.doWrite();
+    assertTrue(written > 0);
+    assertTrue(written < body.length);
+    assertEquals(body.length - written, out.availableBytes());
+    assertEquals(written, listener.written_.size());
+
+    // Drain the rest while the client reads.
+    ByteBuffer in = ByteBuffer.allocate(body.length);
+    while (in.hasRemaining()) {
+      written += conn_.doWrite();
+      client_.read(in);
+    }
+    assertEquals(body.length, written);
+    assertEquals(0, out.availableBytes());
+    assertTrue(Arrays.equals(body, in.array()));
+    assertTrue(Arrays.equals(body, listener.written_.toByteArray()));
+  }
+
+  private static FileChannel openFile(byte[] contents) throws IOException {
+    File file = File.createTempFile("NetConnectionTest", ".dat");
+    file.deleteOnExit();
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(contents);
+    } finally {
+      out.close();
+    }
+    return new RandomAccessFile(file, "r").getChannel();
+  }
+
+  public void testWritesFileRegionAfterOutputBuffer() throws Exception {
+    RecordingListener listener = new RecordingListener();
+    conn_.setListener(listener);
+    byte[] contents = bytes(4 << 20, 5);
+    FileChannel file = openFile(contents);
+    try {
+      byte[] head = "HTTP/1.1 200 OK\r\n\r\n".getBytes("US-ASCII");
+      IOBuffer out = conn_.getOutputBuffer();
+      out.writeBytes(head);
+      out.flush();
+      int start = 100;
+      int length = contents.length - 200;
+      conn_.setFileRegion(file, start, length);
+      assertTrue(conn_.hasPendingOutput());
+
+      ByteArrayOutputStream expected = new ByteArrayOutputStream();
+      expected.write(head);
+      expected.write(contents, start, length);
+
+      ByteBuffer in = ByteBuffer.allocate(expected.size());
+      long written = 0;
+      while (in.hasRemaining()) {
+        written += conn_.doWrite();
+        client_.read(in);
+      }
+      assertEquals(expected.size(), written);
+      assertFalse(conn_.hasFileRegion());
+      assertFalse(conn_.hasPendingOutput());
+      assertTrue(Arrays.equals(expected.toByteArray(), in.array()));
+      // only the buffered bytes are reported to the listener
+      assertTrue(Arrays.equals(head, listener.written_.toByteArray()));
+    } finally {
+      file.close();
+    }
+  }
+
+  public void testWritesFileRegionLargerThanAnInt() throws Exception {
+    // a sparse file of 3GB, with data only at the start of the region
+    File tmp = File.createTempFile("NetConnectionTest", ".dat");
+    tmp.deleteOnExit();
+    RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+    FileChannel file = raf.getChannel();
+    try {
+      long start = 1L << 30;
+      byte[] contents = bytes(1000, 11);
+      raf.setLength(3L << 30);
+      file.write(ByteBuffer.wrap(contents), start);
+      conn_.setFileRegion(file, start, file.size() - start);
+
+      assertTrue(conn_.doWrite() > 0);
+      assertTrue(conn_.hasFileRegion());
+      assertTrue(Arrays.equals(contents, readFromClient(contents.length)));
+    } finally {
+      file.close();
+      tmp.delete();
+    }
+  }
+
+  public void testTruncatedFileRegionFails() throws Exception {
+    FileChannel file = openFile(bytes(1000, 9));
+    try {
+      conn_.setFileRegion(file, 0, 2000);
+      ByteBuffer in = ByteBuffer.allocate(1000);
+      while (in.hasRemaining()) {
+        conn_.doWrite();
+        client_.read(in);
+      }
+      conn_.doWrite();
+      fail("expected an IOException");
+    } catch (IOException e) {
+      // expected
+    } finally {
+      file.close();
+    }
+  }
+
+  public void testReadsIntoInputBuffer() throws Exception {
+    RecordingListener listener = new RecordingListener();
+    conn_.setListener(listener);
+    byte[] data = bytes(3000, 3);
+    client_.write(ByteBuffer.wrap(data));
+    int total = 0;
+    while (total < data.length) {
+      int count = conn_.doRead();
+      assertTrue(count >= 0);
+      total += count;
+    }
+    IOBuffer in = conn_.getInputBuffer();
+    in.flush();
+    byte[] got = new byte[data.length];
+    assertEquals(data.length, in.readBytes(got));
+    assertTrue(Arrays.equals(data, got));
+    assertTrue(Arrays.equals(data, listener.read_.toByteArray()));
+  }
+
+  public void testCloseReleasesInputOnNetworkThread() throws Exception {
+    final NetSelector selector = new NetSelector();
+    Thread thread = new Thread("NetConnectionTest selector") {
+      @Override
+      public void run() {
+        selector.runForever();
+      }
+    };
+    thread.start();
+    // hold the network thread, as if it were still parsing the input
+    final CountDownLatch held = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    selector.invokeLater(new NetTimerCallback() {
+        public void handleTimerFired() {
+          held.countDown();
+          try {
+            release.await(5, TimeUnit.SECONDS);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      });
+    try {
+      assertTrue(held.await(5, TimeUnit.SECONDS));
+      NetConnection conn = new NetConnection(null, selector, server_);
+      client_.write(ByteBuffer.wrap(bytes(100, 4)));
+      for (int total = 0; total < 100; ) {
+        int count = conn.doRead();
+        assertTrue(count >= 0);
+        total += count;
+      }
+      int pooled = conn.getPooledBytes();
+      assertTrue(pooled > 0);
+
+      // closed by a servlet thread: the input stays put for now
+      conn.close();
+      assertEquals(pooled, conn.getPooledBytes());
+
+      release.countDown();
+      long end = System.currentTimeMillis() + 5000;
+      while (conn.getPooledBytes() > 0 && System.currentTimeMillis() < end) {
+        Thread.sleep(10);
+      }
+      assertEquals(0, conn.getPooledBytes());
+    } finally {
+      release.countDown();
+      selector.quit(false);
+      thread.join(5000);
+    }
+  }
 }
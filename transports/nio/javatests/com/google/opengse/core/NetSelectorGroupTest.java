@@ -0,0 +1,166 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.opengse.core;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit test for {@link NetSelectorGroup}.
+ */
+public class NetSelectorGroupTest extends TestCase {
+
+  public void testNoReactorsMeansAcceptorDoesEverything() throws Exception {
+    NetSelector acceptor = new NetSelector();
+    NetSelectorGroup group = new NetSelectorGroup(acceptor, 1,
+        NetSelectorGroup.Balancing.ROUND_ROBIN);
+    assertEquals(0, group.getReactorCount());
+    assertSame(acceptor, group.next());
+    assertSame(acceptor, group.next());
+    group.quit(false);
+  }
+
+  public void testRoundRobin() throws Exception {
+    NetSelectorGroup group = new NetSelectorGroup(new NetSelector(), 3,
+        NetSelectorGroup.Balancing.ROUND_ROBIN);
+    assertEquals(3, group.getReactorCount());
+    for (int i = 0; i < 7; ++i) {
+      assertSame(group.getReactor(i % 3), group.next());
+    }
+    group.quit(false);
+  }
+
+  public void testLeastConnections() throws Exception {
+    NetSelectorGroup group = new NetSelectorGroup(new NetSelector(), 2,
+        NetSelectorGroup.Balancing.LEAST_CONNECTIONS);
+    NetConnection conn = new NetConnection(
+        null, group.getReactor(0), SocketChannel.open());
+    assertEquals(1, group.getNumConns());
+    assertSame(group.getReactor(1), group.next());
+    conn.close();
+    assertEquals(0, group.getNumConns());
+    assertSame(group.getReactor(0), group.next());
+    group.quit(false);
+  }
+
+  public void testParseBalancing() {
+    assertEquals(NetSelectorGroup.Balancing.ROUND_ROBIN,
+        NetSelectorGroup.Balancing.parse("round-robin"));
+    assertEquals(NetSelectorGroup.Balancing.LEAST_CONNECTIONS,
+        NetSelectorGroup.Balancing.parse("least-connections"));
+  }
+
+  public void testReactorRunsHandedOffWorkAndQuits() throws Exception {
+    NetSelectorGroup group = new NetSelectorGroup(new NetSelector(), 2,
+        NetSelectorGroup.Balancing.ROUND_ROBIN);
+    group.start();
+    final CountDownLatch latch = new CountDownLatch(2);
+    for (int i = 0; i < 2; ++i) {
+      final NetSelector reactor = group.next();
+      reactor.invokeLater(new NetTimerCallback() {
+          public void handleTimerFired() {
+            if (reactor.isNetworkThread()) {
+              latch.countDown();
+            }
+          }
+        });
+    }
+    assertTrue(latch.await(10, TimeUnit.SECONDS));
+    group.quit(true);
+  }
+
+  public void testOneAcceptorWithoutReactors() throws Exception {
+    NetSelectorGroup group = new NetSelectorGroup(new NetSelector());
+    int port = group.listen(-1, new AcceptCounter(null, null), false, 4);
+    assertTrue(port > 0);
+    assertEquals(1, group.getAcceptorCount());
+    group.drain();
+    group.quit(false);
+  }
+
+  public void testReusePortAcceptors() throws Exception {
+    final NetSelectorGroup group = new NetSelectorGroup(new NetSelector(), 3,
+        NetSelectorGroup.Balancing.ROUND_ROBIN);
+    int connections = 40;
+    CountDownLatch latch = new CountDownLatch(connections);
+    Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+    int port = group.listen(-1, new AcceptCounter(latch, threads), false, 3);
+    if (!NetSelector.isReusePortSupported()) {
+      // falls back to the acceptor alone
+      assertEquals(1, group.getAcceptorCount());
+      group.drain();
+      group.quit(false);
+      return;
+    }
+    assertEquals(3, group.getAcceptorCount());
+    group.start();
+    Thread acceptor = new Thread() {
+      @Override
+      public void run() {
+        group.getAcceptor().runForever();
+      }
+    };
+    acceptor.start();
+    for (int i = 0; i < connections; ++i) {
+      SocketChannel.open(new InetSocketAddress("localhost", port)).close();
+    }
+    assertTrue(latch.await(10, TimeUnit.SECONDS));
+    // the kernel picks the socket for each connection; only the listening
+    // selectors may have accepted them
+    assertTrue(threads.size() >= 1 && threads.size() <= 3);
+    assertFalse(threads.contains(Thread.currentThread()));
+    group.drain();
+    group.quit(true);
+    acceptor.join(10000);
+    assertFalse(acceptor.isAlive());
+  }
+
+  /**
+   * Accepts and closes connections, noting the threads that accepted them.
+   */
+  private static class AcceptCounter implements NetSelectionCallback {
+    private final CountDownLatch latch_;
+    private final Set<Thread> threads_;
+
+    AcceptCounter(CountDownLatch latch, Set<Thread> threads) {
+      this.latch_ = latch;
+      this.threads_ = threads;
+    }
+
+    public void handleEvent(SelectionKey key) {
+      try {
+        SocketChannel channel;
+        while ((channel = ((ServerSocketChannel) key.channel()).accept())
+            != null) {
+          channel.close();
+          threads_.add(Thread.currentThread());
+          latch_.countDown();
+        }
+      } catch (IOException e) {
+        fail(e.toString());
+      }
+    }
+  }
+}
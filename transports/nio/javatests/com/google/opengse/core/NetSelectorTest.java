@@ -14,10 +14,162 @@
 
 package com.google.opengse.core;
 
-import com.google.opengse.UnwrittenTestCase;
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Unit test for {@link NetSelector}.
  */
-public class NetSelectorTest extends UnwrittenTestCase {
+public class NetSelectorTest extends TestCase {
+
+  private NetSelector selector_;
+  private Thread thread_;
+  private SocketChannel client_;
+  private SocketChannel server_;
+  private SelectionKey key_;
+
+  @Override
+  protected void setUp() throws Exception {
+    selector_ = new NetSelector();
+    selector_.setExitWhenIdle(false);
+    thread_ = new Thread("NetSelectorTest") {
+      @Override
+      public void run() {
+        selector_.runForever();
+      }
+    };
+    thread_.start();
+    ServerSocketChannel listener = ServerSocketChannel.open();
+    listener.socket().bind(
+        new InetSocketAddress(InetAddress.getByName("localhost"), 0));
+    client_ = SocketChannel.open(listener.socket().getLocalSocketAddress());
+    server_ = listener.accept();
+    listener.close();
+    server_.configureBlocking(false);
+    final BlockingQueue<SelectionKey> keys =
+        new LinkedBlockingQueue<SelectionKey>();
+    onNetworkThread(new NetTimerCallback() {
+      public void handleTimerFired() {
+        try {
+          keys.add(selector_.register(server_, SelectionKey.OP_READ,
+              null));
+        } catch (Exception e) {
+          fail(e.toString());
+        }
+      }
+    });
+    key_ = keys.poll(10, TimeUnit.SECONDS);
+    assertNotNull(key_);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    key_.cancel();
+    server_.close();
+    client_.close();
+    selector_.quit(true);
+    thread_.join(10000);
+  }
+
+  /**
+   * Runs <code>callback</code> on the network thread and waits for it.
+   */
+  private void onNetworkThread(final NetTimerCallback callback)
+      throws InterruptedException {
+    final CountDownLatch done = new CountDownLatch(1);
+    selector_.invokeLater(new NetTimerCallback() {
+      public void handleTimerFired() {
+        callback.handleTimerFired();
+        done.countDown();
+      }
+    });
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+  }
+
+  /**
+   * Returns the key's interest ops as seen from the network thread.
+   */
+  private int interestOpsOnNetworkThread() throws InterruptedException {
+    final int[] ops = new int[1];
+    onNetworkThread(new NetTimerCallback() {
+      public void handleTimerFired() {
+        ops[0] = key_.interestOps();
+      }
+    });
+    return ops[0];
+  }
+
+  public void testChangesFromOtherThreadsAreAppliedInOrder()
+      throws Exception {
+    assertFalse(selector_.isNetworkThread());
+    for (int i = 0; i < 1000; ++i) {
+      selector_.interestOps(key_, 0);
+      selector_.interestOps(key_, SelectionKey.OP_READ);
+    }
+    selector_.interestOps(key_, 0);
+    assertEquals(0, interestOpsOnNetworkThread());
+    selector_.interestOps(key_, SelectionKey.OP_READ);
+    assertEquals(SelectionKey.OP_READ, interestOpsOnNetworkThread());
+  }
+
+  public void testQueuedChangeDoesNotOverrideNetworkThread()
+      throws Exception {
+    final CountDownLatch queued = new CountDownLatch(1);
+    Thread worker = new Thread() {
+      @Override
+      public void run() {
+        try {
+          selector_.interestOps(key_, SelectionKey.OP_READ);
+        } catch (Exception e) {
+          // the test fails below on the interest ops
+        }
+        queued.countDown();
+      }
+    };
+    final boolean[] ok = new boolean[1];
+    final Thread[] workers = { worker };
+    onNetworkThread(new NetTimerCallback() {
+      public void handleTimerFired() {
+        try {
+          // the worker's change is queued but not yet drained when the
+          // network thread makes its own, newer, change
+          workers[0].start();
+          ok[0] = queued.await(10, TimeUnit.SECONDS);
+          selector_.interestOps(key_, 0);
+        } catch (Exception e) {
+          fail(e.toString());
+        }
+      }
+    });
+    assertTrue(ok[0]);
+    assertEquals(0, interestOpsOnNetworkThread());
+  }
+
+  public void testWakesUpForChangeMadeWhileSelecting() throws Exception {
+    // Nothing but the change itself can wake the selector up here, and
+    // the socket only becomes readable after the change is applied.
+    selector_.interestOps(key_, 0);
+    assertEquals(0, interestOpsOnNetworkThread());
+    Thread.sleep(50);
+    final CountDownLatch readable = new CountDownLatch(1);
+    key_.attach(new NetSelectionCallback() {
+      public void handleEvent(SelectionKey key) {
+        readable.countDown();
+        key.interestOps(0);
+      }
+    });
+    client_.write(ByteBuffer.wrap(new byte[] { 1 }));
+    selector_.interestOps(key_, SelectionKey.OP_READ);
+    assertTrue(readable.await(10, TimeUnit.SECONDS));
+  }
 }
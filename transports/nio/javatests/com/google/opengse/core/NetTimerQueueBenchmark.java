@@ -0,0 +1,114 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.opengse.core;
+
+/**
+ * Compares the {@link NetTimerQueue} implementations under the pattern
+ * that <code>NetConnection</code> produces: many long-lived keep-alive
+ * timers, each of which is cancelled and rescheduled by every read and
+ * write, while the network thread keeps firing whatever has expired.
+ *
+ * <p>Run with
+ * <code>java com.google.opengse.core.NetTimerQueueBenchmark [connections]
+ * [threads] [seconds]</code>.
+ */
+public final class NetTimerQueueBenchmark {
+
+  private NetTimerQueueBenchmark() { /* Launcher class: do not instantiate. */ }
+
+  private static final NetTimerCallback NOOP = new NetTimerCallback() {
+    public void handleTimerFired() {
+    }
+  };
+
+  public static void main(String[] args) throws Exception {
+    int connections = (args.length > 0) ? Integer.parseInt(args[0]) : 50000;
+    int threads = (args.length > 1) ? Integer.parseInt(args[1]) : 4;
+    int seconds = (args.length > 2) ? Integer.parseInt(args[2]) : 5;
+
+    // Run each one twice so the second figures are from a warm JIT.
+    for (int round = 0; round < 2; ++round) {
+      report("NetTimerSet", run(new NetTimerSet(), connections, threads,
+          seconds), seconds);
+      report("NetTimerWheel", run(new NetTimerWheel(), connections, threads,
+          seconds), seconds);
+    }
+  }
+
+  private static void report(String name, long ops, int seconds) {
+    System.out.println(name + ": " + (ops / seconds)
+        + " reschedules/sec");
+  }
+
+  /**
+   * Fills <code>queue</code> with one keep-alive timer per connection,
+   * then has <code>threads</code> workers reschedule random connections
+   * for <code>seconds</code> while this thread plays the select loop.
+   *
+   * @return the total number of reschedules performed
+   */
+  private static long run(final NetTimerQueue queue, int connections,
+      int threads, int seconds) throws InterruptedException {
+    final NetTimer[] timers = new NetTimer[connections];
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < connections; ++i) {
+      timers[i] = queue.schedule(NOOP, now + 15000);
+    }
+
+    final long end = now + seconds * 1000L;
+    final long[] counts = new long[threads];
+    Thread[] workers = new Thread[threads];
+    for (int t = 0; t < threads; ++t) {
+      final int id = t;
+      workers[t] = new Thread() {
+        @Override
+        public void run() {
+          // a cheap xorshift instead of java.util.Random, to keep the
+          // random number generator out of the measurement
+          int x = 0x9E3779B9 * (id + 1);
+          long n = 0;
+          while ((n & 1023) != 0 || System.currentTimeMillis() < end) {
+            x ^= x << 13;
+            x ^= x >>> 17;
+            x ^= x << 5;
+            int i = (x & Integer.MAX_VALUE) % timers.length;
+            // Racy on purpose, like two reads on different connections
+            // that land on the same slot: we only care about queue cost.
+            NetTimer old = timers[i];
+            queue.cancel(old);
+            timers[i] = queue.schedule(NOOP,
+                System.currentTimeMillis() + 10000 + (x & 4095));
+            ++n;
+          }
+          counts[id] = n;
+        }
+      };
+      workers[t].start();
+    }
+
+    while (System.currentTimeMillis() < end) {
+      queue.fireExpired(System.currentTimeMillis());
+      Thread.sleep(Math.max(1,
+          Math.min(queue.getDelay(System.currentTimeMillis()), 10)));
+    }
+
+    long total = 0;
+    for (int t = 0; t < threads; ++t) {
+      workers[t].join();
+      total += counts[t];
+    }
+    return total;
+  }
+}
@@ -0,0 +1,52 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.opengse.core;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Unit test for {@link NetTimerSet}.
+ */
+public class NetTimerSetTest extends TestCase {
+
+  public void testFiresInOrderAndCancels() {
+    final List<String> fired = new ArrayList<String>();
+    NetTimerSet timers = new NetTimerSet();
+    timers.schedule(new NetTimerCallback() {
+        public void handleTimerFired() {
+          fired.add("b");
+        }
+      }, 200);
+    timers.schedule(new NetTimerCallback() {
+        public void handleTimerFired() {
+          fired.add("a");
+        }
+      }, 100);
+    NetTimer c = timers.schedule(new NetTimerCallback() {
+        public void handleTimerFired() {
+          fired.add("c");
+        }
+      }, 150);
+    timers.cancel(c);
+    assertEquals(100, timers.getDelay(0));
+    assertEquals(2, timers.fireExpired(300));
+    assertEquals("[a, b]", fired.toString());
+    assertTrue(timers.isEmpty());
+    assertEquals(0, timers.getDelay(300));
+  }
+}
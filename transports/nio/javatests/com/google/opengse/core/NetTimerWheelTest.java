@@ -0,0 +1,149 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.opengse.core;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Unit test for {@link NetTimerWheel}.
+ */
+public class NetTimerWheelTest extends TestCase {
+
+  private final List<String> fired = new ArrayList<String>();
+
+  private NetTimerCallback record(final String name) {
+    return new NetTimerCallback() {
+      public void handleTimerFired() {
+        fired.add(name);
+      }
+    };
+  }
+
+  public void testFiresOnTimeAndNeverEarly() {
+    NetTimerWheel wheel = new NetTimerWheel(10, 16);
+    wheel.schedule(record("a"), 1005);
+    wheel.schedule(record("b"), 1025);
+    assertEquals(2, wheel.size());
+
+    assertEquals(0, wheel.fireExpired(1000));
+    assertEquals(0, wheel.fireExpired(1004));
+    assertEquals(1, wheel.fireExpired(1005));
+    assertEquals("[a]", fired.toString());
+    assertEquals(0, wheel.fireExpired(1024));
+    assertEquals(1, wheel.fireExpired(1100));
+    assertEquals("[a, b]", fired.toString());
+    assertTrue(wheel.isEmpty());
+  }
+
+  public void testZeroDelayFiresOnNextCall() {
+    NetTimerWheel wheel = new NetTimerWheel(10, 16);
+    wheel.fireExpired(1000);
+    wheel.schedule(record("now"), 1003);
+    assertEquals(1, wheel.fireExpired(1003));
+    assertEquals("[now]", fired.toString());
+  }
+
+  public void testTimerBehindHorizonIsNotLost() {
+    NetTimerWheel wheel = new NetTimerWheel(10, 16);
+    wheel.fireExpired(1000);
+    wheel.fireExpired(1050);
+    // scheduled with a timeout in a tick the wheel has already scanned
+    wheel.schedule(record("late"), 1010);
+    assertEquals(1, wheel.fireExpired(1051));
+    assertEquals("[late]", fired.toString());
+  }
+
+  public void testCancel() {
+    NetTimerWheel wheel = new NetTimerWheel(10, 16);
+    NetTimer a = wheel.schedule(record("a"), 1005);
+    wheel.schedule(record("b"), 1005);
+    wheel.cancel(a);
+    wheel.cancel(a);
+    assertEquals(1, wheel.size());
+    assertEquals(1, wheel.fireExpired(2000));
+    assertEquals("[b]", fired.toString());
+  }
+
+  public void testLaterTurnOfTheWheelWaits() {
+    // 16 buckets of 10ms make a 160ms turn
+    NetTimerWheel wheel = new NetTimerWheel(10, 16);
+    wheel.fireExpired(1000);
+    wheel.schedule(record("soon"), 1005);
+    wheel.schedule(record("next turn"), 1165);
+    assertEquals(1, wheel.fireExpired(1010));
+    assertEquals(0, wheel.fireExpired(1100));
+    assertEquals(0, wheel.fireExpired(1160));
+    assertEquals(1, wheel.fireExpired(1170));
+    assertEquals("[soon, next turn]", fired.toString());
+  }
+
+  public void testCallbackMayScheduleAndCancel() {
+    final NetTimerWheel wheel = new NetTimerWheel(10, 16);
+    final NetTimer victim = wheel.schedule(record("victim"), 1020);
+    wheel.schedule(new NetTimerCallback() {
+        public void handleTimerFired() {
+          wheel.cancel(victim);
+          wheel.schedule(record("child"), 1001);
+        }
+      }, 1000);
+    assertEquals(1, wheel.fireExpired(1000));
+    assertEquals(1, wheel.fireExpired(1001));
+    assertEquals(0, wheel.fireExpired(1100));
+    assertEquals("[child]", fired.toString());
+  }
+
+  public void testGetDelay() {
+    NetTimerWheel wheel = new NetTimerWheel(10, 16);
+    assertEquals(0, wheel.getDelay(1000));
+    wheel.schedule(record("a"), 1042);
+    long delay = wheel.getDelay(1000);
+    // never early, at most one tick late
+    assertTrue("delay " + delay, delay >= 42 && delay <= 52);
+  }
+
+  public void testGetDelayFindsDistantTimers() {
+    NetTimerWheel wheel = new NetTimerWheel(10, 4096);
+    wheel.fireExpired(1000);
+    NetTimer soon = wheel.schedule(record("soon"), 1500);
+    wheel.schedule(record("keep-alive"), 16000);
+    assertEquals(510, wheel.getDelay(1000));
+    wheel.cancel(soon);
+    assertEquals(15010, wheel.getDelay(1000));
+    assertEquals(1, wheel.fireExpired(16000));
+    assertEquals(0, wheel.getDelay(16000));
+  }
+
+  public void testGetDelayWrapsAroundTheWheel() {
+    // 16 buckets of 10ms; tick 110 falls in bucket 14, tick 116 in bucket 4
+    NetTimerWheel wheel = new NetTimerWheel(10, 16);
+    wheel.fireExpired(1100);
+    wheel.schedule(record("a"), 1160);
+    assertEquals(70, wheel.getDelay(1100));
+    wheel.schedule(record("b"), 1145);
+    assertEquals(50, wheel.getDelay(1100));
+  }
+
+  public void testBucketCountIsRoundedUpToAPowerOfTwo() {
+    NetTimerWheel wheel = new NetTimerWheel(10, 10);
+    wheel.fireExpired(0);
+    wheel.schedule(record("a"), 150);
+    // 16 buckets: tick 15 must not collide with tick 5 of this turn
+    assertEquals(0, wheel.fireExpired(50));
+    assertEquals(1, wheel.fireExpired(150));
+  }
+}
@@ -0,0 +1,323 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.opengse.core;
+
+import com.google.opengse.HttpRequestHandlerAdapter;
+import com.google.opengse.ServletEngineConfigurationImpl;
+import com.google.opengse.io.StreamUtils;
+import com.google.opengse.iobuffer.BufferPool;
+import com.google.opengse.iobuffer.IOBuffer;
+import com.google.opengse.util.WorkStealingDispatchQueue;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Unit test for {@link PipelinedRequest}, and the way
+ * {@link HttpConnection} reads ahead, runs and promotes pipelined
+ * requests.
+ */
+public class PipelinedRequestTest extends TestCase {
+  private static final long WAIT_MILLIS = 5000;
+  // more than any test sends at once, so that none waits for a worker
+  private static final int WORKERS = 8;
+
+  private NetSelector selector_;
+  private BufferPool pool_;
+  private HttpServer server_;
+  private Thread thread_;
+  private int port_;
+  private Socket client_;
+
+  // "start" and "end" of each request, in the order the servlets ran
+  private final List<String> events_ =
+      Collections.synchronizedList(new ArrayList<String>());
+  private final AtomicInteger running_ = new AtomicInteger();
+  private final AtomicInteger max_running_ = new AtomicInteger();
+
+  // /reverse/i waits until every /reverse request has started, and then
+  // finishes only once /reverse/i+1 has
+  private volatile CountDownLatch started_;
+  private final CountDownLatch[] finished_ = new CountDownLatch[WORKERS];
+  // /block/i writes its response and then waits for the gate
+  private final CountDownLatch gate_ = new CountDownLatch(1);
+
+  /**
+   * Answers every request with its path, after doing what the first
+   * segment of the path says.
+   */
+  private class Chain implements FilterChain {
+    public void doFilter(ServletRequest request, ServletResponse response)
+        throws IOException {
+      HttpServletRequest req = (HttpServletRequest) request;
+      HttpServletResponse resp = (HttpServletResponse) response;
+      String path = req.getRequestURI();
+      String[] segments = path.split("/");
+      String action = segments[1];
+      int index = Integer.parseInt(segments[2]);
+
+      events_.add("start " + path);
+      int running = running_.incrementAndGet();
+      while (true) {
+        int max = max_running_.get();
+        if (running <= max || max_running_.compareAndSet(max, running)) {
+          break;
+        }
+      }
+      try {
+        byte[] body = path.getBytes("ISO-8859-1");
+        if ("echo".equals(action)) {
+          body = (path + " " + StreamUtils.toString(req.getInputStream()))
+              .getBytes("ISO-8859-1");
+        } else if ("slow".equals(action)) {
+          sleep(20);
+        } else if ("reverse".equals(action)) {
+          started_.countDown();
+          await(started_);
+          if (index + 1 < finished_.length) {
+            await(finished_[index + 1]);
+          }
+        }
+        resp.setContentLength(body.length);
+        resp.getOutputStream().write(body);
+        if ("block".equals(action)) {
+          resp.flushBuffer();
+          await(gate_);
+        }
+      } finally {
+        running_.decrementAndGet();
+        events_.add("end " + path);
+        if ("reverse".equals(action)) {
+          finished_[index].countDown();
+        }
+      }
+    }
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      assertTrue(latch.await(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    for (int i = 0; i < finished_.length; ++i) {
+      finished_[i] = new CountDownLatch(1);
+    }
+    selector_ = new NetSelector();
+    // a pool of its own, so that what the test leaves behind can be counted
+    pool_ = new BufferPool(BufferPool.DEFAULT_MIN_SIZE,
+        BufferPool.DEFAULT_MAX_SIZE, IOBuffer.ALLOC_EXTRA,
+        BufferPool.DEFAULT_SLAB_SIZE);
+    selector_.setBufferPool(pool_);
+    server_ = new HttpServer(selector_,
+        new WorkStealingDispatchQueue(WORKERS),
+        new HttpRequestHandlerAdapter(new Chain()),
+        ServletEngineConfigurationImpl.create(-1, WORKERS));
+    server_.setPipelineDepth(WORKERS);
+    port_ = selector_.listen(-1, new AcceptServer(server_), false, false);
+    thread_ = new Thread("PipelinedRequestTest selector") {
+      @Override
+      public void run() {
+        selector_.runForever();
+      }
+    };
+    thread_.start();
+    client_ = new Socket("localhost", port_);
+    client_.setSoTimeout((int) WAIT_MILLIS);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    gate_.countDown();
+    client_.close();
+    server_.quit(WAIT_MILLIS);
+    thread_.join(WAIT_MILLIS);
+  }
+
+  private static String get(String path) {
+    return "GET " + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n";
+  }
+
+  /**
+   * Sends all of <code>requests</code> in one write, so that they arrive
+   * together.
+   */
+  private void send(String... requests) throws IOException {
+    StringBuilder bytes = new StringBuilder();
+    for (String request : requests) {
+      bytes.append(request);
+    }
+    client_.getOutputStream().write(bytes.toString().getBytes("ISO-8859-1"));
+  }
+
+  /**
+   * Reads the next response and returns its status code and body, as in
+   * "200 /slow/1". A response without a Content-Length is read until the
+   * connection is closed.
+   */
+  private String read() throws IOException {
+    InputStream in = client_.getInputStream();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    while (!bytes.toString("ISO-8859-1").endsWith("\r\n\r\n")) {
+      int b = in.read();
+      assertTrue("connection closed", b >= 0);
+      bytes.write(b);
+    }
+    String head = bytes.toString("ISO-8859-1");
+    int length = -1;
+    for (String line : head.split("\r\n")) {
+      if (line.toLowerCase().startsWith("content-length:")) {
+        length = Integer.parseInt(line.substring(15).trim());
+      }
+    }
+    bytes.reset();
+    if (length < 0) {
+      // the body ends when the connection does
+      for (int b = in.read(); b >= 0; b = in.read()) {
+        bytes.write(b);
+      }
+    } else {
+      for (int n = 0; n < length; ++n) {
+        int b = in.read();
+        assertTrue("connection closed", b >= 0);
+        bytes.write(b);
+      }
+    }
+    return head.substring(9, 12) + " " + bytes.toString("ISO-8859-1");
+  }
+
+  private void assertBefore(String first, String second) {
+    List<String> events = new ArrayList<String>(events_);
+    assertTrue(events.toString(), events.contains(first));
+    assertTrue(events.toString(), events.contains(second));
+    assertTrue(events.toString(),
+        events.indexOf(first) < events.indexOf(second));
+  }
+
+  public void testAnswersInRequestOrder() throws Exception {
+    int n = 5;
+    String[] requests = new String[n];
+    for (int i = 0; i < n; ++i) {
+      requests[i] = get("/reverse/" + i);
+    }
+    started_ = new CountDownLatch(n);
+    // the last request's servlet finishes first
+    finished_[n].countDown();
+    send(requests);
+    for (int i = 0; i < n; ++i) {
+      assertEquals("200 /reverse/" + i, read());
+    }
+    for (int i = 1; i < n; ++i) {
+      assertBefore("end /reverse/" + i, "end /reverse/" + (i - 1));
+    }
+    assertEquals(n, max_running_.get());
+  }
+
+  public void testPostIsServedInItsTurn() throws Exception {
+    String post = "POST /echo/2 HTTP/1.1\r\nHost: localhost\r\n"
+        + "Content-Type: text/plain\r\nContent-Length: 5\r\n\r\nhello";
+    send(get("/slow/0"), get("/slow/1"), post, get("/slow/3"),
+        get("/slow/4"));
+    assertEquals("200 /slow/0", read());
+    assertEquals("200 /slow/1", read());
+    assertEquals("200 /echo/2 hello", read());
+    assertEquals("200 /slow/3", read());
+    assertEquals("200 /slow/4", read());
+    // the POST waits for the requests before it, and those after it
+    // wait for the POST
+    assertBefore("end /slow/0", "start /echo/2");
+    assertBefore("end /slow/1", "start /echo/2");
+    assertBefore("end /echo/2", "start /slow/3");
+  }
+
+  public void testMalformedRequestIsAnsweredInItsTurn() throws Exception {
+    // a continuation line before any header can't be parsed
+    send(get("/slow/0"), get("/slow/1"),
+        "GET /bad/2 HTTP/1.1\r\n Host: localhost\r\n\r\n");
+    assertEquals("200 /slow/0", read());
+    assertEquals("200 /slow/1", read());
+    assertTrue(read().startsWith("400 "));
+    assertFalse(events_.toString().contains("/bad/2"));
+  }
+
+  public void testClosingReleasesHeldResponses() throws Exception {
+    send(get("/block/0"), get("/block/1"), get("/block/2"),
+        get("/block/3"));
+    long end = System.currentTimeMillis() + WAIT_MILLIS;
+    while (running_.get() < 4 && System.currentTimeMillis() < end) {
+      Thread.sleep(10);
+    }
+    assertEquals(4, running_.get());
+
+    // the responses are written, and held, when the client goes away
+    client_.close();
+    end = System.currentTimeMillis() + WAIT_MILLIS;
+    while (selector_.getNumConns() > 0 && System.currentTimeMillis() < end) {
+      Thread.sleep(10);
+    }
+    assertEquals(0, selector_.getNumConns());
+    gate_.countDown();
+
+    end = System.currentTimeMillis() + WAIT_MILLIS;
+    while ((running_.get() > 0 || pool_.getOutstanding() > 0)
+        && System.currentTimeMillis() < end) {
+      Thread.sleep(10);
+    }
+    assertEquals(0, running_.get());
+    assertEquals(0, pool_.getOutstanding());
+    // given back, not found as garbage
+    assertEquals(0, pool_.getAbandoned());
+  }
+
+  public void testDepthOneRunsOneRequestAtATime() throws Exception {
+    server_.setPipelineDepth(1);
+    send(get("/slow/0"), get("/slow/1"), get("/slow/2"), get("/slow/3"));
+    for (int i = 0; i < 4; ++i) {
+      assertEquals("200 /slow/" + i, read());
+    }
+    assertEquals(1, max_running_.get());
+    for (int i = 1; i < 4; ++i) {
+      assertBefore("end /slow/" + (i - 1), "start /slow/" + i);
+    }
+  }
+}
@@ -0,0 +1,72 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.opengse.core;
+
+import com.google.opengse.iobuffer.IOBuffer;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.InputStream;
+
+/**
+ * Unit test for {@link RequestBodyFile}.
+ */
+public class RequestBodyFileTest extends TestCase {
+
+  public void testReceiveAndRead() throws Exception {
+    RequestBodyFile body = new RequestBodyFile(null);
+    try {
+      byte[] data = new byte[20000];
+      for (int i = 0; i < data.length; ++i) {
+        data[i] = (byte) i;
+      }
+      IOBuffer src = new IOBuffer();
+      src.writeBytes(data);
+      src.writeBytes(new byte[] { 'x', 'y' });
+      src.flush();
+
+      body.receive(src, 15000);
+      body.receive(src, 5000);
+      assertEquals(20000, body.length());
+      // bytes past the body are left alone
+      assertEquals(2, src.availableBytes());
+
+      InputStream in = body.openStream();
+      byte[] read = new byte[data.length];
+      int n = 0;
+      while (n < read.length) {
+        int count = in.read(read, n, read.length - n);
+        assertTrue(count > 0);
+        n += count;
+      }
+      assertEquals(-1, in.read());
+      in.close();
+      for (int i = 0; i < data.length; ++i) {
+        assertEquals(data[i], read[i]);
+      }
+    } finally {
+      body.delete();
+    }
+  }
+
+  public void testDeleteRemovesFile() throws Exception {
+    RequestBodyFile body = new RequestBodyFile(null);
+    File file = body.getFile();
+    assertTrue(file.exists());
+    body.delete();
+    assertFalse(file.exists());
+  }
+}
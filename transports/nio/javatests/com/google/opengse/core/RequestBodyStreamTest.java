@@ -0,0 +1,181 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.opengse.core;
+
+import com.google.opengse.iobuffer.IOBuffer;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Unit test for {@link RequestBodyStream}.
+ */
+public class RequestBodyStreamTest extends TestCase {
+
+  private SocketChannel client_;
+  private NetConnection conn_;
+
+  @Override
+  protected void setUp() throws Exception {
+    ServerSocketChannel listener = ServerSocketChannel.open();
+    listener.socket().bind(
+        new InetSocketAddress(InetAddress.getByName("localhost"), 0));
+    client_ = SocketChannel.open(listener.socket().getLocalSocketAddress());
+    SocketChannel server = listener.accept();
+    listener.close();
+    server.configureBlocking(false);
+    conn_ = new NetConnection(null, new NetSelector(), server);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    conn_.close();
+    client_.close();
+  }
+
+  private static IOBuffer bytes(String s) throws IOException {
+    IOBuffer buf = new IOBuffer();
+    buf.writeBytes(s.getBytes("ISO-8859-1"));
+    buf.flush();
+    return buf;
+  }
+
+  public void testReadsWhatWasReceived() throws Exception {
+    RequestBodyStream in = new RequestBodyStream(conn_, 1024, 1000);
+    IOBuffer src = bytes("hello world");
+    in.receive(src, 5);
+    assertEquals(6, src.availableBytes());
+    in.receive(src, 6);
+    in.complete();
+    assertEquals(11, in.getReceivedBytes());
+    assertEquals(11, in.available());
+
+    byte[] b = new byte[32];
+    assertEquals('h', in.read());
+    assertEquals(10, in.read(b));
+    assertEquals("ello world", new String(b, 0, 10, "ISO-8859-1"));
+    assertEquals(-1, in.read());
+    assertEquals(-1, in.read(b, 0, b.length));
+  }
+
+  public void testReadWaitsForBytes() throws Exception {
+    final RequestBodyStream in = new RequestBodyStream(conn_, 1024, 10000);
+    Thread sender = new Thread() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(50);
+          in.receive(bytes("x"), 1);
+          in.complete();
+        } catch (Exception e) {
+          in.fail(new IOException(e.toString()));
+        }
+      }
+    };
+    sender.start();
+    assertEquals('x', in.read());
+    assertEquals(-1, in.read());
+    sender.join();
+  }
+
+  public void testPausesReadsWhenWindowIsFull() throws Exception {
+    RequestBodyStream in = new RequestBodyStream(conn_, 8, 1000);
+    in.receive(bytes("12345678"), 8);
+    assertTrue(in.isPaused());
+    assertTrue(conn_.isReadPaused());
+
+    // still more than half the window buffered
+    in.read(new byte[3]);
+    assertTrue(conn_.isReadPaused());
+
+    in.read();
+    assertFalse(in.isPaused());
+    assertFalse(conn_.isReadPaused());
+  }
+
+  public void testCompleteResumesReads() throws Exception {
+    RequestBodyStream in = new RequestBodyStream(conn_, 4, 1000);
+    in.receive(bytes("1234"), 4);
+    assertTrue(conn_.isReadPaused());
+    in.complete();
+    assertFalse(conn_.isReadPaused());
+    assertTrue(in.isComplete());
+  }
+
+  public void testFailureIsReportedAfterBufferedBytes() throws Exception {
+    RequestBodyStream in = new RequestBodyStream(conn_, 1024, 1000);
+    in.receive(bytes("ab"), 2);
+    in.fail(new IOException("connection closed"));
+    assertEquals('a', in.read());
+    assertEquals('b', in.read());
+    try {
+      in.read();
+      fail();
+    } catch (IOException expected) {
+      assertEquals("connection closed", expected.getMessage());
+    }
+  }
+
+  public void testFailureAfterCompleteIsIgnored() throws Exception {
+    RequestBodyStream in = new RequestBodyStream(conn_, 1024, 1000);
+    in.complete();
+    in.fail(new IOException("connection closed"));
+    assertEquals(-1, in.read());
+  }
+
+  public void testReadTimesOut() throws Exception {
+    RequestBodyStream in = new RequestBodyStream(conn_, 1024, 20);
+    try {
+      in.read();
+      fail();
+    } catch (SocketTimeoutException expected) {
+    }
+  }
+
+  public void testCloseDiscardsBody() throws Exception {
+    RequestBodyStream in = new RequestBodyStream(conn_, 4, 1000);
+    in.receive(bytes("1234"), 4);
+    assertTrue(conn_.isReadPaused());
+    in.close();
+    assertFalse(conn_.isReadPaused());
+    assertEquals(0, in.available());
+
+    IOBuffer src = bytes("5678");
+    in.receive(src, 4);
+    assertEquals(0, src.availableBytes());
+    assertEquals(8, in.getReceivedBytes());
+    try {
+      in.read();
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+
+  public void testSkip() throws Exception {
+    RequestBodyStream in = new RequestBodyStream(conn_, 1024, 1000);
+    in.receive(bytes("abcdef"), 6);
+    in.complete();
+    assertEquals(4, in.skip(4));
+    assertEquals('e', in.read());
+    assertEquals(1, in.skip(10));
+    assertEquals(0, in.skip(10));
+  }
+}
@@ -12,12 +12,108 @@
 // See the License for the specific language governing permissions and
 // limitations under the License.
 
+
 package com.google.opengse.core;
 
-import com.google.opengse.UnwrittenTestCase;
+import com.google.opengse.GSEConstants;
+import com.google.opengse.iobuffer.IOBuffer;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.Enumeration;
 
 /**
  * Unit test for {@link RequestContext}.
  */
-public class RequestContextTest extends UnwrittenTestCase {
+public class RequestContextTest extends TestCase {
+
+  private static RequestContext parse(String request) throws IOException {
+    RequestContext context = new RequestContext();
+    IOBuffer buf = new IOBuffer();
+    buf.writeBytes(request.getBytes("ISO-8859-1"));
+    buf.flush();
+    assertTrue(context.parse(buf));
+    return context;
+  }
+
+  public void testParseInPieces() throws Exception {
+    byte[] request = ("GET /a?b=c HTTP/1.1\r\nHost: x\r\n"
+        + "Accept: text/html, text/plain\r\n\r\nGET").getBytes("ISO-8859-1");
+    RequestContext context = new RequestContext();
+    IOBuffer buf = new IOBuffer();
+    for (int off = 0; off < 20; off += 5) {
+      buf.writeBytes(request, off, 5);
+      buf.flush();
+      assertFalse(context.parse(buf));
+    }
+    buf.writeBytes(request, 20, request.length - 20);
+    buf.flush();
+    assertTrue(context.parse(buf));
+    // the start of the next request is left for later
+    assertEquals(3, buf.availableBytes());
+
+    assertSame(GSEConstants.GET, context.getMethod());
+    assertEquals(1, context.getMajorVersion());
+    assertEquals(1, context.getMinorVersion());
+    assertEquals("x", context.getHeaders().getHeader("host"));
+    Enumeration<String> accept = context.getHeaders().getHeaders("Accept");
+    assertEquals("text/html", accept.nextElement());
+    assertEquals("text/plain", accept.nextElement());
+  }
+
+  public void testBadRequest() throws Exception {
+    try {
+      parse("GET /a<b HTTP/1.1\r\n\r\n");
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+
+  public void testTooManyHeaders() throws Exception {
+    StringBuilder request = new StringBuilder("GET / HTTP/1.1\r\n");
+    for (int i = 0; i <= MimeHeaders.HEADER_LIMIT; ++i) {
+      request.append("H").append(i).append(": x\r\n");
+    }
+    try {
+      parse(request.append("\r\n").toString());
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+
+  public void testPathAndQuery() throws Exception {
+    RequestContext context = parse("GET /a/b%20c?d=e&f HTTP/1.1\r\n\r\n");
+    assertEquals("/a/b%20c", context.getRawPath());
+    assertEquals("d=e&f", context.getRawQuery());
+    assertNull(context.getScheme());
+    assertEquals("/a/b%20c", context.getURI().getRawPath());
+
+    context.setURI("/x#frag?not-a-query");
+    assertEquals("/x", context.getRawPath());
+    assertNull(context.getRawQuery());
+  }
+
+  public void testAbsoluteURI() throws Exception {
+    RequestContext context =
+        parse("GET http://example.com:80/p?q HTTP/1.1\r\n\r\n");
+    assertEquals("http", context.getScheme());
+    assertEquals("/p", context.getRawPath());
+    assertEquals("q", context.getRawQuery());
+
+    context.setURI("http://example.com");
+    assertEquals("", context.getRawPath());
+    assertNull(context.getRawQuery());
+    assertEquals(context.getURI().getRawPath(), context.getRawPath());
+
+    context.setURI("example.com:443");
+    assertEquals("example.com", context.getScheme());
+    assertNull(context.getRawPath());
+  }
+
+  public void testBracesArePatched() throws Exception {
+    RequestContext context = parse("GET /u?app={ec80} HTTP/1.1\r\n\r\n");
+    assertEquals("app=%7Bec80%7D", context.getRawQuery());
+    assertNotNull(context.getURI());
+  }
 }
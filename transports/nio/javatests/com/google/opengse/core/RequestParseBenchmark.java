@@ -0,0 +1,91 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.opengse.core;
+
+import com.google.opengse.iobuffer.IOBuffer;
+
+/**
+ * Measures how fast {@link RequestContext} turns the bytes of a request
+ * head, as they arrive in an <code>IOBuffer</code>, into a method, URI
+ * and headers. Each request is fed in pieces of <code>chunk</code> bytes,
+ * so a small chunk shows the cost of resuming across partial reads.
+ *
+ * <p>Run with
+ * <code>java com.google.opengse.core.RequestParseBenchmark [requests]
+ * [chunk]</code>.
+ */
+public final class RequestParseBenchmark {
+
+  private RequestParseBenchmark() { /* Launcher class: do not instantiate. */ }
+
+  /** A typical browser request, and a minimal one from a load tester. */
+  static final String[] REQUESTS = {
+    "GET /search?q=opengse&hl=en&start=10 HTTP/1.1\r\n"
+        + "Host: www.example.com\r\n"
+        + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:100.0) "
+        + "Gecko/20100101 Firefox/100.0\r\n"
+        + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,"
+        + "*/*;q=0.8\r\n"
+        + "Accept-Language: en-US,en;q=0.5\r\n"
+        + "Accept-Encoding: gzip, deflate\r\n"
+        + "Referer: http://www.example.com/\r\n"
+        + "Cookie: PREF=ID=1234567890abcdef:TM=1200000000:LM=1200000000; "
+        + "SID=DQAAAHAAAABbc2Rm\r\n"
+        + "Connection: keep-alive\r\n"
+        + "Cache-Control: max-age=0\r\n"
+        + "\r\n",
+    "GET /index.html HTTP/1.1\r\n"
+        + "Host: localhost:8080\r\n"
+        + "\r\n",
+  };
+
+  public static void main(String[] args) throws Exception {
+    int requests = (args.length > 0) ? Integer.parseInt(args[0]) : 500000;
+    int chunk = (args.length > 1) ? Integer.parseInt(args[1]) : 0;
+
+    // Run each one twice so the second figures are from a warm JIT.
+    for (int round = 0; round < 2; ++round) {
+      for (String request : REQUESTS) {
+        byte[] bytes = request.getBytes("ISO-8859-1");
+        long start = System.nanoTime();
+        run(bytes, requests, (chunk > 0) ? chunk : bytes.length);
+        long nanos = System.nanoTime() - start;
+        System.out.println(bytes.length + "-byte request in "
+            + ((chunk > 0) ? chunk + "-byte" : "one") + " piece(s): "
+            + (requests * 1000000000L / nanos) + " requests/sec, "
+            + (bytes.length * (long) requests * 1000 / nanos) + " MB/sec");
+      }
+    }
+  }
+
+  private static void run(byte[] bytes, int requests, int chunk)
+      throws Exception {
+    IOBuffer buf = new IOBuffer();
+    for (int i = 0; i < requests; ++i) {
+      RequestContext context = new RequestContext();
+      boolean done = false;
+      for (int off = 0; !done; off += chunk) {
+        buf.writeBytes(bytes, off, Math.min(chunk, bytes.length - off));
+        buf.flush();
+        done = RequestContextFactory.parse(context, buf);
+      }
+      if (context.getMethod() == null
+          || context.getHeaders().getHeader("Host") == null) {
+        throw new AssertionError("request was not parsed");
+      }
+    }
+  }
+}
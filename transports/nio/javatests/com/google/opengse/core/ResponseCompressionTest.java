@@ -0,0 +1,72 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.opengse.core;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for {@link ResponseCompression}.
+ */
+public class ResponseCompressionTest extends TestCase {
+
+  public void testDefaultTypes() {
+    ResponseCompression compression = new ResponseCompression();
+    assertTrue(compression.isCompressibleType("text/html"));
+    assertTrue(compression.isCompressibleType("text/plain"));
+    assertTrue(compression.isCompressibleType("application/json"));
+    assertTrue(compression.isCompressibleType("application/atom+xml"));
+    assertFalse(compression.isCompressibleType("image/png"));
+    assertFalse(compression.isCompressibleType("application/octet-stream"));
+    assertFalse(compression.isCompressibleType("application/xml-dtd"));
+  }
+
+  public void testSetTypes() {
+    ResponseCompression compression = new ResponseCompression();
+    compression.setTypes(" image/svg+xml ,*/javascript");
+    assertTrue(compression.isCompressibleType("image/svg+xml"));
+    assertTrue(compression.isCompressibleType("text/javascript"));
+    assertTrue(compression.isCompressibleType("application/javascript"));
+    assertFalse(compression.isCompressibleType("text/html"));
+    compression.setTypes("");
+    assertFalse(compression.isCompressibleType("image/svg+xml"));
+  }
+
+  public void testStatistics() {
+    ResponseCompression compression = new ResponseCompression();
+    assertEquals(1.0, compression.getCompressionRatio(), 0.0);
+    compression.recordSkipped();
+    compression.recordCompressed(1000, 250, 7);
+    compression.recordCompressed(3000, 750, 3);
+    assertEquals(1, compression.getSkippedCount());
+    assertEquals(2, compression.getCompressedCount());
+    assertEquals(4000, compression.getBytesIn());
+    assertEquals(1000, compression.getBytesOut());
+    assertEquals(10, compression.getCpuNanos());
+    assertEquals(0.25, compression.getCompressionRatio(), 1e-9);
+  }
+
+  public void testLevel() {
+    ResponseCompression compression = new ResponseCompression();
+    compression.setLevel(1);
+    assertEquals(1, compression.getLevel());
+    try {
+      compression.setLevel(12);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    assertEquals(1, compression.getLevel());
+  }
+}
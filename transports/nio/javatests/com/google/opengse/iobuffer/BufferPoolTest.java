@@ -0,0 +1,207 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.opengse.iobuffer;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Unit test for {@link BufferPool}.
+ */
+public class BufferPoolTest extends TestCase {
+
+  private BufferPool pool_;
+
+  @Override
+  protected void setUp() {
+    // size classes of 1026, 2050 and 4098 bytes, 8 KB slabs
+    pool_ = new BufferPool(1024, 4096, 2, 8192);
+  }
+
+  public void testSizeClasses() {
+    assertEquals(4098, pool_.getMaxSize());
+    PooledBuffer buf = pool_.acquire(1500);
+    assertEquals(1500, buf.getBuffer().capacity());
+    assertTrue(buf.getBuffer().isDirect());
+    assertNull(pool_.acquire(4099));
+    buf.release();
+  }
+
+  public void testHitsMissesAndOutstanding() {
+    PooledBuffer a = pool_.acquire(1024);
+    assertEquals(1, pool_.getMisses());
+    // seven 1026 byte buffers fit in a slab
+    assertEquals(7 * 1026, pool_.getSlabBytes());
+    PooledBuffer b = pool_.acquire(1024);
+    assertEquals(1, pool_.getHits());
+    assertEquals(2, pool_.getOutstanding());
+    a.release();
+    b.release();
+    assertEquals(0, pool_.getOutstanding());
+    pool_.acquire(1000).release();
+    assertEquals(2, pool_.getHits());
+    assertEquals(1, pool_.getMisses());
+  }
+
+  public void testAbandonedBuffersAreReclaimed() throws Exception {
+    pool_.acquire(1024);
+    for (int i = 0; i < 50 && pool_.getAbandoned() == 0; ++i) {
+      System.gc();
+      Thread.sleep(10);
+      pool_.acquire(1024).release();
+    }
+    assertEquals(1, pool_.getAbandoned());
+    assertEquals(0, pool_.getOutstanding());
+  }
+
+  public void testIOBufferReturnsBuffersOnceRead() throws Exception {
+    IOBuffer iobuf = new IOBuffer(pool_);
+    iobuf.writeBytes(new byte[3000]);
+    iobuf.flush();
+    assertTrue(iobuf.getPooledBytes() > 0);
+    assertTrue(pool_.getOutstanding() > 0);
+    assertEquals(3000, iobuf.readBytes(new byte[4000]));
+    assertEquals(0, iobuf.getPooledBytes());
+    assertEquals(0, pool_.getOutstanding());
+  }
+
+  public void testIOBufferReturnsBuffersOnClear() throws Exception {
+    IOBuffer iobuf = new IOBuffer(pool_);
+    iobuf.writeBytes("hello".getBytes("US-ASCII"));
+    iobuf.flush();
+    iobuf.writeBytes("world".getBytes("US-ASCII"));
+    assertEquals("helloworld", iobuf.toString());
+    iobuf.clear();
+    assertEquals(0, pool_.getOutstanding());
+  }
+
+  public void testIOBufferReleasesUnusedWriteBuffer() throws Exception {
+    IOBuffer iobuf = new IOBuffer(pool_);
+    iobuf.getWriteBuffer();
+    assertEquals(1, pool_.getOutstanding());
+    iobuf.releaseWriteBuffer();
+    assertEquals(0, iobuf.getPooledBytes());
+    assertEquals(0, pool_.getOutstanding());
+    // one with data in it is kept
+    iobuf.getWriteBuffer().put((byte) 'x');
+    iobuf.releaseWriteBuffer();
+    assertEquals(1, pool_.getOutstanding());
+    iobuf.flush();
+    assertEquals("x", iobuf.toString());
+  }
+
+  public void testTransferToPooledBufferShares() throws Exception {
+    IOBuffer src = new IOBuffer(pool_);
+    src.writeBytes("GET / HTTP/1.0\r\n\r\nbody".getBytes("US-ASCII"));
+    src.flush();
+    IOBuffer dest = new IOBuffer(pool_);
+    src.skipBytes(18);
+    dest.transfer(src, 4);
+    dest.flush();
+    // src read everything, but dest still holds the shared buffer
+    assertTrue(src.isEmpty());
+    assertEquals(0, src.getPooledBytes());
+    assertEquals(1, pool_.getOutstanding());
+    assertEquals("body", dest.toString());
+    dest.clear();
+    assertEquals(0, pool_.getOutstanding());
+  }
+
+  public void testTransferToHeapBufferShares() throws Exception {
+    IOBuffer src = new IOBuffer(pool_);
+    src.writeBytes("line\r\nbody".getBytes("US-ASCII"));
+    src.flush();
+    src.skipBytes(6);
+    IOBuffer dest = new IOBuffer();
+    dest.transfer(src, 4);
+    dest.flush();
+    assertEquals(0, src.getPooledBytes());
+    assertEquals(1, pool_.getOutstanding());
+    ByteBuffer shared = dest.getReadBuffer();
+    assertTrue(shared.isDirect());
+    assertTrue(shared.isReadOnly());
+    assertEquals("body", dest.toString());
+    // the buffer goes back to the pool once dest has read it
+    assertEquals(4, dest.readBytes(new byte[10]));
+    assertEquals(0, dest.getPooledBytes());
+    assertEquals(0, pool_.getOutstanding());
+  }
+
+  public void testTransferMovesWholeBuffers() throws Exception {
+    IOBuffer src = new IOBuffer(pool_);
+    src.writeBytes("one".getBytes("US-ASCII"));
+    src.flush();
+    src.writeBytes("two".getBytes("US-ASCII"));
+    src.flush();
+    IOBuffer dest = new IOBuffer(pool_);
+    // the first buffer changes hands, the second is shared
+    dest.transfer(src, 5);
+    dest.flush();
+    assertEquals(2, pool_.getOutstanding());
+    assertEquals("o", src.toString());
+    assertEquals("onetw", dest.toString());
+    src.clear();
+    assertEquals(2, pool_.getOutstanding());
+    assertEquals("onetw", dest.toString());
+    dest.clear();
+    assertEquals(0, pool_.getOutstanding());
+  }
+
+  public void testSharedWriteBufferIsNotWritten() throws Exception {
+    IOBuffer src = new IOBuffer(pool_);
+    src.writeBytes("abc".getBytes("US-ASCII"));
+    IOBuffer copy = new IOBuffer(src);
+    copy.writeBytes("X".getBytes("US-ASCII"));
+    src.writeBytes("d".getBytes("US-ASCII"));
+    src.flush();
+    copy.flush();
+    assertEquals("abcd", src.toString());
+    assertEquals("abcX", copy.toString());
+    src.clear();
+    copy.clear();
+    assertEquals(0, pool_.getOutstanding());
+  }
+
+  public void testAppendAndPrependAcrossPools() throws Exception {
+    IOBuffer body = new IOBuffer(pool_);
+    body.writeBytes("body".getBytes("US-ASCII"));
+    IOBuffer headers = new IOBuffer();
+    headers.writeBytes("head:".getBytes("US-ASCII"));
+    body.prepend(headers);
+    body.flush();
+    assertEquals("head:body", body.toString());
+
+    IOBuffer copy = new IOBuffer();
+    copy.append(body);
+    assertEquals("head:body", copy.toString());
+    body.clear();
+    // the copy keeps the pooled memory it shares from being reused
+    assertEquals(1, pool_.getOutstanding());
+    pool_.acquire(1024).getBuffer().put("XXXXXXXXXX".getBytes("US-ASCII"));
+    assertEquals("head:body", copy.toString());
+    copy.clear();
+    assertEquals(1, pool_.getOutstanding());
+  }
+
+  public void testReadLineFromDirectBuffer() throws Exception {
+    IOBuffer iobuf = new IOBuffer(pool_);
+    iobuf.writeBytes("first\r\nsecond\r\n".getBytes("US-ASCII"));
+    iobuf.flush();
+    byte[] line = new byte[100];
+    assertEquals(7, iobuf.readLine(line, 0, line.length));
+    assertEquals("first\r\n", new String(line, 0, 7, "US-ASCII"));
+  }
+}
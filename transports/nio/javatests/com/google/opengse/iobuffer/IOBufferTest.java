@@ -14,10 +14,55 @@
 
 package com.google.opengse.iobuffer;
 
-import com.google.opengse.UnwrittenTestCase;
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
 
 /**
  * Unit test for {@link IOBuffer}.
  */
-public class IOBufferTest extends UnwrittenTestCase {
+public class IOBufferTest extends TestCase {
+
+  private static String toString(ByteBuffer buf) throws Exception {
+    byte[] bytes = new byte[buf.remaining()];
+    buf.duplicate().get(bytes);
+    return new String(bytes, "US-ASCII");
+  }
+
+  public void testGetReadBuffersDoesNotConsume() throws Exception {
+    IOBuffer iobuf = new IOBuffer();
+    iobuf.writeBytes("one".getBytes("US-ASCII"));
+    iobuf.flush();
+    iobuf.appendBuffer(ByteBuffer.allocate(10));  // empty
+    iobuf.writeBytes("two".getBytes("US-ASCII"));
+    iobuf.flush();
+    iobuf.writeBytes("unflushed".getBytes("US-ASCII"));
+    assertEquals('o', iobuf.readByte());
+
+    ByteBuffer[] bufs = new ByteBuffer[4];
+    assertEquals(2, iobuf.getReadBuffers(bufs));
+    assertEquals("ne", toString(bufs[0]));
+    assertEquals("two", toString(bufs[1]));
+
+    // consuming the views leaves the IOBuffer alone ...
+    bufs[0].position(bufs[0].limit());
+    bufs[1].get();
+    assertEquals(5, iobuf.availableBytes());
+    // ... until the caller skips what it used
+    iobuf.skipBytes(3);
+    assertEquals(1, iobuf.getReadBuffers(bufs));
+    assertEquals("wo", toString(bufs[0]));
+  }
+
+  public void testGetReadBuffersStopsAtArrayLength() throws Exception {
+    IOBuffer iobuf = new IOBuffer();
+    for (int i = 0; i < 5; ++i) {
+      iobuf.writeBytes(new byte[] { (byte) ('a' + i) });
+      iobuf.flush();
+    }
+    ByteBuffer[] bufs = new ByteBuffer[3];
+    assertEquals(3, iobuf.getReadBuffers(bufs));
+    assertEquals("c", toString(bufs[2]));
+    assertEquals(0, new IOBuffer().getReadBuffers(bufs));
+  }
 }
@@ -0,0 +1,50 @@
+// Copyright 2008 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.opengse.iobuffer;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for {@link PooledBuffer}.
+ */
+public class PooledBufferTest extends TestCase {
+
+  private BufferPool pool_ = new BufferPool(1024, 1024, 0, 4096);
+
+  public void testReferenceCounting() {
+    PooledBuffer buf = pool_.acquire(1024);
+    assertSame(buf, buf.retain());
+    assertEquals(2, buf.getRefCount());
+    assertFalse(buf.release());
+    assertEquals(1, pool_.getOutstanding());
+    assertTrue(buf.release());
+    assertEquals(0, pool_.getOutstanding());
+    try {
+      buf.retain();
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+  }
+
+  public void testDoubleReleaseFails() {
+    PooledBuffer buf = pool_.acquire(1024);
+    buf.release();
+    try {
+      buf.release();
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+  }
+}